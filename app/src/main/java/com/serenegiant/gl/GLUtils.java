@@ -37,6 +37,7 @@ import android.view.SurfaceView;
 
 import com.serenegiant.system.Stacktrace;
 import com.serenegiant.utils.AssetsHelper;
+import com.serenegiant.utils.DirectBufferArena;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -216,7 +217,8 @@ public class GLUtils implements GLConst {
 	 * GLES20.glReadPixelsのヘルパーメソッド
 	 * RGBA8888として読み取る(=1ピクセル4バイト)
 	 * orderをLITTLE_ENDIANにセットするのでBitmap#copyPixelsFromBufferへ直接引き渡すことができる
-	 * @param buffer nullまたはサイズが小さいかまたはでないときは新規生成する
+	 * @param buffer nullまたはサイズが小さいかまたはでないときはDirectBufferArenaから取得する
+	 * 			引数のbufferはDirectBufferArenaへ返却しない(呼び出し元で管理する)
 	 * @param width
 	 * @param height
 	 * @return 読み取ったピクセルデータの入ったByteBuffer, orderはLITTLE_ENDIAN
@@ -230,7 +232,7 @@ public class GLUtils implements GLConst {
 		ByteBuffer buf = buffer;
 		if ((buf == null) || (buf.capacity() < sz)) {
 			if (DEBUG) Log.v(TAG, "glReadPixels:allocate direct bytebuffer");
-			buf = ByteBuffer.allocateDirect(sz).order(ByteOrder.LITTLE_ENDIAN);
+			buf = DirectBufferArena.getDefault().allocate(sz).order(ByteOrder.LITTLE_ENDIAN);
 		}
 		if ((buf.order() != ByteOrder.LITTLE_ENDIAN)) {
 			buf.order(ByteOrder.LITTLE_ENDIAN);
@@ -110,7 +110,7 @@ public abstract class AbstractAudioEncoder extends AbstractEncoder
         mTrackIndex = -1;
 		final String mimeType = getMimeType();
 // 音声を取り込んでAACにエンコードするためのMediaCodecの準備
-        final MediaCodecInfo codecInfo = MediaCodecUtils.selectAudioEncoder(mimeType);
+        final CodecCapabilityCache.Entry codecInfo = CodecCapabilityCache.getAudioEncoder(mimeType);
         if (codecInfo == null) {
 			throw new IllegalArgumentException("Unable to find an appropriate codec for " + mimeType);
         }
@@ -126,9 +126,14 @@ public abstract class AbstractAudioEncoder extends AbstractEncoder
 //      audioFormat.setLong(MediaFormat.KEY_DURATION, (long)durationInMs );
 //		if (DEBUG) Log.i(TAG, "format: " + audioFormat);
 
-		final MediaCodec mediaCodec = MediaCodec.createEncoderByType(mimeType);
-		mediaCodec.configure(audioFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-		mediaCodec.start();
+		final MediaCodec mediaCodec = createEncoder(audioFormat, null);
+		try {
+			mediaCodec.configure(audioFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+			mediaCodec.start();
+		} catch (final Exception e) {
+			releaseEncoder(mediaCodec);
+			throw e;
+		}
         final MediaReaper reaper = new MediaReaper.AudioReaper(mediaCodec, listener, mSampleRate, mChannelCount);
 //		if (DEBUG) Log.i(TAG, "internalPrepare:finished");
 		return new Encoder(mediaCodec, reaper, false);
@@ -0,0 +1,287 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import androidx.annotation.IntRange;
+
+/**
+ * 映像エンコーダーのビットレートを書き込み状況に合わせて調整するための制御則
+ *
+ * エンコード済みデータのサイズとmuxerへの書き込みにかかった時間、
+ * 出力先の空き容量の推移を受け取り、一定間隔毎に新しい目標ビットレートを決める
+ * ・書き込みに費やした時間の割合(使用率)が高い、または1回の書き込みが長すぎる時は乗算的に下げる
+ * ・使用率が低く、エンコーダーが目標ビットレートの大部分を使っている時は加算的に上げる
+ * ・空き容量が#setMinRunwayUsで指定した時間より早く尽きそうな時は尽きるまでの時間に比例して下げる
+ * 時刻は全て呼び出し元から受け取るので、MediaCodecやストレージを模擬した入力で動作を確認できる
+ * 各メソッドはスレッドセーフ
+ */
+public class AdaptiveBitrateController {
+
+	/**
+	 * 出力先の空き容量を取得するためのインターフェース
+	 */
+	public interface FreeSpaceProvider {
+		/**
+		 * 出力先の空き容量を取得する
+		 * @return 空き容量[バイト], 取得できなければ負の値
+		 */
+		public long getFreeBytes();
+	}
+
+	private static final long DEFAULT_INTERVAL_US = 1000000L;		// 1秒
+	private static final float DEFAULT_UTILIZATION_HIGH = 0.5f;
+	private static final float DEFAULT_UTILIZATION_LOW = 0.2f;
+	private static final long DEFAULT_MAX_LATENCY_US = 100000L;	// 100ミリ秒
+	private static final long DEFAULT_MIN_RUNWAY_US = 10 * 60 * 1000000L;	// 10分
+	/**
+	 * ビットレートを下げる時の倍率
+	 */
+	private static final float DECREASE_FACTOR = 0.7f;
+	/**
+	 * ビットレートを上げる時の1回あたりの増分(最大ビットレートに対する割合)
+	 */
+	private static final float INCREASE_RATIO = 0.05f;
+	/**
+	 * ビットレートを上げる条件とするエンコーダーの出力ビットレートの割合(目標ビットレートに対する割合)
+	 */
+	private static final float USAGE_RATIO_FOR_INCREASE = 0.8f;
+	/**
+	 * ビットレートを下げた後に上げるのを控える期間(制御間隔に対する倍数)
+	 */
+	private static final int HOLD_INTERVALS = 5;
+	/**
+	 * 空き容量の消費速度の指数移動平均の係数
+	 */
+	private static final float RATE_SMOOTHING = 0.3f;
+
+	private final int mMinBitrate;
+	private final int mMaxBitrate;
+	private long mIntervalUs = DEFAULT_INTERVAL_US;
+	private float mUtilizationHigh = DEFAULT_UTILIZATION_HIGH;
+	private float mUtilizationLow = DEFAULT_UTILIZATION_LOW;
+	private long mMaxLatencyUs = DEFAULT_MAX_LATENCY_US;
+	private long mMinRunwayUs = DEFAULT_MIN_RUNWAY_US;
+
+	/**
+	 * 現在の目標ビットレート
+	 */
+	private int mBitrate;
+	/**
+	 * 最後にエンコーダーへ適用したビットレート
+	 */
+	private int mAppliedBitrate;
+	// 制御間隔内の集計値
+	private long mWindowStartUs = -1;
+	private long mWindowBytes;
+	private long mWindowWriteUs;
+	private long mWindowMaxLatencyUs;
+	private int mWindowSamples;
+	// 空き容量の推移
+	private long mLastFreeBytes = -1;
+	private long mLastFreeUs;
+	/**
+	 * 空き容量の消費速度[バイト/秒], 不明なら負
+	 */
+	private float mConsumeBytesPerSec = -1;
+	/**
+	 * この時刻まではビットレートを上げない, 空き容量でも下げない
+	 */
+	private long mHoldUntilUs;
+
+	/**
+	 * コンストラクタ
+	 * @param minBitrate 最小ビットレート[bps]
+	 * @param maxBitrate 最大ビットレート[bps]
+	 * @throws IllegalArgumentException
+	 */
+	public AdaptiveBitrateController(
+		@IntRange(from = 1L) final int minBitrate,
+		@IntRange(from = 1L) final int maxBitrate) throws IllegalArgumentException {
+
+		if ((minBitrate <= 0) || (maxBitrate < minBitrate)) {
+			throw new IllegalArgumentException("invalid bitrate range," + minBitrate + "-" + maxBitrate);
+		}
+		mMinBitrate = minBitrate;
+		mMaxBitrate = maxBitrate;
+		mBitrate = mAppliedBitrate = maxBitrate;
+	}
+
+	/**
+	 * 制御間隔を設定する
+	 * @param intervalUs 制御間隔[マイクロ秒]
+	 */
+	public synchronized void setIntervalUs(@IntRange(from = 1L) final long intervalUs) {
+		mIntervalUs = intervalUs;
+	}
+
+	public synchronized long getIntervalUs() {
+		return mIntervalUs;
+	}
+
+	/**
+	 * ビットレートを上げ下げする基準となる使用率(制御間隔内で書き込みに費やした時間の割合)を設定する
+	 * @param low この値より低い時はビットレートを上げる
+	 * @param high この値より高い時はビットレートを下げる
+	 */
+	public synchronized void setUtilizationThresholds(final float low, final float high) {
+		mUtilizationLow = low;
+		mUtilizationHigh = high;
+	}
+
+	/**
+	 * 1回の書き込みにかかった時間がこの値を超えたらビットレートを下げる
+	 * @param maxLatencyUs
+	 */
+	public synchronized void setMaxLatencyUs(final long maxLatencyUs) {
+		mMaxLatencyUs = maxLatencyUs;
+	}
+
+	/**
+	 * 空き容量が尽きるまでの時間の下限を設定する
+	 * 空き容量の推移から予測した残り時間がこれより短くなるとビットレートを下げる
+	 * @param minRunwayUs 0以下なら空き容量ではビットレートを変更しない
+	 */
+	public synchronized void setMinRunwayUs(final long minRunwayUs) {
+		mMinRunwayUs = minRunwayUs;
+	}
+
+	public int getMinBitrate() {
+		return mMinBitrate;
+	}
+
+	public int getMaxBitrate() {
+		return mMaxBitrate;
+	}
+
+	/**
+	 * 現在の目標ビットレートを取得
+	 * @return
+	 */
+	public synchronized int getBitrate() {
+		return mBitrate;
+	}
+
+	/**
+	 * 集計値をクリアして初期ビットレートをセットする
+	 * エンコーダーの生成時に呼び出す
+	 * @param initialBitrate 初期ビットレート, 最小/最大ビットレートの範囲に制限する
+	 * @return 範囲を制限した初期ビットレート
+	 */
+	public synchronized int reset(final int initialBitrate) {
+		mBitrate = mAppliedBitrate = clamp(initialBitrate);
+		mWindowStartUs = -1;
+		clearWindow();
+		mLastFreeBytes = -1;
+		mConsumeBytesPerSec = -1;
+		mHoldUntilUs = 0;
+		return mBitrate;
+	}
+
+	/**
+	 * エンコード済みデータを書き込んだ時に呼び出す
+	 * @param bytes 書き込んだバイト数
+	 * @param writeLatencyUs 書き込みにかかった時間[マイクロ秒]
+	 */
+	public synchronized void onSampleWritten(final int bytes, final long writeLatencyUs) {
+		mWindowBytes += bytes;
+		mWindowWriteUs += writeLatencyUs;
+		if (writeLatencyUs > mWindowMaxLatencyUs) {
+			mWindowMaxLatencyUs = writeLatencyUs;
+		}
+		mWindowSamples++;
+	}
+
+	/**
+	 * 出力先の空き容量を取得した時に呼び出す
+	 * @param nowUs 現在時刻[マイクロ秒]
+	 * @param freeBytes 空き容量[バイト]
+	 */
+	public synchronized void onFreeSpace(final long nowUs, final long freeBytes) {
+		if ((mLastFreeBytes >= 0) && (nowUs > mLastFreeUs)) {
+			final float rate = (mLastFreeBytes - freeBytes) * 1000000f / (nowUs - mLastFreeUs);
+			if (rate >= 0) {
+				mConsumeBytesPerSec = mConsumeBytesPerSec < 0
+					? rate : mConsumeBytesPerSec + RATE_SMOOTHING * (rate - mConsumeBytesPerSec);
+			}
+		}
+		mLastFreeBytes = freeBytes;
+		mLastFreeUs = nowUs;
+	}
+
+	/**
+	 * 目標ビットレートを更新する
+	 * 前回の更新から制御間隔以上経過していなければ何もしない
+	 * @param nowUs 現在時刻[マイクロ秒]
+	 * @return エンコーダーへ適用すべき新しいビットレート, 変更不要なら-1
+	 */
+	public synchronized int update(final long nowUs) {
+		if (mWindowStartUs < 0) {
+			mWindowStartUs = nowUs;
+			return -1;
+		}
+		final long elapsedUs = nowUs - mWindowStartUs;
+		if (elapsedUs < mIntervalUs) {
+			return -1;
+		}
+		// 前回下げた効果がまだ出ていない可能性があるので保留期間中は上げない/空き容量では下げない
+		final boolean holding = nowUs < mHoldUntilUs;
+		int bitrate = mBitrate;
+		final float utilization = mWindowWriteUs / (float)elapsedUs;
+		final float outputBitrate = mWindowBytes * 8 * 1000000f / elapsedUs;
+		if ((utilization > mUtilizationHigh) || (mWindowMaxLatencyUs > mMaxLatencyUs)) {
+			// 書き込みが追いついていないので下げる
+			bitrate = (int)(bitrate * DECREASE_FACTOR);
+			mHoldUntilUs = nowUs + mIntervalUs * HOLD_INTERVALS;
+		} else if ((utilization < mUtilizationLow) && !holding
+			&& (mWindowSamples > 0)
+			&& (outputBitrate >= bitrate * USAGE_RATIO_FOR_INCREASE)) {
+			// 余裕があってエンコーダーが割り当てたビットレートを使い切っているので上げる
+			bitrate += (int)(mMaxBitrate * INCREASE_RATIO);
+		}
+		if (!holding && (mMinRunwayUs > 0) && (mConsumeBytesPerSec > 0) && (mLastFreeBytes >= 0)) {
+			final float runwayUs = mLastFreeBytes * 1000000f / mConsumeBytesPerSec;
+			if (runwayUs < mMinRunwayUs) {
+				// 空き容量が早く尽きそうなので残り時間の不足分に比例して下げる
+				bitrate = Math.min(bitrate, (int)(mBitrate * (runwayUs / mMinRunwayUs)));
+				mHoldUntilUs = nowUs + mIntervalUs * HOLD_INTERVALS;
+			}
+		}
+		mBitrate = clamp(bitrate);
+		mWindowStartUs = nowUs;
+		clearWindow();
+		// 小さな変化でMediaCodec#setParametersを呼び続けないように一定以上変化した時だけ適用する
+		if ((mBitrate != mAppliedBitrate)
+			&& ((Math.abs(mBitrate - mAppliedBitrate) >= mAppliedBitrate * INCREASE_RATIO)
+				|| (mBitrate == mMinBitrate) || (mBitrate == mMaxBitrate))) {
+
+			mAppliedBitrate = mBitrate;
+			return mBitrate;
+		}
+		return -1;
+	}
+
+	private void clearWindow() {
+		mWindowBytes = mWindowWriteUs = mWindowMaxLatencyUs = 0;
+		mWindowSamples = 0;
+	}
+
+	private int clamp(final int bitrate) {
+		return Math.max(mMinBitrate, Math.min(mMaxBitrate, bitrate));
+	}
+}
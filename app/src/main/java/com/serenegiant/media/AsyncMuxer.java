@@ -0,0 +1,1089 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import com.serenegiant.utils.DirectBufferArena;
+import com.serenegiant.utils.Pool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import androidx.annotation.IntDef;
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.documentfile.provider.DocumentFile;
+
+/**
+ * 実際のIMuxerへの書き込みを専用の書き込みスレッドで行うIMuxer実装
+ *
+ * #writeSampleDataはエンコード済みデータをプールしているRecycleMediaDataへコピーしてキューへ追加するだけなので、
+ * ストレージへの書き込みが一時的に詰まってもMediaReaperのスレッド
+ * (MediaCodec#dequeueOutputBuffer/#releaseOutputBuffer)を止めずに済む
+ * 書き込みスレッドは一定数溜まるか一定時間経過する毎にまとめて書き込む
+ * 書き込む順番はトラック毎のキューの先頭のうちpresentationTimeUsが最も小さいもので、
+ * データが来ていないトラックがある間はreorderWindowUsの範囲内で待って音声と映像をインターリーブする
+ * キューが一杯になった時の動作はOVERFLOW_XXXで指定する
+ * 書き込みスレッドで発生したエラーは次の#writeSampleData呼び出し時に一度だけIllegalStateExceptionとして投げる
+ */
+public class AsyncMuxer implements IMuxer, IRecycleParent<RecycleMediaData> {
+	private static final boolean DEBUG = false;	// set false on production
+	private static final String TAG = AsyncMuxer.class.getSimpleName();
+
+	/**
+	 * キューが一杯の時は書き込みが追いつくまで#writeSampleDataの呼び出し元をブロックする
+	 */
+	public static final int OVERFLOW_BLOCK = 0;
+	/**
+	 * キューが一杯の時は最も古いキーフレーム以外のデータを破棄する
+	 * 映像は破棄したフレームから次のキーフレームの直前までをまとめて破棄する
+	 */
+	public static final int OVERFLOW_DROP_NON_KEY = 1;
+	/**
+	 * キューが一杯の時は一時ファイルへ退避する
+	 */
+	public static final int OVERFLOW_SPILL = 2;
+
+	@IntDef({OVERFLOW_BLOCK, OVERFLOW_DROP_NON_KEY, OVERFLOW_SPILL})
+	@Retention(RetentionPolicy.SOURCE)
+	public @interface OverflowPolicy {}
+
+	/**
+	 * メモリー上に保持する書き込み待ちデータの最大バイト数のデフォルト値
+	 */
+	public static final long DEFAULT_MAX_QUEUED_BYTES = 8L * 1024 * 1024;
+	/**
+	 * インターリーブのために他のトラックのデータを待つ最大の長さのデフォルト値[マイクロ秒]
+	 */
+	public static final long DEFAULT_REORDER_WINDOW_US = 500000L;
+	/**
+	 * この数だけ溜まれば書き込みスレッドを起こす
+	 */
+	private static final int BATCH_SIZE = 16;
+	/**
+	 * BATCH_SIZEに満たなくても最も古いデータがこの時間待てば書き込む[ミリ秒]
+	 */
+	private static final long MAX_BATCH_WAIT_MS = 20L;
+	/**
+	 * プール内に保持するRecycleMediaDataの最大数
+	 */
+	private static final int MAX_POOL_NUM = 64;
+
+	/**
+	 * 書き込み待ちの1つのデータ
+	 * メモリー上に保持している時はdataが、一時ファイルへ退避している時はspillPosが有効
+	 */
+	private static final class Sample {
+		private int trackIx;
+		private long presentationTimeUs;
+		private int flags;
+		private int size;
+		@Nullable
+		private RecycleMediaData data;
+		private long spillPos = -1;
+		/**
+		 * 追加した順番, キューへ追加する前は-1
+		 */
+		private long seq = -1;
+		private long enqueueNs;
+
+		private void clear() {
+			data = null;
+			spillPos = -1;
+		}
+	}
+
+	/**
+	 * トラック毎の書き込み待ちキュー
+	 */
+	private static final class Track {
+		/**
+		 * 書き込み先IMuxerのトラック番号
+		 */
+		private final int muxerTrackIx;
+		private final boolean isVideo;
+		@NonNull
+		private final ArrayDeque<Sample> queue = new ArrayDeque<>();
+		/**
+		 * 映像のフレームを破棄したので次のキーフレームまで破棄する
+		 */
+		private boolean waitKeyFrame;
+
+		private Track(final int muxerTrackIx, final boolean isVideo) {
+			this.muxerTrackIx = muxerTrackIx;
+			this.isVideo = isVideo;
+		}
+	}
+
+	@NonNull
+	private final Object mSync = new Object();
+	@NonNull
+	private final IMuxer mMuxer;
+	@OverflowPolicy
+	private final int mPolicy;
+	private final long mMaxQueuedBytes;
+	private final long mReorderWindowUs;
+	@Nullable
+	private final File mSpillDir;
+	@NonNull
+	private final Pool<RecycleMediaData> mPool;
+	@NonNull
+	private final List<Track> mTracks = new ArrayList<>();
+	/**
+	 * 再利用するSampleオブジェクト
+	 */
+	@NonNull
+	private final ArrayDeque<Sample> mFreeSamples = new ArrayDeque<>();
+	@Nullable
+	private Thread mWriter;
+	private volatile boolean mIsStarted;
+	private volatile boolean mReleased;
+	private boolean mRequestStop;
+	/**
+	 * 書き込みスレッドで発生したエラー
+	 */
+	@Nullable
+	private volatile Exception mError;
+	private boolean mErrorReported;
+	/**
+	 * 書き込み待ち(書き込み中を含む)のデータ数
+	 */
+	private int mQueuedCount;
+	/**
+	 * メモリー上に保持している書き込み待ち(書き込み中を含む)のデータのバイト数
+	 */
+	private long mQueuedBytes;
+	private long mSeq;
+	/**
+	 * 追加したデータのpresentationTimeUsの最大値
+	 */
+	private long mLatestPtsUs = Long.MIN_VALUE;
+	// 一時ファイル
+	@Nullable
+	private File mSpillFile;
+	@Nullable
+	private RandomAccessFile mSpillRaf;
+	@Nullable
+	private FileChannel mSpillChannel;
+	private long mSpillWritePos;
+	/**
+	 * 一時ファイルへ退避中のデータ数, 0になれば一時ファイルの先頭から再利用する
+	 */
+	private int mSpillCount;
+	// 統計情報
+	private long mPeakQueuedBytes;
+	private int mPeakQueuedCount;
+	private long mWrittenCount;
+	private long mDroppedCount;
+	private long mSpilledCount;
+
+	/**
+	 * コンストラクタ
+	 * キューが一杯の時は呼び出し元をブロックする
+	 * @param muxer 実際に書き込むIMuxer
+	 */
+	public AsyncMuxer(@NonNull final IMuxer muxer) {
+		this(muxer, OVERFLOW_BLOCK, DEFAULT_MAX_QUEUED_BYTES, DEFAULT_REORDER_WINDOW_US, null);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param muxer 実際に書き込むIMuxer
+	 * @param policy キューが一杯の時の動作
+	 * @param maxQueuedBytes メモリー上に保持する書き込み待ちデータの最大バイト数
+	 * @param reorderWindowUs インターリーブのために他のトラックのデータを待つ最大の長さ[マイクロ秒]
+	 * @param spillDir OVERFLOW_SPILLの時に一時ファイルを生成するディレクトリ
+	 * @throws IllegalArgumentException
+	 */
+	public AsyncMuxer(@NonNull final IMuxer muxer,
+		@OverflowPolicy final int policy,
+		@IntRange(from = 1L) final long maxQueuedBytes,
+		@IntRange(from = 0L) final long reorderWindowUs,
+		@Nullable final File spillDir) throws IllegalArgumentException {
+
+		if (maxQueuedBytes <= 0) {
+			throw new IllegalArgumentException("maxQueuedBytes should be positive");
+		}
+		if ((policy == OVERFLOW_SPILL) && (spillDir == null)) {
+			throw new IllegalArgumentException("spillDir is required for OVERFLOW_SPILL");
+		}
+		mMuxer = muxer;
+		mPolicy = policy;
+		mMaxQueuedBytes = maxQueuedBytes;
+		mReorderWindowUs = reorderWindowUs;
+		mSpillDir = spillDir;
+		mPool = new Pool<RecycleMediaData>(0, MAX_POOL_NUM, Integer.MAX_VALUE) {
+			@NonNull
+			@Override
+			protected RecycleMediaData createObject(@Nullable final Object... args) {
+				return new RecycleMediaData(AsyncMuxer.this);
+			}
+		};
+	}
+
+	/**
+	 * 実際に書き込むIMuxerを取得
+	 * @return
+	 */
+	@NonNull
+	public IMuxer getMuxer() {
+		return mMuxer;
+	}
+
+	@Override
+	public int addTrack(@NonNull final MediaFormat format) {
+		synchronized (mSync) {
+			if (mIsStarted || mReleased) {
+				throw new IllegalStateException("muxer already started/released");
+			}
+			final int muxerTrackIx = mMuxer.addTrack(format);
+			if (muxerTrackIx < 0) {
+				return muxerTrackIx;
+			}
+			final String mime = format.getString(MediaFormat.KEY_MIME);
+			mTracks.add(new Track(muxerTrackIx, (mime != null) && mime.startsWith("video/")));
+			return mTracks.size() - 1;
+		}
+	}
+
+	/**
+	 * 書き込み先のIMuxerを開始して書き込みスレッドを起動する
+	 */
+	@Override
+	public void start() {
+		synchronized (mSync) {
+			if (mIsStarted || mReleased) {
+				throw new IllegalStateException("muxer already started/released");
+			}
+			mMuxer.start();
+			mRequestStop = false;
+			mError = null;
+			mErrorReported = false;
+			mLatestPtsUs = Long.MIN_VALUE;
+			mWriter = new Thread(TAG) {
+				@Override
+				public void run() {
+					writerLoop();
+				}
+			};
+			mIsStarted = true;
+			mWriter.start();
+		}
+	}
+
+	/**
+	 * エンコード済みデータを書き込み待ちキューへ追加する
+	 * byteBufの内容はコピーするのでbyteBufのposition/limitは変更しない
+	 * @param trackIndex
+	 * @param byteBuf
+	 * @param bufferInfo
+	 * @throws IllegalStateException 書き込みスレッドでエラーが発生していた
+	 */
+	@Override
+	public void writeSampleData(final int trackIndex,
+		@NonNull final ByteBuffer byteBuf,
+		@NonNull final MediaCodec.BufferInfo bufferInfo) throws IllegalStateException {
+
+		final int size = bufferInfo.size;
+		final Track track;
+		final Sample sample;
+		boolean spill = false;
+		synchronized (mSync) {
+			if (!mIsStarted) {
+				return;
+			}
+			if (mError != null) {
+				countDroppedLocked();
+				if (!mErrorReported) {
+					mErrorReported = true;
+					throw new IllegalStateException("failed to write sample data", mError);
+				}
+				return;
+			}
+			track = mTracks.get(trackIndex);
+			final boolean isKeyFrame = (bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0;
+			if (track.waitKeyFrame) {
+				if (!isKeyFrame) {
+					countDroppedLocked();
+					return;
+				}
+				track.waitKeyFrame = false;
+			}
+			if (isOverflowLocked(size)) {
+				switch (mPolicy) {
+				case OVERFLOW_DROP_NON_KEY:
+					while (isOverflowLocked(size) && dropOldestLocked()) {
+						// 破棄できるデータがある間繰り返す
+					}
+					if (isOverflowLocked(size) && isDroppable(track, bufferInfo.flags)) {
+						// 追加しようとしているデータを破棄する
+						if (track.isVideo) {
+							track.waitKeyFrame = true;
+						}
+						countDroppedLocked();
+						return;
+					}
+					break;
+				case OVERFLOW_SPILL:
+					spill = openSpillLocked();
+					break;
+				case OVERFLOW_BLOCK:
+				default:
+					if (!waitSpaceLocked(size)) {
+						return;
+					}
+					break;
+				}
+			}
+			sample = obtainSampleLocked();
+			if (spill) {
+				// 一時ファイル上の位置を予約する
+				sample.spillPos = mSpillWritePos;
+				mSpillWritePos += size;
+				mSpillCount++;
+			} else {
+				mQueuedBytes += size;
+			}
+		}
+		// コピー/一時ファイルへの書き込みはロックの外で行う
+		if (spill) {
+			try {
+				writeSpill(byteBuf, bufferInfo, sample.spillPos);
+			} catch (final IOException e) {
+				Log.w(TAG, "writeSampleData:failed to spill, keep on memory", e);
+				synchronized (mSync) {
+					releaseSpillLocked();
+					mQueuedBytes += size;
+				}
+				sample.spillPos = -1;
+				spill = false;
+			}
+		}
+		if (!spill) {
+			final RecycleMediaData data = mPool.obtain();
+			if (data == null) {
+				synchronized (mSync) {
+					mQueuedBytes -= size;
+					recycleSampleLocked(sample);
+					countDroppedLocked();
+				}
+				return;
+			}
+			data.setRecycled(false);
+			data.set(trackIndex, byteBuf.duplicate(), bufferInfo);
+			sample.data = data;
+		}
+		sample.trackIx = trackIndex;
+		sample.presentationTimeUs = bufferInfo.presentationTimeUs;
+		sample.flags = bufferInfo.flags;
+		sample.size = size;
+		final int depth;
+		synchronized (mSync) {
+			if (!mIsStarted) {
+				// コピー中に停止した
+				releaseSampleLocked(sample);
+				return;
+			}
+			sample.seq = mSeq++;
+			sample.enqueueNs = System.nanoTime();
+			track.queue.addLast(sample);
+			depth = ++mQueuedCount;
+			if (spill) {
+				mSpilledCount++;
+				MediaMetrics.MUXER_SPILLED.inc();
+			}
+			mPeakQueuedCount = Math.max(mPeakQueuedCount, mQueuedCount);
+			mPeakQueuedBytes = Math.max(mPeakQueuedBytes, mQueuedBytes);
+			if (sample.presentationTimeUs > mLatestPtsUs) {
+				mLatestPtsUs = sample.presentationTimeUs;
+			}
+			if ((depth >= BATCH_SIZE) || isOverflowLocked(0)) {
+				mSync.notifyAll();
+			}
+		}
+		MediaMetrics.MUXER_QUEUE_DEPTH.record(depth);
+	}
+
+	/**
+	 * 書き込み待ちのデータを全て書き込んでから書き込み先のIMuxerを停止する
+	 */
+	@Override
+	public void stop() {
+		final Thread writer;
+		synchronized (mSync) {
+			if (!mIsStarted) {
+				return;
+			}
+			mIsStarted = false;
+			mRequestStop = true;
+			writer = mWriter;
+			mWriter = null;
+			mSync.notifyAll();
+		}
+		if (writer != null) {
+			boolean interrupted = false;
+			for ( ; ; ) {
+				try {
+					writer.join();
+					break;
+				} catch (final InterruptedException e) {
+					// 書き込み中にIMuxer#stopを呼ばないように終了するまで待つ
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized (mSync) {
+			closeSpillLocked();
+		}
+		if (DEBUG) Log.v(TAG, "stop:" + this);
+		mMuxer.stop();
+	}
+
+	@Override
+	public void release() {
+		if (mReleased) {
+			return;
+		}
+		stop();
+		synchronized (mSync) {
+			mReleased = true;
+			mTracks.clear();
+			mFreeSamples.clear();
+		}
+		mPool.clear();
+		mMuxer.release();
+	}
+
+	@Override
+	public boolean isStarted() {
+		return mIsStarted && !mReleased;
+	}
+
+	/**
+	 * IRecycleParentの実装
+	 * @param buffer
+	 * @return
+	 */
+	@Override
+	public boolean recycle(@NonNull final RecycleMediaData buffer) {
+		if (!buffer.isRecycled()) {
+			buffer.setRecycled(true);
+			return mPool.recycle(buffer);
+		} else {
+			return false;
+		}
+	}
+
+	@OverflowPolicy
+	public int getOverflowPolicy() {
+		return mPolicy;
+	}
+
+	/**
+	 * 書き込み待ち(書き込み中を含む)のデータ数を取得
+	 * @return
+	 */
+	public int getQueuedCount() {
+		synchronized (mSync) {
+			return mQueuedCount;
+		}
+	}
+
+	/**
+	 * メモリー上に保持している書き込み待ちデータのバイト数を取得
+	 * @return
+	 */
+	public long getQueuedBytes() {
+		synchronized (mSync) {
+			return mQueuedBytes;
+		}
+	}
+
+	/**
+	 * 書き込み待ちのデータ数の最大値を取得
+	 * @return
+	 */
+	public int getPeakQueuedCount() {
+		synchronized (mSync) {
+			return mPeakQueuedCount;
+		}
+	}
+
+	/**
+	 * メモリー上に保持した書き込み待ちデータのバイト数の最大値を取得
+	 * @return
+	 */
+	public long getPeakQueuedBytes() {
+		synchronized (mSync) {
+			return mPeakQueuedBytes;
+		}
+	}
+
+	/**
+	 * 書き込み先のIMuxerへ書き込んだデータ数を取得
+	 * @return
+	 */
+	public long getWrittenCount() {
+		synchronized (mSync) {
+			return mWrittenCount;
+		}
+	}
+
+	/**
+	 * キューが一杯またはエラーで破棄したデータ数を取得
+	 * @return
+	 */
+	public long getDroppedCount() {
+		synchronized (mSync) {
+			return mDroppedCount;
+		}
+	}
+
+	/**
+	 * 一時ファイルへ退避したデータ数を取得
+	 * @return
+	 */
+	public long getSpilledCount() {
+		synchronized (mSync) {
+			return mSpilledCount;
+		}
+	}
+
+	@NonNull
+	@Override
+	public String toString() {
+		synchronized (mSync) {
+			return "AsyncMuxer{" +
+				"policy=" + mPolicy +
+				", queued=" + mQueuedCount +
+				", queuedBytes=" + mQueuedBytes +
+				", peakQueued=" + mPeakQueuedCount +
+				", peakQueuedBytes=" + mPeakQueuedBytes +
+				", written=" + mWrittenCount +
+				", dropped=" + mDroppedCount +
+				", spilled=" + mSpilledCount +
+				'}';
+		}
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * 書き込みスレッドの実行部
+	 * 停止要求後もキューが空になるまでは書き込みを続ける
+	 */
+	private void writerLoop() {
+		if (DEBUG) Log.v(TAG, "writerLoop:start");
+		final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+		final List<Sample> batch = new ArrayList<>();
+		for ( ; ; ) {
+			synchronized (mSync) {
+				try {
+					waitBatchLocked();
+					pollBatchLocked(batch);
+					if (batch.isEmpty()) {
+						if (mRequestStop) {
+							break;
+						}
+						// 他のトラックのデータを待っている
+						mSync.wait(MAX_BATCH_WAIT_MS);
+						continue;
+					}
+				} catch (final InterruptedException e) {
+					break;
+				}
+			}
+			int written = 0;
+			for (final Sample sample: batch) {
+				if (writeSample(sample, info)) {
+					written++;
+				}
+			}
+			synchronized (mSync) {
+				for (final Sample sample: batch) {
+					releaseSampleLocked(sample);
+				}
+				mWrittenCount += written;
+				final int dropped = batch.size() - written;
+				if (dropped > 0) {
+					mDroppedCount += dropped;
+					MediaMetrics.MUXER_DROPPED.add(dropped);
+				}
+				mSync.notifyAll();
+			}
+			batch.clear();
+		}
+		// 中断された時に残っているデータを破棄する
+		synchronized (mSync) {
+			for (final Track track: mTracks) {
+				while (!track.queue.isEmpty()) {
+					releaseSampleLocked(track.queue.pollFirst());
+					mDroppedCount++;
+				}
+			}
+			mSync.notifyAll();
+		}
+		if (DEBUG) Log.v(TAG, "writerLoop:finished");
+	}
+
+	/**
+	 * BATCH_SIZE個溜まるか最も古いデータがMAX_BATCH_WAIT_MS待つまで待機する
+	 * @throws InterruptedException
+	 */
+	private void waitBatchLocked() throws InterruptedException {
+		while (!mRequestStop && (mQueuedCount < BATCH_SIZE) && !isOverflowLocked(0)) {
+			final long oldestNs = oldestEnqueueNsLocked();
+			if (oldestNs != 0) {
+				final long remainingMs
+					= MAX_BATCH_WAIT_MS - (System.nanoTime() - oldestNs) / 1000000L;
+				if (remainingMs <= 0) {
+					break;
+				}
+				mSync.wait(remainingMs);
+			} else {
+				mSync.wait(MAX_BATCH_WAIT_MS);
+			}
+		}
+	}
+
+	/**
+	 * キューの先頭のうち最も古いデータを追加した時刻を取得する
+	 * @return キューが空なら0
+	 */
+	private long oldestEnqueueNsLocked() {
+		Sample oldest = null;
+		for (final Track track: mTracks) {
+			final Sample head = track.queue.peekFirst();
+			if ((head != null) && ((oldest == null) || (head.seq < oldest.seq))) {
+				oldest = head;
+			}
+		}
+		return oldest != null ? oldest.enqueueNs : 0;
+	}
+
+	/**
+	 * 書き込めるデータをpresentationTimeUsの順にキューから取り出す
+	 * 全てのトラックにデータがある時、データの無いトラックがあっても最新のデータから
+	 * mReorderWindowUs以上古い時、停止要求されている時、キューが一杯の時に書き込める
+	 * @param batch
+	 */
+	private void pollBatchLocked(@NonNull final List<Sample> batch) {
+		for ( ; ; ) {
+			Track next = null;
+			Sample head = null;
+			boolean allReady = true;
+			for (final Track track: mTracks) {
+				final Sample s = track.queue.peekFirst();
+				if (s == null) {
+					allReady = false;
+				} else if ((head == null)
+					|| (s.presentationTimeUs < head.presentationTimeUs)
+					|| ((s.presentationTimeUs == head.presentationTimeUs) && (s.seq < head.seq))) {
+
+					next = track;
+					head = s;
+				}
+			}
+			if (next == null) {
+				break;
+			}
+			if (!allReady && !mRequestStop && !isOverflowLocked(0)
+				&& (mLatestPtsUs - head.presentationTimeUs < mReorderWindowUs)) {
+				break;
+			}
+			batch.add(next.queue.pollFirst());
+		}
+	}
+
+	/**
+	 * 書き込み先のIMuxerへ1つのデータを書き込む
+	 * 書き込みスレッドから呼ばれる
+	 * @param sample
+	 * @param info
+	 * @return 書き込めればtrue
+	 */
+	private boolean writeSample(@NonNull final Sample sample,
+		@NonNull final MediaCodec.BufferInfo info) {
+
+		if (mError != null) {
+			return false;
+		}
+		ByteBuffer spilled = null;
+		try {
+			final ByteBuffer buffer;
+			final RecycleMediaData data = sample.data;
+			if (data != null) {
+				final ByteBuffer raw = data.getRaw();
+				if (raw == null) {
+					return false;
+				}
+				buffer = raw.duplicate();
+				buffer.clear();
+				buffer.limit(sample.size);
+			} else {
+				spilled = DirectBufferArena.getDefault().allocate(sample.size);
+				readSpill(spilled, sample.spillPos, sample.size);
+				buffer = spilled;
+			}
+			info.set(0, sample.size, sample.presentationTimeUs, sample.flags);
+			mMuxer.writeSampleData(mTracks.get(sample.trackIx).muxerTrackIx, buffer, info);
+			MediaMetrics.MUXER_QUEUE_LATENCY.recordSinceNs(sample.enqueueNs);
+			return true;
+		} catch (final Exception e) {
+			Log.w(TAG, "writeSample:", e);
+			mError = e;
+			return false;
+		} finally {
+			DirectBufferArena.getDefault().release(spilled);
+		}
+	}
+
+	/**
+	 * メモリー上の書き込み待ちデータにsizeバイト追加すると上限を超えるかどうか
+	 * 空の時は大きなデータでも追加できるようにfalseを返す
+	 * @param size
+	 * @return
+	 */
+	private boolean isOverflowLocked(final int size) {
+		return (mQueuedBytes > 0) && (mQueuedBytes + size > mMaxQueuedBytes);
+	}
+
+	/**
+	 * 書き込みが進んでsizeバイト追加できるようになるまで待機する
+	 * @param size
+	 * @return 追加できるようになればtrue, 停止・エラー・割り込みならfalse
+	 */
+	private boolean waitSpaceLocked(final int size) {
+		final long startNs = MediaMetrics.startNs();
+		try {
+			while (mIsStarted && (mError == null) && isOverflowLocked(size)) {
+				mSync.notifyAll();
+				mSync.wait(MAX_BATCH_WAIT_MS);
+			}
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		MediaMetrics.recordSince(MediaMetrics.MUXER_BLOCKED, startNs);
+		return mIsStarted && (mError == null) && !isOverflowLocked(size);
+	}
+
+	/**
+	 * キューが一杯の時に破棄してもよいデータかどうか
+	 * コーデック固有データと映像のキーフレーム以外は破棄できる
+	 * @param track
+	 * @param flags
+	 * @return
+	 */
+	private static boolean isDroppable(@NonNull final Track track, final int flags) {
+		return ((flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0)
+			&& (!track.isVideo || ((flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) == 0));
+	}
+
+	/**
+	 * 全トラックのキューの中で最も古い破棄できるデータを破棄する
+	 * 映像の場合は参照先が無くなって復号できないので次のキーフレームの直前までまとめて破棄する
+	 * (キューに次のキーフレームが無ければ以降に追加されるキーフレームまで破棄する)
+	 * @return 破棄できるデータが無ければfalse
+	 */
+	private boolean dropOldestLocked() {
+		Track target = null;
+		Sample oldest = null;
+		for (final Track track: mTracks) {
+			for (final Sample s: track.queue) {
+				if (isDroppable(track, s.flags)) {
+					if ((oldest == null) || (s.seq < oldest.seq)) {
+						target = track;
+						oldest = s;
+					}
+					break;
+				}
+			}
+		}
+		if ((target == null) || (oldest == null)) {
+			return false;
+		}
+		if (target.isVideo) {
+			boolean found = false;
+			boolean hasKeyFrame = false;
+			final Iterator<Sample> it = target.queue.iterator();
+			while (it.hasNext()) {
+				final Sample s = it.next();
+				found |= (s == oldest);
+				if (found) {
+					if ((s.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+						hasKeyFrame = true;
+						break;
+					}
+					it.remove();
+					dropQueuedLocked(s);
+				}
+			}
+			if (!hasKeyFrame) {
+				target.waitKeyFrame = true;
+			}
+		} else {
+			target.queue.remove(oldest);
+			dropQueuedLocked(oldest);
+		}
+		return true;
+	}
+
+	/**
+	 * キューから取り除いたデータを破棄する
+	 * @param sample
+	 */
+	private void dropQueuedLocked(@NonNull final Sample sample) {
+		releaseSampleLocked(sample);
+		countDroppedLocked();
+	}
+
+	/**
+	 * 破棄したデータ数を更新する
+	 */
+	private void countDroppedLocked() {
+		mDroppedCount++;
+		MediaMetrics.MUXER_DROPPED.inc();
+	}
+
+	/**
+	 * 書き込み済みまたは破棄したデータの保持数を減らしてSampleを再利用できるようにする
+	 * @param sample
+	 */
+	private void releaseSampleLocked(@NonNull final Sample sample) {
+		if (sample.seq >= 0) {
+			mQueuedCount--;
+		}
+		if (sample.data != null) {
+			mQueuedBytes -= sample.size;
+			sample.data.recycle();
+		} else if (sample.spillPos >= 0) {
+			releaseSpillLocked();
+		}
+		recycleSampleLocked(sample);
+	}
+
+	@NonNull
+	private Sample obtainSampleLocked() {
+		final Sample result = mFreeSamples.pollFirst();
+		return result != null ? result : new Sample();
+	}
+
+	private void recycleSampleLocked(@NonNull final Sample sample) {
+		sample.clear();
+		sample.seq = -1;
+		if (mFreeSamples.size() < MAX_POOL_NUM) {
+			mFreeSamples.addLast(sample);
+		}
+	}
+
+	/**
+	 * 必要であれば一時ファイルを生成する
+	 * @return 一時ファイルを使えるならtrue
+	 */
+	private boolean openSpillLocked() {
+		if (mSpillChannel == null) {
+			try {
+				final File file = File.createTempFile(TAG, ".spill", mSpillDir);
+				mSpillRaf = new RandomAccessFile(file, "rw");
+				mSpillChannel = mSpillRaf.getChannel();
+				mSpillFile = file;
+				mSpillWritePos = 0;
+				mSpillCount = 0;
+			} catch (final IOException e) {
+				Log.w(TAG, "openSpillLocked:failed to create spill file, keep on memory", e);
+				closeSpillLocked();
+			}
+		}
+		return mSpillChannel != null;
+	}
+
+	/**
+	 * 一時ファイルへ退避中のデータ数を減らす
+	 * 0になれば一時ファイルの先頭から再利用する
+	 */
+	private void releaseSpillLocked() {
+		if (--mSpillCount <= 0) {
+			mSpillCount = 0;
+			mSpillWritePos = 0;
+		}
+	}
+
+	/**
+	 * 一時ファイルを閉じて削除する
+	 */
+	private void closeSpillLocked() {
+		if (mSpillRaf != null) {
+			try {
+				mSpillRaf.close();
+			} catch (final IOException e) {
+				if (DEBUG) Log.w(TAG, e);
+			}
+		}
+		if ((mSpillFile != null) && !mSpillFile.delete()) {
+			Log.w(TAG, "failed to delete spill file," + mSpillFile);
+		}
+		mSpillRaf = null;
+		mSpillChannel = null;
+		mSpillFile = null;
+		mSpillWritePos = 0;
+		mSpillCount = 0;
+	}
+
+	/**
+	 * 一時ファイルの指定位置へ書き込む
+	 * FileChannelの位置指定の読み書きは複数スレッドから同時に呼び出せる
+	 * @param src
+	 * @param info
+	 * @param pos
+	 * @throws IOException
+	 */
+	private void writeSpill(@NonNull final ByteBuffer src,
+		@NonNull final MediaCodec.BufferInfo info, final long pos) throws IOException {
+
+		final FileChannel channel = mSpillChannel;
+		if (channel == null) {
+			throw new IOException("spill file already closed");
+		}
+		final ByteBuffer buffer = src.duplicate();
+		buffer.clear();
+		buffer.limit(info.offset + info.size);
+		buffer.position(info.offset);
+		long p = pos;
+		while (buffer.hasRemaining()) {
+			p += channel.write(buffer, p);
+		}
+	}
+
+	/**
+	 * 一時ファイルの指定位置から読み込む
+	 * @param dst
+	 * @param pos
+	 * @param size
+	 * @throws IOException
+	 */
+	private void readSpill(@NonNull final ByteBuffer dst,
+		final long pos, final int size) throws IOException {
+
+		final FileChannel channel = mSpillChannel;
+		if (channel == null) {
+			throw new IOException("spill file already closed");
+		}
+		dst.clear();
+		dst.limit(size);
+		long p = pos;
+		while (dst.hasRemaining()) {
+			final int n = channel.read(dst, p);
+			if (n < 0) {
+				throw new IOException("unexpected end of spill file");
+			}
+			p += n;
+		}
+		dst.flip();
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * 生成したIMuxerをAsyncMuxerでラップするIMuxerFactory実装
+	 * Recorder等のコンストラクタへ渡せばmuxerへの書き込みが専用スレッドになる
+	 */
+	public static class Factory implements IMuxer.IMuxerFactory {
+		@NonNull
+		private final IMuxer.IMuxerFactory mFactory;
+		@OverflowPolicy
+		private final int mPolicy;
+		private final long mMaxQueuedBytes;
+		private final long mReorderWindowUs;
+		@Nullable
+		private final File mSpillDir;
+
+		/**
+		 * コンストラクタ
+		 * キューが一杯の時は呼び出し元をブロックする
+		 * @param factory 実際に書き込むIMuxerを生成するIMuxerFactory
+		 */
+		public Factory(@NonNull final IMuxer.IMuxerFactory factory) {
+			this(factory, OVERFLOW_BLOCK, DEFAULT_MAX_QUEUED_BYTES, DEFAULT_REORDER_WINDOW_US, null);
+		}
+
+		/**
+		 * コンストラクタ
+		 * @param factory 実際に書き込むIMuxerを生成するIMuxerFactory
+		 * @param policy
+		 * @param maxQueuedBytes
+		 * @param reorderWindowUs
+		 * @param spillDir
+		 */
+		public Factory(@NonNull final IMuxer.IMuxerFactory factory,
+			@OverflowPolicy final int policy,
+			@IntRange(from = 1L) final long maxQueuedBytes,
+			@IntRange(from = 0L) final long reorderWindowUs,
+			@Nullable final File spillDir) {
+
+			mFactory = factory;
+			mPolicy = policy;
+			mMaxQueuedBytes = maxQueuedBytes;
+			mReorderWindowUs = reorderWindowUs;
+			mSpillDir = spillDir;
+		}
+
+		@Deprecated
+		@Override
+		public IMuxer createMuxer(final boolean useMediaMuxer, final String outputPath)
+			throws IOException {
+
+			return wrap(mFactory.createMuxer(useMediaMuxer, outputPath));
+		}
+
+		@Deprecated
+		@Override
+		public IMuxer createMuxer(final boolean useMediaMuxer, final int fd)
+			throws IOException {
+
+			return wrap(mFactory.createMuxer(useMediaMuxer, fd));
+		}
+
+		@Override
+		public IMuxer createMuxer(@NonNull final Context context,
+			final boolean useMediaMuxer, @NonNull final DocumentFile file) throws IOException {
+
+			return wrap(mFactory.createMuxer(context, useMediaMuxer, file));
+		}
+
+		@NonNull
+		private IMuxer wrap(@NonNull final IMuxer muxer) {
+			return new AsyncMuxer(muxer, mPolicy, mMaxQueuedBytes, mReorderWindowUs, mSpillDir);
+		}
+	}
+}
@@ -26,7 +26,7 @@ import android.media.MediaRecorder;
 import android.util.Log;
 
 import com.serenegiant.system.BuildCheck;
-import com.serenegiant.system.Time;
+import com.serenegiant.utils.DirectBufferArena;
 import com.serenegiant.utils.ThreadUtils;
 
 import java.lang.annotation.Retention;
@@ -300,9 +300,14 @@ public class AudioRecordCompat {
 		 */
 		private volatile boolean mIsRunning;
 		/**
-		 * 前回MediaCodecへのエンコード時に使ったpresentationTimeUs
+		 * 全チャネル分の1サンプルあたりのバイト数
 		 */
-		private long prevInputPTSUs = -1;
+		private final int mBytesPerSample;
+		/**
+		 * 累積サンプル数からpresentationTimeUsを求めるためのSampleClock
+		 */
+		@NonNull
+		private final SampleClock mSampleClock;
 		/**
 		 * 音声セッションID
 		 * onStart - onStop間でのみ有効
@@ -353,8 +358,10 @@ public class AudioRecordCompat {
 			mForceSource = forceSource;
 			mGenDummyFrameIfNoData = genDummyFrameIfNoData;
 			mSamplesPerFrame = samplesPerFrame;
-			mBytesPerFrame = samplesPerFrame * channelCount
+			mBytesPerSample = channelCount
 				* AudioRecordCompat.getBitResolution(AudioRecordCompat.DEFAULT_AUDIO_FORMAT);
+			mBytesPerFrame = samplesPerFrame * mBytesPerSample;
+			mSampleClock = new SampleClock(samplingRate);
 			mBufferSize = getAudioBufferSize(
 				channelCount, DEFAULT_AUDIO_FORMAT,
 				samplingRate, samplesPerFrame, framesPerBuffer);
@@ -420,6 +427,16 @@ public class AudioRecordCompat {
 			return mAudioSessionId;
 		}
 
+		/**
+		 * presentationTimeUsの計算に使っているSampleClockを取得する
+		 * ドリフトなどの統計情報の確認用, 音声取得スレッド以外から状態を変更してはいけない
+		 * @return
+		 */
+		@NonNull
+		public SampleClock getSampleClock() {
+			return mSampleClock;
+		}
+
 		@SuppressLint("MissingPermission")
 		@Override
 		public void run() {
@@ -428,6 +445,7 @@ public class AudioRecordCompat {
     		android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_AUDIO); // THREAD_PRIORITY_URGENT_AUDIO
 			int retry = 3;
 			int numFrames = 0;
+			mSampleClock.reset();
 RETRY_LOOP:	while (isRunning() && (retry > 0)) {
 				@AudioChannel
 				final int audioChannel = getAudioChannel(mChannelCount);
@@ -495,7 +513,7 @@ LOOP:							while (isRunning()) {
 											// 正常に読み込めた時
 											errCount = 0;
 											numFrames++;
-											data.presentationTimeUs(getInputPTSUs())
+											data.presentationTimeUs(getInputPTSUs(readBytes))
 												.size(readBytes);
 											buffer.position(readBytes);
 											buffer.flip();
@@ -570,17 +588,23 @@ LOOP:							while (isRunning()) {
 			if (mGenDummyFrameIfNoData && (numFrames == 0)) {
 				// 1フレームも書き込めなかった時は動画出力時にMediaMuxerがクラッシュしないように
 				// ダミー音声データの書き込みを試みる
-				final ByteBuffer buf = ByteBuffer.allocateDirect(mBufferSize).order(ByteOrder.nativeOrder());
+				final DirectBufferArena arena = DirectBufferArena.getDefault();
+				final ByteBuffer buf = arena.allocate(mBufferSize).order(ByteOrder.nativeOrder());
+				// DirectBufferArenaから取得したByteBufferは以前の内容が残っているので無音データで埋める
+				for (int i = 0; i < mBufferSize; i++) {
+					buf.put(i, (byte)0);
+				}
 				for (int i = 0; i < 5; i++) {
 					final MediaData data = obtain(mBufferSize);
 					if (data != null) {
 						buf.clear();
 						buf.position(mBufferSize);
 						buf.flip();
-						data.set(buf, mBufferSize, getInputPTSUs());
+						data.set(buf, mBufferSize, getInputPTSUs(mBufferSize));
 						ThreadUtils.NoThrowSleep(40);
 					}
 				}
+				arena.release(buf);
 			}
 			onStop();
     		if (DEBUG) Log.v(TAG, "AudioTask:finished");
@@ -613,16 +637,12 @@ LOOP:							while (isRunning()) {
 
 		/**
 		 * 今回の書き込み用のpresentationTimeUs値を取得
+		 * 読み込んだ直後に呼び出すこと
+		 * @param readBytes 読み込んだバイト数
 		 * @return
 		 */
-	    @SuppressLint("NewApi")
-		protected long getInputPTSUs() {
-			long result = Time.nanoTime() / 1000L;
-			if (result <= prevInputPTSUs) {
-				result = prevInputPTSUs + 9643;
-			}
-			prevInputPTSUs = result;
-			return result;
+		protected long getInputPTSUs(final int readBytes) {
+			return mSampleClock.nextBytes(readBytes, mBytesPerSample);
 	    }
 
 		/**
@@ -0,0 +1,512 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.content.Context;
+import android.media.MediaCodecInfo;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * MediaCodecUtils#selectVideoEncoder/#selectAudioEncoderで選択したエンコーダーの
+ * 名前・カラーフォーマット・プロファイル/レベルをファイルへ保存して次回起動時に再利用するためのキャッシュ
+ * MediaCodecListの列挙やMediaCodecInfo#getCapabilitiesForTypeは機種によって数秒かかるので
+ * #preloadでサービス起動時にバックグラウンドで読み込んでおき、録画開始時には結果を参照するだけにする
+ * 保存したファイルはBuild.FINGERPRINTが変わった時(OSの更新時等)と形式のバージョンが変わった時に破棄する
+ */
+public final class CodecCapabilityCache {
+	private static final boolean DEBUG = false;	// set false on production
+	private static final String TAG = CodecCapabilityCache.class.getSimpleName();
+
+	private static final String FILE_NAME = "codec_capabilities.bin";
+	private static final int MAGIC = 0x43434150;	// "CCAP"
+	private static final int VERSION = 1;
+
+	private static final byte KIND_VIDEO = 0;
+	private static final byte KIND_AUDIO = 1;
+
+	/**
+	 * #preloadでmimeを指定しなかった時に読み込むmime
+	 */
+	private static final String[] DEFAULT_VIDEO_MIMES = { MediaCodecUtils.MIME_VIDEO_AVC };
+	private static final String[] DEFAULT_AUDIO_MIMES = { MediaCodecUtils.MIME_AUDIO_AAC };
+
+	@NonNull
+	private static final Object sSync = new Object();
+	@NonNull
+	private static final Map<String, Entry> sVideoEncoders = new HashMap<>();
+	@NonNull
+	private static final Map<String, Entry> sAudioEncoders = new HashMap<>();
+	@Nullable
+	private static File sFile;
+	/**
+	 * #preloadでの読み込み中ならtrue
+	 */
+	private static boolean sLoading;
+	/**
+	 * キャッシュの内容を変更する度に増やす値
+	 * 古い内容で新しい内容を上書き保存しないようにするために使う
+	 */
+	private static int sVersion;
+	/**
+	 * ファイルへの書き込みを排他制御するためのオブジェクト
+	 * ファイルアクセス中にsSyncをロックし続けないようにsSyncとは別にする
+	 */
+	@NonNull
+	private static final Object sFileSync = new Object();
+	/**
+	 * ファイルへ保存した(または削除した)時のsVersionの値
+	 * sFileSyncをロックしてアクセスすること
+	 */
+	private static int sSavedVersion;
+
+	private CodecCapabilityCache() {
+		// インスタンス化をエラーにするためにデフォルトコンストラクタをprivateに
+	}
+
+	/**
+	 * 選択したエンコーダーの情報
+	 */
+	public static final class Entry {
+		@NonNull
+		private final String mName;
+		@NonNull
+		private final String mMimeType;
+		@NonNull
+		private final int[] mColorFormats;
+		/**
+		 * プロファイルとレベルを交互に並べたもの
+		 */
+		@NonNull
+		private final int[] mProfileLevels;
+
+		private Entry(@NonNull final String name, @NonNull final String mimeType,
+			@NonNull final int[] colorFormats, @NonNull final int[] profileLevels) {
+
+			mName = name;
+			mMimeType = mimeType;
+			mColorFormats = colorFormats;
+			mProfileLevels = profileLevels;
+		}
+
+		/**
+		 * コーデック名, MediaCodec#createByCodecNameへ渡す
+		 * @return
+		 */
+		@NonNull
+		public String getName() {
+			return mName;
+		}
+
+		@NonNull
+		public String getMimeType() {
+			return mMimeType;
+		}
+
+		@NonNull
+		public int[] getColorFormats() {
+			return mColorFormats.clone();
+		}
+
+		/**
+		 * MediaCodecUtils#selectColorFormatと同様に対応しているカラーフォーマットの中から
+		 * 最初に使用可能なものを返す
+		 * @return 使用可能なものが無ければ0
+		 */
+		public int selectColorFormat() {
+			for (final int colorFormat: mColorFormats) {
+				if (MediaCodecUtils.isRecognizedVideoFormat(colorFormat)) {
+					return colorFormat;
+				}
+			}
+			return 0;
+		}
+
+		@NonNull
+		public MediaCodecInfo.CodecProfileLevel[] getProfileLevels() {
+			final int n = mProfileLevels.length / 2;
+			final MediaCodecInfo.CodecProfileLevel[] result = new MediaCodecInfo.CodecProfileLevel[n];
+			for (int i = 0; i < n; i++) {
+				result[i] = new MediaCodecInfo.CodecProfileLevel();
+				result[i].profile = mProfileLevels[i * 2];
+				result[i].level = mProfileLevels[i * 2 + 1];
+			}
+			return result;
+		}
+
+		/**
+		 * 指定したプロファイルで対応している最大のレベルを取得する
+		 * @param profile
+		 * @return 指定したプロファイルに対応していなければ0
+		 */
+		public int getMaxLevel(final int profile) {
+			int result = 0;
+			for (int i = 0; i < mProfileLevels.length; i += 2) {
+				if ((mProfileLevels[i] == profile) && (mProfileLevels[i + 1] > result)) {
+					result = mProfileLevels[i + 1];
+				}
+			}
+			return result;
+		}
+
+		@NonNull
+		@Override
+		public String toString() {
+			return "Entry{" +
+				"name=" + mName +
+				", mimeType=" + mMimeType +
+				", colorFormats=" + mColorFormats.length +
+				", profileLevels=" + (mProfileLevels.length / 2) +
+				'}';
+		}
+
+		@NonNull
+		private static Entry from(@NonNull final MediaCodecInfo info, @NonNull final String mimeType) {
+			final MediaCodecInfo.CodecCapabilities caps
+				= MediaCodecUtils.getCodecCapabilities(info, mimeType);
+			final int[] colorFormats = (caps.colorFormats != null)
+				? caps.colorFormats.clone() : new int[0];
+			final MediaCodecInfo.CodecProfileLevel[] profileLevels
+				= (caps.profileLevels != null)
+					? caps.profileLevels : new MediaCodecInfo.CodecProfileLevel[0];
+			final int[] pl = new int[profileLevels.length * 2];
+			for (int i = 0; i < profileLevels.length; i++) {
+				pl[i * 2] = profileLevels[i].profile;
+				pl[i * 2 + 1] = profileLevels[i].level;
+			}
+			return new Entry(info.getName(), mimeType, colorFormats, pl);
+		}
+
+		private void write(@NonNull final DataOutputStream out, final byte kind) throws IOException {
+			out.writeByte(kind);
+			out.writeUTF(mMimeType);
+			out.writeUTF(mName);
+			out.writeShort(mColorFormats.length);
+			for (final int colorFormat: mColorFormats) {
+				out.writeInt(colorFormat);
+			}
+			out.writeShort(mProfileLevels.length / 2);
+			for (final int v: mProfileLevels) {
+				out.writeInt(v);
+			}
+		}
+
+		@NonNull
+		private static Entry read(@NonNull final DataInputStream in) throws IOException {
+			final String mimeType = in.readUTF();
+			final String name = in.readUTF();
+			final int[] colorFormats = new int[in.readUnsignedShort()];
+			for (int i = 0; i < colorFormats.length; i++) {
+				colorFormats[i] = in.readInt();
+			}
+			final int[] profileLevels = new int[in.readUnsignedShort() * 2];
+			for (int i = 0; i < profileLevels.length; i++) {
+				profileLevels[i] = in.readInt();
+			}
+			return new Entry(name, mimeType, colorFormats, profileLevels);
+		}
+	}
+
+	/**
+	 * 保存したキャッシュをバックグラウンドで読み込む
+	 * キャッシュが無いか無効な時はMIME_VIDEO_AVC/MIME_AUDIO_AACのエンコーダーを列挙して保存する
+	 * Service#onCreate等、録画開始より前に呼び出しておく
+	 * 2回目以降の呼び出しは何もしない
+	 * @param context
+	 */
+	public static void preload(@NonNull final Context context) {
+		synchronized (sSync) {
+			if ((sFile != null) || sLoading) {
+				return;
+			}
+			sFile = new File(context.getCacheDir(), FILE_NAME);
+			sLoading = true;
+		}
+		final File file = sFile;
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					load(file);
+				} finally {
+					synchronized (sSync) {
+						sLoading = false;
+						sSync.notifyAll();
+					}
+				}
+			}
+		}, TAG).start();
+	}
+
+	/**
+	 * 指定したmimeの映像エンコーダーの情報を取得する
+	 * #preloadでの読み込み中なら読み込みが終わるまで待機する
+	 * キャッシュに無ければMediaCodecUtils#selectVideoEncoderで選択してキャッシュする
+	 * @param mimeType
+	 * @return 使用可能なエンコーダーが無ければnull
+	 */
+	@Nullable
+	public static Entry getVideoEncoder(@NonNull final String mimeType) {
+		return get(KIND_VIDEO, mimeType);
+	}
+
+	/**
+	 * 指定したmimeの音声エンコーダーの情報を取得する
+	 * #preloadでの読み込み中なら読み込みが終わるまで待機する
+	 * キャッシュに無ければMediaCodecUtils#selectAudioEncoderで選択してキャッシュする
+	 * @param mimeType
+	 * @return 使用可能なエンコーダーが無ければnull
+	 */
+	@Nullable
+	public static Entry getAudioEncoder(@NonNull final String mimeType) {
+		return get(KIND_AUDIO, mimeType);
+	}
+
+	/**
+	 * キャッシュを破棄する
+	 * キャッシュしたエンコーダーを生成できなかった時等に呼び出す
+	 */
+	public static void invalidate() {
+		if (DEBUG) Log.v(TAG, "invalidate:");
+		final File file;
+		final int version;
+		synchronized (sSync) {
+			sVideoEncoders.clear();
+			sAudioEncoders.clear();
+			file = sFile;
+			version = ++sVersion;
+		}
+		synchronized (sFileSync) {
+			if (version > sSavedVersion) {
+				sSavedVersion = version;
+				if ((file != null) && file.exists() && !file.delete()) {
+					Log.w(TAG, "failed to delete " + file);
+				}
+			}
+		}
+	}
+
+	/**
+	 * キャッシュから取得する
+	 * キャッシュに無い時のエンコーダーの選択(MediaCodecListの列挙)とファイルへの保存は
+	 * 時間がかかるのでsSyncをロックせずに行う
+	 * @param kind
+	 * @param mimeType
+	 * @return
+	 */
+	@Nullable
+	private static Entry get(final byte kind, @NonNull final String mimeType) {
+		final String key = mimeType.toLowerCase(Locale.US);
+		final Map<String, Entry> map = (kind == KIND_VIDEO) ? sVideoEncoders : sAudioEncoders;
+		synchronized (sSync) {
+			while (sLoading) {
+				try {
+					sSync.wait();
+				} catch (final InterruptedException e) {
+					break;
+				}
+			}
+			final Entry result = map.get(key);
+			if (result != null) {
+				return result;
+			}
+		}
+		if (DEBUG) Log.v(TAG, "get:cache miss," + mimeType);
+		final Entry selected = select(kind, key);
+		if (selected == null) {
+			return null;
+		}
+		final Snapshot snapshot;
+		synchronized (sSync) {
+			final Entry result = map.get(key);
+			if (result != null) {
+				// 選択している間に他のスレッドがキャッシュした
+				return result;
+			}
+			map.put(key, selected);
+			snapshot = snapshot();
+		}
+		save(snapshot);
+		return selected;
+	}
+
+	@Nullable
+	private static Entry select(final byte kind, @NonNull final String mimeType) {
+		final MediaCodecInfo info = (kind == KIND_VIDEO)
+			? MediaCodecUtils.selectVideoEncoder(mimeType)
+			: MediaCodecUtils.selectAudioEncoder(mimeType);
+		return info != null ? Entry.from(info, mimeType) : null;
+	}
+
+	private static void load(@NonNull final File file) {
+		if (DEBUG) Log.v(TAG, "load:" + file);
+		final List<Entry> video = new ArrayList<>();
+		final List<Entry> audio = new ArrayList<>();
+		boolean valid = false;
+		if (file.exists()) {
+			try (final DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file)))) {
+
+				valid = (in.readInt() == MAGIC)
+					&& (in.readUnsignedByte() == VERSION)
+					&& Build.FINGERPRINT.equals(in.readUTF())
+					&& (in.readInt() == Build.VERSION.SDK_INT);
+				if (valid) {
+					final int n = in.readUnsignedShort();
+					for (int i = 0; i < n; i++) {
+						final byte kind = in.readByte();
+						(kind == KIND_VIDEO ? video : audio).add(Entry.read(in));
+					}
+				}
+			} catch (final IOException e) {
+				Log.w(TAG, e);
+				valid = false;
+			}
+		}
+		if (!valid) {
+			if (DEBUG) Log.v(TAG, "load:cache is not available, enumerate codecs");
+			video.clear();
+			audio.clear();
+			for (final String mimeType: DEFAULT_VIDEO_MIMES) {
+				final Entry entry = select(KIND_VIDEO, mimeType);
+				if (entry != null) {
+					video.add(entry);
+				}
+			}
+			for (final String mimeType: DEFAULT_AUDIO_MIMES) {
+				final Entry entry = select(KIND_AUDIO, mimeType);
+				if (entry != null) {
+					audio.add(entry);
+				}
+			}
+		}
+		Snapshot snapshot = null;
+		synchronized (sSync) {
+			for (final Entry entry: video) {
+				sVideoEncoders.put(entry.mMimeType, entry);
+			}
+			for (final Entry entry: audio) {
+				sAudioEncoders.put(entry.mMimeType, entry);
+			}
+			if (!valid) {
+				snapshot = snapshot();
+			}
+		}
+		if (snapshot != null) {
+			save(snapshot);
+		}
+	}
+
+	/**
+	 * ファイルへ保存するためにキャッシュの内容を複製したもの
+	 */
+	private static class Snapshot {
+		@NonNull
+		private final File file;
+		private final int version;
+		@NonNull
+		private final List<Entry> video;
+		@NonNull
+		private final List<Entry> audio;
+
+		private Snapshot(@NonNull final File file, final int version,
+			@NonNull final List<Entry> video, @NonNull final List<Entry> audio) {
+
+			this.file = file;
+			this.version = version;
+			this.video = video;
+			this.audio = audio;
+		}
+	}
+
+	/**
+	 * キャッシュの内容を変更したのでsVersionを更新して、保存するための複製を作る
+	 * sSyncをロックした状態で呼び出すこと
+	 * @return #preloadを呼んでいなければnull
+	 */
+	@Nullable
+	private static Snapshot snapshot() {
+		final int version = ++sVersion;
+		return sFile != null
+			? new Snapshot(sFile, version,
+				new ArrayList<>(sVideoEncoders.values()),
+				new ArrayList<>(sAudioEncoders.values()))
+			: null;
+	}
+
+	/**
+	 * キャッシュをファイルへ書き込む
+	 * 書き込み途中で強制終了しても壊れたファイルが残らないように一時ファイルへ書き込んでからリネームする
+	 * sSyncをロックせずに呼び出すこと, 既により新しい内容を保存していれば何もしない
+	 * @param snapshot
+	 */
+	private static void save(@Nullable final Snapshot snapshot) {
+		if (snapshot == null) {
+			return;
+		}
+		synchronized (sFileSync) {
+			if (snapshot.version <= sSavedVersion) {
+				return;
+			}
+			if (DEBUG) Log.v(TAG, "save:" + snapshot.file);
+			final File temp = new File(snapshot.file.getPath() + ".tmp");
+			try {
+				try (final DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(temp)))) {
+
+					out.writeInt(MAGIC);
+					out.writeByte(VERSION);
+					out.writeUTF(Build.FINGERPRINT);
+					out.writeInt(Build.VERSION.SDK_INT);
+					out.writeShort(snapshot.video.size() + snapshot.audio.size());
+					for (final Entry entry: snapshot.video) {
+						entry.write(out, KIND_VIDEO);
+					}
+					for (final Entry entry: snapshot.audio) {
+						entry.write(out, KIND_AUDIO);
+					}
+				}
+				if (!temp.renameTo(snapshot.file)) {
+					throw new IOException("failed to rename " + temp);
+				}
+				sSavedVersion = snapshot.version;
+			} catch (final IOException e) {
+				Log.w(TAG, e);
+				temp.delete();
+			}
+		}
+	}
+}
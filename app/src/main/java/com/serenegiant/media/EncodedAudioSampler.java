@@ -30,6 +30,7 @@ import com.serenegiant.utils.ThreadPool;
 
 import java.nio.ByteBuffer;
 import java.util.Set;
+import java.util.concurrent.Executor;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -73,6 +74,13 @@ public class EncodedAudioSampler extends IAudioSampler {
 	private MediaEncoder.MediaAudioEncoder mEncoder;
 	@NonNull
 	private MediaFormat mMediaFormat = new MediaFormat();
+	/**
+	 * #onOutputFormatChangedの呼び出し順を保つためのExecutor
+	 * ThreadPool#queueEventは複数のスレッドで実行するので直接使うと
+	 * 同時に呼び出されたり順番が入れ替わったりする可能性がある
+	 */
+	@NonNull
+	private final Executor mCallbackExecutor = ThreadPool.newSerialExecutor();
 
 	/**
 	 * コンストラクタ
@@ -361,7 +369,7 @@ public class EncodedAudioSampler extends IAudioSampler {
 			// callbackがonOutputFormatChangedを含んでいてすでにMediaFormatを
 			// 取得している時はすぐに#onOutputFormatChangedを呼び出す
 			if (format.containsKey(MediaFormat.KEY_MIME)) {
-				ThreadPool.queueEvent(() -> {
+				mCallbackExecutor.execute(() -> {
 					((Callback) callback).onOutputFormatChanged(format);
 				});
 			}
@@ -385,7 +393,7 @@ public class EncodedAudioSampler extends IAudioSampler {
 	 */
 	private void callOnMediaFormatChanged(@NonNull MediaFormat format) {
 		if (DEBUG) Log.v(TAG, "callOnMediaFormatChanged:" + format);
-		ThreadPool.queueEvent(() -> {
+		mCallbackExecutor.execute(() -> {
 			final Set<SoundSamplerCallback> callbacks = getCallbacks();
 			for (final SoundSamplerCallback callback: callbacks) {
 				if (callback instanceof Callback) {
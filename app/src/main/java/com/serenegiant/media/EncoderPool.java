@@ -0,0 +1,386 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.serenegiant.utils.HandlerThreadHandler;
+import com.serenegiant.utils.HandlerUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * 録画終了後のエンコーダー(MediaCodec)を破棄せずに保持して次の録画で再利用するためのプール
+ * MediaCodecの生成(特にハードウエアエンコーダー)には数十〜数百ミリ秒かかるので
+ * 続けて録画する時はreset後のMediaCodecをconfigureし直して使う
+ * ・mime・映像サイズ(音声ならサンプリングレート・チャネル数)が同じものだけ再利用する
+ * ・ハードウエアエンコーダーは同時に使えるセッション数に上限があるので
+ *   使用中と保持中の合計がCodecCapabilities#getMaxSupportedInstancesを超えないようにする
+ * ・IDLE_TIMEOUT_MS以上使われなかったものは破棄する
+ * MediaCodecを保持している間は他のアプリがエンコーダーを使えなくなるかもしれないので、
+ * 録画しなくなったら#evictAllを呼ぶこと
+ */
+public class EncoderPool {
+	private static final boolean DEBUG = false;	// set false on production
+	private static final String TAG = EncoderPool.class.getSimpleName();
+
+	/**
+	 * 保持したまま使われなかったMediaCodecを破棄するまでの時間[ミリ秒]
+	 */
+	private static final long IDLE_TIMEOUT_MS = 30000L;
+	/**
+	 * 保持するMediaCodecの最大数
+	 */
+	private static final int MAX_IDLE = 4;
+
+	@Nullable
+	private static EncoderPool sInstance;
+
+	/**
+	 * プロセス内で共有するEncoderPoolを取得する
+	 * サービスは録画毎に終了することがあるので、サービスではなくプロセスと同じ寿命にする
+	 * @return
+	 */
+	@NonNull
+	public static synchronized EncoderPool getInstance() {
+		if (sInstance == null) {
+			sInstance = new EncoderPool();
+		}
+		return sInstance;
+	}
+
+	/**
+	 * 保持中のMediaCodec
+	 */
+	private static class Entry {
+		@NonNull
+		private final MediaCodec codec;
+		@NonNull
+		private final String name;
+		@NonNull
+		private final String key;
+		private final long idleSinceMs;
+
+		private Entry(@NonNull final MediaCodec codec,
+			@NonNull final String name, @NonNull final String key) {
+
+			this.codec = codec;
+			this.name = name;
+			this.key = key;
+			idleSinceMs = SystemClock.elapsedRealtime();
+		}
+	}
+
+	@NonNull
+	private final List<Entry> mIdle = new ArrayList<>();
+	/**
+	 * 使用中のMediaCodecとその#keyの値
+	 */
+	@NonNull
+	private final Map<MediaCodec, String> mInUse = new HashMap<>();
+	/**
+	 * コーデック名毎の同時に使えるインスタンス数のキャッシュ
+	 */
+	@NonNull
+	private final Map<String, Integer> mMaxInstances = new HashMap<>();
+	@Nullable
+	private Handler mHandler;
+	private int mReuseCount;
+
+	/**
+	 * コンストラクタ
+	 * 通常は#getInstanceを使う
+	 */
+	public EncoderPool() {
+	}
+
+	/**
+	 * エンコーダーを取得する
+	 * 再利用できるものを保持していればそれを返し、無ければ新たに生成する
+	 * 返すMediaCodecは未設定(Uninitialized)状態なので呼び出し元でconfigureすること
+	 * 使い終わったら#recycleへ渡す
+	 * @param format configureへ渡すMediaFormat, KEY_MIMEが必要
+	 * @param codecName 使用するエンコーダーの名前, nullならmimeに対応する既定のエンコーダー
+	 * @return
+	 * @throws IOException
+	 */
+	@NonNull
+	public synchronized MediaCodec acquire(@NonNull final MediaFormat format,
+		@Nullable final String codecName) throws IOException {
+
+		final String mimeType = format.getString(MediaFormat.KEY_MIME);
+		if (mimeType == null) {
+			throw new IllegalArgumentException("mime is not set," + format);
+		}
+		final String key = key(format);
+		for (final Iterator<Entry> itr = mIdle.iterator(); itr.hasNext(); ) {
+			final Entry entry = itr.next();
+			if (entry.key.equals(key)
+				&& ((codecName == null) || codecName.equals(entry.name))) {
+
+				itr.remove();
+				mInUse.put(entry.codec, key);
+				mReuseCount++;
+				if (DEBUG) Log.v(TAG, "acquire:reuse " + entry.name + "," + key);
+				return entry.codec;
+			}
+		}
+		MediaCodec codec;
+		try {
+			codec = create(mimeType, codecName);
+		} catch (final IOException | IllegalStateException e) {
+			// セッション数の上限に達しているかもしれないので保持しているものを破棄して再試行する
+			if (mIdle.isEmpty()) {
+				throw e;
+			}
+			if (DEBUG) Log.v(TAG, "acquire:retry after evicting idle codecs", e);
+			evictAll();
+			codec = create(mimeType, codecName);
+		}
+		mInUse.put(codec, key);
+		if (DEBUG) Log.v(TAG, "acquire:create " + codec.getName() + "," + key);
+		return codec;
+	}
+
+	/**
+	 * 使い終わったエンコーダーを返却する
+	 * 再利用できる時はresetして保持し、そうでなければ破棄する
+	 * #acquireで取得したものでなければ破棄する
+	 * MediaCodec#stopは呼び出し元で行っておくこと
+	 * @param codec
+	 */
+	public synchronized void recycle(@NonNull final MediaCodec codec) {
+		final String key = mInUse.remove(codec);
+		if (key == null) {
+			if (DEBUG) Log.v(TAG, "recycle:not acquired from this pool");
+			release(codec);
+			return;
+		}
+		final String name;
+		try {
+			name = codec.getName();
+			// エラー状態でもresetすれば未設定状態に戻る
+			codec.reset();
+			// 前回のMediaReaperのコールバックが呼ばれないように解除する
+			codec.setCallback(null);
+		} catch (final Exception e) {
+			Log.w(TAG, e);
+			release(codec);
+			return;
+		}
+		if (!canKeep(codec, name)) {
+			if (DEBUG) Log.v(TAG, "recycle:exceeds limit, release " + name);
+			release(codec);
+			return;
+		}
+		mIdle.add(new Entry(codec, name, key));
+		while (mIdle.size() > MAX_IDLE) {
+			release(mIdle.remove(0).codec);
+		}
+		if (DEBUG) Log.v(TAG, "recycle:keep " + name + "," + key + ",idle=" + mIdle.size());
+		scheduleEviction();
+	}
+
+	/**
+	 * 保持しているエンコーダーを全て破棄する
+	 * 破棄するためのスレッドも終了する(次に#recycleで保持する時に生成し直す)
+	 */
+	public synchronized void evictAll() {
+		if (DEBUG) Log.v(TAG, "evictAll:" + mIdle.size());
+		for (final Entry entry: mIdle) {
+			release(entry.codec);
+		}
+		mIdle.clear();
+		releaseHandler();
+	}
+
+	/**
+	 * 保持しているエンコーダーの数を取得する
+	 * @return
+	 */
+	public synchronized int getIdleCount() {
+		return mIdle.size();
+	}
+
+	/**
+	 * #acquireで保持していたエンコーダーを再利用した回数を取得する
+	 * @return
+	 */
+	public synchronized int getReuseCount() {
+		return mReuseCount;
+	}
+
+	/**
+	 * IDLE_TIMEOUT_MS以上使われなかったエンコーダーを破棄する
+	 */
+	private synchronized void evictIdle() {
+		final long now = SystemClock.elapsedRealtime();
+		for (final Iterator<Entry> itr = mIdle.iterator(); itr.hasNext(); ) {
+			final Entry entry = itr.next();
+			if (now - entry.idleSinceMs >= IDLE_TIMEOUT_MS) {
+				if (DEBUG) Log.v(TAG, "evictIdle:" + entry.name);
+				itr.remove();
+				release(entry.codec);
+			}
+		}
+		if (!mIdle.isEmpty()) {
+			scheduleEviction();
+		} else {
+			releaseHandler();
+		}
+	}
+
+	private final Runnable mEvictionTask = new Runnable() {
+		@Override
+		public void run() {
+			evictIdle();
+		}
+	};
+
+	private void scheduleEviction() {
+		if (mHandler == null) {
+			mHandler = HandlerThreadHandler.createHandler(TAG);
+		}
+		mHandler.removeCallbacks(mEvictionTask);
+		long delayMs = IDLE_TIMEOUT_MS;
+		if (!mIdle.isEmpty()) {
+			// 一番古いものが期限切れになる時刻
+			delayMs = Math.max(0, mIdle.get(0).idleSinceMs + IDLE_TIMEOUT_MS
+				- SystemClock.elapsedRealtime());
+		}
+		mHandler.postDelayed(mEvictionTask, delayMs);
+	}
+
+	/**
+	 * 保持しているエンコーダーが無くなった時に破棄するためのスレッドを終了する
+	 */
+	private void releaseHandler() {
+		if (mHandler != null) {
+			mHandler.removeCallbacks(mEvictionTask);
+			HandlerUtils.NoThrowQuitSafely(mHandler);
+			mHandler = null;
+		}
+	}
+
+	/**
+	 * 使用中と保持中の合計が同時に使えるインスタンス数より少なければtrue
+	 * (保持しようとしているものは使用中から除いてあるので、それを含めて上限以下になる)
+	 * @param codec
+	 * @param name
+	 * @return
+	 */
+	private boolean canKeep(@NonNull final MediaCodec codec, @NonNull final String name) {
+		int count = 0;
+		for (final Entry entry: mIdle) {
+			if (entry.name.equals(name)) {
+				count++;
+			}
+		}
+		for (final MediaCodec inUse: mInUse.keySet()) {
+			try {
+				if (name.equals(inUse.getName())) {
+					count++;
+				}
+			} catch (final IllegalStateException e) {
+				// 解放済み, ignore
+			}
+		}
+		return count < getMaxInstances(codec, name);
+	}
+
+	/**
+	 * 指定したエンコーダーを同時に使えるインスタンス数を取得する
+	 * @param codec
+	 * @param name
+	 * @return
+	 */
+	private int getMaxInstances(@NonNull final MediaCodec codec, @NonNull final String name) {
+		Integer result = mMaxInstances.get(name);
+		if (result == null) {
+			result = 1;
+			try {
+				final MediaCodecInfo info = codec.getCodecInfo();
+				final String[] types = info.getSupportedTypes();
+				if (types.length > 0) {
+					result = Math.max(1, MediaCodecUtils.getCodecCapabilities(info, types[0])
+						.getMaxSupportedInstances());
+				}
+			} catch (final Exception e) {
+				Log.w(TAG, e);
+			}
+			mMaxInstances.put(name, result);
+		}
+		return result;
+	}
+
+	@NonNull
+	private static MediaCodec create(@NonNull final String mimeType,
+		@Nullable final String codecName) throws IOException {
+
+		return codecName != null
+			? MediaCodec.createByCodecName(codecName)
+			: MediaCodec.createEncoderByType(mimeType);
+	}
+
+	private static void release(@NonNull final MediaCodec codec) {
+		try {
+			codec.release();
+		} catch (final Exception e) {
+			if (DEBUG) Log.w(TAG, e);
+		}
+	}
+
+	/**
+	 * 再利用できるかどうかを判断するためのキーを生成する
+	 * 映像ならmimeと映像サイズ、音声ならmimeとサンプリングレート・チャネル数
+	 * ビットレート等はconfigure時に指定できるので含めない
+	 * @param format
+	 * @return
+	 */
+	@NonNull
+	private static String key(@NonNull final MediaFormat format) {
+		final StringBuilder sb = new StringBuilder(format.getString(MediaFormat.KEY_MIME));
+		append(sb, format, MediaFormat.KEY_WIDTH);
+		append(sb, format, MediaFormat.KEY_HEIGHT);
+		append(sb, format, MediaFormat.KEY_SAMPLE_RATE);
+		append(sb, format, MediaFormat.KEY_CHANNEL_COUNT);
+		return sb.toString();
+	}
+
+	private static void append(@NonNull final StringBuilder sb,
+		@NonNull final MediaFormat format, @NonNull final String key) {
+
+		if (format.containsKey(key)) {
+			sb.append(':').append(format.getInteger(key));
+		}
+	}
+}
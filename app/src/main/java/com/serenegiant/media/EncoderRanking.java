@@ -0,0 +1,713 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+/**
+ * 候補のエンコーダーで実際に短時間の合成映像をエンコードして速い順に並べるためのヘルパークラス
+ * MediaCodecUtils#selectVideoEncoderは最初に見つかったエンコーダーを返すので
+ * 機種によってはハードウエアエンコーダーではなく遅いソフトウエアエンコーダー(OMX.google.xxx/c2.android.xxx)が選ばれてしまう
+ * 計測結果はファイルへ保存して、次回以降は#selectで保存済みの結果から選択する
+ * (計測には数秒かかるので録画開始時には行わず、録画終了後等に#rankIfNeededで行う)
+ * エンコーダーへのアクセスはCodecProvider/BenchmarkCodecを経由するので
+ * MediaCodecの代わりに偽のエンコーダーを渡せばJVM上でも順位付けを確認できる
+ */
+public class EncoderRanking {
+	private static final boolean DEBUG = false;	// set false on production
+	private static final String TAG = EncoderRanking.class.getSimpleName();
+
+	private static final String FILE_NAME = "encoder_ranking.bin";
+	private static final int MAGIC = 0x52414e4b;	// "RANK"
+	private static final int VERSION = 1;
+
+	/**
+	 * 1つの候補でエンコードするフレーム数
+	 */
+	private static final int NUM_FRAMES = 90;
+	/**
+	 * 統計から除外する最初のフレーム数
+	 * 最初の数フレームはエンコーダー内部の初期化で遅くなるので
+	 */
+	private static final int WARMUP_FRAMES = 10;
+	/**
+	 * 1つの候補の計測に掛ける最大時間のデフォルト値[ミリ秒]
+	 */
+	private static final long MAX_DURATION_MS = 5000;
+	private static final long TIMEOUT_USEC = 10000L;	// 10ミリ秒
+
+	/**
+	 * 計測対象のエンコーダーを抽象化するためのインターフェース
+	 * 各メソッドは計測を行うスレッドから呼ばれる
+	 */
+	public interface BenchmarkCodec {
+		/**
+		 * エンコーダーを設定して開始する
+		 * @param width
+		 * @param height
+		 * @param frameRate
+		 * @param bitrate
+		 * @throws IOException 開始できなかった時
+		 */
+		@WorkerThread
+		public void start(final int width, final int height,
+			final int frameRate, final int bitrate) throws IOException;
+		/**
+		 * 1フレーム分の映像をエンコーダーへ送る
+		 * @param ix フレーム番号, エンコード済みのフレームを#dequeueFrameで返す時に使う
+		 * @param ptsUs
+		 * @param timeoutUs
+		 * @return 入力バッファが空いておらず送れなかった時はfalse
+		 * @throws IOException
+		 */
+		@WorkerThread
+		public boolean queueFrame(final int ix, final long ptsUs, final long timeoutUs) throws IOException;
+		/**
+		 * エンコード済みのフレームを取り出す
+		 * @param timeoutUs
+		 * @return エンコード済みのフレームの#queueFrameでのフレーム番号, 無ければ負の値
+		 * @throws IOException
+		 */
+		@WorkerThread
+		public int dequeueFrame(final long timeoutUs) throws IOException;
+		/**
+		 * エンコーダーを破棄する, #startに失敗した時も呼ばれる
+		 */
+		@WorkerThread
+		public void release();
+	}
+
+	/**
+	 * 計測対象のエンコーダーの候補を提供するためのインターフェース
+	 */
+	public interface CodecProvider {
+		/**
+		 * 指定した映像サイズ・フレームレートに対応しているエンコーダーの名前一覧を取得する
+		 * @param mimeType
+		 * @param width
+		 * @param height
+		 * @param frameRate
+		 * @return
+		 */
+		@NonNull
+		public List<String> getCandidates(@NonNull final String mimeType,
+			final int width, final int height, final int frameRate);
+		/**
+		 * 指定した名前のエンコーダーを生成する
+		 * @param name
+		 * @param mimeType
+		 * @return
+		 * @throws IOException
+		 */
+		@NonNull
+		public BenchmarkCodec create(@NonNull final String name,
+			@NonNull final String mimeType) throws IOException;
+	}
+
+	/**
+	 * 1つのエンコーダーの計測結果
+	 */
+	public static final class Score {
+		@NonNull
+		private final String mName;
+		private final float mFramesPerSecond;
+		private final long mLatencyP50Us;
+		private final long mLatencyP90Us;
+		private final long mLatencyP99Us;
+
+		/*package*/ Score(@NonNull final String name, final float framesPerSecond,
+			final long latencyP50Us, final long latencyP90Us, final long latencyP99Us) {
+
+			mName = name;
+			mFramesPerSecond = framesPerSecond;
+			mLatencyP50Us = latencyP50Us;
+			mLatencyP90Us = latencyP90Us;
+			mLatencyP99Us = latencyP99Us;
+		}
+
+		/**
+		 * エンコーダー名, MediaCodec#createByCodecNameへ渡す
+		 * @return
+		 */
+		@NonNull
+		public String getName() {
+			return mName;
+		}
+
+		/**
+		 * 入力を待たずに送った時のエンコード済みフレーム数/秒
+		 * 開始できなかった時やエラーになった時は0
+		 * @return
+		 */
+		public float getFramesPerSecond() {
+			return mFramesPerSecond;
+		}
+
+		/**
+		 * 入力してからエンコード済みデータが出てくるまでの時間の50パーセンタイル[マイクロ秒]
+		 * @return
+		 */
+		public long getLatencyP50Us() {
+			return mLatencyP50Us;
+		}
+
+		public long getLatencyP90Us() {
+			return mLatencyP90Us;
+		}
+
+		public long getLatencyP99Us() {
+			return mLatencyP99Us;
+		}
+
+		/**
+		 * 指定したフレームレートでエンコードできるかどうか
+		 * @param frameRate
+		 * @return
+		 */
+		public boolean meets(final int frameRate) {
+			return mFramesPerSecond >= frameRate;
+		}
+
+		@NonNull
+		@Override
+		public String toString() {
+			return String.format(Locale.US, "Score{%s,%.1ffps,p50=%d,p90=%d,p99=%d}",
+				mName, mFramesPerSecond, mLatencyP50Us, mLatencyP90Us, mLatencyP99Us);
+		}
+	}
+
+	/**
+	 * MediaCodecを使うEncoderRankingを生成する
+	 * 計測結果はキャッシュディレクトリへ保存する
+	 * @param context
+	 * @return
+	 */
+	@NonNull
+	public static EncoderRanking create(@NonNull final Context context) {
+		return new EncoderRanking(new MediaCodecProvider(),
+			new File(context.getCacheDir(), FILE_NAME),
+			Build.FINGERPRINT + "/" + Build.VERSION.SDK_INT);
+	}
+
+	@NonNull
+	private final CodecProvider mProvider;
+	@Nullable
+	private final File mFile;
+	/**
+	 * 保存した計測結果が有効かどうかを判断するための文字列
+	 * 一致しなければ保存した計測結果を破棄する
+	 */
+	@NonNull
+	private final String mFingerprint;
+	/**
+	 * 計測条件毎の計測結果(速い順)
+	 */
+	@NonNull
+	private final Map<String, List<Score>> mScores = new HashMap<>();
+	private boolean mLoaded;
+	private volatile boolean mCanceled;
+	private volatile long mMaxDurationMs = MAX_DURATION_MS;
+
+	/**
+	 * コンストラクタ
+	 * @param provider
+	 * @param file 計測結果の保存先, nullなら保存しない
+	 * @param fingerprint 保存した計測結果が有効かどうかを判断するための文字列, 通常はBuild.FINGERPRINT
+	 */
+	public EncoderRanking(@NonNull final CodecProvider provider,
+		@Nullable final File file, @NonNull final String fingerprint) {
+
+		mProvider = provider;
+		mFile = file;
+		mFingerprint = fingerprint;
+	}
+
+	/**
+	 * 保存済みの計測結果から指定した条件で最も速いエンコーダーを選択する
+	 * 計測は行わないので録画開始時に呼び出しても良い
+	 * @param mimeType
+	 * @param width
+	 * @param height
+	 * @param frameRate
+	 * @return 未計測または使用可能なエンコーダーが無い時はnull
+	 */
+	@Nullable
+	public synchronized Score select(@NonNull final String mimeType,
+		final int width, final int height, final int frameRate) {
+
+		load();
+		final List<Score> scores = mScores.get(key(mimeType, width, height, frameRate));
+		return scores != null ? select(scores, frameRate) : null;
+	}
+
+	/**
+	 * 保存済みの計測結果を取得する
+	 * @param mimeType
+	 * @param width
+	 * @param height
+	 * @param frameRate
+	 * @return 速い順, 未計測ならnull
+	 */
+	@Nullable
+	public synchronized List<Score> getScores(@NonNull final String mimeType,
+		final int width, final int height, final int frameRate) {
+
+		load();
+		final List<Score> scores = mScores.get(key(mimeType, width, height, frameRate));
+		return scores != null ? Collections.unmodifiableList(scores) : null;
+	}
+
+	/**
+	 * 指定した条件が未計測なら計測する
+	 * @param mimeType
+	 * @param width
+	 * @param height
+	 * @param frameRate
+	 * @param bitrate
+	 * @return 計測したかどうか
+	 */
+	@WorkerThread
+	public boolean rankIfNeeded(@NonNull final String mimeType,
+		final int width, final int height, final int frameRate, final int bitrate) {
+
+		if (getScores(mimeType, width, height, frameRate) == null) {
+			rank(mimeType, width, height, frameRate, bitrate);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * 候補のエンコーダーを順に計測して結果を保存する
+	 * 候補毎に最大で#setMaxDurationMsで設定した時間かかる
+	 * @param mimeType
+	 * @param width
+	 * @param height
+	 * @param frameRate
+	 * @param bitrate
+	 * @return 速い順の計測結果, #cancelで中断した時は空リスト(保存もしない)
+	 */
+	@WorkerThread
+	@NonNull
+	public List<Score> rank(@NonNull final String mimeType,
+		final int width, final int height, final int frameRate, final int bitrate) {
+
+		if (DEBUG) Log.v(TAG, "rank:" + key(mimeType, width, height, frameRate));
+		mCanceled = false;
+		final List<Score> result = new ArrayList<>();
+		for (final String name: mProvider.getCandidates(mimeType, width, height, frameRate)) {
+			if (mCanceled) {
+				return new ArrayList<>();
+			}
+			final Score score = measure(name, mimeType, width, height, frameRate, bitrate);
+			if (DEBUG) Log.v(TAG, "rank:" + score);
+			if (mCanceled) {
+				return new ArrayList<>();
+			}
+			result.add(score);
+		}
+		Collections.sort(result, COMPARATOR);
+		synchronized (this) {
+			load();
+			mScores.put(key(mimeType, width, height, frameRate), result);
+			save();
+		}
+		return result;
+	}
+
+	/**
+	 * 1つの候補の計測に掛ける最大時間を設定する
+	 * 時間内にエンコードできたフレーム数が足りない候補はフレームレート0として扱う
+	 * @param maxDurationMs [ミリ秒], デフォルトは5000ミリ秒
+	 */
+	public void setMaxDurationMs(final long maxDurationMs) {
+		mMaxDurationMs = maxDurationMs;
+	}
+
+	/**
+	 * 実行中の#rankを中断する
+	 * 録画開始時等にハードウエアエンコーダーを計測に使わないようにするために呼び出す
+	 */
+	public void cancel() {
+		mCanceled = true;
+	}
+
+	/**
+	 * 保存済みの計測結果を破棄する
+	 * 選択したエンコーダーを生成できなかった時等に呼び出す
+	 */
+	public synchronized void invalidate() {
+		if (DEBUG) Log.v(TAG, "invalidate:");
+		mScores.clear();
+		mLoaded = true;
+		if ((mFile != null) && mFile.exists() && !mFile.delete()) {
+			Log.w(TAG, "failed to delete " + mFile);
+		}
+	}
+
+	/**
+	 * 速い順に並べた計測結果から指定したフレームレートを満たすものを選択する
+	 * 満たすものが無ければ最も速いものを返す
+	 * @param scores
+	 * @param frameRate
+	 * @return
+	 */
+	@Nullable
+	/*package*/ static Score select(@NonNull final List<Score> scores, final int frameRate) {
+		for (final Score score: scores) {
+			if (score.meets(frameRate)) {
+				return score;
+			}
+		}
+		return (!scores.isEmpty() && (scores.get(0).getFramesPerSecond() > 0))
+			? scores.get(0) : null;
+	}
+
+	/**
+	 * 速い順(同じならp90のレイテンシが小さい順)に並べるためのComparator
+	 */
+	/*package*/ static final Comparator<Score> COMPARATOR = new Comparator<Score>() {
+		@Override
+		public int compare(final Score s1, final Score s2) {
+			final int r = Float.compare(s2.mFramesPerSecond, s1.mFramesPerSecond);
+			return r != 0 ? r : Long.compare(s1.mLatencyP90Us, s2.mLatencyP90Us);
+		}
+	};
+
+	/**
+	 * 1つのエンコーダーを計測する
+	 * 入力バッファが空き次第フレームを送って、入力してから出力されるまでの時間を記録する
+	 * @return
+	 */
+	@NonNull
+	private Score measure(@NonNull final String name, @NonNull final String mimeType,
+		final int width, final int height, final int frameRate, final int bitrate) {
+
+		final long[] queuedNs = new long[NUM_FRAMES];
+		final long[] latencyUs = new long[NUM_FRAMES];
+		int queued = 0, encoded = 0;
+		long startNs = 0, endNs = 0;
+		BenchmarkCodec codec = null;
+		try {
+			codec = mProvider.create(name, mimeType);
+			codec.start(width, height, frameRate, bitrate);
+			final long limitNs = System.nanoTime() + mMaxDurationMs * 1000000L;
+			while ((encoded < NUM_FRAMES) && !mCanceled) {
+				final long now = System.nanoTime();
+				if (now > limitNs) {
+					if (DEBUG) Log.v(TAG, "measure:timeout," + name);
+					break;
+				}
+				if ((queued < NUM_FRAMES)
+					&& codec.queueFrame(queued, queued * 1000000L / frameRate, 0)) {
+
+					queuedNs[queued++] = System.nanoTime();
+				}
+				final int ix = codec.dequeueFrame(queued < NUM_FRAMES ? 0 : TIMEOUT_USEC);
+				if ((ix >= 0) && (ix < queued)) {
+					final long t = System.nanoTime();
+					if (encoded == WARMUP_FRAMES) {
+						startNs = t;
+					}
+					if (encoded >= WARMUP_FRAMES) {
+						latencyUs[encoded - WARMUP_FRAMES] = (t - queuedNs[ix]) / 1000L;
+						endNs = t;
+					}
+					encoded++;
+				}
+			}
+		} catch (final Exception e) {
+			Log.w(TAG, "measure:" + name, e);
+			encoded = 0;
+		} finally {
+			if (codec != null) {
+				codec.release();
+			}
+		}
+		final int n = encoded - WARMUP_FRAMES - 1;
+		if (n <= 0) {
+			return new Score(name, 0, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE);
+		}
+		final long[] sorted = Arrays.copyOf(latencyUs, n + 1);
+		Arrays.sort(sorted);
+		final float fps = (endNs > startNs) ? n * 1e9f / (endNs - startNs) : 0;
+		return new Score(name, fps,
+			percentile(sorted, 50), percentile(sorted, 90), percentile(sorted, 99));
+	}
+
+	private static long percentile(@NonNull final long[] sorted, final int percent) {
+		final int ix = Math.min(sorted.length - 1, (sorted.length * percent + 99) / 100 - 1);
+		return sorted[Math.max(0, ix)];
+	}
+
+	@NonNull
+	private static String key(@NonNull final String mimeType,
+		final int width, final int height, final int frameRate) {
+
+		return mimeType.toLowerCase(Locale.US) + ":" + width + "x" + height + "@" + frameRate;
+	}
+
+	/**
+	 * 保存済みの計測結果を読み込む
+	 * 読み込み済みの時は何もしない
+	 */
+	private void load() {
+		if (mLoaded) {
+			return;
+		}
+		mLoaded = true;
+		if ((mFile == null) || !mFile.exists()) {
+			return;
+		}
+		if (DEBUG) Log.v(TAG, "load:" + mFile);
+		final Map<String, List<Score>> scores = new HashMap<>();
+		try (final DataInputStream in = new DataInputStream(
+			new BufferedInputStream(new FileInputStream(mFile)))) {
+
+			if ((in.readInt() != MAGIC)
+				|| (in.readUnsignedByte() != VERSION)
+				|| !mFingerprint.equals(in.readUTF())) {
+				if (DEBUG) Log.v(TAG, "load:discard stale result");
+				return;
+			}
+			final int numKeys = in.readUnsignedShort();
+			for (int i = 0; i < numKeys; i++) {
+				final String key = in.readUTF();
+				final int n = in.readUnsignedShort();
+				final List<Score> list = new ArrayList<>(n);
+				for (int j = 0; j < n; j++) {
+					list.add(new Score(in.readUTF(), in.readFloat(),
+						in.readLong(), in.readLong(), in.readLong()));
+				}
+				scores.put(key, list);
+			}
+			mScores.putAll(scores);
+		} catch (final IOException e) {
+			Log.w(TAG, e);
+		}
+	}
+
+	/**
+	 * 計測結果を保存する
+	 * 一時ファイルへ書き込んでからリネームする
+	 */
+	private void save() {
+		if (mFile == null) {
+			return;
+		}
+		final File temp = new File(mFile.getPath() + ".tmp");
+		try {
+			try (final DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(temp)))) {
+
+				out.writeInt(MAGIC);
+				out.writeByte(VERSION);
+				out.writeUTF(mFingerprint);
+				out.writeShort(mScores.size());
+				for (final Map.Entry<String, List<Score>> entry: mScores.entrySet()) {
+					out.writeUTF(entry.getKey());
+					out.writeShort(entry.getValue().size());
+					for (final Score score: entry.getValue()) {
+						out.writeUTF(score.mName);
+						out.writeFloat(score.mFramesPerSecond);
+						out.writeLong(score.mLatencyP50Us);
+						out.writeLong(score.mLatencyP90Us);
+						out.writeLong(score.mLatencyP99Us);
+					}
+				}
+			}
+			if (!temp.renameTo(mFile)) {
+				throw new IOException("failed to rename " + temp);
+			}
+		} catch (final IOException e) {
+			Log.w(TAG, e);
+			temp.delete();
+		}
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * MediaCodecを使うCodecProvider実装
+	 * 録画時はSurfaceから入力するが、計測ではGL/VirtualDisplayを使わずに済むように
+	 * YUV420のバイトバッファへ書き込んだ合成映像を入力する
+	 */
+	private static class MediaCodecProvider implements CodecProvider {
+		@NonNull
+		@Override
+		public List<String> getCandidates(@NonNull final String mimeType,
+			final int width, final int height, final int frameRate) {
+
+			final List<String> result = new ArrayList<>();
+			for (final MediaCodecInfo info: MediaCodecUtils.getVideoEncoderInfos(mimeType)) {
+				final MediaCodecInfo.VideoCapabilities caps
+					= MediaCodecUtils.getCodecCapabilities(info, mimeType).getVideoCapabilities();
+				if ((caps != null) && caps.areSizeAndRateSupported(width, height, frameRate)
+					&& !result.contains(info.getName())) {
+					result.add(info.getName());
+				}
+			}
+			return result;
+		}
+
+		@NonNull
+		@Override
+		public BenchmarkCodec create(@NonNull final String name,
+			@NonNull final String mimeType) throws IOException {
+
+			return new MediaCodecBenchmark(name, mimeType);
+		}
+	}
+
+	private static class MediaCodecBenchmark implements BenchmarkCodec {
+		@NonNull
+		private final String mName;
+		@NonNull
+		private final String mMimeType;
+		@NonNull
+		private final MediaCodec mCodec;
+		private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+		private int mWidth, mHeight, mFrameRate;
+		private int mColorFormat;
+		@Nullable
+		private byte[] mPattern;
+
+		private MediaCodecBenchmark(@NonNull final String name,
+			@NonNull final String mimeType) throws IOException {
+
+			mName = name;
+			mMimeType = mimeType;
+			mCodec = MediaCodec.createByCodecName(name);
+		}
+
+		@Override
+		public void start(final int width, final int height,
+			final int frameRate, final int bitrate) throws IOException {
+
+			mColorFormat = MediaCodecUtils.selectColorFormat(mCodec.getCodecInfo(), mMimeType);
+			if (mColorFormat == 0) {
+				throw new IOException("no supported color format," + mName);
+			}
+			mWidth = width;
+			mHeight = height;
+			mFrameRate = frameRate;
+			final MediaFormat format = MediaFormat.createVideoFormat(mMimeType, width, height);
+			format.setInteger(MediaFormat.KEY_COLOR_FORMAT, mColorFormat);
+			format.setInteger(MediaFormat.KEY_BIT_RATE, bitrate);
+			format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+			format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+			try {
+				mCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+				mCodec.start();
+			} catch (final IllegalStateException | IllegalArgumentException e) {
+				throw new IOException(e);
+			}
+		}
+
+		@Override
+		public boolean queueFrame(final int ix, final long ptsUs, final long timeoutUs) {
+			final int index = mCodec.dequeueInputBuffer(timeoutUs);
+			if (index < 0) {
+				return false;
+			}
+			final ByteBuffer buffer = mCodec.getInputBuffer(index);
+			int size = 0;
+			if (buffer != null) {
+				buffer.clear();
+				size = fill(buffer, ix);
+			}
+			// 入力したフレームを出力側で識別できるようにptsにはフレーム番号から求めた値を使う
+			mCodec.queueInputBuffer(index, 0, size, ptsUs, 0);
+			return true;
+		}
+
+		@Override
+		public int dequeueFrame(final long timeoutUs) {
+			final int index = mCodec.dequeueOutputBuffer(mInfo, timeoutUs);
+			if (index < 0) {
+				return -1;
+			}
+			mCodec.releaseOutputBuffer(index, false);
+			if ((mInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+				return -1;
+			}
+			return (int)((mInfo.presentationTimeUs * mFrameRate + 500000L) / 1000000L);
+		}
+
+		@Override
+		public void release() {
+			try {
+				mCodec.stop();
+			} catch (final Exception e) {
+				// ignore, 開始していない時も呼ばれる
+			}
+			mCodec.release();
+		}
+
+		/**
+		 * フレーム毎に模様が変わる合成映像を書き込む
+		 * 同じ映像だとエンコーダーがほとんど処理しないので、2フレーム分の模様を生成しておいて
+		 * フレーム毎に読み出し位置をずらして書き込む
+		 * (ここが遅いとエンコーダーの速さを計れないので1画素ずつは書き込まない)
+		 * @param buffer
+		 * @param ix
+		 * @return 書き込んだバイト数
+		 */
+		private int fill(@NonNull final ByteBuffer buffer, final int ix) {
+			final int frameSize = mWidth * mHeight * 3 / 2;
+			if (mPattern == null) {
+				mPattern = new byte[frameSize * 2];
+				for (int i = 0; i < mPattern.length; i++) {
+					final int x = i % mWidth, y = i / mWidth;
+					mPattern[i] = (byte)((x + y * 3) ^ (x * y >> 5));
+				}
+			}
+			final int size = Math.min(buffer.remaining(), frameSize);
+			final int offset = (int)((ix * 7L * mWidth + ix * 13L) % frameSize);
+			buffer.put(mPattern, offset, size);
+			return size;
+		}
+	}
+}
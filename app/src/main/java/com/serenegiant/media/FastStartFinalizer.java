@@ -0,0 +1,672 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import androidx.annotation.IntDef;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import static com.serenegiant.media.Mp4Boxes.*;
+
+/**
+ * 録画終了後のMP4ファイルのmoovを先頭へ移動して、全体をダウンロードしなくても再生を開始できる
+ * (ファストスタート/プログレッシブダウンロード可能な)ファイルにする
+ *
+ * MediaMuxer(MPEG4Writer)は録画開始時にmoov用の領域(free)を予約しておき、
+ * 終了時にmoovが収まらなければファイルの末尾へ書き込む。このクラスでは
+ * ・moovが予約領域に収まる時は予約領域へ書き込むだけ(mdatは移動しない)
+ * ・収まらない時はmdatをmoovの分だけ後ろへずらしながら1回だけ読み書きし、
+ *   チャンクオフセット(stco)をずらした分だけ書き換える
+ *   (4GBを超える時はstcoをco64へ変換する)
+ * moovはメモリーマップして読み込み、mdatはFileChannel#transferTo(別ファイルへ書き出す時)か
+ * 大きなブロック単位の読み書き(その場で書き換える時)でコピーするのでJava側のヒープはほとんど使わない
+ *
+ * 録画スレッドで呼び出すと次の録画の開始が遅れるので、録画終了後に別スレッドで呼び出すこと
+ * Androidフレームワークに依存しないので通常のJVM上でも使える
+ */
+public class FastStartFinalizer {
+	private static final boolean DEBUG = false;	// set false on production
+	private static final String TAG = FastStartFinalizer.class.getSimpleName();
+
+	/**
+	 * 既にmoovがmdatより前にあったので何もしなかった
+	 */
+	public static final int RESULT_ALREADY_FAST_START = 0;
+	/**
+	 * moovを予約領域へ書き込んだ(mdatは移動していない)
+	 */
+	public static final int RESULT_RESERVED = 1;
+	/**
+	 * mdatを移動してmoovを先頭へ書き込んだ
+	 */
+	public static final int RESULT_RELOCATED = 2;
+
+	@IntDef({
+		RESULT_ALREADY_FAST_START,
+		RESULT_RESERVED,
+		RESULT_RELOCATED,
+	})
+	@Retention(RetentionPolicy.SOURCE)
+	public @interface Result {}
+
+	/**
+	 * 進捗通知用コールバックインターフェース
+	 */
+	public interface ProgressListener {
+		/**
+		 * 一定量処理する毎に呼ばれる
+		 * @param processedBytes 処理済みのバイト数
+		 * @param totalBytes 処理するバイト数の合計
+		 */
+		public void onProgress(final long processedBytes, final long totalBytes);
+	}
+
+	/**
+	 * transferTo/ブロックコピーで1度に処理するバイト数, 進捗はこの単位で通知する
+	 */
+	private static final int TRANSFER_BLOCK_SIZE = 32 * 1024 * 1024;
+	private static final int COPY_BLOCK_SIZE = 8 * 1024 * 1024;
+
+	private FastStartFinalizer() {
+		// インスタンス化をエラーにするためにデフォルトコンストラクタをprivateに
+	}
+
+	/**
+	 * moovがmdatより前にあるかどうか
+	 * @param channel
+	 * @return
+	 * @throws IOException
+	 */
+	public static boolean isFastStart(@NonNull final FileChannel channel) throws IOException {
+		return new Layout(channel).isFastStart();
+	}
+
+	/**
+	 * 指定したファイルのmoovを先頭へ移動する
+	 * 予約領域へ収まらない時は同じディレクトリへ一時ファイルを書き出してから置き換えるので、
+	 * 途中で強制終了しても元のファイルは壊れない(一時的にファイルサイズ分の空き容量が必要)
+	 * @param file
+	 * @param listener
+	 * @return
+	 * @throws IOException
+	 */
+	@Result
+	public static int process(@NonNull final File file,
+		@Nullable final ProgressListener listener) throws IOException {
+
+		try (final RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			final FileChannel channel = raf.getChannel();
+			final Layout layout = new Layout(channel);
+			if (layout.isFastStart()) {
+				return RESULT_ALREADY_FAST_START;
+			}
+			if (layout.fitsReserved()) {
+				return writeReserved(channel, channel, layout, listener);
+			}
+		}
+		final File temp = new File(file.getParentFile(), file.getName() + ".faststart");
+		boolean success = false;
+		try {
+			try (final FileInputStream in = new FileInputStream(file);
+				final FileOutputStream out = new FileOutputStream(temp)) {
+
+				process(in.getChannel(), out.getChannel(), listener);
+				out.getFD().sync();
+			}
+			if (!temp.renameTo(file)) {
+				throw new IOException("failed to replace " + file);
+			}
+			success = true;
+		} finally {
+			if (!success && temp.exists() && !temp.delete()) {
+				Log.w(TAG, "failed to delete," + temp);
+			}
+		}
+		return RESULT_RELOCATED;
+	}
+
+	/**
+	 * 入力ファイルのmoovを先頭へ移動したものを別のファイルへ書き出す
+	 * 既にファストスタートの時もそのままコピーする
+	 * @param input
+	 * @param output 空のファイル
+	 * @param listener
+	 * @return
+	 * @throws IOException
+	 */
+	@Result
+	public static int process(
+		@NonNull final FileChannel input, @NonNull final FileChannel output,
+		@Nullable final ProgressListener listener) throws IOException {
+
+		final Layout layout = new Layout(input);
+		final boolean fastStart = layout.isFastStart();
+		final List<Box> order = new ArrayList<>();
+		ByteBuffer moov = null;
+		if (fastStart) {
+			order.addAll(layout.boxes);
+		} else {
+			// moovとfree/skipを除いて、最初のmdatの前へmoovを入れる
+			for (final Box box: layout.boxes) {
+				if (box == layout.firstMdat) {
+					order.add(layout.moov);
+				}
+				if ((box != layout.moov) && !box.isFree()) {
+					order.add(box);
+				}
+			}
+			moov = buildMoov(input, layout, order);
+		}
+		long total = 0;
+		for (final Box box: order) {
+			total += box.size;
+		}
+		long done = 0;
+		long pos = 0;
+		for (final Box box: order) {
+			if (box == layout.moov && (moov != null)) {
+				writeFully(output, moov, pos);
+				pos += moov.limit();
+				done += box.size;
+				continue;
+			}
+			for (long offset = 0; offset < box.size; ) {
+				final long n = Math.min(TRANSFER_BLOCK_SIZE, box.size - offset);
+				transferFully(input, box.pos + offset, n, output, pos);
+				offset += n;
+				pos += n;
+				done += n;
+				if (listener != null) {
+					listener.onProgress(done, total);
+				}
+			}
+		}
+		output.truncate(pos);
+		output.force(true);
+		if (DEBUG) Log.v(TAG, "process:finished," + pos + "bytes");
+		return fastStart ? RESULT_ALREADY_FAST_START : RESULT_RELOCATED;
+	}
+
+	/**
+	 * 指定したファイルのmoovをその場で先頭へ移動する
+	 * content uriのようにFileDescriptorしか得られない時に使う
+	 * 予約領域へ収まらない時はmdatを後ろへずらすので、途中で電源断等が起きると
+	 * ファイルが壊れる(Mp4Recoveryでも修復できない)
+	 * @param input 読み込み用
+	 * @param output 書き込み用, inputと同じファイルであること
+	 * @param listener
+	 * @return
+	 * @throws IOException
+	 */
+	@Result
+	public static int processInPlace(
+		@NonNull final FileChannel input, @NonNull final FileChannel output,
+		@Nullable final ProgressListener listener) throws IOException {
+
+		final Layout layout = new Layout(input);
+		if (layout.isFastStart()) {
+			return RESULT_ALREADY_FAST_START;
+		}
+		if (layout.fitsReserved()) {
+			return writeReserved(input, output, layout, listener);
+		}
+		// mdatの後ろにはmoovとfree/skipしか無いこと
+		final int mdatIx = layout.boxes.indexOf(layout.firstMdat);
+		for (int i = mdatIx + 1; i < layout.boxes.size(); i++) {
+			final Box box = layout.boxes.get(i);
+			if ((box != layout.moov) && !box.isFree()) {
+				throw new IOException("unsupported box layout for in-place processing");
+			}
+		}
+		final Box mdat = layout.firstMdat;
+		final long insertPos = layout.reservedPos();
+		final List<Box> order = new ArrayList<>();
+		for (final Box box: layout.boxes) {
+			if (box.pos < insertPos) {
+				order.add(box);
+			}
+		}
+		order.add(layout.moov);
+		order.add(mdat);
+		// mdatを上書きする前にmoovを読み込んで書き換えておく
+		final ByteBuffer moov = buildMoov(input, layout, order);
+		final long shift = insertPos + moov.limit() - mdat.pos;
+		final long total = mdat.size;
+		final ByteBuffer buf = ByteBuffer.allocateDirect((int)Math.min(COPY_BLOCK_SIZE, mdat.size));
+		long done = 0;
+		if (shift > 0) {
+			// 後ろへずらすので末尾からコピーする
+			for (long end = mdat.pos + mdat.size; end > mdat.pos; ) {
+				final int n = (int)Math.min(buf.capacity(), end - mdat.pos);
+				copyBlock(input, end - n, output, end - n + shift, buf, n);
+				end -= n;
+				done += n;
+				if (listener != null) {
+					listener.onProgress(done, total);
+				}
+			}
+		} else if (shift < 0) {
+			for (long start = mdat.pos; start < mdat.pos + mdat.size; ) {
+				final int n = (int)Math.min(buf.capacity(), mdat.pos + mdat.size - start);
+				copyBlock(input, start, output, start + shift, buf, n);
+				start += n;
+				done += n;
+				if (listener != null) {
+					listener.onProgress(done, total);
+				}
+			}
+		}
+		writeFully(output, moov, insertPos);
+		output.truncate(mdat.pos + mdat.size + shift);
+		output.force(true);
+		if (DEBUG) Log.v(TAG, "processInPlace:shift=" + shift);
+		return RESULT_RELOCATED;
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * トップレベルのボックス
+	 */
+	private static class Box {
+		private final long pos;
+		private final long size;
+		private final int type;
+
+		private Box(final long pos, final long size, final int type) {
+			this.pos = pos;
+			this.size = size;
+			this.type = type;
+		}
+
+		private boolean isFree() {
+			return (type == FREE) || (type == SKIP);
+		}
+	}
+
+	private static final int MOOV = fourCC("moov");
+	private static final int MDAT = fourCC("mdat");
+	private static final int FREE = fourCC("free");
+	private static final int SKIP = fourCC("skip");
+	private static final int TRAK = fourCC("trak");
+	private static final int MDIA = fourCC("mdia");
+	private static final int MINF = fourCC("minf");
+	private static final int STBL = fourCC("stbl");
+	private static final int STCO = fourCC("stco");
+	private static final int CO64 = fourCC("co64");
+
+	/**
+	 * トップレベルのボックスの配置
+	 */
+	private static class Layout {
+		@NonNull
+		private final List<Box> boxes = new ArrayList<>();
+		@Nullable
+		private Box moov;
+		@Nullable
+		private Box firstMdat;
+
+		private Layout(@NonNull final FileChannel channel) throws IOException {
+			final long fileSize = channel.size();
+			final ByteBuffer header = ByteBuffer.allocate(16);
+			long pos = 0;
+			while (pos + BOX_HEADER_SIZE <= fileSize) {
+				header.clear();
+				header.limit((int)Math.min(16, fileSize - pos));
+				while (header.hasRemaining()) {
+					if (channel.read(header, pos + header.position()) < 0) break;
+				}
+				long size = header.getInt(0) & 0xffffffffL;
+				final int type = header.getInt(4);
+				if (size == 1) {
+					if (header.position() < 16) {
+						throw new IOException("broken box header at " + pos);
+					}
+					size = header.getLong(8);
+				} else if (size == 0) {
+					size = fileSize - pos;
+				}
+				if ((size < BOX_HEADER_SIZE) || (pos + size > fileSize)) {
+					throw new IOException("broken box at " + pos);
+				}
+				final Box box = new Box(pos, size, type);
+				boxes.add(box);
+				if ((type == MOOV) && (moov == null)) {
+					moov = box;
+				} else if ((type == MDAT) && (firstMdat == null)) {
+					firstMdat = box;
+				}
+				pos += size;
+			}
+			if (moov == null) {
+				throw new IOException("moov not found");
+			}
+		}
+
+		private boolean isFastStart() {
+			return (firstMdat == null) || (moov.pos < firstMdat.pos);
+		}
+
+		/**
+		 * 最初のmdatの直前に続いているfree/skipの先頭位置
+		 * @return
+		 */
+		private long reservedPos() {
+			long result = firstMdat.pos;
+			for (int i = boxes.indexOf(firstMdat) - 1; i >= 0; i--) {
+				final Box box = boxes.get(i);
+				if (!box.isFree()) break;
+				result = box.pos;
+			}
+			return result;
+		}
+
+		/**
+		 * mdatを移動せずにmoovを予約領域へ書き込めるかどうか
+		 * @return
+		 */
+		private boolean fitsReserved() {
+			final long reserved = firstMdat.pos - reservedPos();
+			return (moov.size == reserved) || (moov.size + BOX_HEADER_SIZE <= reserved);
+		}
+	}
+
+	/**
+	 * moovを予約領域へ書き込んで、元のmoovはfreeにするか切り詰める
+	 * mdatは移動しないのでチャンクオフセットは変わらない
+	 */
+	@Result
+	private static int writeReserved(
+		@NonNull final FileChannel input, @NonNull final FileChannel output,
+		@NonNull final Layout layout, @Nullable final ProgressListener listener)
+			throws IOException {
+
+		final long pos = layout.reservedPos();
+		final long reserved = layout.firstMdat.pos - pos;
+		final Box moov = layout.moov;
+		transferFully(input, moov.pos, moov.size, output, pos);
+		final ByteBuffer header = ByteBuffer.allocate(BOX_HEADER_SIZE);
+		if (moov.size < reserved) {
+			putFree(header, reserved - moov.size);
+			writeFully(output, header, pos + moov.size);
+		}
+		boolean isLast = true;
+		for (final Box box: layout.boxes) {
+			if ((box.pos > moov.pos) && !box.isFree()) {
+				isLast = false;
+				break;
+			}
+		}
+		if (isLast) {
+			output.truncate(moov.pos);
+		} else {
+			header.clear();
+			putFree(header, moov.size);
+			writeFully(output, header, moov.pos);
+		}
+		output.force(true);
+		if (listener != null) {
+			listener.onProgress(moov.size, moov.size);
+		}
+		return RESULT_RESERVED;
+	}
+
+	private static void putFree(@NonNull final ByteBuffer header, final long size) {
+		header.clear();
+		header.putInt((int)size);
+		header.putInt(FREE);
+		header.flip();
+	}
+
+	/**
+	 * 書き込み後の配置に合わせてチャンクオフセットを書き換えたmoovを生成する
+	 * @param input
+	 * @param layout
+	 * @param order 書き込み後のトップレベルのボックスの並び
+	 * @return
+	 * @throws IOException
+	 */
+	@NonNull
+	private static ByteBuffer buildMoov(@NonNull final FileChannel input,
+		@NonNull final Layout layout, @NonNull final List<Box> order) throws IOException {
+
+		final Box moov = layout.moov;
+		if (moov.size > Integer.MAX_VALUE / 2) {
+			throw new IOException("moov is too large");
+		}
+		final MappedByteBuffer src
+			= input.map(FileChannel.MapMode.READ_ONLY, moov.pos, moov.size);
+		// stcoのままで4GBを超えないかを確認してからオフセットを決める
+		final int size32 = rewriteMoov(src, null, false).limit();
+		long fileSize = size32 - moov.size;
+		for (final Box box: order) {
+			fileSize += box.size;
+		}
+		final boolean co64 = fileSize > 0xffffffffL;
+		final int size = co64 ? rewriteMoov(src, null, true).limit() : size32;
+		final Relocation relocation = new Relocation(order, moov, size);
+		return rewriteMoov(src, relocation, co64);
+	}
+
+	/**
+	 * 元のファイル内のオフセットを書き込み後のオフセットへ変換する
+	 */
+	private static class Relocation {
+		private final long[] oldStart;
+		private final long[] oldEnd;
+		private final long[] newStart;
+
+		private Relocation(@NonNull final List<Box> order,
+			@NonNull final Box moov, final int moovSize) {
+
+			final int n = order.size();
+			oldStart = new long[n];
+			oldEnd = new long[n];
+			newStart = new long[n];
+			long pos = 0;
+			for (int i = 0; i < n; i++) {
+				final Box box = order.get(i);
+				oldStart[i] = box.pos;
+				oldEnd[i] = box.pos + box.size;
+				newStart[i] = pos;
+				pos += box == moov ? moovSize : box.size;
+			}
+		}
+
+		private long relocate(final long offset) throws IOException {
+			for (int i = 0; i < oldStart.length; i++) {
+				if ((offset >= oldStart[i]) && (offset < oldEnd[i])) {
+					return newStart[i] + (offset - oldStart[i]);
+				}
+			}
+			throw new IOException("chunk offset out of range," + offset);
+		}
+	}
+
+	/**
+	 * moovを複製しながらstco/co64のチャンクオフセットを書き換える
+	 * @param src moov全体
+	 * @param relocation nullならオフセットは変更しない(サイズ計算用)
+	 * @param co64 trueならstcoをco64へ変換する
+	 * @return
+	 * @throws IOException
+	 */
+	@NonNull
+	private static ByteBuffer rewriteMoov(@NonNull final ByteBuffer src,
+		@Nullable final Relocation relocation, final boolean co64) throws IOException {
+
+		final int capacity = src.limit() + (co64 ? countChunks(src, 0, src.limit()) * 4 : 0);
+		final ByteBuffer dst = ByteBuffer.allocate(capacity);
+		copyBoxes(src, 0, src.limit(), dst, relocation, co64);
+		dst.flip();
+		return dst;
+	}
+
+	/**
+	 * stcoのエントリー数の合計
+	 */
+	private static int countChunks(@NonNull final ByteBuffer src,
+		final int start, final int end) throws IOException {
+
+		int result = 0;
+		for (int pos = start; pos + BOX_HEADER_SIZE <= end; ) {
+			final int header = headerSize(src, pos);
+			final int size = boxSize(src, pos, end);
+			final int type = src.getInt(pos + 4);
+			if (isContainer(type)) {
+				result += countChunks(src, pos + header, pos + size);
+			} else if (type == STCO) {
+				result += src.getInt(pos + header + 4);
+			}
+			pos += size;
+		}
+		return result;
+	}
+
+	private static void copyBoxes(@NonNull final ByteBuffer src,
+		final int start, final int end, @NonNull final ByteBuffer dst,
+		@Nullable final Relocation relocation, final boolean co64) throws IOException {
+
+		for (int pos = start; pos + BOX_HEADER_SIZE <= end; ) {
+			final int header = headerSize(src, pos);
+			final int size = boxSize(src, pos, end);
+			final int type = src.getInt(pos + 4);
+			final int boxStart = dst.position();
+			if (isContainer(type)) {
+				// 子ボックスのサイズが変わるかもしれないのでヘッダーだけ書いて後でサイズを書き換える
+				copyRange(src, pos, header, dst);
+				copyBoxes(src, pos + header, pos + size, dst, relocation, co64);
+				patchSize(dst, boxStart, header);
+			} else if ((type == STCO) || (type == CO64)) {
+				final boolean wide = co64 || (type == CO64);
+				final int n = src.getInt(pos + header + 4);
+				dst.putInt(0);
+				dst.putInt(wide ? CO64 : STCO);
+				dst.putInt(src.getInt(pos + header));	// version & flags
+				dst.putInt(n);
+				int p = pos + header + 8;
+				for (int i = 0; i < n; i++) {
+					long offset;
+					if (type == CO64) {
+						offset = src.getLong(p);
+						p += 8;
+					} else {
+						offset = src.getInt(p) & 0xffffffffL;
+						p += 4;
+					}
+					if (relocation != null) {
+						offset = relocation.relocate(offset);
+					}
+					if (wide) {
+						dst.putLong(offset);
+					} else {
+						dst.putInt((int)offset);
+					}
+				}
+				patchSize(dst, boxStart, BOX_HEADER_SIZE);
+			} else {
+				copyRange(src, pos, size, dst);
+			}
+			pos += size;
+		}
+	}
+
+	private static boolean isContainer(final int type) {
+		return (type == MOOV) || (type == TRAK) || (type == MDIA)
+			|| (type == MINF) || (type == STBL);
+	}
+
+	private static void copyRange(@NonNull final ByteBuffer src,
+		final int pos, final int length, @NonNull final ByteBuffer dst) {
+
+		final ByteBuffer slice = src.duplicate();
+		slice.limit(pos + length).position(pos);
+		dst.put(slice);
+	}
+
+	/**
+	 * ボックスのサイズを書き込み済みの範囲で確定する
+	 * @param dst
+	 * @param boxStart
+	 * @param header 8なら32ビット, 16なら64ビットのサイズ
+	 */
+	private static void patchSize(@NonNull final ByteBuffer dst,
+		final int boxStart, final int header) {
+
+		final int size = dst.position() - boxStart;
+		if (header > BOX_HEADER_SIZE) {
+			dst.putInt(boxStart, 1);
+			dst.putLong(boxStart + 8, size);
+		} else {
+			dst.putInt(boxStart, size);
+		}
+	}
+
+	private static void transferFully(@NonNull final FileChannel input,
+		long pos, long count, @NonNull final FileChannel output, final long outPos)
+			throws IOException {
+
+		output.position(outPos);
+		while (count > 0) {
+			final long n = input.transferTo(pos, count, output);
+			if (n <= 0) {
+				throw new IOException("unexpected end of file");
+			}
+			pos += n;
+			count -= n;
+		}
+	}
+
+	private static void copyBlock(@NonNull final FileChannel input, final long from,
+		@NonNull final FileChannel output, final long to,
+		@NonNull final ByteBuffer buf, final int length) throws IOException {
+
+		buf.clear();
+		buf.limit(length);
+		while (buf.hasRemaining()) {
+			if (input.read(buf, from + buf.position()) < 0) {
+				throw new IOException("unexpected end of file");
+			}
+		}
+		buf.flip();
+		writeFully(output, buf, to);
+	}
+
+	private static void writeFully(@NonNull final FileChannel channel,
+		@NonNull final ByteBuffer buffer, long pos) throws IOException {
+
+		while (buffer.hasRemaining()) {
+			pos += channel.write(buffer, pos);
+		}
+	}
+}
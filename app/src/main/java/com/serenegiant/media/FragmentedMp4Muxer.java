@@ -0,0 +1,826 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.net.Uri;
+import android.util.Log;
+
+import com.serenegiant.mediastore.MediaStoreOutputStream;
+import com.serenegiant.utils.AnnexBScanner;
+import com.serenegiant.utils.CoalescingOutputStream;
+import com.serenegiant.utils.UriHelper;
+
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.documentfile.provider.DocumentFile;
+
+import static com.serenegiant.media.Mp4Boxes.*;
+
+/**
+ * MediaMuxerを使わずにフラグメント化したMP4(fragmented MP4)を出力するIMuxer実装
+ * 開始時にftyp/moovを書き込んだ後は一定間隔でmoof+mdatをFileChannelへ追記していくので
+ * 録画中にアプリが強制終了してもそれまでに書き込んだフラグメントは再生できる
+ * 書き込みはCoalescingOutputStreamでまとめて行い、フラグメント毎にflushする
+ * メモリ上に保持するのは書き込み前の1フラグメント分のサンプルデータのみ
+ * MediaCodecからは表示時刻(presentationTimeUs)しか得られないので、Bフレームを含む映像のように
+ * 表示時刻がデコード順に単調増加しない時はフラグメント毎に表示時刻を昇順に並べたものをデコード時刻とし、
+ * 表示時刻との差をtrun(version 1)のsample_composition_time_offsetとして書き込む
+ * 今のところ対応しているのはH.264/AVCとAAC
+ */
+public class FragmentedMp4Muxer implements IMuxer {
+	private static final boolean DEBUG = false;	// set false on production
+	private static final String TAG = FragmentedMp4Muxer.class.getSimpleName();
+
+	/**
+	 * フラグメント長のデフォルト値[マイクロ秒]
+	 */
+	public static final long DEFAULT_FRAGMENT_DURATION_US = 1000000L;
+	/**
+	 * 1フラグメント分としてメモリ上に保持するサンプルデータの最大バイト数のデフォルト値
+	 */
+	public static final int DEFAULT_MAX_FRAGMENT_BYTES = 4 * 1024 * 1024;
+
+	private static final int MOVIE_TIMESCALE = 1000;
+	private static final int VIDEO_TIMESCALE = 90000;
+	private static final int DEFAULT_VIDEO_FPS = 30;
+	private static final int AAC_SAMPLES_PER_FRAME = 1024;
+	/**
+	 * sample_depends_on=2(他のサンプルに依存しない)
+	 */
+	private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+	/**
+	 * sample_depends_on=1(他のサンプルに依存する), sample_is_non_sync_sample=1
+	 */
+	private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+	/**
+	 * trunのtr_flags
+	 * data-offset-present | sample-duration-present | sample-size-present | sample-flags-present
+	 */
+	private static final int TRUN_FLAGS = 0x000701;
+	/**
+	 * trunのtr_flags, sample-composition-time-offsets-present
+	 */
+	private static final int TRUN_FLAG_CTO = 0x000800;
+
+	/**
+	 * インスタンス生成用ヘルパーメソッド
+	 * content uriならMediaStoreOutputStream経由で、それ以外ならファイルパスから出力先を開く
+	 * @param context
+	 * @param output
+	 * @return
+	 * @throws IOException
+	 */
+	@NonNull
+	public static FragmentedMp4Muxer newInstance(
+		@NonNull final Context context,
+		@NonNull final DocumentFile output) throws IOException {
+
+		final Uri uri = output.getUri();
+		if (UriHelper.isContentUri(uri)) {
+			return new FragmentedMp4Muxer(new MediaStoreOutputStream(context, output));
+		} else {
+			final String path = UriHelper.getPath(context, uri);
+			if (path == null) {
+				throw new IOException("Failed to get output path," + uri);
+			}
+			return new FragmentedMp4Muxer(path);
+		}
+	}
+
+	@NonNull
+	private final Object mSync = new Object();
+	@NonNull
+	private final CoalescingOutputStream mSink;
+	@NonNull
+	private final Closeable mOutput;
+	private final long mFragmentDurationUs;
+	private final int mMaxFragmentBytes;
+	@NonNull
+	private final List<Track> mTracks = new ArrayList<>();
+	/**
+	 * ftyp/moov/moof等のボックス生成用ワークバッファ
+	 */
+	@NonNull
+	private ByteBuffer mWork = ByteBuffer.allocate(8192);
+	/**
+	 * ファイル先頭からmehdボックスのfragment_durationまでのオフセット
+	 */
+	private long mMehdOffset = -1;
+	private int mSequenceNumber;
+	private long mBasePtsUs = -1;
+	private long mFragmentStartUs = -1;
+	private int mPendingBytes;
+	private boolean mHasVideo;
+	/**
+	 * 全トラックのビットレートの合計
+	 */
+	private int mBitrate;
+	private volatile boolean mIsStarted;
+	private boolean mReleased;
+
+	/**
+	 * 出力先をファイルパス文字列で指定するコンストラクタ
+	 * @param outputPath
+	 * @throws IOException
+	 */
+	public FragmentedMp4Muxer(@NonNull final String outputPath) throws IOException {
+		this(new FileOutputStream(outputPath));
+	}
+
+	/**
+	 * 出力先をFileOutputStreamで指定するコンストラクタ
+	 * @param output
+	 */
+	public FragmentedMp4Muxer(@NonNull final FileOutputStream output) {
+		this(new CoalescingOutputStream(output), output,
+			DEFAULT_FRAGMENT_DURATION_US, DEFAULT_MAX_FRAGMENT_BYTES);
+	}
+
+	/**
+	 * 出力先をMediaStoreOutputStreamで指定するコンストラクタ
+	 * @param output
+	 */
+	public FragmentedMp4Muxer(@NonNull final MediaStoreOutputStream output) {
+		this(output.getSink(), output,
+			DEFAULT_FRAGMENT_DURATION_US, DEFAULT_MAX_FRAGMENT_BYTES);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param channel 書き込み先のFileChannel
+	 * @param output #releaseで破棄する出力先
+	 * @param fragmentDurationUs フラグメント長[マイクロ秒]、映像トラックがあればこの時間を超えた後の最初のキーフレームで区切る
+	 * @param maxFragmentBytes 1フラグメント分としてメモリ上に保持するサンプルデータの最大バイト数
+	 */
+	public FragmentedMp4Muxer(
+		@NonNull final FileChannel channel,
+		@NonNull final Closeable output,
+		final long fragmentDurationUs, final int maxFragmentBytes) {
+
+		this(new CoalescingOutputStream(channel, null, CoalescingOutputStream.DEFAULT_BLOCK_SIZE),
+			output, fragmentDurationUs, maxFragmentBytes);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param sink 書き込み先
+	 * @param output #releaseで破棄する出力先
+	 * @param fragmentDurationUs フラグメント長[マイクロ秒]、映像トラックがあればこの時間を超えた後の最初のキーフレームで区切る
+	 * @param maxFragmentBytes 1フラグメント分としてメモリ上に保持するサンプルデータの最大バイト数
+	 */
+	public FragmentedMp4Muxer(
+		@NonNull final CoalescingOutputStream sink,
+		@NonNull final Closeable output,
+		final long fragmentDurationUs, final int maxFragmentBytes) {
+
+		if ((fragmentDurationUs <= 0) || (maxFragmentBytes <= 0)) {
+			throw new IllegalArgumentException("fragment duration and size should be positive");
+		}
+		mSink = sink;
+		mOutput = output;
+		mFragmentDurationUs = fragmentDurationUs;
+		mMaxFragmentBytes = maxFragmentBytes;
+	}
+
+	@Override
+	protected void finalize() throws Throwable {
+		try {
+			release();
+		} finally {
+			super.finalize();
+		}
+	}
+
+	@Override
+	public int addTrack(@NonNull final MediaFormat format) {
+		synchronized (mSync) {
+			if (mIsStarted || mReleased) {
+				throw new IllegalStateException("addTrack:already started or released");
+			}
+			final Track track = new Track(mTracks.size() + 1, format);
+			mTracks.add(track);
+			mHasVideo |= track.isVideo;
+			// 出力ファイルの事前確保サイズの目安にする
+			mBitrate += track.bitrate;
+			mSink.setBitrate(mBitrate);
+			if (DEBUG) Log.v(TAG, "addTrack:" + track.trackId + "," + track.mime);
+			return mTracks.size() - 1;
+		}
+	}
+
+	@Override
+	public void writeSampleData(final int trackIndex,
+		@NonNull final ByteBuffer byteBuf,
+		@NonNull final MediaCodec.BufferInfo bufferInfo) {
+
+		if ((bufferInfo.size <= 0)
+			|| ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0)) {
+			// codec specific dataはmoov内へ書き込み済みなのでここでは何もしない
+			return;
+		}
+		synchronized (mSync) {
+			if (!mIsStarted || mReleased) {
+				return;
+			}
+			final Track track = mTracks.get(trackIndex);
+			final long ptsUs = bufferInfo.presentationTimeUs;
+			if (mBasePtsUs < 0) {
+				mBasePtsUs = ptsUs;
+				mFragmentStartUs = ptsUs;
+			}
+			// ここでは表示時刻のまま保持して、デコード時刻は#writeFragmentで決める
+			final long time = track.toTimescale(ptsUs - mBasePtsUs);
+			final boolean isSync = !track.isVideo
+				|| ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+			try {
+				if (mPendingBytes > 0) {
+					final boolean canSplit = !mHasVideo || (track.isVideo && isSync);
+					if ((canSplit && (ptsUs - mFragmentStartUs >= mFragmentDurationUs))
+						|| (mPendingBytes + bufferInfo.size + 64 > mMaxFragmentBytes)) {
+
+						writeFragment(track, time);
+						mFragmentStartUs = ptsUs;
+					}
+				}
+				mPendingBytes += track.add(byteBuf, bufferInfo.offset, bufferInfo.size,
+					time, isSync ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC,
+					mMaxFragmentBytes);
+			} catch (final IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+	@Override
+	public void start() {
+		synchronized (mSync) {
+			if (mIsStarted || mReleased) {
+				throw new IllegalStateException("start:already started or released");
+			}
+			if (mTracks.isEmpty()) {
+				throw new IllegalStateException("start:no track");
+			}
+			try {
+				writeHeader();
+			} catch (final IOException e) {
+				throw new IllegalStateException(e);
+			}
+			mIsStarted = true;
+		}
+	}
+
+	@Override
+	public void stop() {
+		synchronized (mSync) {
+			if (mIsStarted) {
+				mIsStarted = false;
+				try {
+					if (mPendingBytes > 0) {
+						writeFragment(null, 0);
+					}
+					updateDuration();
+					mSink.trim();
+					mSink.sync();
+				} catch (final IOException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void release() {
+		synchronized (mSync) {
+			mIsStarted = false;
+			if (!mReleased) {
+				mReleased = true;
+				try {
+					mSink.close();
+				} catch (final Exception e) {
+					Log.w(TAG, e);
+				}
+				try {
+					mOutput.close();
+				} catch (final Exception e) {
+					Log.w(TAG, e);
+				}
+				mTracks.clear();
+			}
+		}
+	}
+
+	@Override
+	public boolean isStarted() {
+		return mIsStarted && !mReleased;
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * ftypとサンプルを含まないmoovを書き込む
+	 * mvex/mehdのfragment_durationは#stop時に書き換える
+	 * @throws IOException
+	 */
+	private void writeHeader() throws IOException {
+		int csdBytes = 0;
+		for (final Track track: mTracks) {
+			csdBytes += track.csdBytes();
+		}
+		final ByteBuffer b = obtainWork(2048 + mTracks.size() * 1024 + csdBytes);
+		// ftyp
+		int box = beginBox(b, "ftyp");
+		putFourCC(b, "isom");
+		b.putInt(0x200);
+		putFourCC(b, "isom");
+		putFourCC(b, "iso5");
+		putFourCC(b, "iso6");
+		putFourCC(b, "mp41");
+		endBox(b, box);
+		// moov
+		final int moov = beginBox(b, "moov");
+		box = beginFullBox(b, "mvhd", 0, 0);
+		b.putInt(0);	// creation_time
+		b.putInt(0);	// modification_time
+		b.putInt(MOVIE_TIMESCALE);
+		b.putInt(0);	// duration, フラグメント化しているときはmehdで指定する
+		b.putInt(0x00010000);	// rate=1.0
+		b.putShort((short)0x0100);	// volume=1.0
+		b.putShort((short)0);
+		b.putInt(0).putInt(0);
+		putMatrix(b);
+		for (int i = 0; i < 6; i++) {
+			b.putInt(0);	// pre_defined
+		}
+		b.putInt(mTracks.size() + 1);	// next_track_ID
+		endBox(b, box);
+		for (final Track track: mTracks) {
+			writeTrak(b, track);
+		}
+		final int mvex = beginBox(b, "mvex");
+		box = beginFullBox(b, "mehd", 1, 0);
+		mMehdOffset = b.position();
+		b.putLong(0);	// fragment_duration
+		endBox(b, box);
+		for (final Track track: mTracks) {
+			box = beginFullBox(b, "trex", 0, 0);
+			b.putInt(track.trackId);
+			b.putInt(1);	// default_sample_description_index
+			b.putInt(0);	// default_sample_duration
+			b.putInt(0);	// default_sample_size
+			b.putInt(0);	// default_sample_flags
+			endBox(b, box);
+		}
+		endBox(b, mvex);
+		endBox(b, moov);
+		b.flip();
+		writeFully(b);
+	}
+
+	private static void writeTrak(@NonNull final ByteBuffer b, @NonNull final Track track) {
+		final int trak = beginBox(b, "trak");
+		int box = beginFullBox(b, "tkhd", 0, 0x000003);	// track_enabled | track_in_movie
+		b.putInt(0);	// creation_time
+		b.putInt(0);	// modification_time
+		b.putInt(track.trackId);
+		b.putInt(0);
+		b.putInt(0);	// duration
+		b.putInt(0).putInt(0);
+		b.putShort((short)0);	// layer
+		b.putShort((short)0);	// alternate_group
+		b.putShort((short)(track.isVideo ? 0 : 0x0100));	// volume
+		b.putShort((short)0);
+		putMatrix(b);
+		b.putInt(track.width << 16);
+		b.putInt(track.height << 16);
+		endBox(b, box);
+		final int mdia = beginBox(b, "mdia");
+		box = beginFullBox(b, "mdhd", 0, 0);
+		b.putInt(0);	// creation_time
+		b.putInt(0);	// modification_time
+		b.putInt(track.timescale);
+		b.putInt(0);	// duration
+		b.putShort((short)0x55c4);	// language='und'
+		b.putShort((short)0);
+		endBox(b, box);
+		box = beginFullBox(b, "hdlr", 0, 0);
+		b.putInt(0);
+		putFourCC(b, track.isVideo ? "vide" : "soun");
+		b.putInt(0).putInt(0).putInt(0);
+		putCString(b, track.isVideo ? "VideoHandler" : "SoundHandler");
+		endBox(b, box);
+		final int minf = beginBox(b, "minf");
+		if (track.isVideo) {
+			box = beginFullBox(b, "vmhd", 0, 1);
+			b.putShort((short)0);	// graphicsmode
+			b.putShort((short)0).putShort((short)0).putShort((short)0);	// opcolor
+		} else {
+			box = beginFullBox(b, "smhd", 0, 0);
+			b.putShort((short)0);	// balance
+			b.putShort((short)0);
+		}
+		endBox(b, box);
+		final int dinf = beginBox(b, "dinf");
+		final int dref = beginFullBox(b, "dref", 0, 0);
+		b.putInt(1);	// entry_count
+		box = beginFullBox(b, "url ", 0, 1);	// 同じファイル内
+		endBox(b, box);
+		endBox(b, dref);
+		endBox(b, dinf);
+		final int stbl = beginBox(b, "stbl");
+		final int stsd = beginFullBox(b, "stsd", 0, 0);
+		b.putInt(1);	// entry_count
+		if (track.isVideo) {
+			writeAvc1(b, track.width, track.height, track.sps, track.pps);
+		} else {
+			writeMp4a(b, track.channelCount, track.timescale, track.bitrate,
+				track.audioSpecificConfig);
+		}
+		endBox(b, stsd);
+		// サンプル情報は全てmoof内にあるのでstbl内は空にする
+		box = beginFullBox(b, "stts", 0, 0);
+		b.putInt(0);
+		endBox(b, box);
+		box = beginFullBox(b, "stsc", 0, 0);
+		b.putInt(0);
+		endBox(b, box);
+		box = beginFullBox(b, "stsz", 0, 0);
+		b.putInt(0).putInt(0);
+		endBox(b, box);
+		box = beginFullBox(b, "stco", 0, 0);
+		b.putInt(0);
+		endBox(b, box);
+		endBox(b, stbl);
+		endBox(b, minf);
+		endBox(b, mdia);
+		endBox(b, trak);
+	}
+
+	/**
+	 * 保持しているサンプルをmoof+mdatとして書き込む
+	 * @param trigger フラグメントの切り替えのきっかけになったサンプルのトラック、nullなら録画終了時
+	 * @param triggerTime triggerトラックの次のサンプルの表示時刻
+	 *                    (キーフレームなので次のフラグメントの先頭のデコード時刻になる)
+	 * @throws IOException
+	 */
+	private void writeFragment(@Nullable final Track trigger, final long triggerTime)
+		throws IOException {
+
+		int moofSize = 8 + 16;	// moof + mfhd
+		int mdatSize = 8;
+		for (final Track track: mTracks) {
+			if (track.count > 0) {
+				final boolean hasCto = track.updateDecodeTimes();
+				// traf + tfhd + tfdt + trun
+				moofSize += 8 + 16 + 20 + 20 + (hasCto ? 16 : 12) * track.count;
+				mdatSize += track.data.position();
+			}
+		}
+		final ByteBuffer b = obtainWork(moofSize + 8);
+		final int moof = beginBox(b, "moof");
+		int box = beginFullBox(b, "mfhd", 0, 0);
+		b.putInt(++mSequenceNumber);
+		endBox(b, box);
+		int dataOffset = moofSize + 8;
+		for (final Track track: mTracks) {
+			final int n = track.count;
+			if (n <= 0) continue;
+			final int traf = beginBox(b, "traf");
+			box = beginFullBox(b, "tfhd", 0, 0x020000);	// default-base-is-moof
+			b.putInt(track.trackId);
+			endBox(b, box);
+			box = beginFullBox(b, "tfdt", 1, 0);
+			b.putLong(track.decodeTimes[0]);	// baseMediaDecodeTime
+			endBox(b, box);
+			// composition offsetが負になることがあるので書き込む時はversion 1(符号付き)にする
+			box = track.hasCompositionOffsets
+				? beginFullBox(b, "trun", 1, TRUN_FLAGS | TRUN_FLAG_CTO)
+				: beginFullBox(b, "trun", 0, TRUN_FLAGS);
+			b.putInt(n);
+			b.putInt(dataOffset);
+			for (int i = 0; i < n; i++) {
+				long duration;
+				if (i < n - 1) {
+					duration = track.decodeTimes[i + 1] - track.decodeTimes[i];
+				} else if ((track == trigger) && (triggerTime > track.decodeTimes[i])) {
+					duration = triggerTime - track.decodeTimes[i];
+				} else {
+					// 次のサンプルがまだ来ていないので直前のサンプル長で代用する
+					duration = track.lastDuration;
+				}
+				track.lastDuration = duration;
+				b.putInt((int)duration);
+				b.putInt(track.sizes[i]);
+				b.putInt(track.flags[i]);
+				if (track.hasCompositionOffsets) {
+					b.putInt((int)(track.times[i] - track.decodeTimes[i]));
+				}
+			}
+			track.endTime = track.decodeTimes[n - 1] + track.lastDuration;
+			endBox(b, box);
+			endBox(b, traf);
+			dataOffset += track.data.position();
+		}
+		endBox(b, moof);
+		b.putInt(mdatSize);
+		putFourCC(b, "mdat");
+		b.flip();
+		writeFully(b);
+		for (final Track track: mTracks) {
+			if (track.count > 0) {
+				track.data.flip();
+				writeFully(track.data);
+				track.data.clear();
+				track.count = 0;
+			}
+		}
+		// 強制終了しても書き込み済みのフラグメントを再生できるようにフラグメント毎に書き出す
+		mSink.flush();
+		mPendingBytes = 0;
+		if (DEBUG) Log.v(TAG, "writeFragment:seq=" + mSequenceNumber + ",size=" + (moofSize + mdatSize));
+	}
+
+	/**
+	 * mvex/mehdへ録画時間を書き込む
+	 * @throws IOException
+	 */
+	private void updateDuration() throws IOException {
+		if (mMehdOffset < 0) return;
+		long durationMs = 0;
+		for (final Track track: mTracks) {
+			final long ms = track.endTime * MOVIE_TIMESCALE / track.timescale;
+			if (ms > durationMs) {
+				durationMs = ms;
+			}
+		}
+		final ByteBuffer b = obtainWork(8);
+		b.putLong(durationMs);
+		b.flip();
+		mSink.writeAt(b, mMehdOffset);
+	}
+
+	private void writeFully(@NonNull final ByteBuffer buffer) throws IOException {
+		mSink.write(buffer);
+	}
+
+	/**
+	 * 指定したサイズ以上のワークバッファをクリアして返す
+	 * @param size
+	 * @return
+	 */
+	@NonNull
+	private ByteBuffer obtainWork(final int size) {
+		if (mWork.capacity() < size) {
+			mWork = ByteBuffer.allocate(size);
+		}
+		mWork.clear();
+		return mWork;
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * Annex-B形式のバイト列をNALユニット毎に分割する
+	 * @param buf
+	 * @param result
+	 */
+	private static void splitNalUnits(@Nullable final ByteBuffer buf,
+		@NonNull final List<byte[]> result) {
+
+		if (buf == null) return;
+		final ByteBuffer src = buf.duplicate();
+		src.position(0);	// csdはposition/limitが壊れていることがあるので0..limitを使う
+		final AnnexBScanner scanner = new AnnexBScanner();
+		final int n = scanner.scan(src, 0, src.limit());
+		for (int i = 0; i < n; i++) {
+			final byte[] nal = new byte[scanner.getLength(i)];
+			src.position(scanner.getOffset(i));
+			src.get(nal);
+			result.add(nal);
+		}
+	}
+
+	/**
+	 * 1トラック分の情報と書き込み前のサンプルを保持するためのホルダークラス
+	 */
+	private static class Track {
+		private final int trackId;
+		@NonNull
+		private final String mime;
+		private final boolean isVideo;
+		private final int timescale;
+		private final int width, height;
+		private final int channelCount;
+		private final int bitrate;
+		@NonNull
+		private final List<byte[]> sps = new ArrayList<>();
+		@NonNull
+		private final List<byte[]> pps = new ArrayList<>();
+		@NonNull
+		private final byte[] audioSpecificConfig;
+		/**
+		 * 書き込み前のサンプルデータ
+		 */
+		@NonNull
+		private ByteBuffer data;
+		private int count;
+		private int[] sizes = new int[64];
+		private int[] flags = new int[64];
+		/**
+		 * 表示時刻(デコード順)
+		 */
+		private long[] times = new long[64];
+		/**
+		 * デコード時刻, #updateDecodeTimesで表示時刻から求める
+		 */
+		private long[] decodeTimes = new long[64];
+		/**
+		 * 表示時刻とデコード時刻が異なるサンプルがあればtrue
+		 */
+		private boolean hasCompositionOffsets;
+		/**
+		 * 直前に書き込んだフラグメントの最後のデコード時刻
+		 */
+		private long lastDecodeTime = -1;
+		private long lastDuration;
+		private long endTime;
+
+		private Track(final int trackId, @NonNull final MediaFormat format) {
+			this.trackId = trackId;
+			mime = format.getString(MediaFormat.KEY_MIME);
+			if (MediaCodecUtils.MIME_VIDEO_AVC.equals(mime)) {
+				isVideo = true;
+				timescale = VIDEO_TIMESCALE;
+				width = format.getInteger(MediaFormat.KEY_WIDTH);
+				height = format.getInteger(MediaFormat.KEY_HEIGHT);
+				channelCount = 0;
+				final List<byte[]> nals = new ArrayList<>();
+				splitNalUnits(format.getByteBuffer("csd-0"), nals);
+				splitNalUnits(format.getByteBuffer("csd-1"), nals);
+				for (final byte[] nal: nals) {
+					switch (nal[0] & 0x1f) {
+					case 7:	sps.add(nal); break;
+					case 8:	pps.add(nal); break;
+					default: break;
+					}
+				}
+				if (sps.isEmpty() || pps.isEmpty()) {
+					throw new IllegalArgumentException("SPS/PPS not found in csd");
+				}
+				audioSpecificConfig = new byte[0];
+				lastDuration = VIDEO_TIMESCALE / DEFAULT_VIDEO_FPS;
+			} else if (MediaCodecUtils.MIME_AUDIO_AAC.equals(mime)) {
+				isVideo = false;
+				timescale = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+				width = height = 0;
+				channelCount = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+				final ByteBuffer csd = format.getByteBuffer("csd-0");
+				if (csd == null) {
+					throw new IllegalArgumentException("csd-0 not found");
+				}
+				final ByteBuffer src = csd.duplicate();
+				src.position(0);
+				audioSpecificConfig = new byte[src.remaining()];
+				src.get(audioSpecificConfig);
+				lastDuration = AAC_SAMPLES_PER_FRAME;
+			} else {
+				throw new IllegalArgumentException("Unsupported mime type," + mime);
+			}
+			bitrate = format.containsKey(MediaFormat.KEY_BIT_RATE)
+				? format.getInteger(MediaFormat.KEY_BIT_RATE) : 0;
+			data = ByteBuffer.allocateDirect(isVideo ? 256 * 1024 : 16 * 1024);
+		}
+
+		private int csdBytes() {
+			int result = audioSpecificConfig.length;
+			for (final byte[] nal: sps) {
+				result += nal.length + 2;
+			}
+			for (final byte[] nal: pps) {
+				result += nal.length + 2;
+			}
+			return result;
+		}
+
+		private long toTimescale(final long us) {
+			return us > 0 ? (us * timescale + 500000L) / 1000000L : 0;
+		}
+
+		/**
+		 * サンプルを追加する
+		 * 映像の場合はAnnex-B形式から4バイト長プレフィックス形式へ変換する
+		 * @return 追加したバイト数
+		 */
+		private int add(@NonNull final ByteBuffer buf, final int offset, final int size,
+			final long time, final int sampleFlags, final int maxBytes) {
+
+			// 長プレフィックスの分だけ大きくなる可能性があるので少し余分に確保する
+			ensureData(size + 64, maxBytes);
+			final int start = data.position();
+			final int end = offset + size;
+			final int first = isVideo ? AnnexBScanner.findStartCode(buf, offset, end) : -1;
+			if (first == offset) {
+				int nalStart = first + AnnexBScanner.startCodeLength(buf, first);
+				while (nalStart < end) {
+					final int next = AnnexBScanner.findStartCode(buf, nalStart, end);
+					final int nalEnd = next >= 0 ? next : end;
+					ensureData(nalEnd - nalStart + 4, maxBytes);
+					data.putInt(nalEnd - nalStart);
+					put(buf, nalStart, nalEnd);
+					if (next < 0) break;
+					nalStart = next + AnnexBScanner.startCodeLength(buf, next);
+				}
+			} else {
+				put(buf, offset, end);
+			}
+			if (count >= sizes.length) {
+				final int n = count * 2;
+				final int[] s = new int[n];
+				System.arraycopy(sizes, 0, s, 0, count);
+				sizes = s;
+				final int[] f = new int[n];
+				System.arraycopy(flags, 0, f, 0, count);
+				flags = f;
+				final long[] t = new long[n];
+				System.arraycopy(times, 0, t, 0, count);
+				times = t;
+				decodeTimes = new long[n];
+			}
+			final int written = data.position() - start;
+			sizes[count] = written;
+			flags[count] = sampleFlags;
+			times[count] = time;
+			count++;
+			return written;
+		}
+
+		/**
+		 * 保持しているサンプルのデコード時刻を求める
+		 * 表示時刻を昇順に並べたものをデコード順に割り当てる(Bフレームが無ければ表示時刻と同じになる)
+		 * デコード時刻は単調増加でないといけないので前のサンプル以下になる時は前のサンプル+1にする
+		 * @return 表示時刻とデコード時刻が異なるサンプルがあればtrue
+		 */
+		private boolean updateDecodeTimes() {
+			System.arraycopy(times, 0, decodeTimes, 0, count);
+			Arrays.sort(decodeTimes, 0, count);
+			boolean result = false;
+			for (int i = 0; i < count; i++) {
+				if (decodeTimes[i] <= lastDecodeTime) {
+					decodeTimes[i] = lastDecodeTime + 1;
+				}
+				lastDecodeTime = decodeTimes[i];
+				result |= decodeTimes[i] != times[i];
+			}
+			hasCompositionOffsets = result;
+			return result;
+		}
+
+		private void put(@NonNull final ByteBuffer buf, final int from, final int to) {
+			final ByteBuffer src = buf.duplicate();
+			src.limit(to).position(from);
+			data.put(src);
+		}
+
+		/**
+		 * 書き込み前のサンプルデータ用バッファの空きが足りなければ拡張する
+		 * 通常はmaxBytesまでしか拡張しないが1サンプルがそれより大きい場合は必要なだけ拡張する
+		 * @param required
+		 * @param maxBytes
+		 */
+		private void ensureData(final int required, final int maxBytes) {
+			if (data.remaining() < required) {
+				final int needed = data.position() + required;
+				final int newSize = Math.max(needed, Math.min(data.capacity() * 2, maxBytes));
+				final ByteBuffer newData = ByteBuffer.allocateDirect(newSize);
+				data.flip();
+				newData.put(data);
+				data = newData;
+			}
+		}
+	}
+}
@@ -19,11 +19,8 @@ package com.serenegiant.media;
 */
 
 import android.Manifest;
-import android.annotation.SuppressLint;
 import android.util.Log;
 
-import com.serenegiant.system.Time;
-
 import java.nio.ByteBuffer;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
@@ -69,6 +66,19 @@ public abstract class IAudioSampler {
 		 */
 		public void onData(@NonNull final ByteBuffer buffer, final long presentationTimeUs);
 
+		/**
+		 * 音声データが準備出来た時に呼び出される。
+		 * デフォルトではByteBufferを受け取る#onDataを呼び出す。
+		 * コールバックから戻った後も音声データを使いたい場合は
+		 * コピーする代わりにRecycleMediaData#retainまたはRecycleMediaData#sliceで参照を追加して
+		 * 不要になった時点でRecycleMediaData#recycleを呼び出すこと。
+		 * 内容を書き換えてはいけない。
+		 * @param data
+		 */
+		public default void onData(@NonNull final RecycleMediaData data) {
+			onData(data.get(), data.presentationTimeUs());
+		}
+
 		/**
 		 * エラーが起こった時の処理(今は未使用)
 		 * @param t
@@ -77,17 +87,16 @@ public abstract class IAudioSampler {
 	}
 
 	/**
-	 * バッファリング用に生成する音声データレコードの最大生成する
-	 */
-	private static final int MAX_POOL_SIZE = 200;
-	/**
-	 * 音声データキューに存在できる最大音声データレコード数
+	 * バッファリング用に生成する音声データレコードの数
+	 * 音声データキューに存在できる最大音声データレコード数も兼ねる
 	 * 25フレーム/秒のはずなので最大で約4秒分
 	 */
-	private static final int MAX_QUEUE_SIZE = 200;
+	private static final int MAX_POOL_SIZE = 200;
 
 	// 音声データキュー用
-	private final MemMediaQueue mAudioQueue;
+	// 書き込むのは音声取得スレッド、読み込むのはCallbackThreadだけなのでSPSCキューを使う
+	@NonNull
+	private final IMediaQueue<RecycleMediaData> mAudioQueue;
 
 	// コールバック用
 	private CallbackThread mCallbackThread;
@@ -99,7 +108,7 @@ public abstract class IAudioSampler {
 	private volatile boolean mIsCapturing;
 
 	public IAudioSampler() {
-		mAudioQueue = new MemMediaQueue(MAX_POOL_SIZE, MAX_POOL_SIZE, MAX_QUEUE_SIZE);
+		mAudioQueue = new SpscMediaQueue(MAX_POOL_SIZE);
 	}
 
 	/**
@@ -252,17 +261,10 @@ public abstract class IAudioSampler {
 	 * 音声データ取得時のコールバックを呼び出す
 	 * @param data
 	 */
-	private void callOnData(@NonNull final MediaData data) {
-		@NonNull
-		final ByteBuffer buf = data.get();
-		final int size = data.size();
-		final long pts = data.presentationTimeUs();
+	private void callOnData(@NonNull final RecycleMediaData data) {
 		for (final SoundSamplerCallback callback: mCallbacks) {
 			try {
-				buf.clear();
-				buf.position(size);
-				buf.flip();
-				callback.onData(buf, pts);
+				callback.onData(data);
 			} catch (final Exception e) {
 				mCallbacks.remove(callback);
 				Log.w(TAG, "callOnData:", e);
@@ -293,13 +295,17 @@ public abstract class IAudioSampler {
 
 	/**
 	 * 音声データバッファをプールから取得する。
-	 * プールがからの場合には最大MAX_POOL_SIZE個までは新規生成する
+	 * プールが空の場合にはnullを返す
 	 * @param bufferBytes
 	 * @return
 	 */
 	protected RecycleMediaData obtain(final int bufferBytes) {
 //		if (DEBUG) Log.v(TAG, "obtain:" + mPool.size() + ",mBufferNum=" + mBufferNum);
-		return mAudioQueue.obtain(bufferBytes);
+		final RecycleMediaData result = mAudioQueue.obtain(bufferBytes);
+		if (result == null) {
+			MediaMetrics.AUDIO_DROPPED.inc();
+		}
+		return result;
 	}
 
 	protected boolean addMediaData(@NonNull final RecycleMediaData data) {
@@ -311,25 +317,6 @@ public abstract class IAudioSampler {
 		return mAudioQueue.poll(timeout_msec, TimeUnit.MILLISECONDS);
 	}
 
-	/**
-	 * 前回MediaCodecへのエンコード時に使ったpresentationTimeUs
-	 */
-	private long prevInputPTSUs = -1;
-
-	/**
-	 * 今回の書き込み用のpresentationTimeUs値を取得
-	 * @return
-	 */
-    @SuppressLint("NewApi")
-	protected long getInputPTSUs() {
-		long result = Time.nanoTime() / 1000L;
-		if (result <= prevInputPTSUs) {
-			result = prevInputPTSUs + 9643;
-		}
-		prevInputPTSUs = result;
-		return result;
-    }
-
     /**
      * キューから音声データを取り出してコールバックを呼び出すためのスレッド
      */
@@ -352,6 +339,7 @@ public abstract class IAudioSampler {
     			if (data != null) {
     				callOnData(data);
     				// 使用済みのバッファをプールに戻して再利用する
+    				// コールバック内で参照が追加されていれば最後の参照が解放された時にプールへ戻る
     				data.recycle();
     			}
     		} // for (; mIsCapturing ;)
@@ -35,7 +35,7 @@ import androidx.annotation.NonNull;
 import androidx.documentfile.provider.DocumentFile;
 
 /**
- * MediaMuxerとVideoMuxerを共通で扱えるようにするためのインターフェース
+ * MediaMuxerとFragmentedMp4Muxerを共通で扱えるようにするためのインターフェース
  */
 public interface IMuxer {
 
@@ -71,8 +71,7 @@ public interface IMuxer {
 				result = new MediaMuxerWrapper(outputPath,
 					MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
 			} else {
-				throw new IOException("Unsupported muxer type");
-//				result = new VideoMuxer(output_oath);
+				result = new FragmentedMp4Muxer(outputPath);
 			}
 			return result;
 		}
@@ -93,8 +92,8 @@ public interface IMuxer {
 					throw new UnsupportedOperationException("createMuxer from fd does not support on API<26");
 				}
 			} else {
-				throw new IOException("Unsupported muxer type");
-//				result = new VideoMuxer(fd);
+				result = new FragmentedMp4Muxer(
+					new ParcelFileDescriptor.AutoCloseOutputStream(ParcelFileDescriptor.fromFd(fd)));
 			}
 			return result;
 		}
@@ -108,11 +107,11 @@ public interface IMuxer {
 			IMuxer result = null;
 			if (useMediaMuxer && BuildCheck.isAPI18()) {	// MediaMuxerはAPI>=18
 				result = MediaMuxerWrapper.newInstance(context, file, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+			} else {
+				result = FragmentedMp4Muxer.newInstance(context, file);
 			}
 			if (result == null) {
 				throw new IOException("Unsupported muxer type");
-//				result = new VideoMuxer(context.getContentResolver()
-//					.openFileDescriptor(file.getUri(), "rw").getFd());
 			}
 			return result;
 		}
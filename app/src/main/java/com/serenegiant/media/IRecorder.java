@@ -38,6 +38,14 @@ public interface IRecorder {
 		public void onStarted(IRecorder recorder);
 		public void onStopped(IRecorder recorder);
 		public void onError(Exception e);
+		/**
+		 * 録画開始にかかった時間を通知する, muxerを開始した直後に呼ばれる
+		 * @param recorder
+		 * @param prepareMs #prepareでエンコーダーの生成・設定にかかった時間[ミリ秒]
+		 * @param startMs #prepareを呼んでからmuxerを開始するまでの時間[ミリ秒]
+		 */
+		public default void onStartLatency(IRecorder recorder, long prepareMs, long startMs) {
+		}
 	}
 
 	/**
@@ -403,17 +403,11 @@ public class MediaAVRecorder extends Recorder {
 	@SuppressWarnings("deprecation")
 	@Override
 	protected boolean check() {
-		final Context context = requireContext();
-		final StorageInfo info;
-		try {
-			info = mOutputFile != null
-				? StorageUtils.getStorageInfo(context, mOutputFile) : null;
-			if ((info != null) && (info.totalBytes != 0)) {
-				return ((info.freeBytes/ (float)info.totalBytes) < FileUtils.FREE_RATIO)
-					|| (info.freeBytes < FileUtils.FREE_SIZE);
-			}
-		} catch (final IOException e) {
-			Log.w(TAG, e);
+		final Context context = getContext();
+		final StorageInfo info = getStorageInfo();
+		if ((info != null) && (info.totalBytes != 0)) {
+			return ((info.freeBytes/ (float)info.totalBytes) < FileUtils.FREE_RATIO)
+				|| (info.freeBytes < FileUtils.FREE_SIZE);
 		}
 		return (context == null)
 			|| ((mOutputFile == null)
@@ -421,6 +415,25 @@ public class MediaAVRecorder extends Recorder {
 					getConfig().maxDuration(), mStartTime, mSaveTreeId));
 	}
 
+	/**
+	 * 出力ファイルのストレージ情報を返す
+	 * 出力ファイルではなくパスで指定された時はnull
+	 * @return
+	 */
+	@Nullable
+	@Override
+	protected StorageInfo getStorageInfo() {
+		final Context context = getContext();
+		if ((context != null) && (mOutputFile != null)) {
+			try {
+				return StorageUtils.getStorageInfo(context, mOutputFile);
+			} catch (final IOException e) {
+				Log.w(TAG, e);
+			}
+		}
+		return null;
+	}
+
 	@Deprecated
 	protected void setupMuxer(final int fd) throws IOException {
 		throw new IOException("Failed to create muxer");
@@ -50,6 +50,7 @@ import android.util.Log;
 import android.view.Surface;
 
 import com.serenegiant.system.BuildCheck;
+import com.serenegiant.utils.AnnexBScanner;
 import com.serenegiant.utils.BufferHelper;
 
 /**
@@ -1153,13 +1154,13 @@ LOOP:	for (int i = 0; i < numCodecs; i++) {
 
 	/**
 	 * codec specific dataの先頭マーカー位置を検索
-	 * BufferHelper.byteCompのシノニム
+	 * BufferHelper.byteComp(array, offset, START_MARKER, START_MARKER.length)と同じ結果を返す
 	 * @param array
 	 * @param offset
-	 * @return
+	 * @return 見つからなければ-1
 	 */
 	public static int findStartMarker(@NonNull final byte[] array, final int offset) {
-		return BufferHelper.byteComp(array, offset, START_MARKER, START_MARKER.length);
+		return AnnexBScanner.findStartCode4(ByteBuffer.wrap(array), offset, array.length - 1);
 	}
 
 	/**
@@ -1473,7 +1474,8 @@ LOOP:	for (int i = 0; i < numCodecs; i++) {
 	/**
 	 * MediaFormatのコピーコンストラクタがAPI>=29なので中身をコピーするヘルパーメソッド
 	 * API>=29ならコピーコンストラクタを呼び出す,
-	 * API<29なら#asStringで文字列にしてから#asMediaFormatで新規生成する
+	 * API<29ならMediaFormatCodecで新規生成する
+	 * (以前は#asString/#asMediaFormatでJSON文字列を経由していたが決め打ちのキー以外が失われていた)
 	 * @param format
 	 * @return
 	 */
@@ -1482,7 +1484,7 @@ LOOP:	for (int i = 0; i < numCodecs; i++) {
 		if (BuildCheck.isAPI29()) {
 			return new MediaFormat(format);
 		} else {
-			return asMediaFormat(asString(format));
+			return MediaFormatCodec.duplicate(format);
 		}
 	}
 
@@ -19,6 +19,9 @@ package com.serenegiant.media;
 */
 
 import android.media.MediaCodec;
+
+import com.serenegiant.utils.DirectBufferArena;
+
 import androidx.annotation.IntRange;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -35,6 +38,15 @@ public class MediaData {
 	private int mTrackIx;
 	@Nullable
 	private ByteBuffer mBuffer;
+	/**
+	 * #wrapで外部のByteBufferを参照している間、自前の内部バッファを退避しておく
+	 */
+	@Nullable
+	private ByteBuffer mOwnBuffer;
+	/**
+	 * #wrapで外部のByteBufferを参照しているかどうか
+	 */
+	private boolean mWrapped;
 	private int mFlags;
 	private int mSize = DEFAULT_BUFFER_SIZE;
 	private long mPresentationTimeUs;
@@ -149,7 +161,7 @@ public class MediaData {
 		mSize = size;
 		mFlags = flags;
 		resize(size);
-		if ((buffer != null) && (size > offset)) {
+		if ((buffer != null) && (size > 0)) {
 			buffer.clear();	// limit==positionになってる変なByteBufferが来る端末があるのでclearする
 			buffer.position(offset + size);
 			buffer.flip();
@@ -240,17 +252,73 @@ public class MediaData {
 		}
 	}
 
+	/**
+	 * 外部のByteBufferをコピーせずにそのまま参照する
+	 * bufferのoffsetからoffset+size分を切り出したビューを保持するので
+	 * bufferのposition/limitは変更しない
+	 * 参照している間はbufferの内容を書き換えないこと
+	 * 以降に#setまたは#resizeを呼ぶと参照を外して自前の内部バッファへ戻る
+	 * @param trackIx
+	 * @param buffer
+	 * @param offset
+	 * @param size
+	 * @param presentationTimeUs
+	 * @param flags
+	 * @return
+	 */
+	@NonNull
+	public MediaData wrap(
+		final int trackIx,
+		@NonNull final ByteBuffer buffer,
+		@IntRange(from=0) final int offset,
+		@IntRange(from=0)final int size,
+		final long presentationTimeUs, final int flags) {
+
+		final ByteBuffer src = buffer.duplicate();
+		src.clear();
+		src.limit(offset + size);
+		src.position(offset);
+		if (!mWrapped) {
+			mOwnBuffer = mBuffer;
+			mWrapped = true;
+		}
+		mBuffer = src.slice().order(mByteOrder);
+		mTrackIx = trackIx;
+		mPresentationTimeUs = presentationTimeUs;
+		mSize = size;
+		mFlags = flags;
+		return this;
+	}
+
+	/**
+	 * #wrapで外部のByteBufferを参照しているかどうか
+	 * @return
+	 */
+	public boolean isWrapped() {
+		return mWrapped;
+	}
+
 //--------------------------------------------------------------------------------
 	/**
 	 * 必要に応じて内部のByteBufferの容量を変更する、
 	 * 保持しているデータサイズ(sizeフィールド)は変更しない
+	 * 内部バッファはDirectBufferArenaから取得し、容量不足で入れ替えた古い内部バッファは返却する
 	 * @param newSize
 	 * @return
 	 */
 	public MediaData resize(@IntRange(from=0)final int newSize) {
+		if (mWrapped) {
+			// 外部のByteBufferへ書き込まないように自前の内部バッファへ戻す
+			mBuffer = mOwnBuffer;
+			mOwnBuffer = null;
+			mWrapped = false;
+		}
 		if ((mBuffer == null) || (mBuffer.capacity() < newSize)) {
-			mBuffer = ByteBuffer.allocateDirect(newSize)
+			final DirectBufferArena arena = DirectBufferArena.getDefault();
+			final ByteBuffer prev = mBuffer;
+			mBuffer = arena.allocate(newSize)
 				.order(mByteOrder);
+			arena.release(prev);
 		}
 		mBuffer.clear();
 		return this;
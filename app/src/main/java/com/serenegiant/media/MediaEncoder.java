@@ -32,6 +32,7 @@ import android.view.Surface;
 import com.serenegiant.system.BuildCheck;
 import com.serenegiant.system.Time;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 
 import androidx.annotation.CallSuper;
@@ -96,6 +97,11 @@ public abstract class MediaEncoder implements Encoder {
 	 */
 	@Nullable
 	private MediaReaper mReaper;
+	/**
+	 * MediaCodecを再利用するためのEncoderPool, nullなら再利用しない
+	 */
+	@Nullable
+	private EncoderPool mEncoderPool;
 
 	/**
 	 * コンストラクタ
@@ -139,9 +145,13 @@ public abstract class MediaEncoder implements Encoder {
 		if (mMediaCodec != null) {
 			try {
 				if (DEBUG) Log.v(TAG, "release: call MediaCodec#stop");
-				mMediaCodec.stop();
-				mMediaCodec.release();
-				mMediaCodec = null;
+				try {
+					mMediaCodec.stop();
+				} finally {
+					// stopに失敗しても解放する(EncoderPoolの場合はresetできなければ破棄される)
+					releaseEncoder(mMediaCodec);
+					mMediaCodec = null;
+				}
 			} catch (final Exception e) {
 				if (DEBUG) Log.w(TAG, "release: failed releasing MediaCodec", e);
 			}
@@ -173,6 +183,49 @@ public abstract class MediaEncoder implements Encoder {
 		}
 	}
 
+	/**
+	 * 録画終了後のMediaCodecを破棄せずにEncoderPoolへ返却して次の録画で再利用するように設定する
+	 * #prepareより前に呼ぶこと
+	 * @param pool nullなら再利用しない
+	 */
+	public void setEncoderPool(@Nullable final EncoderPool pool) {
+		mEncoderPool = pool;
+	}
+
+	/**
+	 * #internalPrepareでMediaCodecのエンコーダーを生成する時に使う
+	 * EncoderPoolがセットされていればそこから取得する
+	 * @param format configureへ渡すMediaFormat
+	 * @param codecName エンコーダーの名前, nullならmimeに対応する既定のエンコーダー
+	 * @return 未設定状態のMediaCodec
+	 * @throws IOException
+	 */
+	@NonNull
+	protected MediaCodec createEncoder(@NonNull final MediaFormat format,
+		@Nullable final String codecName) throws IOException {
+
+		if (mEncoderPool != null) {
+			return mEncoderPool.acquire(format, codecName);
+		} else if (codecName != null) {
+			return MediaCodec.createByCodecName(codecName);
+		} else {
+			return MediaCodec.createEncoderByType(format.getString(MediaFormat.KEY_MIME));
+		}
+	}
+
+	/**
+	 * #createEncoderで生成したMediaCodecを#internalPrepareの途中で破棄する時に使う
+	 * EncoderPoolがセットされていれば返却する
+	 * @param codec
+	 */
+	protected void releaseEncoder(@NonNull final MediaCodec codec) {
+		if (mEncoderPool != null) {
+			mEncoderPool.recycle(codec);
+		} else {
+			codec.release();
+		}
+	}
+
 	@NonNull
 	protected abstract MediaReaper.ReaperListener getReaperListener();
 
@@ -402,10 +455,11 @@ public abstract class MediaEncoder implements Encoder {
 	 */
 	protected long getInputPTSUs() {
 		long result = Time.nanoTime() / 1000L;
-		// 以前の書き込みよりも値が小さくなるとエラーになるのでオフセットをかける
+		// 以前の書き込みよりも値が小さくなるとエラーになるので単調増加になる最小の値にする
+		// 音声データの時刻は取得側でSampleClockを使って累積サンプル数から求めるので
+		// ここを通るのは終了時のEOSとダミーデータだけ
 		if (result <= prevInputPTSUs) {
-//			Log.w(TAG, "input pts smaller than previous output PTS");
-			result = prevInputPTSUs + 9643;
+			result = prevInputPTSUs + 1;
 		}
 		prevInputPTSUs = result;
 		return result;
@@ -552,13 +606,29 @@ public abstract class MediaEncoder implements Encoder {
 			if (DEBUG) Log.d(TAG, "format: " + format);
 			// 設定したフォーマットに従ってMediaCodecのエンコーダーを生成する
 			final MediaCodec mediaCodec = MediaCodec.createEncoderByType(mimeType);
-			mediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-			if (BuildCheck.isAPI18()) {
-				// エンコーダーへの入力に使うSurfaceを取得する
-				mInputSurface = mediaCodec.createInputSurface();    // API >= 18
+			MediaReaper reaper = null;
+			if (BuildCheck.isAPI18() && MediaReaper.isAsyncSupported()) {
+				// Surface入力の時だけ非同期モードを使える
+				// 非同期モードのMediaReaperはMediaCodec#configureより前に生成しないといけない
+				reaper = new MediaReaper.VideoReaper(
+					MediaReaper.asyncOutput(mediaCodec), listener, mWidth, mHeight);
+			}
+			try {
+				mediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+				if (BuildCheck.isAPI18()) {
+					// エンコーダーへの入力に使うSurfaceを取得する
+					mInputSurface = mediaCodec.createInputSurface();    // API >= 18
+				}
+				mediaCodec.start();
+			} catch (final Exception e) {
+				if (reaper != null) {
+					reaper.release();
+				}
+				throw e;
+			}
+			if (reaper == null) {
+				reaper = new MediaReaper.VideoReaper(mediaCodec, listener, mWidth, mHeight);
 			}
-			mediaCodec.start();
-			final MediaReaper reaper = new MediaReaper.VideoReaper(mediaCodec, listener, mWidth, mHeight);
 			return new Encoder(mediaCodec, reaper, mayFail);
 		}
 
@@ -0,0 +1,526 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.annotation.SuppressLint;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import com.serenegiant.system.BuildCheck;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * MediaFormatをバイナリ形式でシリアライズ/デシリアライズするためのヘルパークラス
+ * MediaCodecUtils#asString/#asMediaFormat(JSON)と違って決め打ちのキー以外や
+ * csd-N/profile/level等も型を保ったまま複製できる
+ * サイドカーファイル等へ保存できるように形式にはバージョン番号を含む
+ *
+ * 形式:
+ * int マジック("MFMT"), byte バージョン, short エントリー数,
+ * エントリー毎に(UTF キー, byte 型, 値)
+ * 値はint/long/float/UTF文字列/(int 長さ + バイト列)
+ *
+ * MediaFormatは変更可能で変更されたかどうかを知る方法も無いので、
+ * 同じMediaFormatを何度も複製・シリアライズする時は#snapshotで取得したSnapshotを使い回すこと
+ */
+public final class MediaFormatCodec {
+	private static final boolean DEBUG = false;	// set false on production
+	private static final String TAG = MediaFormatCodec.class.getSimpleName();
+
+	private static final int MAGIC = 0x4d464d54;	// "MFMT"
+	/**
+	 * シリアライズ形式のバージョン
+	 */
+	public static final int VERSION = 1;
+
+	// 値の型, MediaFormat.TYPE_XXX(API>=29)と同じ値
+	private static final byte TYPE_INTEGER = 1;
+	private static final byte TYPE_LONG = 2;
+	private static final byte TYPE_FLOAT = 3;
+	private static final byte TYPE_STRING = 4;
+	private static final byte TYPE_BYTE_BUFFER = 5;
+
+	/**
+	 * API<29ではMediaFormatのキー一覧を取得できないので、よく使うキーと#toStringから取り出したキーを使う
+	 */
+	@SuppressLint("InlinedApi")
+	private static final String[] KNOWN_KEYS = {
+		MediaFormat.KEY_MIME,
+		MediaFormat.KEY_WIDTH,
+		MediaFormat.KEY_HEIGHT,
+		MediaFormat.KEY_MAX_WIDTH,
+		MediaFormat.KEY_MAX_HEIGHT,
+		MediaFormat.KEY_STRIDE,
+		MediaFormat.KEY_SLICE_HEIGHT,
+		MediaFormat.KEY_BIT_RATE,
+		MediaFormat.KEY_BITRATE_MODE,
+		MediaFormat.KEY_COLOR_FORMAT,
+		MediaFormat.KEY_COLOR_RANGE,
+		MediaFormat.KEY_COLOR_STANDARD,
+		MediaFormat.KEY_COLOR_TRANSFER,
+		MediaFormat.KEY_FRAME_RATE,
+		MediaFormat.KEY_CAPTURE_RATE,
+		MediaFormat.KEY_OPERATING_RATE,
+		MediaFormat.KEY_PRIORITY,
+		MediaFormat.KEY_I_FRAME_INTERVAL,
+		MediaFormat.KEY_REPEAT_PREVIOUS_FRAME_AFTER,
+		MediaFormat.KEY_PROFILE,
+		MediaFormat.KEY_LEVEL,
+		MediaFormat.KEY_ROTATION,
+		MediaFormat.KEY_MAX_INPUT_SIZE,
+		MediaFormat.KEY_DURATION,
+		MediaFormat.KEY_LANGUAGE,
+		MediaFormat.KEY_CHANNEL_COUNT,
+		MediaFormat.KEY_CHANNEL_MASK,
+		MediaFormat.KEY_SAMPLE_RATE,
+		MediaFormat.KEY_PCM_ENCODING,
+		MediaFormat.KEY_AAC_PROFILE,
+		MediaFormat.KEY_AAC_SBR_MODE,
+		MediaFormat.KEY_IS_ADTS,
+		"what",
+		"csd-0",
+		"csd-1",
+		"csd-2",
+	};
+
+	/**
+	 * MediaFormat#toString("{key=value, ...}")からキーを取り出すための正規表現
+	 * 値の中に"="を含む文字列があると余分なキーも取り出すがcontainsKeyで除外される
+	 */
+	private static final Pattern KEY_PATTERN = Pattern.compile("[{ ]([^={}, ]+)=");
+
+	private MediaFormatCodec() {
+		// インスタンス化をエラーにするためにデフォルトコンストラクタをprivateに
+	}
+
+	/**
+	 * MediaFormatの内容を複製する
+	 * @param format
+	 * @return
+	 */
+	@NonNull
+	public static MediaFormat duplicate(@NonNull final MediaFormat format) {
+		return snapshot(format).toMediaFormat();
+	}
+
+	/**
+	 * MediaFormatの内容をバイト配列へシリアライズする
+	 * @param format
+	 * @return
+	 */
+	@NonNull
+	public static byte[] encode(@NonNull final MediaFormat format) {
+		return snapshot(format).encode();
+	}
+
+	/**
+	 * #encodeでシリアライズしたバイト配列からMediaFormatを生成する
+	 * @param data
+	 * @return
+	 * @throws IOException 形式が正しくない時
+	 */
+	@NonNull
+	public static MediaFormat decode(@NonNull final byte[] data) throws IOException {
+		return read(new DataInputStream(new ByteArrayInputStream(data)));
+	}
+
+	/**
+	 * MediaFormatの内容を書き込む
+	 * @param out
+	 * @param format
+	 * @throws IOException
+	 */
+	public static void write(@NonNull final DataOutput out,
+		@NonNull final MediaFormat format) throws IOException {
+
+		snapshot(format).write(out);
+	}
+
+	/**
+	 * #writeで書き込んだMediaFormatを読み込む
+	 * @param in
+	 * @return
+	 * @throws IOException 形式が正しくない時
+	 */
+	@NonNull
+	public static MediaFormat read(@NonNull final DataInput in) throws IOException {
+		return Snapshot.read(in).toMediaFormat();
+	}
+
+	/**
+	 * MediaFormatの現在の内容を保持する変更不可能なSnapshotを取得する
+	 * 呼び出す度にMediaFormatから値を取り出し直す
+	 * @param format
+	 * @return
+	 */
+	@NonNull
+	public static Snapshot snapshot(@NonNull final MediaFormat format) {
+		return Snapshot.capture(format);
+	}
+
+	/**
+	 * MediaFormatの内容を保持する変更不可能なオブジェクト
+	 * エントリーはキーの昇順に並べるので同じ内容ならequalsがtrueになる
+	 */
+	public static final class Snapshot {
+		@NonNull
+		private final String[] mKeys;
+		@NonNull
+		private final byte[] mTypes;
+		/**
+		 * Integer/Long/Float/String/byte[]
+		 */
+		@NonNull
+		private final Object[] mValues;
+		private final int mHashCode;
+		@Nullable
+		private byte[] mEncoded;
+
+		private Snapshot(@NonNull final TreeMap<String, Object> entries) {
+			final int n = entries.size();
+			mKeys = new String[n];
+			mTypes = new byte[n];
+			mValues = new Object[n];
+			int i = 0;
+			int hash = 0;
+			for (final Map.Entry<String, Object> entry: entries.entrySet()) {
+				final Object value = entry.getValue();
+				mKeys[i] = entry.getKey();
+				mTypes[i] = typeOf(value);
+				mValues[i] = value;
+				hash = 31 * hash + mKeys[i].hashCode();
+				hash = 31 * hash + (value instanceof byte[]
+					? Arrays.hashCode((byte[])value) : value.hashCode());
+				i++;
+			}
+			mHashCode = hash;
+		}
+
+		/**
+		 * 新しいMediaFormatを生成する
+		 * ByteBufferの値は呼び出し毎に新しいByteBufferへコピーする
+		 * @return
+		 */
+		@NonNull
+		public MediaFormat toMediaFormat() {
+			final MediaFormat result = new MediaFormat();
+			for (int i = 0; i < mKeys.length; i++) {
+				final String key = mKeys[i];
+				final Object value = mValues[i];
+				switch (mTypes[i]) {
+				case TYPE_INTEGER:
+					result.setInteger(key, (Integer)value);
+					break;
+				case TYPE_LONG:
+					result.setLong(key, (Long)value);
+					break;
+				case TYPE_FLOAT:
+					result.setFloat(key, (Float)value);
+					break;
+				case TYPE_STRING:
+					result.setString(key, (String)value);
+					break;
+				case TYPE_BYTE_BUFFER:
+				{
+					final byte[] bytes = (byte[])value;
+					final ByteBuffer buf = ByteBuffer.allocateDirect(bytes.length);
+					buf.put(bytes).flip();
+					result.setByteBuffer(key, buf);
+					break;
+				}
+				}
+			}
+			return result;
+		}
+
+		/**
+		 * シリアライズする
+		 * @return
+		 */
+		@NonNull
+		public synchronized byte[] encode() {
+			if (mEncoded == null) {
+				final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+				try {
+					write(new DataOutputStream(bytes));
+				} catch (final IOException e) {
+					// ByteArrayOutputStreamなので来ないはず
+					throw new IllegalStateException(e);
+				}
+				mEncoded = bytes.toByteArray();
+			}
+			return mEncoded.clone();
+		}
+
+		public void write(@NonNull final DataOutput out) throws IOException {
+			out.writeInt(MAGIC);
+			out.writeByte(VERSION);
+			out.writeShort(mKeys.length);
+			for (int i = 0; i < mKeys.length; i++) {
+				out.writeUTF(mKeys[i]);
+				out.writeByte(mTypes[i]);
+				final Object value = mValues[i];
+				switch (mTypes[i]) {
+				case TYPE_INTEGER:
+					out.writeInt((Integer)value);
+					break;
+				case TYPE_LONG:
+					out.writeLong((Long)value);
+					break;
+				case TYPE_FLOAT:
+					out.writeFloat((Float)value);
+					break;
+				case TYPE_STRING:
+					out.writeUTF((String)value);
+					break;
+				case TYPE_BYTE_BUFFER:
+					out.writeInt(((byte[])value).length);
+					out.write((byte[])value);
+					break;
+				}
+			}
+		}
+
+		@NonNull
+		private static Snapshot read(@NonNull final DataInput in) throws IOException {
+			if (in.readInt() != MAGIC) {
+				throw new IOException("not a MediaFormat");
+			}
+			final int version = in.readUnsignedByte();
+			if (version > VERSION) {
+				throw new IOException("unsupported version," + version);
+			}
+			final int n = in.readUnsignedShort();
+			final TreeMap<String, Object> entries = new TreeMap<>();
+			for (int i = 0; i < n; i++) {
+				final String key = in.readUTF();
+				final byte type = in.readByte();
+				switch (type) {
+				case TYPE_INTEGER:
+					entries.put(key, in.readInt());
+					break;
+				case TYPE_LONG:
+					entries.put(key, in.readLong());
+					break;
+				case TYPE_FLOAT:
+					entries.put(key, in.readFloat());
+					break;
+				case TYPE_STRING:
+					entries.put(key, in.readUTF());
+					break;
+				case TYPE_BYTE_BUFFER:
+				{
+					final int length = in.readInt();
+					if (length < 0) {
+						throw new IOException("invalid length," + length);
+					}
+					final byte[] bytes = new byte[length];
+					in.readFully(bytes);
+					entries.put(key, bytes);
+					break;
+				}
+				default:
+					throw new IOException("unknown type," + type);
+				}
+			}
+			return new Snapshot(entries);
+		}
+
+		@NonNull
+		private static Snapshot capture(@NonNull final MediaFormat format) {
+			final TreeMap<String, Object> entries = new TreeMap<>();
+			for (final String key: keys(format)) {
+				final Object value = valueOf(format, key);
+				if (value != null) {
+					entries.put(key, value);
+				}
+			}
+			return new Snapshot(entries);
+		}
+
+		private static byte typeOf(@NonNull final Object value) {
+			if (value instanceof Integer) {
+				return TYPE_INTEGER;
+			} else if (value instanceof Long) {
+				return TYPE_LONG;
+			} else if (value instanceof Float) {
+				return TYPE_FLOAT;
+			} else if (value instanceof String) {
+				return TYPE_STRING;
+			} else {
+				return TYPE_BYTE_BUFFER;
+			}
+		}
+
+		@Override
+		public int hashCode() {
+			return mHashCode;
+		}
+
+		@Override
+		public boolean equals(@Nullable final Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Snapshot)) {
+				return false;
+			}
+			final Snapshot other = (Snapshot)obj;
+			return (mHashCode == other.mHashCode)
+				&& Arrays.equals(mKeys, other.mKeys)
+				&& Arrays.equals(mTypes, other.mTypes)
+				&& Arrays.deepEquals(mValues, other.mValues);
+		}
+
+		@NonNull
+		@Override
+		public String toString() {
+			final StringBuilder sb = new StringBuilder("Snapshot{");
+			for (int i = 0; i < mKeys.length; i++) {
+				if (i > 0) {
+					sb.append(", ");
+				}
+				sb.append(mKeys[i]).append('=');
+				if (mValues[i] instanceof byte[]) {
+					sb.append("byte[").append(((byte[])mValues[i]).length).append(']');
+				} else {
+					sb.append(mValues[i]);
+				}
+			}
+			return sb.append('}').toString();
+		}
+	}
+
+	/**
+	 * MediaFormatに含まれるキーの一覧を取得する
+	 * @param format
+	 * @return
+	 */
+	@NonNull
+	private static Set<String> keys(@NonNull final MediaFormat format) {
+		final Set<String> result = new TreeSet<>();
+		if (BuildCheck.isAPI29()) {
+			result.addAll(format.getKeys());
+		} else {
+			for (final String key: KNOWN_KEYS) {
+				if (format.containsKey(key)) {
+					result.add(key);
+				}
+			}
+			final Matcher matcher = KEY_PATTERN.matcher(format.toString());
+			while (matcher.find()) {
+				final String key = matcher.group(1);
+				if (format.containsKey(key)) {
+					result.add(key);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * 指定したキーの値を取得する
+	 * API<29では型を取得できないので、各getterを順に試して型が一致したものを使う
+	 * @param format
+	 * @param key
+	 * @return Integer/Long/Float/String/byte[], 値がnullまたは対応していない型の時はnull
+	 */
+	@SuppressLint("NewApi")
+	@Nullable
+	private static Object valueOf(@NonNull final MediaFormat format, @NonNull final String key) {
+		if (BuildCheck.isAPI29()) {
+			switch (format.getValueTypeForKey(key)) {
+			case MediaFormat.TYPE_INTEGER:
+				return format.getInteger(key);
+			case MediaFormat.TYPE_LONG:
+				return format.getLong(key);
+			case MediaFormat.TYPE_FLOAT:
+				return format.getFloat(key);
+			case MediaFormat.TYPE_STRING:
+				return format.getString(key);
+			case MediaFormat.TYPE_BYTE_BUFFER:
+				return toBytes(format.getByteBuffer(key));
+			default:
+				return null;
+			}
+		}
+		try {
+			return format.getInteger(key);
+		} catch (final ClassCastException | NullPointerException e) {
+			// ignore
+		}
+		try {
+			return format.getLong(key);
+		} catch (final ClassCastException | NullPointerException e) {
+			// ignore
+		}
+		try {
+			return format.getFloat(key);
+		} catch (final ClassCastException | NullPointerException e) {
+			// ignore
+		}
+		try {
+			return format.getString(key);
+		} catch (final ClassCastException e) {
+			// ignore
+		}
+		try {
+			return toBytes(format.getByteBuffer(key));
+		} catch (final ClassCastException e) {
+			if (DEBUG) Log.v(TAG, "valueOf:unsupported type," + key);
+		}
+		return null;
+	}
+
+	/**
+	 * ByteBufferの先頭からlimitまでをバイト配列へコピーする
+	 * 他のスレッドで使用中かもしれないのでpositionは変更しない
+	 * @param buffer
+	 * @return
+	 */
+	@Nullable
+	private static byte[] toBytes(@Nullable final ByteBuffer buffer) {
+		if (buffer == null) {
+			return null;
+		}
+		final ByteBuffer src = buffer.duplicate();
+		src.rewind();
+		final byte[] result = new byte[src.remaining()];
+		src.get(result);
+		return result;
+	}
+}
@@ -0,0 +1,157 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.utils.MetricsRegistry;
+
+import androidx.annotation.NonNull;
+
+/**
+ * 録画処理の各段階の計測値
+ * MetricsRegistry#getDefaultへ登録するので有効/無効の切り替えやスナップショットの取得はそちらで行う
+ * 時間はすべてマイクロ秒
+ */
+public final class MediaMetrics {
+	private MediaMetrics() {
+		// インスタンス化をエラーにするためにデフォルトコンストラクタをprivateに
+	}
+
+	@NonNull
+	private static final MetricsRegistry REGISTRY = MetricsRegistry.getDefault();
+
+	/**
+	 * SurfaceTextureのonFrameAvailableからエンコーダー入力用Surfaceへのswapまで
+	 */
+	@NonNull
+	public static final MetricsRegistry.Histogram FRAME_TO_DRAW
+		= REGISTRY.histogram("video.frameAvailableToDraw");
+	/**
+	 * エンコーダー入力用Surfaceへのswapからエンコード済みデータを受け取るまで
+	 */
+	@NonNull
+	public static final MetricsRegistry.Histogram DRAW_TO_DEQUEUE
+		= REGISTRY.histogram("video.drawToDequeue");
+	/**
+	 * エンコード済みデータを受け取ってからmuxerへの書き込みが終わるまで
+	 */
+	@NonNull
+	public static final MetricsRegistry.Histogram DEQUEUE_TO_WRITE
+		= REGISTRY.histogram("reaper.dequeueToWrite");
+	/**
+	 * IMuxer#writeSampleDataの処理時間
+	 * AsyncMuxerを使う時は書き込み待ちキューへの追加にかかった時間になる
+	 */
+	@NonNull
+	public static final MetricsRegistry.Histogram MUXER_WRITE
+		= REGISTRY.histogram("muxer.write");
+	/**
+	 * IMediaQueueへ追加した直後のキュー内のデータ数
+	 */
+	@NonNull
+	public static final MetricsRegistry.Histogram QUEUE_DEPTH
+		= REGISTRY.histogram("queue.depth");
+	/**
+	 * AsyncMuxerへ追加した直後の書き込み待ちのデータ数
+	 */
+	@NonNull
+	public static final MetricsRegistry.Histogram MUXER_QUEUE_DEPTH
+		= REGISTRY.histogram("muxer.queueDepth");
+	/**
+	 * AsyncMuxerへ追加してから実際にIMuxerへ書き込み終わるまで
+	 */
+	@NonNull
+	public static final MetricsRegistry.Histogram MUXER_QUEUE_LATENCY
+		= REGISTRY.histogram("muxer.queueLatency");
+	/**
+	 * AsyncMuxerの書き込み待ちが一杯で呼び出し元スレッドがブロックされた時間
+	 */
+	@NonNull
+	public static final MetricsRegistry.Histogram MUXER_BLOCKED
+		= REGISTRY.histogram("muxer.blocked");
+	/**
+	 * muxerへ書き込んだバイト数
+	 */
+	@NonNull
+	public static final MetricsRegistry.Counter BYTES_WRITTEN
+		= REGISTRY.counter("muxer.bytesWritten");
+	/**
+	 * muxerへ書き込んだフレーム数
+	 */
+	@NonNull
+	public static final MetricsRegistry.Counter FRAMES_WRITTEN
+		= REGISTRY.counter("muxer.framesWritten");
+	/**
+	 * muxerが開始していない等で書き込まずに破棄したフレーム数
+	 */
+	@NonNull
+	public static final MetricsRegistry.Counter FRAMES_DROPPED
+		= REGISTRY.counter("recorder.framesDropped");
+	/**
+	 * 画面が変化しないためにエンコーダーへ送らなかったフレーム数
+	 */
+	@NonNull
+	public static final MetricsRegistry.Counter FRAMES_SKIPPED
+		= REGISTRY.counter("video.framesSkipped");
+	/**
+	 * IMediaQueueが一杯でキューに追加できなかったフレーム数
+	 */
+	@NonNull
+	public static final MetricsRegistry.Counter QUEUE_DROPPED
+		= REGISTRY.counter("queue.dropped");
+	/**
+	 * AsyncMuxerの書き込み待ちが一杯で破棄したフレーム数
+	 */
+	@NonNull
+	public static final MetricsRegistry.Counter MUXER_DROPPED
+		= REGISTRY.counter("muxer.dropped");
+	/**
+	 * AsyncMuxerの書き込み待ちが一杯で一時ファイルへ退避したフレーム数
+	 */
+	@NonNull
+	public static final MetricsRegistry.Counter MUXER_SPILLED
+		= REGISTRY.counter("muxer.spilled");
+	/**
+	 * プールが空で音声データを取得できなかった回数
+	 */
+	@NonNull
+	public static final MetricsRegistry.Counter AUDIO_DROPPED
+		= REGISTRY.counter("audio.dropped");
+
+	/**
+	 * 計測が有効な時はSystem#nanoTimeを、無効な時は0を返す
+	 * @return
+	 */
+	public static long startNs() {
+		return REGISTRY.isEnabled() ? System.nanoTime() : 0L;
+	}
+
+	/**
+	 * #startNsで取得した時刻から現在までの経過時間を記録する
+	 * #startNsが0を返したとき(計測が無効だったとき)は何もしない
+	 * @param histogram
+	 * @param startNs
+	 */
+	public static void recordSince(
+		@NonNull final MetricsRegistry.Histogram histogram, final long startNs) {
+
+		if (startNs != 0) {
+			histogram.recordSinceNs(startNs);
+		}
+	}
+}
@@ -36,6 +36,7 @@ import java.io.FileDescriptor;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.SyncFailedException;
 import java.nio.ByteBuffer;
 
 import androidx.annotation.NonNull;
@@ -100,6 +101,13 @@ public class MediaMuxerWrapper implements IMuxer {
 	private final OutputStream mOutputStream;
 	@Nullable
 	private final String mOutputPath;
+	/**
+	 * 定期的にfsyncするための出力先のFileDescriptor, ファイルパスで指定した時はnull
+	 */
+	@Nullable
+	private final FileDescriptor mFd;
+	private long mSyncIntervalNs;
+	private long mLastSyncNs;
 	private volatile boolean mIsStarted;
 	private boolean mReleased;
 
@@ -115,6 +123,7 @@ public class MediaMuxerWrapper implements IMuxer {
 		mMuxer = new MediaMuxer(outputPath, format);
 		mOutputStream = null;
 		mOutputPath = outputPath;
+		mFd = null;
 	}
 
 	/**
@@ -130,6 +139,7 @@ public class MediaMuxerWrapper implements IMuxer {
 		mMuxer = new MediaMuxer(fd, format);
 		mOutputStream = null;
 		mOutputPath = null;
+		mFd = fd;
 	}
 
 	/**
@@ -143,7 +153,8 @@ public class MediaMuxerWrapper implements IMuxer {
 		final int format)
 			throws IOException {
 
-		mMuxer = new MediaMuxer(output.getFD(), format);
+		mFd = output.getFD();
+		mMuxer = new MediaMuxer(mFd, format);
 		mOutputStream = output;
 		mOutputPath = null; // FIXME FileOutputStream生成時のファイルパスを代入したい
 	}
@@ -160,7 +171,8 @@ public class MediaMuxerWrapper implements IMuxer {
 		final int format)
 			throws IOException {
 
-		mMuxer = new MediaMuxer(output.getFd(), format);
+		mFd = output.getFd();
+		mMuxer = new MediaMuxer(mFd, format);
 		mOutputStream = output;
 		mOutputPath = output.getOutputPath();
 	}
@@ -180,6 +192,19 @@ public class MediaMuxerWrapper implements IMuxer {
 		return mOutputPath;
 	}
 
+	/**
+	 * fsyncする間隔を設定する
+	 * MediaMuxerは出力先へ直接書き込むので書き込みをまとめたり事前確保したりはできないが、
+	 * #writeSampleData呼び出し時に前回から指定時間以上経過していればfsyncして
+	 * 電源断等で失うデータを一定時間分までに抑える
+	 * 出力先をファイルパスで指定した時は何もしない
+	 * @param intervalMs [ミリ秒], 0以下ならfsyncしない
+	 */
+	public void setSyncIntervalMs(final long intervalMs) {
+		mSyncIntervalNs = intervalMs > 0 ? intervalMs * 1000000L : 0;
+		mLastSyncNs = System.nanoTime();
+	}
+
 	@Override
 	public int addTrack(@NonNull final MediaFormat format) {
 		return mMuxer.addTrack(format);
@@ -191,6 +216,16 @@ public class MediaMuxerWrapper implements IMuxer {
 
 		if (!mReleased) {
 			mMuxer.writeSampleData(trackIndex, byteBuf, bufferInfo);
+			if ((mFd != null) && (mSyncIntervalNs > 0)
+				&& (System.nanoTime() - mLastSyncNs >= mSyncIntervalNs)) {
+
+				mLastSyncNs = System.nanoTime();
+				try {
+					mFd.sync();
+				} catch (final SyncFailedException e) {
+					Log.w(TAG, e);
+				}
+			}
 		}
 	}
 
@@ -22,10 +22,14 @@ import android.annotation.SuppressLint;
 import android.media.MediaCodec;
 import android.media.MediaFormat;
 import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.util.Log;
 
 import com.serenegiant.media.exceptions.TimeoutException;
 import com.serenegiant.system.BuildCheck;
+import com.serenegiant.utils.AnnexBScanner;
+import com.serenegiant.utils.DirectBufferArena;
 
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
@@ -35,11 +39,14 @@ import java.nio.ByteOrder;
 
 import androidx.annotation.IntDef;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
 import androidx.annotation.WorkerThread;
 
 /**
  * MediaCodecのエンコーダーからエンコード済みデータを非同期で引き出してmuxer等へ引き渡すためのヘルパークラス
+ * MediaCodecを渡して生成したときはdequeueOutputBufferでポーリングするスレッドを使う
+ * AsyncOutputを渡して生成したときはコールバックでエンコード済みデータを受け取るのでポーリングしない
  */
 public abstract class MediaReaper implements Runnable {
 	private static final boolean DEBUG = true;	// FIXME 実働時はfalseにすること
@@ -58,6 +65,11 @@ public abstract class MediaReaper implements Runnable {
 	 * dequeueOutputBufferの最大待ち時間[ミリ秒]
 	 */
 	private static final int TIMEOUT_USEC = 10000;	// 10ミリ秒
+	/**
+	 * swapからdequeueまでの時間として記録する最大値[マイクロ秒]
+	 * これより大きいときは表示時刻が別の時計で指定されているとみなして記録しない
+	 */
+	private static final long MAX_DRAW_TO_DEQUEUE_US = 10000000L;	// 10秒
 
 	/**
 	 * MediaReaperからのイベント通知用コールバックリスーなー
@@ -96,12 +108,145 @@ public abstract class MediaReaper implements Runnable {
 	}
 
 	/**
-	 * 映像エンコーダー用MediaReaper実装(h.264/AVC)
+	 * 非同期モードでエンコード済みデータを供給するエンコーダーのインターフェース
+	 * 通常は#asyncOutputでMediaCodecをラップしたものを使う
+	 * MediaCodecに依存しないのでタイマーで合成したバッファを送るような偽のエンコーダーにも置き換えられる
+	 */
+	public interface AsyncOutput {
+		/**
+		 * 出力用のコールバックをセットする
+		 * MediaCodecの場合はconfigureより前に呼ばないといけない
+		 * @param callback
+		 * @param handler コールバックを呼び出すスレッドのHandler, nullなら実装側のスレッドで呼び出す
+		 */
+		public void setOutputCallback(
+			@NonNull final OutputCallback callback, @Nullable final Handler handler);
+		/**
+		 * 指定したインデックスの出力バッファを取得する
+		 * @param index
+		 * @return
+		 */
+		@Nullable
+		public ByteBuffer getOutputBuffer(final int index);
+		/**
+		 * 出力バッファを返却する
+		 * @param index
+		 */
+		public void releaseOutputBuffer(final int index);
+	}
+
+	/**
+	 * AsyncOutputからの出力通知用コールバックリスナー
+	 */
+	public interface OutputCallback {
+		/**
+		 * エンコード済みのデータが準備できた
+		 * @param index AsyncOutput#getOutputBuffer/AsyncOutput#releaseOutputBufferへ渡すインデックス
+		 * @param info
+		 */
+		@WorkerThread
+		public void onOutputBufferAvailable(final int index, @NonNull final MediaCodec.BufferInfo info);
+		/**
+		 * 出力フォーマットが変更された
+		 * @param format
+		 */
+		@WorkerThread
+		public void onOutputFormatChanged(@NonNull final MediaFormat format);
+		/**
+		 * エラーが発生した
+		 * @param e
+		 */
+		@WorkerThread
+		public void onError(@NonNull final Exception e);
+	}
+
+	/**
+	 * 非同期モードを使用可能かどうか
+	 * MediaCodec#setCallback(Callback, Handler)はAPI>=23
+	 * @return
+	 */
+	public static boolean isAsyncSupported() {
+		return sAsyncEnabled && BuildCheck.isAPI23();
+	}
+
+	/**
+	 * 非同期モードを使うかどうかをセット
+	 * falseにすると#isAsyncSupportedが常にfalseを返すのでポーリングモードになる
+	 * @param enabled
+	 */
+	public static void setAsyncEnabled(final boolean enabled) {
+		sAsyncEnabled = enabled;
+	}
+
+	private static volatile boolean sAsyncEnabled = true;
+
+	/**
+	 * MediaCodecをAsyncOutputとして使うためのラッパーを生成する
+	 * 入力はSurfaceから行う前提なのでonInputBufferAvailableは無視する
+	 * (非同期モードではMediaCodec#dequeueInputBufferを使えないのでバッファ入力のエンコーダーには使えない)
+	 * @param codec
+	 * @return
+	 */
+	@RequiresApi(api = Build.VERSION_CODES.M)
+	@NonNull
+	public static AsyncOutput asyncOutput(@NonNull final MediaCodec codec) {
+		return new AsyncOutput() {
+			@Override
+			public void setOutputCallback(
+				@NonNull final OutputCallback callback, @Nullable final Handler handler) {
+
+				codec.setCallback(new MediaCodec.Callback() {
+					@Override
+					public void onInputBufferAvailable(@NonNull final MediaCodec codec, final int index) {
+						// Surface入力なので何もしない
+					}
+
+					@Override
+					public void onOutputBufferAvailable(@NonNull final MediaCodec codec,
+						final int index, @NonNull final MediaCodec.BufferInfo info) {
+
+						callback.onOutputBufferAvailable(index, info);
+					}
+
+					@Override
+					public void onError(@NonNull final MediaCodec codec,
+						@NonNull final MediaCodec.CodecException e) {
+
+						callback.onError(e);
+					}
+
+					@Override
+					public void onOutputFormatChanged(@NonNull final MediaCodec codec,
+						@NonNull final MediaFormat format) {
+
+						callback.onOutputFormatChanged(format);
+					}
+				}, handler);
+			}
+
+			@Nullable
+			@Override
+			public ByteBuffer getOutputBuffer(final int index) {
+				return codec.getOutputBuffer(index);
+			}
+
+			@Override
+			public void releaseOutputBuffer(final int index) {
+				codec.releaseOutputBuffer(index, false);
+			}
+		};
+	}
+
+	/**
+	 * 映像エンコーダー用MediaReaper実装(h.264/AVC, h.265/HEVC)
+	 * 出力フォーマットを確定する時にSPS/PPS(/VPS)を解析して#getStreamInfoで取得できるようにする
 	 */
 	public static class VideoReaper extends MediaReaper {
 		private static final String MIME_AVC = "video/avc";
 		private final int mWidth;
 		private final int mHeight;
+		@Nullable
+		private volatile VideoStreamInfo mStreamInfo;
 
 		public VideoReaper(
 			@NonNull final MediaCodec encoder,
@@ -114,34 +259,94 @@ public abstract class MediaReaper implements Runnable {
 			mHeight = height;
 		}
 
+		/**
+		 * 非同期モード用のコンストラクタ
+		 * MediaCodecを使う場合はMediaCodec#configureより前に呼び出すこと
+		 * @param output
+		 * @param listener
+		 * @param width
+		 * @param height
+		 */
+		public VideoReaper(
+			@NonNull final AsyncOutput output,
+			@NonNull final ReaperListener listener,
+			final int width, final int height) {
+
+			super(REAPER_VIDEO, output, listener);
+			if (DEBUG) Log.v(TAG, "VideoReaper#コンストラクタ:async");
+			mWidth = width;
+			mHeight = height;
+		}
+
 		@WorkerThread
 		@Override
 		protected MediaFormat createOutputFormat(
-			@NonNull final byte[] csd, final int size,
+			@NonNull final ByteBuffer csd, final int offset, final int size,
 			final int ix0, final int ix1, final int ix2) {
 			
 			if (DEBUG) Log.v(TAG, "VideoReaper#createOutputFormat");
+			final VideoStreamInfo info = updateStreamInfo(ParameterSetParser.parse(csd, offset, size));
+			if (info != null) {
+				return info.createMediaFormat();
+			}
+			// 解析できなかった時はスタートコードの位置で分割する
 			final MediaFormat outFormat;
 			if (ix0 >= 0) {
 				outFormat = MediaFormat.createVideoFormat(MIME_AVC, mWidth, mHeight);
-				final ByteBuffer csd0 = ByteBuffer.allocateDirect(ix1 - ix0)
-					.order(ByteOrder.nativeOrder());
-				csd0.put(csd, ix0, ix1 - ix0);
-				csd0.flip();
-				outFormat.setByteBuffer("csd-0", csd0);
+				final int end = offset + size;
+				outFormat.setByteBuffer("csd-0",
+					copyCsd(csd, ix0, (ix1 > ix0 ? ix1 : end) - ix0));
 				if (ix1 > ix0) {
-					final int sz = (ix2 > ix1) ? (ix2 - ix1) : (size - ix1);
-					final ByteBuffer csd1 = ByteBuffer.allocateDirect(sz)
-						.order(ByteOrder.nativeOrder());
-					csd1.put(csd, ix1, sz);
-					csd1.flip();
-					outFormat.setByteBuffer("csd-1", csd1);
+					final int sz = (ix2 > ix1) ? (ix2 - ix1) : (end - ix1);
+					outFormat.setByteBuffer("csd-1", copyCsd(csd, ix1, sz));
 				}
 			} else {
 				throw new RuntimeException("unexpected csd data came.");
 			}
 			return outFormat;
 		}
+
+		@WorkerThread
+		@NonNull
+		@Override
+		protected MediaFormat updateOutputFormat(@NonNull final MediaFormat format) {
+			// 渡されたフォーマットのcsdを解析する
+			// #createOutputFormatで生成したフォーマットならパラメータセットが同じなので前回の解析結果を使う
+			final VideoStreamInfo info = updateStreamInfo(ParameterSetParser.parse(format));
+			if (info != null) {
+				info.applyTo(format);
+			}
+			return format;
+		}
+
+		/**
+		 * SPS/PPS(/VPS)の解析結果を取得する
+		 * 出力フォーマットが確定するまでと解析できなかった時はnull
+		 * @return
+		 */
+		@Nullable
+		public VideoStreamInfo getStreamInfo() {
+			return mStreamInfo;
+		}
+
+		/**
+		 * 解析結果を保持する
+		 * パラメータセットが前回と同じなら前回の解析結果を使う
+		 * 解析できなかった時は前回の解析結果を破棄してnullを返す
+		 * @param info
+		 * @return
+		 */
+		@Nullable
+		private VideoStreamInfo updateStreamInfo(@Nullable final VideoStreamInfo info) {
+			if (info == null) {
+				if (DEBUG) Log.v(TAG, "updateStreamInfo:failed to parse");
+				mStreamInfo = null;
+			} else if (!info.hasSameParameterSets(mStreamInfo)) {
+				if (DEBUG) Log.v(TAG, "updateStreamInfo:" + info);
+				mStreamInfo = info;
+			}
+			return mStreamInfo;
+		}
 	}
 
 	/**
@@ -166,7 +371,7 @@ public abstract class MediaReaper implements Runnable {
 		@WorkerThread
 		@Override
 		protected MediaFormat createOutputFormat(
-			@NonNull final byte[] csd, final int size,
+			@NonNull final ByteBuffer csd, final int offset, final int size,
 			final int ix0, final int ix1, final int ix2) {
 
 			if (DEBUG) Log.v(TAG, "AudioReaper#createOutputFormat");
@@ -176,10 +381,7 @@ public abstract class MediaReaper implements Runnable {
 	        }
 	        // audioの時はSTART_MARKが無いので全体をコピーして渡す
 	        outFormat = MediaFormat.createAudioFormat(MIME_TYPE, mSampleRate, mChannelCount);
-	        final ByteBuffer csd0 = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
-	        csd0.put(csd, 0, size);
-	        csd0.flip();
-	        outFormat.setByteBuffer("csd-0", csd0);
+	        outFormat.setByteBuffer("csd-0", copyCsd(csd, offset, size));
 	        return outFormat;
 		}
 	}
@@ -198,6 +400,16 @@ public abstract class MediaReaper implements Runnable {
 	 */
 	@NonNull
 	private final MediaCodec.BufferInfo mBufferInfo;		// API >= 16(Android4.1.2)
+	/**
+	 * 非同期モードの時のエンコード済みデータの供給元, ポーリングモードの時はnull
+	 */
+	@Nullable
+	private final AsyncOutput mAsyncOutput;
+	/**
+	 * 非同期モードの時にコールバックを受け取るスレッド, ポーリングモードの時はnull
+	 */
+	@Nullable
+	private final HandlerThread mAsyncThread;
 	private volatile boolean mIsRunning;
 	private volatile boolean mRecorderStarted;
 	private boolean mRequestStop;
@@ -214,6 +426,8 @@ public abstract class MediaReaper implements Runnable {
 		mListener = listener;
 		mReaperType = reaperType;
 		mBufferInfo = new MediaCodec.BufferInfo();
+		mAsyncOutput = null;
+		mAsyncThread = null;
 		synchronized (mSync) {
 			// Reaperスレッドを生成
 			new Thread(this, getClass().getSimpleName()).start();
@@ -225,18 +439,85 @@ public abstract class MediaReaper implements Runnable {
 		}
 	}
 
+	/**
+	 * 非同期モード用のコンストラクタ
+	 * ポーリング用のスレッドは生成せずにAsyncOutputからのコールバックで処理する
+	 * @param reaperType
+	 * @param output
+	 * @param listener
+	 */
+	public MediaReaper(@ReaperType final int reaperType,
+		@NonNull final AsyncOutput output,
+		@NonNull final ReaperListener listener) {
+
+		this(reaperType, output, listener, true);
+	}
+
+	/**
+	 * 非同期モード用のコンストラクタ
+	 * @param reaperType
+	 * @param output
+	 * @param listener
+	 * @param useThread falseならコールバックを受け取るスレッドを生成せずに
+	 *                  AsyncOutputがOutputCallbackを呼び出したスレッドでそのまま処理する
+	 *                  (偽のエンコーダーから同期的に呼び出すテスト用)
+	 */
+	/*package*/ MediaReaper(@ReaperType final int reaperType,
+		@NonNull final AsyncOutput output,
+		@NonNull final ReaperListener listener,
+		final boolean useThread) {
+
+		if (DEBUG) Log.v(TAG, "コンストラクタ:async");
+		mWeakEncoder = new WeakReference<MediaCodec>(null);
+		mListener = listener;
+		mReaperType = reaperType;
+		mBufferInfo = new MediaCodec.BufferInfo();
+		mAsyncOutput = output;
+		if (useThread) {
+			mAsyncThread = new HandlerThread(getClass().getSimpleName(),
+				android.os.Process.THREAD_PRIORITY_DISPLAY);
+			mAsyncThread.start();
+		} else {
+			mAsyncThread = null;
+		}
+		synchronized (mSync) {
+			mIsRunning = true;
+			mRequestStop = false;
+		}
+		output.setOutputCallback(mOutputCallback,
+			mAsyncThread != null ? new Handler(mAsyncThread.getLooper()) : null);
+	}
+
 	public void release() {
 		if (DEBUG) Log.v(TAG, "release:");
 		if (mIsRunning && !mRequestStop) {
 			mRequestStop = true;
 		}
 		synchronized (mSync) {
+			if (mAsyncOutput != null) {
+				mIsRunning = false;
+				if (mAsyncThread != null) {
+					mAsyncThread.quitSafely();
+				}
+			}
 			mSync.notifyAll();
 		}
 	}
 
+	/**
+	 * 非同期モードかどうか
+	 * @return
+	 */
+	public boolean isAsync() {
+		return mAsyncOutput != null;
+	}
+
 	public void frameAvailableSoon() {
 //		if (DEBUG) Log.v(TAG, "frameAvailableSoon:");
+		if (mAsyncOutput != null) {
+			// 非同期モードの時はエンコーダーからのコールバックで処理するので何もしない
+			return;
+		}
         synchronized (mSync) {
             if (!mIsRunning || mRequestStop) {
                 return;
@@ -488,6 +769,7 @@ LOOP:	while (mIsRunning) {
 				}
             } else if (encoderStatus >= 0) {
                 final ByteBuffer encodedData = encoder.getOutputBuffer(encoderStatus);	// API>=21
+                final long dequeueNs = MediaMetrics.startNs();
                 if (encodedData == null) {
                 	// 出力バッファインデックスが来てるのに出力バッファを取得できない・・・無いはずやねんけど
                     throw new RuntimeException("encoderOutputBuffer " + encoderStatus + " was null");
@@ -514,9 +796,11 @@ LOOP:	while (mIsRunning) {
                     }
                     // ファイルに出力(presentationTimeUsを調整)
                     try {
+                    	recordDrawToDequeue(dequeueNs, mBufferInfo.presentationTimeUs);
 	                   	mBufferInfo.presentationTimeUs
 	                   		= getNextOutputPTSUs(mBufferInfo.presentationTimeUs);
 						callOnWriteSampleData(encodedData, mBufferInfo);
+						MediaMetrics.recordSince(MediaMetrics.DEQUEUE_TO_WRITE, dequeueNs);
                     } catch (final TimeoutException e) {
 //						if (DEBUG) Log.v(TAG, "最大録画時間を超えた", e);
 						callOnError(e);
@@ -537,6 +821,100 @@ LOOP:	while (mIsRunning) {
 //		if (DEBUG) Log.v(TAG, "drain:finished");
     }
 
+	/**
+	 * 非同期モードでAsyncOutputからのコールバックを受け取るためのOutputCallback実装
+	 */
+	private final OutputCallback mOutputCallback = new OutputCallback() {
+		@WorkerThread
+		@Override
+		public void onOutputBufferAvailable(final int index, @NonNull final MediaCodec.BufferInfo info) {
+			handleOutputBuffer(index, info);
+		}
+
+		@WorkerThread
+		@Override
+		public void onOutputFormatChanged(@NonNull final MediaFormat format) {
+			if (DEBUG) Log.v(TAG, "onOutputFormatChanged:");
+			if (!mIsRunning) return;
+			if (mRecorderStarted) {	// ２回目が来た時はエラー
+				callOnError(new RuntimeException("format changed twice"));
+				return;
+			}
+			callOnFormatChanged(format);
+		}
+
+		@WorkerThread
+		@Override
+		public void onError(@NonNull final Exception e) {
+			callOnError(e);
+		}
+	};
+
+	/**
+	 * 非同期モードでエンコード済みデータを受け取ったときの処理
+	 * 書き込めたかどうかにかかわらず出力バッファは必ずエンコーダーへ返却する
+	 * @param index
+	 * @param info
+	 */
+	@WorkerThread
+	private void handleOutputBuffer(final int index, @NonNull final MediaCodec.BufferInfo info) {
+		final AsyncOutput output = mAsyncOutput;
+		if (output == null) return;
+		boolean eos = false;
+		try {
+			if (!mIsRunning || mIsEOS) {
+				// 終了処理中またはEOS後に来たものは書き込まずに返却するだけ
+				return;
+			}
+			final ByteBuffer encodedData = output.getOutputBuffer(index);
+			final long dequeueNs = MediaMetrics.startNs();
+			if (encodedData == null) {
+				throw new RuntimeException("encoderOutputBuffer " + index + " was null");
+			}
+			if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+				if (DEBUG) Log.d(TAG, "handleOutputBuffer:BUFFER_FLAG_CODEC_CONFIG");
+				if (!mRecorderStarted) {	// 1回目に来た時だけ処理する
+					if (callOnFormatChanged(createOutputFormat(info, encodedData))) {
+						return;
+					}
+				}
+				info.size = 0;	// BUFFER_FLAG_CODEC_CONFIGが来たときはスキップさせないといけない
+			}
+			if (info.size != 0) {
+				if (!mRecorderStarted) {
+					throw new RuntimeException("handleOutputBuffer:muxer hasn't started");
+				}
+				try {
+					recordDrawToDequeue(dequeueNs, info.presentationTimeUs);
+					info.presentationTimeUs = getNextOutputPTSUs(info.presentationTimeUs);
+					callOnWriteSampleData(encodedData, info);
+					MediaMetrics.recordSince(MediaMetrics.DEQUEUE_TO_WRITE, dequeueNs);
+				} catch (final Exception e) {
+					// TimeoutException(最大録画時間を超えた)もここに来る
+					callOnError(e);
+				}
+			}
+			eos = (info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+		} catch (final IllegalStateException e) {
+			// エンコーダーが既に停止/破棄されている
+			if (DEBUG) Log.w(TAG, e);
+		} catch (final Exception e) {
+			callOnError(e);
+		} finally {
+			// 出力済みのバッファをエンコーダーに返す
+			try {
+				output.releaseOutputBuffer(index);
+			} catch (final IllegalStateException e) {
+				if (DEBUG) Log.w(TAG, e);
+			}
+		}
+		if (eos) {
+			// ストリーム終了指示が来た時
+			mIsEOS = true;
+			callOnStop();
+		}
+	}
+
 	/**
 	 * Android4.3未満でBUFFER_FLAG_CODEC_CONFIGフラグがセットされたときに
 	 * csd0, csd1から出力用のMediaFormatを生成するためのヘルパーメソッド
@@ -550,21 +928,69 @@ LOOP:	while (mIsRunning) {
 		@NonNull final ByteBuffer encodedData) {
 
 		// csd-0とcsd-1が同時に来ているはずなので分離してセットする
-		final byte[] tmp = new byte[info.size];
-		encodedData.position(0);
-		encodedData.get(tmp, info.offset, info.size);
-		encodedData.position(0);
-		final int ix0 = MediaCodecUtils.findStartMarker(tmp, 0);
-		final int ix1 = MediaCodecUtils.findStartMarker(tmp, ix0 + 2);
-		final int ix2 = MediaCodecUtils.findStartMarker(tmp, ix1 + 2);
-		return createOutputFormat(tmp, mBufferInfo.size, ix0, ix1, ix2);
+		// 一時配列へコピーせずにエンコード済みデータのバッファ上で直接スタートコードを探す
+		final int offset = info.offset;
+		final int end = offset + info.size;
+		final int ix0 = AnnexBScanner.findStartCode(encodedData, offset, end);
+		final int ix1 = ix0 >= 0
+			? AnnexBScanner.findStartCode(encodedData,
+				ix0 + AnnexBScanner.startCodeLength(encodedData, ix0), end)
+			: -1;
+		final int ix2 = ix1 >= 0
+			? AnnexBScanner.findStartCode(encodedData,
+				ix1 + AnnexBScanner.startCodeLength(encodedData, ix1), end)
+			: -1;
+		return createOutputFormat(encodedData, offset, info.size, ix0, ix1, ix2);
 	}
 
+	/**
+	 * エンコード済みデータからcsdを生成する
+	 * @param csd エンコード済みデータ, position/limitは変更しないこと
+	 * @param offset csdの先頭位置(絶対位置)
+	 * @param size csdのバイト数
+	 * @param ix0 1つ目のスタートコードの位置(絶対位置), 見つからなければ-1
+	 * @param ix1 2つ目のスタートコードの位置(絶対位置), 見つからなければ-1
+	 * @param ix2 3つ目のスタートコードの位置(絶対位置), 見つからなければ-1
+	 * @return
+	 */
 	@WorkerThread
 	protected abstract MediaFormat createOutputFormat(
-		@NonNull final byte[] csd, final int size,
+		@NonNull final ByteBuffer csd, final int offset, final int size,
 		final int ix0, final int ix1, final int ix2);
 
+	/**
+	 * エンコード済みデータの指定した範囲をcsd用のダイレクトバッファへコピーする
+	 * @param src
+	 * @param offset コピー元の先頭位置(絶対位置)
+	 * @param size コピーするバイト数
+	 * @return
+	 */
+	@NonNull
+	protected static ByteBuffer copyCsd(
+		@NonNull final ByteBuffer src, final int offset, final int size) {
+
+		final ByteBuffer slice = src.duplicate();
+		slice.clear();
+		slice.limit(offset + size).position(offset);
+		final ByteBuffer result = DirectBufferArena.getDefault().allocateExact(size)
+			.order(ByteOrder.nativeOrder());
+		result.put(slice);
+		result.flip();
+		return result;
+	}
+
+	/**
+	 * 出力フォーマットをリスナーへ渡す前に呼ばれる
+	 * 必要であれば上書きしてフォーマットへ情報を追加する
+	 * @param format
+	 * @return
+	 */
+	@WorkerThread
+	@NonNull
+	protected MediaFormat updateOutputFormat(@NonNull final MediaFormat format) {
+		return format;
+	}
+
 	/**
 	 * onOutputFormatChangedコールバックメソッドを呼び出す
 	 * @param format
@@ -573,7 +999,7 @@ LOOP:	while (mIsRunning) {
 	@WorkerThread
 	private boolean callOnFormatChanged(final MediaFormat format) {
 		try {
-			mListener.onOutputFormatChanged(this, format);
+			mListener.onOutputFormatChanged(this, updateOutputFormat(format));
 			mRecorderStarted = true;
 			return false;
 		} catch (final Exception e) {
@@ -607,6 +1033,22 @@ LOOP:	while (mIsRunning) {
 		}
 	}
 
+	/**
+	 * 映像のエンコーダー入力用Surfaceへのswapからエンコード済みデータを受け取るまでの時間を記録する
+	 * Surface入力で表示時刻を指定していなければswapした時刻(System#nanoTimeと同じ時計)が
+	 * presentationTimeUsになるのでその差を使う
+	 * @param dequeueNs MediaMetrics#startNsの値
+	 * @param presentationTimeUs エンコーダーから受け取ったままのpresentationTimeUs
+	 */
+	private void recordDrawToDequeue(final long dequeueNs, final long presentationTimeUs) {
+		if ((dequeueNs != 0) && (mReaperType == REAPER_VIDEO)) {
+			final long delta = dequeueNs / 1000L - presentationTimeUs;
+			if ((delta >= 0) && (delta < MAX_DRAW_TO_DEQUEUE_US)) {
+				MediaMetrics.DRAW_TO_DEQUEUE.record(delta);
+			}
+		}
+	}
+
 	/**
 	 * 前回出力時のpresentationTimeUs
 	 */
@@ -618,7 +1060,9 @@ LOOP:	while (mIsRunning) {
 	 */
 	protected long getNextOutputPTSUs(long presentationTimeUs) {
 		if (presentationTimeUs <= prevOutputPTSUs) {
-			presentationTimeUs = prevOutputPTSUs + 9643;
+			// 入力側の時刻が単調増加していれば通常は来ないので
+			// 時刻をずらさないように単調増加になる最小の値にする
+			presentationTimeUs = prevOutputPTSUs + 1;
 		}
 		prevOutputPTSUs = presentationTimeUs;
 		return presentationTimeUs;
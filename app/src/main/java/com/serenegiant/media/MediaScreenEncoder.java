@@ -36,6 +36,11 @@ import com.serenegiant.egl.EGLBase;
 import com.serenegiant.egl.EglTask;
 import com.serenegiant.gl.GLDrawer2D;
 import com.serenegiant.utils.HandlerThreadHandler;
+import com.serenegiant.utils.ThreadPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.RejectedExecutionException;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -55,6 +60,23 @@ public class MediaScreenEncoder extends AbstractVideoEncoder {
 	private final int mDensity;
 	private Surface mInputSurface;
 	private final Handler mHandler;
+	/**
+	 * ビットレートを動的に調整する時の制御則, nullなら調整しない
+	 */
+	@Nullable
+	private AdaptiveBitrateController mBitrateController;
+	@Nullable
+	private AdaptiveBitrateController.FreeSpaceProvider mFreeSpaceProvider;
+	/**
+	 * 画面が変化しない時にエンコーダーへ同じ映像を送る最大間隔[ミリ秒]
+	 * 0以下なら画面が変化しなくてもフレームレート毎に送る
+	 */
+	private volatile long mMaxFrameGapMs;
+	/**
+	 * 計測済みのエンコーダーから選択するためのEncoderRanking, nullなら選択しない
+	 */
+	@Nullable
+	private EncoderRanking mEncoderRanking;
 
 	/**
 	 * コンストラクタ
@@ -93,12 +115,49 @@ public class MediaScreenEncoder extends AbstractVideoEncoder {
 		mHandler = HandlerThreadHandler.createHandler(TAG);
 	}
 
+	/**
+	 * 書き込み状況に合わせてビットレートを動的に調整するように設定する
+	 * #prepareより前に呼ぶこと
+	 * @param controller nullならビットレートを調整しない
+	 * @param provider 出力先の空き容量を取得するためのFreeSpaceProvider, nullなら空き容量では調整しない
+	 */
+	public void setAdaptiveBitrate(
+		@Nullable final AdaptiveBitrateController controller,
+		@Nullable final AdaptiveBitrateController.FreeSpaceProvider provider) {
+
+		mBitrateController = controller;
+		mFreeSpaceProvider = provider;
+	}
+
+	/**
+	 * 画面が変化しない間はエンコーダーへ映像を送らないように設定する
+	 * 画面が変化しない状態が続いてもmaxFrameGapMs毎に直前の映像を送る
+	 * @param maxFrameGapMs 直前の映像を送り直すまでの最大間隔[ミリ秒], 0以下なら画面が変化しなくてもフレームレート毎に送る
+	 */
+	public void setMaxFrameGapMs(final long maxFrameGapMs) {
+		mMaxFrameGapMs = maxFrameGapMs;
+	}
+
+	public long getMaxFrameGapMs() {
+		return mMaxFrameGapMs;
+	}
+
+	/**
+	 * 計測済みのエンコーダーの中から最も速いものを使うように設定する
+	 * 未計測の時や計測済みのエンコーダーを生成できなかった時はmimeに対応する既定のエンコーダーを使う
+	 * #prepareより前に呼ぶこと
+	 * @param ranking nullなら既定のエンコーダーを使う
+	 */
+	public void setEncoderRanking(@Nullable final EncoderRanking ranking) {
+		mEncoderRanking = ranking;
+	}
+
 	@Override
 	protected Encoder internalPrepare(@NonNull final MediaReaper.ReaperListener listener) throws Exception {
 		if (DEBUG) Log.v(TAG, "internalPrepare:");
 		mTrackIndex = -1;
 
-		final MediaCodecInfo codecInfo = MediaCodecUtils.selectVideoEncoder(MIME);
+		final CodecCapabilityCache.Entry codecInfo = CodecCapabilityCache.getVideoEncoder(MIME);
 		if (codecInfo == null) {
 			throw new IllegalArgumentException("Unable to find an appropriate codec for " + MIME);
 		}
@@ -112,31 +171,82 @@ public class MediaScreenEncoder extends AbstractVideoEncoder {
 		// MediaCodecに適用するパラメータを設定する。誤った設定をするとMediaCodec#configureが
 		// 復帰不可能な例外を生成する
 		format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);    // API >= 18
-		format.setInteger(MediaFormat.KEY_BIT_RATE, mBitRate > 0
-			? mBitRate : getConfig().getBitrate(mWidth, mHeight));
-		format.setInteger(MediaFormat.KEY_FRAME_RATE, mFramerate > 0
-			? mFramerate : getConfig().captureFps());
+		int bitrate = mBitRate > 0 ? mBitRate : getConfig().getBitrate(mWidth, mHeight);
+		if (mBitrateController != null) {
+			bitrate = mBitrateController.reset(bitrate);
+		}
+		format.setInteger(MediaFormat.KEY_BIT_RATE, bitrate);
+		final int frameRate = mFramerate > 0 ? mFramerate : getConfig().captureFps();
+		format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
 		format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, mIFrameIntervals > 0
 			? mIFrameIntervals : getConfig().calcIFrameIntervals());
 		if (DEBUG) Log.d(TAG, "format: " + format);
 
 		// 設定したフォーマットに従ってMediaCodecのエンコーダーを生成する
 		// エンコーダーへの入力に使うSurfaceを取得する
-		final MediaCodec mediaCodec = MediaCodec.createEncoderByType(MIME);
-		mediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-		mInputSurface = mediaCodec.createInputSurface();    // API >= 18
-		mediaCodec.start();
-		final MediaReaper reaper = new MediaReaper.VideoReaper(mediaCodec, listener, mWidth, mHeight);
+		final MediaCodec mediaCodec = createVideoEncoder(format, frameRate);
+		MediaReaper reaper = null;
+		if (MediaReaper.isAsyncSupported()) {
+			// 非同期モードのMediaReaperはMediaCodec#configureより前に生成しないといけない
+			reaper = new MediaReaper.VideoReaper(
+				MediaReaper.asyncOutput(mediaCodec), listener, mWidth, mHeight);
+		}
+		try {
+			mediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+			mInputSurface = mediaCodec.createInputSurface();    // API >= 18
+			mediaCodec.start();
+		} catch (final Exception e) {
+			if (reaper != null) {
+				reaper.release();
+			}
+			releaseEncoder(mediaCodec);
+			throw e;
+		}
+		if (reaper == null) {
+			reaper = new MediaReaper.VideoReaper(mediaCodec, listener, mWidth, mHeight);
+		}
 		new Thread(mDrawTask, DrawTask.class.getSimpleName()).start();
+		if (mBitrateController != null) {
+			mHandler.postDelayed(mBitrateTask, mBitrateController.getIntervalUs() / 1000L);
+		}
 		return new Encoder(mediaCodec, reaper, false);
 	}
 
+	/**
+	 * エンコーダーを生成する
+	 * EncoderRankingがセットされていて計測済みなら最も速いエンコーダーを使う
+	 * @param format
+	 * @param frameRate
+	 * @return
+	 * @throws IOException
+	 */
+	@NonNull
+	private MediaCodec createVideoEncoder(
+		@NonNull final MediaFormat format, final int frameRate) throws IOException {
+
+		final EncoderRanking ranking = mEncoderRanking;
+		final EncoderRanking.Score score = ranking != null
+			? ranking.select(MIME, mWidth, mHeight, frameRate) : null;
+		if (score != null) {
+			if (DEBUG) Log.v(TAG, "createVideoEncoder:" + score);
+			try {
+				return createEncoder(format, score.getName());
+			} catch (final IOException | IllegalArgumentException e) {
+				// OSの更新等でエンコーダーが無くなった時は計測し直す
+				Log.w(TAG, e);
+				ranking.invalidate();
+			}
+		}
+		return createEncoder(format, null);
+	}
+
 	/**
 	 * Releases encoder resources.
 	 */
 	@Override
 	public void release() {
 		if (DEBUG) Log.d(TAG, "release:");
+		mHandler.removeCallbacks(mBitrateTask);
 		super.release();
 		mInputSurface = null;
 	}
@@ -150,10 +260,84 @@ public class MediaScreenEncoder extends AbstractVideoEncoder {
 	@Override
 	public void stop() {
 		if (DEBUG) Log.d(TAG, "stop:");
+		mHandler.removeCallbacks(mBitrateTask);
 		mDrawTask.release();
 		super.stop();
 	}
 
+	/**
+	 * ビットレートを調整する時はmuxerへの書き込みにかかった時間を計測する
+	 * @param byteBuf
+	 * @param bufferInfo
+	 */
+	@Override
+	protected void writeSampleData(
+		@NonNull final ByteBuffer byteBuf,
+		@NonNull final MediaCodec.BufferInfo bufferInfo) {
+
+		final AdaptiveBitrateController controller = mBitrateController;
+		if (controller != null) {
+			final long startNs = System.nanoTime();
+			super.writeSampleData(byteBuf, bufferInfo);
+			controller.onSampleWritten(bufferInfo.size,
+				(System.nanoTime() - startNs) / 1000L);
+		} else {
+			super.writeSampleData(byteBuf, bufferInfo);
+		}
+	}
+
+	/**
+	 * 空き容量の確認を行う間隔[マイクロ秒]
+	 */
+	private static final long FREE_SPACE_CHECK_INTERVAL_US = 5000000L;
+	private long mNextFreeSpaceCheckUs;
+
+	/**
+	 * 一定時間毎にAdaptiveBitrateControllerを更新してエンコーダーのビットレートを変更するためのRunnable
+	 * mHandlerのスレッドはSurfaceTextureのコールバックも受け取るので
+	 * 時間がかかるかもしれない空き容量の取得はThreadPoolのI/Oプールで行う
+	 */
+	private final Runnable mBitrateTask = new Runnable() {
+		@Override
+		public void run() {
+			final AdaptiveBitrateController controller = mBitrateController;
+			if ((controller == null) || isRequestStop()) {
+				return;
+			}
+			final long nowUs = System.nanoTime() / 1000L;
+			final AdaptiveBitrateController.FreeSpaceProvider provider = mFreeSpaceProvider;
+			if ((provider != null) && (nowUs >= mNextFreeSpaceCheckUs)) {
+				mNextFreeSpaceCheckUs = nowUs + FREE_SPACE_CHECK_INTERVAL_US;
+				try {
+					ThreadPool.queueIoEvent(new Runnable() {
+						@Override
+						public void run() {
+							final long free = provider.getFreeBytes();
+							if (free >= 0) {
+								controller.onFreeSpace(System.nanoTime() / 1000L, free);
+							}
+						}
+					});
+				} catch (final RejectedExecutionException e) {
+					if (DEBUG) Log.w(TAG, "mBitrateTask:free space check rejected");
+				}
+			}
+			if (isEncoding()) {
+				final int bitrate = controller.update(nowUs);
+				if (bitrate > 0) {
+					if (DEBUG) Log.v(TAG, "mBitrateTask:adjust bitrate to " + bitrate);
+					try {
+						adjustBitrate(bitrate);
+					} catch (final IllegalStateException e) {
+						// 終了処理中にMediaCodecが解放された時
+						if (DEBUG) Log.w(TAG, e);
+					}
+				}
+			}
+			mHandler.postDelayed(this, controller.getIntervalUs() / 1000L);
+		}
+	};
+
 	private volatile boolean requestDraw;
 	@NonNull
 	private final DrawTask mDrawTask = new DrawTask(null, 0);
@@ -171,6 +355,19 @@ public class MediaScreenEncoder extends AbstractVideoEncoder {
 		private EGLBase.IEglSurface mEncoderSurface;
 		private GLDrawer2D mDrawer;
 		private final float[] mTexMatrix = new float[16];
+		/**
+		 * 描画待ちの最初のフレームが来た時刻[ナノ秒], 計測が無効なときや描画待ちのフレームがないときは0
+		 * mSyncで排他制御する
+		 */
+		private long mFrameAvailableNs;
+		/**
+		 * 最後にエンコーダーへ映像を送った時刻[ナノ秒], 描画スレッドからのみアクセスする
+		 */
+		private long mLastSwapNs;
+		/**
+		 * 最後にエンコーダーへ送った映像のpresentationTime[ナノ秒], 描画スレッドからのみアクセスする
+		 */
+		private long mLastPtsNs;
 
 		public DrawTask(@Nullable final EGLBase.IContext<?> sharedContext, final int flags) {
 			super(sharedContext, flags);
@@ -252,6 +449,9 @@ public class MediaScreenEncoder extends AbstractVideoEncoder {
 				if (isEncoding()) {
 					synchronized (mSync) {
 						requestDraw = true;
+						if (mFrameAvailableNs == 0) {
+							mFrameAvailableNs = MediaMetrics.startNs();
+						}
 						mSync.notify();
 					}
 				}
@@ -262,28 +462,56 @@ public class MediaScreenEncoder extends AbstractVideoEncoder {
 			@Override
 			public void run() {
 //				if (DEBUG) Log.v(TAG, "DrawTask#draw:");
-				boolean localRequestDraw;
+				final long maxFrameGapMs = mMaxFrameGapMs;
+				final boolean localRequestDraw;
+				final long frameAvailableNs;
 				synchronized (mSync) {
-					localRequestDraw = requestDraw;
-					if (!localRequestDraw) {
+					if (!requestDraw) {
 						try {
 							mSync.wait(intervals);
-							localRequestDraw = requestDraw;
-							requestDraw = false;
 						} catch (final InterruptedException e) {
 							return;
 						}
 					}
+					// 新しいフレームを受け取った時だけupdateTexImageするようにここで必ずクリアする
+					localRequestDraw = requestDraw;
+					requestDraw = false;
+					frameAvailableNs = mFrameAvailableNs;
+					mFrameAvailableNs = 0;
 				}
 				if (isReady()) {
+					final long nowNs = System.nanoTime();
 					if (localRequestDraw) {
 						mSourceTexture.updateTexImage();
 						mSourceTexture.getTransformMatrix(mTexMatrix);
+					} else if ((maxFrameGapMs > 0) && (mLastSwapNs != 0)
+						&& (nowNs - mLastSwapNs < maxFrameGapMs * 1000000L)) {
+						// 画面が変化しておらず最大間隔にも達していないのでエンコーダーへは送らない
+						// 待機時間をintervalsまでにして終了要求等のEglTaskのメッセージを処理できるようにする
+						MediaMetrics.FRAMES_SKIPPED.inc();
+						queueEvent(this);
+						return;
 					}
 					// SurfaceTextureで受け取った画像をMediaCodecの入力用Surfaceへ描画する
 					mEncoderSurface.makeCurrent();
 					mDrawer.draw(GLES20.GL_TEXTURE0, mTexId, mTexMatrix, 0);
-					mEncoderSurface.swap();
+					if (maxFrameGapMs > 0) {
+						// 間引いた後のフレームが正しい時刻になるようにpresentationTimeを明示する
+						// 新しいフレームはキャプチャ時刻、送り直す時は現在時刻を使う
+						long ptsNs = localRequestDraw ? mSourceTexture.getTimestamp() : 0;
+						if (ptsNs <= 0) {
+							ptsNs = nowNs;
+						}
+						if (ptsNs <= mLastPtsNs) {
+							ptsNs = mLastPtsNs + 1000L;
+						}
+						mLastPtsNs = ptsNs;
+						mEncoderSurface.swap(ptsNs);
+					} else {
+						mEncoderSurface.swap();
+					}
+					mLastSwapNs = nowNs;
+					MediaMetrics.recordSince(MediaMetrics.FRAME_TO_DRAW, frameAvailableNs);
 					// EGL保持用のオフスクリーンに描画しないとハングアップする機種の為のworkaround
 					makeCurrent();
 					GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
@@ -163,7 +163,13 @@ public class MemMediaQueue implements IMediaQueue<RecycleMediaData> {
 	@Override
 	public boolean queueFrame(@NonNull final RecycleMediaData buffer) {
 		buffer.setRecycled(false);
-		return mQueue.offer(buffer);
+		final boolean result = mQueue.offer(buffer);
+		if (result) {
+			MediaMetrics.QUEUE_DEPTH.record(mQueue.size());
+		} else {
+			MediaMetrics.QUEUE_DROPPED.inc();
+		}
+		return result;
 	}
 	
 	@Override
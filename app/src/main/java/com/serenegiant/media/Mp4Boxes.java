@@ -0,0 +1,259 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+
+/**
+ * ISO BMFF(MP4)のボックスをByteBufferへ書き込む/ByteBufferから読み込むためのヘルパーメソッド
+ * Androidフレームワークに依存しないので通常のJVM上でも使える
+ * ボックスのサイズは#beginBoxで0を書き込んでおき#endBoxで書き換える
+ */
+public final class Mp4Boxes {
+	private Mp4Boxes() {
+		// インスタンス化をエラーにするためにデフォルトコンストラクタをprivateに
+	}
+
+	/**
+	 * ボックスヘッダーのバイト数(size + type)
+	 */
+	public static final int BOX_HEADER_SIZE = 8;
+
+	private static final int[] UNITY_MATRIX = {
+		0x00010000, 0, 0,
+		0, 0x00010000, 0,
+		0, 0, 0x40000000,
+	};
+
+	/**
+	 * ボックスのヘッダーを書き込む
+	 * @param b
+	 * @param type
+	 * @return #endBoxへ渡すボックスの先頭位置
+	 */
+	public static int beginBox(@NonNull final ByteBuffer b, @NonNull final String type) {
+		final int pos = b.position();
+		b.putInt(0);	// size, #endBoxで書き換える
+		putFourCC(b, type);
+		return pos;
+	}
+
+	/**
+	 * フルボックス(versionとflagsを持つボックス)のヘッダーを書き込む
+	 * @param b
+	 * @param type
+	 * @param version
+	 * @param flags
+	 * @return #endBoxへ渡すボックスの先頭位置
+	 */
+	public static int beginFullBox(@NonNull final ByteBuffer b, @NonNull final String type,
+		final int version, final int flags) {
+
+		final int pos = beginBox(b, type);
+		b.putInt((version << 24) | (flags & 0x00ffffff));
+		return pos;
+	}
+
+	/**
+	 * #beginBox/#beginFullBoxで書き込んだボックスのサイズを現在位置までで確定する
+	 * @param b
+	 * @param pos
+	 */
+	public static void endBox(@NonNull final ByteBuffer b, final int pos) {
+		b.putInt(pos, b.position() - pos);
+	}
+
+	public static void putFourCC(@NonNull final ByteBuffer b, @NonNull final String type) {
+		for (int i = 0; i < 4; i++) {
+			b.put((byte)type.charAt(i));
+		}
+	}
+
+	/**
+	 * 4文字コードをint値へ変換する
+	 * @param type
+	 * @return
+	 */
+	public static int fourCC(@NonNull final String type) {
+		return (type.charAt(0) << 24) | (type.charAt(1) << 16)
+			| (type.charAt(2) << 8) | type.charAt(3);
+	}
+
+	/**
+	 * ボックスヘッダーのバイト数を取得する
+	 * @param b
+	 * @param pos ボックスの先頭位置
+	 * @return largesize(size=1)の時は16, それ以外は8
+	 */
+	public static int headerSize(@NonNull final ByteBuffer b, final int pos) {
+		return b.getInt(pos) == 1 ? 16 : BOX_HEADER_SIZE;
+	}
+
+	/**
+	 * ボックスのサイズを取得する
+	 * size=0(親ボックスまたはファイルの末尾まで)の時はendまでのサイズを返す
+	 * @param b
+	 * @param pos ボックスの先頭位置
+	 * @param end 親ボックスの終端位置
+	 * @return
+	 * @throws IOException サイズが不正な時またはendを超える時
+	 */
+	public static int boxSize(@NonNull final ByteBuffer b,
+		final int pos, final int end) throws IOException {
+
+		final long size;
+		final int size32 = b.getInt(pos);
+		if (size32 == 1) {
+			size = b.getLong(pos + 8);
+		} else if (size32 == 0) {
+			size = end - pos;
+		} else {
+			size = size32 & 0xffffffffL;
+		}
+		if ((size < headerSize(b, pos)) || (pos + size > end)) {
+			throw new IOException("broken box at " + pos);
+		}
+		return (int)size;
+	}
+
+	public static void putCString(@NonNull final ByteBuffer b, @NonNull final String str) {
+		for (int i = 0; i < str.length(); i++) {
+			b.put((byte)str.charAt(i));
+		}
+		b.put((byte)0);
+	}
+
+	public static void putMatrix(@NonNull final ByteBuffer b) {
+		for (final int v: UNITY_MATRIX) {
+			b.putInt(v);
+		}
+	}
+
+	/**
+	 * ES_Descriptor等のタグと長さを書き込む、長さは常に4バイトの可変長表現を使う
+	 * @param b
+	 * @param tag
+	 * @param length
+	 */
+	public static void putDescriptorHeader(@NonNull final ByteBuffer b,
+		final int tag, final int length) {
+
+		b.put((byte)tag);
+		b.put((byte)(0x80 | ((length >> 21) & 0x7f)));
+		b.put((byte)(0x80 | ((length >> 14) & 0x7f)));
+		b.put((byte)(0x80 | ((length >> 7) & 0x7f)));
+		b.put((byte)(length & 0x7f));
+	}
+
+	/**
+	 * H.264/AVCのサンプルエントリー(avc1+avcC)を書き込む
+	 * NALユニットの長さは4バイト(lengthSizeMinusOne=3)
+	 * @param b
+	 * @param width
+	 * @param height
+	 * @param sps スタートコードを含まないSPS, 1つ以上
+	 * @param pps スタートコードを含まないPPS, 1つ以上
+	 */
+	public static void writeAvc1(@NonNull final ByteBuffer b,
+		final int width, final int height,
+		@NonNull final List<byte[]> sps, @NonNull final List<byte[]> pps) {
+
+		final int avc1 = beginBox(b, "avc1");
+		b.putInt(0).putShort((short)0);	// reserved
+		b.putShort((short)1);	// data_reference_index
+		b.putShort((short)0).putShort((short)0);
+		b.putInt(0).putInt(0).putInt(0);
+		b.putShort((short)width);
+		b.putShort((short)height);
+		b.putInt(0x00480000);	// horizresolution=72dpi
+		b.putInt(0x00480000);	// vertresolution=72dpi
+		b.putInt(0);
+		b.putShort((short)1);	// frame_count
+		for (int i = 0; i < 32; i++) {
+			b.put((byte)0);	// compressorname
+		}
+		b.putShort((short)0x0018);	// depth
+		b.putShort((short)-1);	// pre_defined
+		final int avcC = beginBox(b, "avcC");
+		final byte[] first = sps.get(0);
+		b.put((byte)1);	// configurationVersion
+		b.put(first.length > 3 ? first[1] : 0);	// AVCProfileIndication
+		b.put(first.length > 3 ? first[2] : 0);	// profile_compatibility
+		b.put(first.length > 3 ? first[3] : 0);	// AVCLevelIndication
+		b.put((byte)0xff);	// lengthSizeMinusOne=3
+		b.put((byte)(0xe0 | sps.size()));
+		for (final byte[] nal: sps) {
+			b.putShort((short)nal.length);
+			b.put(nal);
+		}
+		b.put((byte)pps.size());
+		for (final byte[] nal: pps) {
+			b.putShort((short)nal.length);
+			b.put(nal);
+		}
+		endBox(b, avcC);
+		endBox(b, avc1);
+	}
+
+	/**
+	 * AACのサンプルエントリー(mp4a+esds)を書き込む
+	 * @param b
+	 * @param channelCount
+	 * @param sampleRate
+	 * @param bitrate
+	 * @param asc AudioSpecificConfig(csd-0)
+	 */
+	public static void writeMp4a(@NonNull final ByteBuffer b,
+		final int channelCount, final int sampleRate, final int bitrate,
+		@NonNull final byte[] asc) {
+
+		final int mp4a = beginBox(b, "mp4a");
+		b.putInt(0).putShort((short)0);	// reserved
+		b.putShort((short)1);	// data_reference_index
+		b.putInt(0).putInt(0);
+		b.putShort((short)channelCount);
+		b.putShort((short)16);	// samplesize
+		b.putShort((short)0).putShort((short)0);
+		b.putInt(sampleRate << 16);	// samplerate
+		final int esds = beginFullBox(b, "esds", 0, 0);
+		// ES_Descriptor
+		putDescriptorHeader(b, 0x03, 3 + (5 + 13) + (5 + asc.length) + (5 + 1));
+		b.putShort((short)0);	// ES_ID
+		b.put((byte)0);	// flags
+		// DecoderConfigDescriptor
+		putDescriptorHeader(b, 0x04, 13 + (5 + asc.length));
+		b.put((byte)0x40);	// objectTypeIndication=MPEG-4 Audio
+		b.put((byte)0x15);	// streamType=AudioStream, upStream=0, reserved=1
+		b.put((byte)0).putShort((short)0);	// bufferSizeDB
+		b.putInt(bitrate);	// maxBitrate
+		b.putInt(bitrate);	// avgBitrate
+		// DecoderSpecificInfo
+		putDescriptorHeader(b, 0x05, asc.length);
+		b.put(asc);
+		// SLConfigDescriptor
+		putDescriptorHeader(b, 0x06, 1);
+		b.put((byte)0x02);
+		endBox(b, esds);
+		endBox(b, mp4a);
+	}
+}
@@ -0,0 +1,942 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.media.MediaCodec;
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import static com.serenegiant.media.Mp4Boxes.*;
+
+/**
+ * Androidフレームワーク(MediaExtractor)を使わずにMP4ファイルを読み込むためのクラス
+ * MediaMuxerWrapperで書き込んだ通常のMP4(moov+stbl)とFragmentedMp4Muxerで書き込んだ
+ * フラグメント化したMP4(moof+traf+trun)の両方に対応する
+ *
+ * 生成時にファイルをメモリーマップしてサンプルテーブルを展開し、トラック毎に
+ * ファイルオフセット・サイズ・PTS・同期サンプルかどうかをプリミティブ配列で保持する
+ * サンプルの読み込みはマップした領域からMediaDataの内部バッファへコピーするだけなので
+ * MediaDataの内部バッファが十分な大きさになれば以降はサンプル毎のオブジェクト生成は無い
+ *
+ * 32ビット環境でもアドレス空間を使い切らないように、ファイル全体ではなく
+ * SEGMENT_SIZE毎のセグメントを必要に応じてマップしてMAX_MAPPED_SEGMENTS個まで保持する
+ * スレッドセーフではないので複数のスレッドから同時に呼び出さないこと
+ */
+public class Mp4Demuxer implements Closeable {
+	private static final boolean DEBUG = false;	// set false on production
+	private static final String TAG = Mp4Demuxer.class.getSimpleName();
+
+	private static final String MIME_VIDEO_AVC = "video/avc";
+	private static final String MIME_VIDEO_HEVC = "video/hevc";
+	private static final String MIME_AUDIO_AAC = "audio/mp4a-latm";
+
+	/**
+	 * 1度にマップするバイト数
+	 */
+	private static final int SEGMENT_SIZE = 128 * 1024 * 1024;
+	/**
+	 * セグメントの境界をまたぐサンプルを1回でコピーできるように、次のセグメントと重ねてマップするバイト数
+	 * これより大きなサンプルが境界をまたぐ時はFileChannelから読み込む
+	 */
+	private static final int SEGMENT_OVERLAP = 8 * 1024 * 1024;
+	private static final int MAX_MAPPED_SEGMENTS = 4;
+
+	private static final int MOOV = fourCC("moov");
+	private static final int MOOF = fourCC("moof");
+	private static final int TRAK = fourCC("trak");
+	private static final int MVEX = fourCC("mvex");
+	private static final int TREX = fourCC("trex");
+	private static final int TKHD = fourCC("tkhd");
+	private static final int MDIA = fourCC("mdia");
+	private static final int MDHD = fourCC("mdhd");
+	private static final int HDLR = fourCC("hdlr");
+	private static final int MINF = fourCC("minf");
+	private static final int STBL = fourCC("stbl");
+	private static final int STSD = fourCC("stsd");
+	private static final int STTS = fourCC("stts");
+	private static final int CTTS = fourCC("ctts");
+	private static final int STSS = fourCC("stss");
+	private static final int STSZ = fourCC("stsz");
+	private static final int STSC = fourCC("stsc");
+	private static final int STCO = fourCC("stco");
+	private static final int CO64 = fourCC("co64");
+	private static final int TRAF = fourCC("traf");
+	private static final int TFHD = fourCC("tfhd");
+	private static final int TFDT = fourCC("tfdt");
+	private static final int TRUN = fourCC("trun");
+	private static final int AVC1 = fourCC("avc1");
+	private static final int AVC3 = fourCC("avc3");
+	private static final int HVC1 = fourCC("hvc1");
+	private static final int HEV1 = fourCC("hev1");
+	private static final int MP4A = fourCC("mp4a");
+	private static final int AVCC = fourCC("avcC");
+	private static final int HVCC = fourCC("hvcC");
+	private static final int ESDS = fourCC("esds");
+	private static final int VIDE = fourCC("vide");
+	private static final int SOUN = fourCC("soun");
+
+	/**
+	 * sample_is_non_sync_sample(trun/trex/tfhdのサンプルフラグ)
+	 */
+	private static final int SAMPLE_FLAG_NON_SYNC = 0x00010000;
+
+	/**
+	 * 1トラック分の情報とサンプルテーブル
+	 * サンプル番号はデコード順(ファイルに格納されている順)
+	 */
+	public static class Track {
+		private final int mIndex;
+		private int mTrackId;
+		private int mHandler;
+		private int mCodec;
+		private int mTimescale;
+		private int mWidth, mHeight;
+		private int mSampleRate, mChannelCount;
+		@Nullable
+		private byte[] mCodecConfig;
+		// サンプルテーブル
+		private int mCount;
+		@NonNull
+		private long[] mOffsets = new long[0];
+		@NonNull
+		private int[] mSizes = new int[0];
+		@NonNull
+		private long[] mPtsUs = new long[0];
+		@NonNull
+		private long[] mSyncBits = new long[0];
+		// フラグメントの解析用
+		private long mNextDecodeTime;
+		private int mDefaultDuration;
+		private int mDefaultSize;
+		private int mDefaultFlags;
+
+		private Track(final int index) {
+			mIndex = index;
+		}
+
+		/**
+		 * Mp4Demuxer内でのトラックインデックス(#readSample等へ渡す値)
+		 * @return
+		 */
+		public int getIndex() {
+			return mIndex;
+		}
+
+		public int getTrackId() {
+			return mTrackId;
+		}
+
+		public boolean isVideo() {
+			return mHandler == VIDE;
+		}
+
+		public boolean isAudio() {
+			return mHandler == SOUN;
+		}
+
+		/**
+		 * サンプルエントリーの種類からmimeを取得する
+		 * @return 対応していないコーデックの時はnull
+		 */
+		@Nullable
+		public String getMime() {
+			if ((mCodec == AVC1) || (mCodec == AVC3)) {
+				return MIME_VIDEO_AVC;
+			} else if ((mCodec == HVC1) || (mCodec == HEV1)) {
+				return MIME_VIDEO_HEVC;
+			} else if (mCodec == MP4A) {
+				return MIME_AUDIO_AAC;
+			}
+			return null;
+		}
+
+		public int getTimescale() {
+			return mTimescale;
+		}
+
+		public int getWidth() {
+			return mWidth;
+		}
+
+		public int getHeight() {
+			return mHeight;
+		}
+
+		public int getSampleRate() {
+			return mSampleRate;
+		}
+
+		public int getChannelCount() {
+			return mChannelCount;
+		}
+
+		/**
+		 * コーデック設定を取得する
+		 * avcC/hvcCはボックスの中身、AACはAudioSpecificConfig
+		 * @return
+		 */
+		@Nullable
+		public byte[] getCodecConfig() {
+			return mCodecConfig;
+		}
+
+		public int getSampleCount() {
+			return mCount;
+		}
+
+		public long getSampleOffset(final int sampleIx) {
+			return mOffsets[sampleIx];
+		}
+
+		public int getSampleSize(final int sampleIx) {
+			return mSizes[sampleIx];
+		}
+
+		public long getPresentationTimeUs(final int sampleIx) {
+			return mPtsUs[sampleIx];
+		}
+
+		public boolean isSyncSample(final int sampleIx) {
+			return (mSyncBits[sampleIx >>> 6] & (1L << sampleIx)) != 0;
+		}
+
+		/**
+		 * 最初のサンプルから最後のサンプルまでの長さ[マイクロ秒]
+		 * 最後のサンプルの長さは含まない
+		 * @return
+		 */
+		public long getDurationUs() {
+			return mCount > 0 ? mPtsUs[mCount - 1] - mPtsUs[0] : 0;
+		}
+
+		/**
+		 * 指定した時刻以前で最も近い同期サンプルのサンプル番号を取得する
+		 * PTSはほぼ単調増加している(Bフレームがあっても並べ替えは近傍のみ)ことを前提に2分探索する
+		 * @param timeUs
+		 * @return サンプルが無い時は-1
+		 */
+		public int getSampleIndex(final long timeUs) {
+			if (mCount <= 0) {
+				return -1;
+			}
+			int lo = 0, hi = mCount - 1;
+			while (lo < hi) {
+				final int mid = (lo + hi + 1) >>> 1;
+				if (mPtsUs[mid] <= timeUs) {
+					lo = mid;
+				} else {
+					hi = mid - 1;
+				}
+			}
+			while ((lo > 0) && !isSyncSample(lo)) {
+				lo--;
+			}
+			return lo;
+		}
+
+		private void ensureCapacity(final int capacity) {
+			if (capacity > mOffsets.length) {
+				final int n = Math.max(capacity, mOffsets.length * 2);
+				mOffsets = Arrays.copyOf(mOffsets, n);
+				mSizes = Arrays.copyOf(mSizes, n);
+				mPtsUs = Arrays.copyOf(mPtsUs, n);
+				mSyncBits = Arrays.copyOf(mSyncBits, (n + 63) >>> 6);
+			}
+		}
+
+		/**
+		 * サンプルを追加する(フラグメント用)
+		 */
+		private void add(final long offset, final int size,
+			final long time, final boolean sync) {
+
+			ensureCapacity(mCount + 1);
+			mOffsets[mCount] = offset;
+			mSizes[mCount] = size;
+			mPtsUs[mCount] = toUs(time);
+			if (sync) {
+				mSyncBits[mCount >>> 6] |= 1L << mCount;
+			}
+			mCount++;
+		}
+
+		private long toUs(final long time) {
+			return mTimescale > 0 ? time * 1000000L / mTimescale : time;
+		}
+	}
+
+	@NonNull
+	private final FileChannel mChannel;
+	@Nullable
+	private final Closeable mOwner;
+	private final long mFileSize;
+	@NonNull
+	private final List<Track> mTracks = new ArrayList<>();
+	@NonNull
+	private final List<Track> mUnmodifiableTracks = Collections.unmodifiableList(mTracks);
+	@NonNull
+	private final MappedByteBuffer[] mSegments = new MappedByteBuffer[MAX_MAPPED_SEGMENTS];
+	@NonNull
+	private final int[] mSegmentIndices = new int[MAX_MAPPED_SEGMENTS];
+	private int mNextSlot;
+	@NonNull
+	private final ByteBuffer mHeader = ByteBuffer.allocate(16);
+	/**
+	 * セグメントの境界をまたぐ大きなサンプルを読み込む時の作業用バッファ
+	 */
+	@Nullable
+	private ByteBuffer mWork;
+	/**
+	 * #readNextSampleで次に読み込むサンプル番号(トラック毎)
+	 */
+	@NonNull
+	private int[] mCursors = new int[0];
+
+	/**
+	 * コンストラクタ
+	 * @param file
+	 * @throws IOException
+	 */
+	public Mp4Demuxer(@NonNull final File file) throws IOException {
+		this(new FileInputStream(file));
+	}
+
+	private Mp4Demuxer(@NonNull final FileInputStream in) throws IOException {
+		this(in.getChannel(), in);
+	}
+
+	/**
+	 * コンストラクタ
+	 * channelはMp4Demuxer#closeでは閉じないので呼び出し元で閉じること
+	 * @param channel
+	 * @throws IOException
+	 */
+	public Mp4Demuxer(@NonNull final FileChannel channel) throws IOException {
+		this(channel, null);
+	}
+
+	private Mp4Demuxer(@NonNull final FileChannel channel,
+		@Nullable final Closeable owner) throws IOException {
+
+		mChannel = channel;
+		mOwner = owner;
+		Arrays.fill(mSegmentIndices, -1);
+		try {
+			mFileSize = channel.size();
+			parse();
+		} catch (final IOException | RuntimeException e) {
+			close();
+			throw e;
+		}
+		mCursors = new int[mTracks.size()];
+	}
+
+	@Override
+	public void close() throws IOException {
+		Arrays.fill(mSegments, null);
+		Arrays.fill(mSegmentIndices, -1);
+		if (mOwner != null) {
+			mOwner.close();
+		}
+	}
+
+	@NonNull
+	public List<Track> getTracks() {
+		return mUnmodifiableTracks;
+	}
+
+	/**
+	 * 指定したサンプルをMediaDataへ読み込む
+	 * 同期サンプルの時はflagsにMediaCodec.BUFFER_FLAG_KEY_FRAMEをセットする
+	 * @param trackIx
+	 * @param sampleIx
+	 * @param dst
+	 * @throws IOException
+	 */
+	public void readSample(final int trackIx, final int sampleIx,
+		@NonNull final MediaData dst) throws IOException {
+
+		final Track track = mTracks.get(trackIx);
+		final long offset = track.mOffsets[sampleIx];
+		final int size = track.mSizes[sampleIx];
+		final int flags = track.isSyncSample(sampleIx) ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+		final long pts = track.mPtsUs[sampleIx];
+		if (offset + size > mFileSize) {
+			throw new EOFException("sample exceeds end of file");
+		}
+		final int index = (int)(offset / SEGMENT_SIZE);
+		final int pos = (int)(offset - (long)index * SEGMENT_SIZE);
+		final MappedByteBuffer segment = segment(index);
+		if (pos + size <= segment.capacity()) {
+			dst.set(trackIx, segment, pos, size, pts, flags);
+		} else {
+			// セグメントの境界をまたぐ大きなサンプル
+			if ((mWork == null) || (mWork.capacity() < size)) {
+				mWork = ByteBuffer.allocateDirect(size);
+			}
+			mWork.clear();
+			mWork.limit(size);
+			while (mWork.hasRemaining()) {
+				if (mChannel.read(mWork, offset + mWork.position()) < 0) {
+					throw new EOFException();
+				}
+			}
+			dst.set(trackIx, mWork, 0, size, pts, flags);
+		}
+	}
+
+	/**
+	 * 全トラックを通してファイル上の並び順で次のサンプルを読み込む
+	 * @param dst
+	 * @return 全てのサンプルを読み込んだ後はfalse
+	 * @throws IOException
+	 */
+	public boolean readNextSample(@NonNull final MediaData dst) throws IOException {
+		int next = -1;
+		long nextOffset = Long.MAX_VALUE;
+		final int n = mTracks.size();
+		for (int i = 0; i < n; i++) {
+			final Track track = mTracks.get(i);
+			final int ix = mCursors[i];
+			if ((ix < track.mCount) && (track.mOffsets[ix] < nextOffset)) {
+				next = i;
+				nextOffset = track.mOffsets[ix];
+			}
+		}
+		if (next < 0) {
+			return false;
+		}
+		readSample(next, mCursors[next]++, dst);
+		return true;
+	}
+
+	/**
+	 * #readNextSampleで読み込む位置を変更する
+	 * 各トラックとも指定した時刻以前で最も近い同期サンプルから読み込む
+	 * @param timeUs
+	 */
+	public void seekTo(final long timeUs) {
+		final int n = mTracks.size();
+		for (int i = 0; i < n; i++) {
+			mCursors[i] = Math.max(0, mTracks.get(i).getSampleIndex(timeUs));
+		}
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * 指定したセグメントのマップを取得する
+	 * @param index
+	 * @return
+	 * @throws IOException
+	 */
+	@NonNull
+	private MappedByteBuffer segment(final int index) throws IOException {
+		for (int i = 0; i < MAX_MAPPED_SEGMENTS; i++) {
+			if (mSegmentIndices[i] == index) {
+				return mSegments[i];
+			}
+		}
+		final long start = (long)index * SEGMENT_SIZE;
+		final long length = Math.min((long)SEGMENT_SIZE + SEGMENT_OVERLAP, mFileSize - start);
+		final MappedByteBuffer result
+			= mChannel.map(FileChannel.MapMode.READ_ONLY, start, length);
+		// 一番古いものから入れ替える
+		mSegments[mNextSlot] = result;
+		mSegmentIndices[mNextSlot] = index;
+		mNextSlot = (mNextSlot + 1) % MAX_MAPPED_SEGMENTS;
+		return result;
+	}
+
+	/**
+	 * 指定した範囲のByteBufferを取得する
+	 * セグメント内に収まる時はセグメントのビューを返す
+	 * @param pos
+	 * @param size
+	 * @return
+	 * @throws IOException
+	 */
+	@NonNull
+	private ByteBuffer view(final long pos, final int size) throws IOException {
+		final int index = (int)(pos / SEGMENT_SIZE);
+		final int start = (int)(pos - (long)index * SEGMENT_SIZE);
+		final MappedByteBuffer segment = segment(index);
+		if (start + size <= segment.capacity()) {
+			final ByteBuffer result = segment.duplicate();
+			result.limit(start + size).position(start);
+			return result.slice();
+		} else {
+			return mChannel.map(FileChannel.MapMode.READ_ONLY, pos, size);
+		}
+	}
+
+	/**
+	 * トップレベルのボックスを順に読み込んでmoovとmoofを解析する
+	 * @throws IOException
+	 */
+	private void parse() throws IOException {
+		boolean hasMoov = false;
+		long pos = 0;
+		while (pos + BOX_HEADER_SIZE <= mFileSize) {
+			mHeader.clear();
+			mHeader.limit((int)Math.min(16, mFileSize - pos));
+			while (mHeader.hasRemaining()) {
+				if (mChannel.read(mHeader, pos + mHeader.position()) < 0) break;
+			}
+			long size = mHeader.getInt(0) & 0xffffffffL;
+			final int type = mHeader.getInt(4);
+			if (size == 1) {
+				if (mHeader.position() < 16) break;
+				size = mHeader.getLong(8);
+			} else if (size == 0) {
+				size = mFileSize - pos;
+			}
+			if ((size < BOX_HEADER_SIZE) || (pos + size > mFileSize)) {
+				// 書き込み途中で終了した時等、末尾が壊れていても読み込めたところまでは使う
+				if (DEBUG) Log.v(TAG, "parse:broken box at " + pos);
+				break;
+			}
+			if ((type == MOOV) || (type == MOOF)) {
+				if (size > Integer.MAX_VALUE) {
+					throw new IOException("box is too large");
+				}
+				final ByteBuffer b = view(pos, (int)size);
+				final int header = headerSize(b, 0);
+				if (type == MOOV) {
+					parseMoov(b, header, (int)size);
+					hasMoov = true;
+				} else if (hasMoov) {
+					parseMoof(b, header, (int)size, pos);
+				}
+			}
+			pos += size;
+		}
+		if (!hasMoov) {
+			throw new IOException("moov not found");
+		}
+		if (DEBUG) {
+			for (final Track track: mTracks) {
+				Log.v(TAG, "parse:track=" + track.mTrackId + ",samples=" + track.mCount);
+			}
+		}
+	}
+
+	private void parseMoov(@NonNull final ByteBuffer b,
+		final int start, final int end) throws IOException {
+
+		int mvex = -1;
+		for (int pos = start; pos + BOX_HEADER_SIZE <= end; ) {
+			final int size = boxSize(b, pos, end);
+			final int type = b.getInt(pos + 4);
+			if (type == TRAK) {
+				final Track track = new Track(mTracks.size());
+				parseTrak(b, pos + headerSize(b, pos), pos + size, track);
+				mTracks.add(track);
+			} else if (type == MVEX) {
+				mvex = pos;
+			}
+			pos += size;
+		}
+		if (mvex >= 0) {
+			// mvexはtrakより前にあることもあるので全てのtrakを読み込んでから処理する
+			final int end1 = mvex + boxSize(b, mvex, end);
+			for (int pos = mvex + headerSize(b, mvex); pos + BOX_HEADER_SIZE <= end1; ) {
+				final int size = boxSize(b, pos, end1);
+				if (b.getInt(pos + 4) == TREX) {
+					final Track track = findTrack(b.getInt(pos + 12));
+					if (track != null) {
+						track.mDefaultDuration = b.getInt(pos + 20);
+						track.mDefaultSize = b.getInt(pos + 24);
+						track.mDefaultFlags = b.getInt(pos + 28);
+					}
+				}
+				pos += size;
+			}
+		}
+	}
+
+	// stbl内のサンプルテーブル用ボックスの位置を保持する配列のインデックス
+	private static final int TABLE_STTS = 0;
+	private static final int TABLE_CTTS = 1;
+	private static final int TABLE_STSS = 2;
+	private static final int TABLE_STSZ = 3;
+	private static final int TABLE_STSC = 4;
+	private static final int TABLE_STCO = 5;
+	private static final int TABLE_NUM = 6;
+
+	private static void parseTrak(@NonNull final ByteBuffer b,
+		final int start, final int end, @NonNull final Track track) throws IOException {
+
+		final int[] tables = new int[TABLE_NUM];
+		Arrays.fill(tables, -1);
+		parseTrakBoxes(b, start, end, track, tables);
+		buildSampleTable(b, track, tables);
+	}
+
+	/**
+	 * trak以下を再帰的に解析する
+	 * @param tables サンプルテーブル用ボックスの位置, 全て揃ってからサンプルテーブルを展開する
+	 */
+	private static void parseTrakBoxes(@NonNull final ByteBuffer b,
+		final int start, final int end,
+		@NonNull final Track track, @NonNull final int[] tables) throws IOException {
+
+		for (int pos = start; pos + BOX_HEADER_SIZE <= end; ) {
+			final int size = boxSize(b, pos, end);
+			final int type = b.getInt(pos + 4);
+			final int body = pos + headerSize(b, pos);
+			if ((type == MDIA) || (type == MINF) || (type == STBL)) {
+				parseTrakBoxes(b, body, pos + size, track, tables);
+			} else if (type == TKHD) {
+				track.mTrackId = b.getInt(body + (b.get(body) == 1 ? 20 : 12));
+			} else if (type == MDHD) {
+				track.mTimescale = b.getInt(body + (b.get(body) == 1 ? 20 : 12));
+			} else if (type == HDLR) {
+				track.mHandler = b.getInt(body + 8);
+			} else if (type == STSD) {
+				if (b.getInt(body + 4) > 0) {
+					parseSampleEntry(b, body + 8, pos + size, track);
+				}
+			} else if (type == STTS) {
+				tables[TABLE_STTS] = body;
+			} else if (type == CTTS) {
+				tables[TABLE_CTTS] = body;
+			} else if (type == STSS) {
+				tables[TABLE_STSS] = body;
+			} else if (type == STSZ) {
+				tables[TABLE_STSZ] = body;
+			} else if (type == STSC) {
+				tables[TABLE_STSC] = body;
+			} else if ((type == STCO) || (type == CO64)) {
+				tables[TABLE_STCO] = pos;
+			}
+			pos += size;
+		}
+	}
+
+	/**
+	 * stsdの最初のサンプルエントリーを解析する
+	 */
+	private static void parseSampleEntry(@NonNull final ByteBuffer b,
+		final int pos, final int end, @NonNull final Track track) throws IOException {
+
+		final int size = boxSize(b, pos, end);
+		final int type = b.getInt(pos + 4);
+		track.mCodec = type;
+		final int children;
+		if (track.isVideo()) {
+			// VisualSampleEntry
+			track.mWidth = b.getShort(pos + 32) & 0xffff;
+			track.mHeight = b.getShort(pos + 34) & 0xffff;
+			children = pos + 86;
+		} else if (track.isAudio()) {
+			// AudioSampleEntry
+			track.mChannelCount = b.getShort(pos + 24) & 0xffff;
+			track.mSampleRate = b.getInt(pos + 32) >>> 16;
+			children = pos + 36;
+		} else {
+			return;
+		}
+		for (int p = children; p + BOX_HEADER_SIZE <= pos + size; ) {
+			final int sz = boxSize(b, p, pos + size);
+			final int t = b.getInt(p + 4);
+			if ((t == AVCC) || (t == HVCC)) {
+				track.mCodecConfig = new byte[sz - BOX_HEADER_SIZE];
+				final ByteBuffer src = b.duplicate();
+				src.position(p + BOX_HEADER_SIZE);
+				src.get(track.mCodecConfig);
+			} else if (t == ESDS) {
+				track.mCodecConfig = parseEsds(b, p + 12, p + sz);
+			}
+			p += sz;
+		}
+	}
+
+	/**
+	 * esdsからAudioSpecificConfig(DecoderSpecificInfo)を取り出す
+	 * @return 見つからなかった時はnull
+	 */
+	@Nullable
+	private static byte[] parseEsds(@NonNull final ByteBuffer b, int pos, final int end) {
+		while (pos + 2 <= end) {
+			final int tag = b.get(pos++) & 0xff;
+			int length = 0;
+			for (int i = 0; (i < 4) && (pos < end); i++) {
+				final int v = b.get(pos++) & 0xff;
+				length = (length << 7) | (v & 0x7f);
+				if ((v & 0x80) == 0) break;
+			}
+			if (tag == 0x03) {
+				// ES_Descriptor, 中のDecoderConfigDescriptorへ進む
+				final int flags = b.get(pos + 2) & 0xff;
+				pos += 3;
+				if ((flags & 0x80) != 0) pos += 2;	// dependsOn_ES_ID
+				if ((flags & 0x40) != 0) pos += 1 + (b.get(pos) & 0xff);	// URL
+				if ((flags & 0x20) != 0) pos += 2;	// OCR_ES_Id
+			} else if (tag == 0x04) {
+				// DecoderConfigDescriptor, 中のDecoderSpecificInfoへ進む
+				pos += 13;
+			} else if (tag == 0x05) {
+				if (pos + length > end) break;
+				final byte[] result = new byte[length];
+				final ByteBuffer src = b.duplicate();
+				src.position(pos);
+				src.get(result);
+				return result;
+			} else {
+				pos += length;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * stts/ctts/stss/stsz/stsc/stco(co64)からサンプルテーブルを展開する
+	 */
+	private static void buildSampleTable(@NonNull final ByteBuffer b,
+		@NonNull final Track track, @NonNull final int[] tables) throws IOException {
+
+		final int stsz = tables[TABLE_STSZ];
+		if (stsz < 0) {
+			return;
+		}
+		final int uniformSize = b.getInt(stsz + 4);
+		final int n = b.getInt(stsz + 8);
+		track.ensureCapacity(n);
+		track.mCount = n;
+		if (n <= 0) {
+			// フラグメント化したMP4はmoov内にサンプルが無い
+			return;
+		}
+		for (int i = 0; i < n; i++) {
+			track.mSizes[i] = uniformSize != 0 ? uniformSize : b.getInt(stsz + 12 + i * 4);
+		}
+		// デコード時刻, 後でcomposition offsetを加えてマイクロ秒へ変換する
+		final long[] times = track.mPtsUs;
+		final int stts = tables[TABLE_STTS];
+		if (stts >= 0) {
+			final int entries = b.getInt(stts + 4);
+			long time = 0;
+			int ix = 0;
+			for (int e = 0; (e < entries) && (ix < n); e++) {
+				final int count = b.getInt(stts + 8 + e * 8);
+				final long delta = b.getInt(stts + 12 + e * 8) & 0xffffffffL;
+				for (int k = 0; (k < count) && (ix < n); k++) {
+					times[ix++] = time;
+					time += delta;
+				}
+			}
+		}
+		final int ctts = tables[TABLE_CTTS];
+		if (ctts >= 0) {
+			final int entries = b.getInt(ctts + 4);
+			int ix = 0;
+			for (int e = 0; (e < entries) && (ix < n); e++) {
+				final int count = b.getInt(ctts + 8 + e * 8);
+				// version 0は符号無しだがMediaMuxerは負の値を書き込まないのでどちらも符号付きとして扱う
+				final int offset = b.getInt(ctts + 12 + e * 8);
+				for (int k = 0; (k < count) && (ix < n); k++) {
+					times[ix++] += offset;
+				}
+			}
+		}
+		for (int i = 0; i < n; i++) {
+			times[i] = track.toUs(times[i]);
+		}
+		final int stss = tables[TABLE_STSS];
+		if (stss >= 0) {
+			final int entries = b.getInt(stss + 4);
+			for (int e = 0; e < entries; e++) {
+				final int sample = b.getInt(stss + 8 + e * 4) - 1;
+				if ((sample >= 0) && (sample < n)) {
+					track.mSyncBits[sample >>> 6] |= 1L << sample;
+				}
+			}
+		} else {
+			// stssが無ければ全て同期サンプル
+			Arrays.fill(track.mSyncBits, 0, (n + 63) >>> 6, -1L);
+		}
+		final int stsc = tables[TABLE_STSC];
+		final int stco = tables[TABLE_STCO];
+		if ((stsc < 0) || (stco < 0)) {
+			throw new IOException("chunk table not found");
+		}
+		final boolean wide = b.getInt(stco + 4) == CO64;
+		final int chunkBody = stco + headerSize(b, stco);
+		final int chunks = b.getInt(chunkBody + 4);
+		final int entries = b.getInt(stsc + 4);
+		int sample = 0;
+		for (int e = 0; (e < entries) && (sample < n); e++) {
+			final int first = b.getInt(stsc + 8 + e * 12);
+			final int samplesPerChunk = b.getInt(stsc + 12 + e * 12);
+			final int next = e + 1 < entries ? b.getInt(stsc + 8 + (e + 1) * 12) : chunks + 1;
+			for (int chunk = first; (chunk < next) && (chunk <= chunks) && (sample < n); chunk++) {
+				long offset = wide
+					? b.getLong(chunkBody + 8 + (chunk - 1) * 8)
+					: b.getInt(chunkBody + 8 + (chunk - 1) * 4) & 0xffffffffL;
+				for (int k = 0; (k < samplesPerChunk) && (sample < n); k++) {
+					track.mOffsets[sample] = offset;
+					offset += track.mSizes[sample++];
+				}
+			}
+		}
+		if (sample < n) {
+			// チャンクテーブルが足りない時は配置が分かっているところまでにする
+			track.mCount = sample;
+		}
+	}
+
+	/**
+	 * moof(traf/tfhd/tfdt/trun)を解析してサンプルを追加する
+	 * @param moofPos moofのファイル上の位置(default-base-is-moofの基準位置)
+	 */
+	private void parseMoof(@NonNull final ByteBuffer b,
+		final int start, final int end, final long moofPos) throws IOException {
+
+		// base-data-offsetもdefault-base-is-moofも無い時は前のtrafのデータの終端が基準位置になる
+		long prevDataEnd = moofPos;
+		for (int pos = start; pos + BOX_HEADER_SIZE <= end; ) {
+			final int size = boxSize(b, pos, end);
+			if (b.getInt(pos + 4) == TRAF) {
+				prevDataEnd = parseTraf(b, pos + headerSize(b, pos), pos + size,
+					moofPos, prevDataEnd);
+			}
+			pos += size;
+		}
+	}
+
+	/**
+	 * @return このtrafのデータの終端位置
+	 */
+	private long parseTraf(@NonNull final ByteBuffer b,
+		final int start, final int end,
+		final long moofPos, final long prevDataEnd) throws IOException {
+
+		Track track = null;
+		long base = prevDataEnd;
+		long dataPos = prevDataEnd;
+		int defaultDuration = 0, defaultSize = 0, defaultFlags = 0;
+		for (int pos = start; pos + BOX_HEADER_SIZE <= end; ) {
+			final int size = boxSize(b, pos, end);
+			final int type = b.getInt(pos + 4);
+			final int body = pos + headerSize(b, pos);
+			if (type == TFHD) {
+				final int flags = b.getInt(body) & 0x00ffffff;
+				track = findTrack(b.getInt(body + 4));
+				if (track == null) {
+					return prevDataEnd;
+				}
+				int p = body + 8;
+				if ((flags & 0x000001) != 0) {
+					base = b.getLong(p);
+					p += 8;
+				} else if ((flags & 0x020000) != 0) {
+					base = moofPos;
+				}
+				if ((flags & 0x000002) != 0) p += 4;	// sample_description_index
+				defaultDuration = track.mDefaultDuration;
+				defaultSize = track.mDefaultSize;
+				defaultFlags = track.mDefaultFlags;
+				if ((flags & 0x000008) != 0) {
+					defaultDuration = b.getInt(p);
+					p += 4;
+				}
+				if ((flags & 0x000010) != 0) {
+					defaultSize = b.getInt(p);
+					p += 4;
+				}
+				if ((flags & 0x000020) != 0) {
+					defaultFlags = b.getInt(p);
+				}
+				dataPos = base;
+			} else if ((type == TFDT) && (track != null)) {
+				track.mNextDecodeTime = b.get(body) == 1
+					? b.getLong(body + 4) : b.getInt(body + 4) & 0xffffffffL;
+			} else if ((type == TRUN) && (track != null)) {
+				final int flags = b.getInt(body) & 0x00ffffff;
+				final int n = b.getInt(body + 4);
+				int p = body + 8;
+				if ((flags & 0x000001) != 0) {
+					dataPos = base + b.getInt(p);
+					p += 4;
+				}
+				int firstFlags = defaultFlags;
+				if ((flags & 0x000004) != 0) {
+					firstFlags = b.getInt(p);
+					p += 4;
+				}
+				track.ensureCapacity(track.mCount + n);
+				long time = track.mNextDecodeTime;
+				for (int i = 0; i < n; i++) {
+					long duration = defaultDuration & 0xffffffffL;
+					int sampleSize = defaultSize;
+					int sampleFlags = i == 0 ? firstFlags : defaultFlags;
+					int cto = 0;
+					if ((flags & 0x000100) != 0) {
+						duration = b.getInt(p) & 0xffffffffL;
+						p += 4;
+					}
+					if ((flags & 0x000200) != 0) {
+						sampleSize = b.getInt(p);
+						p += 4;
+					}
+					if ((flags & 0x000400) != 0) {
+						sampleFlags = b.getInt(p);
+						p += 4;
+					}
+					if ((flags & 0x000800) != 0) {
+						cto = b.getInt(p);
+						p += 4;
+					}
+					track.add(dataPos, sampleSize, time + cto,
+						(sampleFlags & SAMPLE_FLAG_NON_SYNC) == 0);
+					dataPos += sampleSize;
+					time += duration;
+				}
+				track.mNextDecodeTime = time;
+			}
+			pos += size;
+		}
+		return dataPos;
+	}
+
+	@Nullable
+	private Track findTrack(final int trackId) {
+		for (final Track track: mTracks) {
+			if (track.mTrackId == trackId) {
+				return track;
+			}
+		}
+		return null;
+	}
+}
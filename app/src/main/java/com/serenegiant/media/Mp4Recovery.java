@@ -0,0 +1,1190 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.util.Log;
+
+import com.serenegiant.utils.AnnexBScanner;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import static com.serenegiant.media.Mp4Boxes.*;
+
+/**
+ * MediaMuxerで録画中にアプリが強制終了してmoovが書き込まれなかったMP4ファイルを修復する
+ *
+ * MediaMuxer(MPEG4Writer)は録画終了時にまとめてmoovを書き込むので、途中で終了すると
+ * ftyp + (moov用に予約したfree) + サイズ未確定のmdatだけが残り再生できなくなる。
+ * このクラスでは録画時にRecoveryJournalで保存したサイドカーファイル(コーデック設定)を使って
+ * ・mdatをメモリーマップで先頭から走査し、4バイト長プレフィックス形式のH.264/AVCのアクセスユニットと
+ *   AACのフレームの境界を求める
+ * ・見つけたサンプルからstts/stss/stsz/stsc/stco(co64)を組み立ててmoovを生成し、
+ *   予約済みのfreeに収まればそこへ、収まらなければ末尾へ書き込んでmdatのサイズを確定する
+ * mdatのデータは移動せずにその場で修復するので数GBのファイルでもコピー用の空き容量は不要で、
+ * 使用するメモリーはマップするウインドウ(WINDOW_SIZE)とサンプル数に比例するサンプルテーブル分だけ
+ *
+ * AACの生フレームには同期ワードが無く境界を求められないので、フレームサイズはRecoveryJournalが
+ * 一定数毎にサイドカーへ追記したものを使う。映像のアクセスユニットと矛盾しないかを数サンプル先まで
+ * 確認しながら割り当て、サイドカーへ書き込まれる前に強制終了した末尾付近の音声は捨てる
+ * (その間の映像は読み飛ばした音声の後ろから探し直すが、映像が1フレームずつ交互に
+ * 書き込まれている時は見つけられずに失われることがある)
+ * 映像のサンプルの長さ(再生時間)は記録されていないので、音声がある時は音声の長さに合わせて均等に、
+ * 無い時はフレームレートから割り当てる
+ *
+ * Androidフレームワークに依存しないので通常のJVM上でコマンドラインから実行することもできる
+ * java com.serenegiant.media.Mp4Recovery <壊れたmp4ファイル> <サイドカーファイル>
+ */
+public class Mp4Recovery {
+	private static final boolean DEBUG = false;	// set false on production
+	private static final String TAG = Mp4Recovery.class.getSimpleName();
+
+	/**
+	 * サイドカーファイルの先頭のマジックナンバー('MREC')
+	 */
+	static final int JOURNAL_MAGIC = 0x4d524543;
+	static final int JOURNAL_VERSION = 1;
+	/**
+	 * サイドカーのレコード種別, トラック情報
+	 */
+	static final int TAG_TRACK = 1;
+	/**
+	 * サイドカーのレコード種別, 書き込んだサンプルのサイズ
+	 */
+	static final int TAG_SAMPLE_SIZES = 2;
+
+	/**
+	 * mdatをマップする時の1ウインドウのサイズ
+	 */
+	private static final int WINDOW_SIZE = 32 * 1024 * 1024;
+	private static final int MOVIE_TIMESCALE = 1000;
+	private static final int VIDEO_TIMESCALE = 90000;
+	private static final int DEFAULT_VIDEO_FPS = 30;
+	private static final int AAC_SAMPLES_PER_FRAME = 1024;
+	/**
+	 * 1つのNALユニット/アクセスユニットとして受け付ける最大バイト数
+	 */
+	private static final int MAX_NAL_SIZE = 8 * 1024 * 1024;
+	private static final int MAX_SAMPLE_SIZE = 16 * 1024 * 1024;
+	/**
+	 * サンプルの種類を決める時に矛盾しないことを確認する先読みサンプル数
+	 */
+	private static final int LOOKAHEAD = 3;
+	/**
+	 * 音声のチャンクとして受け付ける最大フレーム数
+	 * MPEG4Writerのインターリーブ間隔(デフォルト1秒)より十分長くしておく
+	 */
+	private static final int MAX_AUDIO_RUN = 512;
+	/**
+	 * サイドカーに無い音声を読み飛ばして次の映像サンプルを探す最大バイト数
+	 */
+	private static final int MAX_RESYNC_BYTES = 4 * 1024 * 1024;
+	/**
+	 * MPEG4Writerが録画中のmdatのサイズとして書き込んでおく値('????')
+	 */
+	private static final int MDAT_SIZE_PLACEHOLDER = 0x3f3f3f3f;
+
+	/**
+	 * 対応しているコーデック, MediaCodecUtilsの定数と同じ
+	 * (通常のJVM上でも動くようにMediaCodecUtilsは参照しない)
+	 */
+	private static final String MIME_VIDEO_AVC = "video/avc";
+	private static final String MIME_AUDIO_AAC = "audio/mp4a-latm";
+
+	/**
+	 * 音声のチャンクの終端を映像のサンプルで確認できなかった時のRecovery#findAudioRunEndの返り値
+	 */
+	private static final long RUN_UNVERIFIED = Long.MAX_VALUE;
+
+	private static final int KIND_NONE = 0;
+	private static final int KIND_VIDEO = 1;
+	private static final int KIND_AUDIO = 2;
+
+	/**
+	 * サイドカーファイルに保存した1トラック分の情報
+	 */
+	public static class TrackInfo {
+		public final int index;
+		@NonNull
+		public final String mime;
+		public final int width, height;
+		public final int frameRate;
+		public final int sampleRate;
+		public final int channelCount;
+		public final int bitrate;
+		/**
+		 * csd-0, csd-1, ...の内容
+		 */
+		@NonNull
+		public final List<byte[]> csd = new ArrayList<>();
+		private int[] sampleSizes = new int[0];
+		private int sampleCount;
+
+		private TrackInfo(final int index, @NonNull final String mime,
+			final int width, final int height, final int frameRate,
+			final int sampleRate, final int channelCount, final int bitrate) {
+
+			this.index = index;
+			this.mime = mime;
+			this.width = width;
+			this.height = height;
+			this.frameRate = frameRate;
+			this.sampleRate = sampleRate;
+			this.channelCount = channelCount;
+			this.bitrate = bitrate;
+		}
+
+		public boolean isVideo() {
+			return mime.startsWith("video/");
+		}
+
+		/**
+		 * サイドカーへ記録されていたサンプルサイズの数
+		 * @return
+		 */
+		public int getSampleCount() {
+			return sampleCount;
+		}
+
+		private void addSampleSize(final int size) {
+			if (sampleCount >= sampleSizes.length) {
+				final int[] s = new int[Math.max(256, sampleCount * 2)];
+				System.arraycopy(sampleSizes, 0, s, 0, sampleCount);
+				sampleSizes = s;
+			}
+			sampleSizes[sampleCount++] = size;
+		}
+
+		@NonNull
+		@Override
+		public String toString() {
+			return "TrackInfo{" +
+				"index=" + index +
+				", mime=" + mime +
+				", size=" + width + "x" + height +
+				", sampleRate=" + sampleRate +
+				", channelCount=" + channelCount +
+				", samples=" + sampleCount +
+				'}';
+		}
+	}
+
+	/**
+	 * サイドカーファイルの内容
+	 */
+	public static class Journal {
+		/**
+		 * 録画ファイルの出力先(uri文字列またはファイルパス)
+		 */
+		@NonNull
+		public final String output;
+		@NonNull
+		public final List<TrackInfo> tracks = new ArrayList<>();
+
+		private Journal(@NonNull final String output) {
+			this.output = output;
+		}
+
+		/**
+		 * サイドカーファイルを読み込む
+		 * 強制終了で最後のレコードが途中までしか書き込まれていない時はそのレコードを無視する
+		 * @param file
+		 * @return
+		 * @throws IOException サイドカーファイルではない時
+		 */
+		@NonNull
+		public static Journal read(@NonNull final File file) throws IOException {
+			try (final InputStream in = new FileInputStream(file)) {
+				return read(in);
+			}
+		}
+
+		@NonNull
+		public static Journal read(@NonNull final InputStream input) throws IOException {
+			final DataInputStream in = new DataInputStream(new BufferedInputStream(input));
+			if ((in.readInt() != JOURNAL_MAGIC) || (in.readInt() != JOURNAL_VERSION)) {
+				throw new IOException("not a recovery journal");
+			}
+			final Journal result = new Journal(in.readUTF());
+			try {
+				for ( ; ; ) {
+					final int tag = in.read();
+					if (tag < 0) break;
+					switch (tag) {
+					case TAG_TRACK:
+						result.readTrack(in);
+						break;
+					case TAG_SAMPLE_SIZES:
+						result.readSampleSizes(in);
+						break;
+					default:
+						throw new IOException("unknown record," + tag);
+					}
+				}
+			} catch (final EOFException e) {
+				if (DEBUG) Log.v(TAG, "read:truncated record");
+			}
+			return result;
+		}
+
+		@Nullable
+		public TrackInfo getTrack(final int index) {
+			for (final TrackInfo track: tracks) {
+				if (track.index == index) {
+					return track;
+				}
+			}
+			return null;
+		}
+
+		private void readTrack(@NonNull final DataInputStream in) throws IOException {
+			final int index = in.readUnsignedByte();
+			final TrackInfo track = new TrackInfo(index, in.readUTF(),
+				in.readInt(), in.readInt(), in.readInt(),
+				in.readInt(), in.readInt(), in.readInt());
+			final int n = in.readUnsignedByte();
+			for (int i = 0; i < n; i++) {
+				final byte[] csd = new byte[in.readInt()];
+				in.readFully(csd);
+				track.csd.add(csd);
+			}
+			if (getTrack(index) == null) {
+				tracks.add(track);
+			}
+		}
+
+		private void readSampleSizes(@NonNull final DataInputStream in) throws IOException {
+			final int index = in.readUnsignedByte();
+			final int n = in.readUnsignedShort();
+			final int[] sizes = new int[n];
+			for (int i = 0; i < n; i++) {
+				sizes[i] = in.readInt();
+			}
+			// レコード全体を読み込めた時だけ追加する
+			final TrackInfo track = getTrack(index);
+			if (track != null) {
+				for (final int size: sizes) {
+					track.addSampleSize(size);
+				}
+			}
+		}
+	}
+
+	/**
+	 * 修復結果
+	 */
+	public static class Result {
+		public final int videoSamples;
+		public final int audioSamples;
+		/**
+		 * 修復後の再生時間[マイクロ秒]
+		 */
+		public final long durationUs;
+		/**
+		 * どのサンプルにも割り当てられなかったmdat内のバイト数
+		 */
+		public final long skippedBytes;
+		/**
+		 * 途中までしか書き込まれていなかったために切り詰めた末尾のバイト数
+		 */
+		public final long truncatedBytes;
+
+		private Result(final int videoSamples, final int audioSamples,
+			final long durationUs, final long skippedBytes, final long truncatedBytes) {
+
+			this.videoSamples = videoSamples;
+			this.audioSamples = audioSamples;
+			this.durationUs = durationUs;
+			this.skippedBytes = skippedBytes;
+			this.truncatedBytes = truncatedBytes;
+		}
+
+		@NonNull
+		@Override
+		public String toString() {
+			return "Result{" +
+				"videoSamples=" + videoSamples +
+				", audioSamples=" + audioSamples +
+				", durationUs=" + durationUs +
+				", skippedBytes=" + skippedBytes +
+				", truncatedBytes=" + truncatedBytes +
+				'}';
+		}
+	}
+
+	/**
+	 * 指定したファイルを修復する
+	 * @param file 修復するMP4ファイル
+	 * @param journal RecoveryJournalで保存したサイドカーファイル
+	 * @return 修復結果, 修復の必要が無かった(moovがあった)時はnull
+	 * @throws IOException 修復できなかった時
+	 */
+	@Nullable
+	public static Result recover(@NonNull final File file, @NonNull final File journal)
+		throws IOException {
+
+		final Journal j = Journal.read(journal);
+		try (final RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			final FileChannel channel = raf.getChannel();
+			return recover(channel, channel, j);
+		}
+	}
+
+	/**
+	 * 修復する
+	 * content uriのようにFileDescriptorしか得られない時は
+	 * FileInputStream/FileOutputStreamのFileChannelをそれぞれ渡せばよい
+	 * @param input 読み込み用(メモリーマップする)
+	 * @param output 書き込み用, inputと同じファイルであること
+	 * @param journal
+	 * @return 修復結果, 修復の必要が無かった(moovがあった)時はnull
+	 * @throws IOException 修復できなかった時
+	 */
+	@Nullable
+	public static Result recover(
+		@NonNull final FileChannel input, @NonNull final FileChannel output,
+		@NonNull final Journal journal) throws IOException {
+
+		TrackInfo video = null;
+		TrackInfo audio = null;
+		for (final TrackInfo track: journal.tracks) {
+			if (MIME_VIDEO_AVC.equals(track.mime) && (video == null)) {
+				video = track;
+			} else if (MIME_AUDIO_AAC.equals(track.mime) && (audio == null)) {
+				audio = track;
+			} else {
+				throw new IOException("unsupported track," + track);
+			}
+		}
+		if ((video == null) && (audio == null)) {
+			throw new IOException("no track in journal");
+		}
+		final Recovery recovery = new Recovery(input, video, audio);
+		if (!recovery.findMdat()) {
+			return null;
+		}
+		recovery.scan();
+		return recovery.write(output);
+	}
+
+	/**
+	 * コマンドラインから実行するためのエントリーポイント
+	 * @param args 修復するMP4ファイルとサイドカーファイルのパス
+	 */
+	public static void main(final String[] args) {
+		if (args.length < 2) {
+			System.err.println("usage: Mp4Recovery <mp4 file> <journal file>");
+			System.exit(2);
+		}
+		try {
+			final Result result = recover(new File(args[0]), new File(args[1]));
+			System.out.println(result != null ? result.toString() : "moov already exists, nothing to do");
+		} catch (final IOException e) {
+			System.err.println("failed to recover:" + e.getMessage());
+			System.exit(1);
+		}
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * メモリーマップしたウインドウを移動しながらファイルを読み込むためのヘルパークラス
+	 */
+	private static class MappedReader {
+		@NonNull
+		private final FileChannel mChannel;
+		private final long mSize;
+		@Nullable
+		private MappedByteBuffer mWindow;
+		private long mWindowStart;
+		private long mWindowEnd;
+
+		private MappedReader(@NonNull final FileChannel channel) throws IOException {
+			mChannel = channel;
+			mSize = channel.size();
+		}
+
+		private int u8(final long pos) throws IOException {
+			ensure(pos, 1);
+			return mWindow.get((int)(pos - mWindowStart)) & 0xff;
+		}
+
+		private long u32(final long pos) throws IOException {
+			ensure(pos, 4);
+			return mWindow.getInt((int)(pos - mWindowStart)) & 0xffffffffL;
+		}
+
+		private long u64(final long pos) throws IOException {
+			ensure(pos, 8);
+			return mWindow.getLong((int)(pos - mWindowStart));
+		}
+
+		private void ensure(final long pos, final int bytes) throws IOException {
+			if ((mWindow == null) || (pos < mWindowStart) || (pos + bytes > mWindowEnd)) {
+				// 後方への参照(先読みからの戻り)でも再マップしないように少し手前から
+				mWindowStart = Math.max(0, (pos - 4096) & ~4095L);
+				mWindowEnd = Math.min(mSize, mWindowStart + WINDOW_SIZE);
+				if (pos + bytes > mWindowEnd) {
+					throw new EOFException();
+				}
+				mWindow = mChannel.map(FileChannel.MapMode.READ_ONLY,
+					mWindowStart, mWindowEnd - mWindowStart);
+			}
+		}
+
+		private void release() {
+			mWindow = null;
+		}
+	}
+
+	/**
+	 * 1トラック分のサンプルテーブル
+	 */
+	private static class Table {
+		@NonNull
+		private final TrackInfo info;
+		private final int trackId;
+		private final int timescale;
+		private int sampleDelta;
+		private int count;
+		private int[] sizes = new int[1024];
+		private int syncCount;
+		private int[] syncSamples = new int[64];
+		private int chunkCount;
+		private long[] chunkOffsets = new long[256];
+		private int[] chunkSamples = new int[256];
+		private long nextOffset = -1;
+
+		private Table(@NonNull final TrackInfo info, final int trackId) {
+			this.info = info;
+			this.trackId = trackId;
+			if (info.isVideo()) {
+				timescale = VIDEO_TIMESCALE;
+				sampleDelta = VIDEO_TIMESCALE / (info.frameRate > 0 ? info.frameRate : DEFAULT_VIDEO_FPS);
+			} else {
+				timescale = info.sampleRate;
+				sampleDelta = AAC_SAMPLES_PER_FRAME;
+			}
+		}
+
+		/**
+		 * サンプルを追加する
+		 * 直前のサンプルに続いていればそのチャンクへ、そうでなければ新しいチャンクへ追加する
+		 * @param offset
+		 * @param size
+		 * @param sync
+		 */
+		private void add(final long offset, final int size, final boolean sync) {
+			if (count >= sizes.length) {
+				final int[] s = new int[count * 2];
+				System.arraycopy(sizes, 0, s, 0, count);
+				sizes = s;
+			}
+			sizes[count++] = size;
+			if (sync) {
+				if (syncCount >= syncSamples.length) {
+					final int[] s = new int[syncCount * 2];
+					System.arraycopy(syncSamples, 0, s, 0, syncCount);
+					syncSamples = s;
+				}
+				syncSamples[syncCount++] = count;	// 1から始まるサンプル番号
+			}
+			if (offset != nextOffset) {
+				if (chunkCount >= chunkOffsets.length) {
+					final int n = chunkCount * 2;
+					final long[] o = new long[n];
+					System.arraycopy(chunkOffsets, 0, o, 0, chunkCount);
+					chunkOffsets = o;
+					final int[] c = new int[n];
+					System.arraycopy(chunkSamples, 0, c, 0, chunkCount);
+					chunkSamples = c;
+				}
+				chunkOffsets[chunkCount] = offset;
+				chunkSamples[chunkCount] = 0;
+				chunkCount++;
+			}
+			chunkSamples[chunkCount - 1]++;
+			nextOffset = offset + size;
+		}
+
+		/**
+		 * 他のトラックのサンプルが書き込まれたので次のサンプルは新しいチャンクにする
+		 */
+		private void breakChunk() {
+			nextOffset = -1;
+		}
+
+		private long duration() {
+			return (long)count * sampleDelta;
+		}
+
+		/**
+		 * stsc用に同じサンプル数のチャンクが続く所をまとめた時のエントリー数
+		 * @return
+		 */
+		private int stscEntries() {
+			int n = 0;
+			for (int i = 0; i < chunkCount; i++) {
+				if ((i == 0) || (chunkSamples[i] != chunkSamples[i - 1])) {
+					n++;
+				}
+			}
+			return n;
+		}
+	}
+
+	/**
+	 * 1回の修復処理の状態
+	 */
+	private static class Recovery {
+		@NonNull
+		private final MappedReader mReader;
+		@Nullable
+		private final Table mVideo;
+		@Nullable
+		private final Table mAudio;
+		@NonNull
+		private final int[] mAudioSizes;
+		private final int mAudioCount;
+		private long mFreePos = -1;
+		private long mFreeSize;
+		private long mMdatPos = -1;
+		private int mMdatHeaderSize;
+		private long mDataStart;
+		private long mDataEnd;
+		/**
+		 * 最後に割り当てたサンプルの終端
+		 */
+		private long mEnd;
+		private long mSkippedBytes;
+
+		private Recovery(@NonNull final FileChannel input,
+			@Nullable final TrackInfo video, @Nullable final TrackInfo audio)
+				throws IOException {
+
+			mReader = new MappedReader(input);
+			int trackId = 1;
+			mVideo = video != null ? new Table(video, trackId++) : null;
+			mAudio = audio != null ? new Table(audio, trackId) : null;
+			mAudioSizes = audio != null ? audio.sampleSizes : new int[0];
+			mAudioCount = audio != null ? audio.sampleCount : 0;
+		}
+
+		/**
+		 * トップレベルのボックスをたどってmdatを探す
+		 * @return true: 修復が必要, false: moovがあるので修復不要
+		 * @throws IOException mdatが見つからない時
+		 */
+		private boolean findMdat() throws IOException {
+			final long fileSize = mReader.mSize;
+			long pos = 0;
+			while (pos + BOX_HEADER_SIZE <= fileSize) {
+				final long size32 = mReader.u32(pos);
+				final int type = (int)mReader.u32(pos + 4);
+				int headerSize = BOX_HEADER_SIZE;
+				long size = size32;
+				if (size32 == 1) {
+					headerSize += 8;
+					size = pos + headerSize <= fileSize ? mReader.u64(pos + 8) : -1;
+				} else if (size32 == 0) {
+					size = fileSize - pos;
+				}
+				if (type == fourCC("moov")) {
+					return false;
+				}
+				if (type == fourCC("mdat")) {
+					mMdatPos = pos;
+					mMdatHeaderSize = headerSize;
+					mDataStart = pos + headerSize;
+					// 録画中はサイズが未確定('????')なのでファイルの終端までをmdatとみなす
+					final boolean valid = (size32 != MDAT_SIZE_PLACEHOLDER)
+						&& (size >= headerSize) && (pos + size <= fileSize);
+					mDataEnd = valid ? pos + size : fileSize;
+					if (valid && (pos + size < fileSize)) {
+						// mdatの後ろにmoovがあるかもしれない
+						if (hasMoovAfter(pos + size)) {
+							return false;
+						}
+					}
+					if (DEBUG) Log.v(TAG, "findMdat:pos=" + pos + ",data=" + mDataStart + "-" + mDataEnd);
+					return true;
+				}
+				if ((size < headerSize) || (pos + size > fileSize)) {
+					break;
+				}
+				if ((type == fourCC("free")) || (type == fourCC("skip"))) {
+					mFreePos = pos;
+					mFreeSize = size;
+				} else {
+					mFreePos = -1;
+				}
+				pos += size;
+			}
+			throw new IOException("mdat not found");
+		}
+
+		private boolean hasMoovAfter(long pos) throws IOException {
+			final long fileSize = mReader.mSize;
+			while (pos + BOX_HEADER_SIZE <= fileSize) {
+				final long size = mReader.u32(pos);
+				if (mReader.u32(pos + 4) == fourCC("moov")) {
+					return true;
+				}
+				if ((size < BOX_HEADER_SIZE) || (pos + size > fileSize)) {
+					break;
+				}
+				pos += size;
+			}
+			return false;
+		}
+
+		/**
+		 * mdatを先頭から走査してサンプルを割り当てる
+		 * @throws IOException
+		 */
+		private void scan() throws IOException {
+			long pos = mDataStart;
+			int audioIx = 0;
+			while (pos < mDataEnd) {
+				final long videoEnd = parseVideoSample(pos);
+				final boolean videoOk = (videoEnd > 0) && consistent(videoEnd, audioIx, LOOKAHEAD);
+				// 音声のフレームがたまたま映像として解釈できることもあるので
+				// 映像のサンプルが続かない時は音声としても解釈できるかを確認する
+				final boolean videoRun = videoOk && isVideoRun(videoEnd);
+				// 映像とも解釈できる時は偶然の一致を避けるために音声のチャンクの終端をより深く確認する
+				final long runEnd = !videoRun
+					&& (audioIx < mAudioCount) && (pos + mAudioSizes[audioIx] <= mDataEnd)
+						? findAudioRunEnd(pos, audioIx, videoOk ? 2 : 1) : -1;
+				final int kind;
+				if (videoOk && (runEnd >= 0)) {
+					// 1サンプルだけの映像とも音声とも解釈できる時は、映像の後ろから始めた音声と比べて
+					// 先に映像のサンプルの先頭(次のチャンク)へ達する方を正しい解釈とみなす
+					// 音声のサイズを誤った位置から当てはめても映像のチャンク内の境界に偶然一致することが
+					// あるが、それは正しいチャンクの終端よりも後ろになる
+					// また音声のチャンクの終端が映像のサンプルの途中にあれば映像の方が誤り
+					final long afterVideo = runEnd < videoEnd ? -1 : findAudioRunEnd(videoEnd, audioIx, 2);
+					kind = (runEnd != RUN_UNVERIFIED)
+						&& ((afterVideo < 0) || ((afterVideo != RUN_UNVERIFIED) && (runEnd < afterVideo)))
+							? KIND_AUDIO : KIND_VIDEO;
+				} else if (videoOk) {
+					kind = KIND_VIDEO;
+				} else if (runEnd >= 0) {
+					kind = KIND_AUDIO;
+				} else {
+					kind = KIND_NONE;
+				}
+				if (kind == KIND_VIDEO) {
+					if (mAudio != null) mAudio.breakChunk();
+					mVideo.add(pos, (int)(videoEnd - pos), isSyncSample(pos, videoEnd));
+					pos = videoEnd;
+				} else if (kind == KIND_AUDIO) {
+					if (mVideo != null) mVideo.breakChunk();
+					final int size = mAudioSizes[audioIx++];
+					mAudio.add(pos, size, true);
+					pos += size;
+				} else {
+					// サイドカーに書き込まれる前の音声のチャンクなら次の映像のサンプルまで読み飛ばす
+					final long next = (mAudio != null) && (audioIx >= mAudioCount)
+						? resync(pos) : -1;
+					if (next < 0) {
+						break;
+					}
+					mSkippedBytes += next - pos;
+					if (mAudio != null) mAudio.breakChunk();
+					pos = next;
+				}
+				mEnd = pos;
+			}
+			if (mEnd == 0) {
+				mEnd = mDataStart;
+			}
+			if (DEBUG) Log.v(TAG, "scan:end=" + mEnd + ",dataEnd=" + mDataEnd);
+		}
+
+		/**
+		 * 指定位置からLOOKAHEADサンプル先まで映像/音声のどちらかとして矛盾なく解釈できるかどうか
+		 * サイドカーの音声サイズを使い切った後はそれ以降を確認できないので矛盾なしとみなす
+		 * @param pos
+		 * @param audioIx
+		 * @param depth
+		 * @return
+		 * @throws IOException
+		 */
+		private boolean consistent(final long pos, final int audioIx, final int depth)
+			throws IOException {
+
+			if ((pos == mDataEnd) || (depth <= 0)) {
+				return true;
+			}
+			if ((mAudio != null) && (audioIx >= mAudioCount)) {
+				return true;
+			}
+			final long videoEnd = parseVideoSample(pos);
+			if ((videoEnd > 0) && consistent(videoEnd, audioIx, depth - 1)) {
+				return true;
+			}
+			return findAudioRunEnd(pos, audioIx, 1) >= 0;
+		}
+
+		/**
+		 * 指定位置からサイドカーの音声サイズを順に当てはめた時に音声のチャンクとして矛盾しない範囲を求める
+		 * AACのフレーム自体は検証できないので、MAX_AUDIO_RUNフレーム以内で映像のサンプルの先頭
+		 * (depthが正ならその映像のサンプルの後ろも映像/音声/終端のいずれか)に達した時だけ音声とみなす
+		 * mdatの終端に達するかサイドカーのサイズを使い切った時はRUN_UNVERIFIEDを返す
+		 * @param pos
+		 * @param audioIx
+		 * @param depth
+		 * @return 映像のサンプルの先頭に達した位置, RUN_UNVERIFIED, 音声として解釈できなければ-1
+		 * @throws IOException
+		 */
+		private long findAudioRunEnd(final long pos, final int audioIx, final int depth)
+			throws IOException {
+
+			if (audioIx >= mAudioCount) {
+				return -1;
+			}
+			long p = pos;
+			for (int i = audioIx; i < audioIx + MAX_AUDIO_RUN; i++) {
+				if (i >= mAudioCount) {
+					return RUN_UNVERIFIED;
+				}
+				final int size = mAudioSizes[i];
+				if (size <= 0) {
+					return -1;
+				}
+				if (mVideo == null) {
+					// 音声のみなら先頭のフレームが収まればよい
+					return p + size <= mDataEnd ? RUN_UNVERIFIED : -1;
+				}
+				p += size;
+				if (p >= mDataEnd) {
+					// 末尾の途中までしか書き込まれていないフレーム
+					return (i > audioIx) || (p == mDataEnd) ? RUN_UNVERIFIED : -1;
+				}
+				final long videoEnd = parseVideoSample(p);
+				if (videoEnd > 0) {
+					if ((depth <= 0)
+						|| (videoEnd == mDataEnd) || (i + 1 >= mAudioCount)
+						|| (parseVideoSample(videoEnd) > 0)) {
+						return p;
+					}
+					// サイドカーのサイズを使い切っただけでは確認したことにならない
+					final long next = findAudioRunEnd(videoEnd, i + 1, depth - 1);
+					if ((next >= 0) && (next != RUN_UNVERIFIED)) {
+						return p;
+					}
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * 指定位置から映像のサンプルとして続けて解釈できるかどうか
+		 * 実際の映像のチャンクは通常複数のサンプルを含むが、音声のフレームが偶然映像として
+		 * 解釈できたとしても2サンプル以上続くことはまず無い
+		 * @param videoEnd 指定位置の映像のサンプルの終端
+		 * @return
+		 * @throws IOException
+		 */
+		private boolean isVideoRun(final long videoEnd) throws IOException {
+			return (videoEnd == mDataEnd) || (parseVideoSample(videoEnd) > 0);
+		}
+
+		/**
+		 * 指定位置から4バイト長プレフィックス形式のH.264/AVCのアクセスユニットとして解釈できる範囲を求める
+		 * @param pos
+		 * @return アクセスユニットの終端, 解釈できない時は-1
+		 * @throws IOException
+		 */
+		private long parseVideoSample(final long pos) throws IOException {
+			if (mVideo == null) {
+				return -1;
+			}
+			long p = pos;
+			boolean hasSlice = false;
+			while (p + 5 < mDataEnd) {
+				final long len = mReader.u32(p);
+				final int header = mReader.u8(p + 4);
+				if ((len < 2) || (len > MAX_NAL_SIZE) || !isValidNalHeader(header)) {
+					break;
+				}
+				final int type = header & 0x1f;
+				final boolean isSlice = (type == 1) || (type == 5);
+				// first_mb_in_slice(ue(v))が0なら先頭ビットが1
+				final boolean firstSlice = isSlice && ((mReader.u8(p + 5) & 0x80) != 0);
+				if (hasSlice) {
+					// スライスの後にアクセスユニットの先頭になるNALユニットが来れば次のサンプル
+					if (!isSlice || firstSlice) {
+						break;
+					}
+				} else if (isSlice && !firstSlice) {
+					// アクセスユニットの途中のスライスから始まることはない
+					return -1;
+				}
+				if (p + 4 + len > mDataEnd) {
+					// 途中までしか書き込まれていないのでこのアクセスユニットは使えない
+					return -1;
+				}
+				hasSlice |= isSlice;
+				p += 4 + len;
+				if (p - pos > MAX_SAMPLE_SIZE) {
+					return -1;
+				}
+			}
+			return hasSlice ? p : -1;
+		}
+
+		/**
+		 * 画面録画のエンコーダーが出力するNALユニットの種類とnal_ref_idcの組み合わせかどうか
+		 * @param header
+		 * @return
+		 */
+		private static boolean isValidNalHeader(final int header) {
+			if ((header & 0x80) != 0) {
+				return false;	// forbidden_zero_bit
+			}
+			final int ref = (header >> 5) & 0x03;
+			switch (header & 0x1f) {
+			case 1:		// non-IDR slice
+				return true;
+			case 5:		// IDR slice
+			case 7:		// SPS
+			case 8:		// PPS
+				return ref != 0;
+			case 6:		// SEI
+			case 9:		// AUD
+			case 12:	// filler
+				return ref == 0;
+			default:
+				return false;
+			}
+		}
+
+		private boolean isSyncSample(final long pos, final long end) throws IOException {
+			for (long p = pos; p + 4 < end; ) {
+				if ((mReader.u8(p + 4) & 0x1f) == 5) {
+					return true;
+				}
+				p += 4 + mReader.u32(p);
+			}
+			return false;
+		}
+
+		/**
+		 * 次の映像のサンプルの先頭を探す
+		 * @param pos
+		 * @return 見つからなければ-1
+		 * @throws IOException
+		 */
+		private long resync(final long pos) throws IOException {
+			final long limit = Math.min(mDataEnd, pos + MAX_RESYNC_BYTES);
+			for (long p = pos + 1; p < limit; p++) {
+				// 誤検出を避けるために2サンプル続けて解釈できるか終端まで届く時だけ受け付ける
+				final long end = parseVideoSample(p);
+				if ((end > 0) && ((end == mDataEnd) || (parseVideoSample(end) > 0))) {
+					return p;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * moovを生成してmdatのサイズを確定する
+		 * @param output
+		 * @return
+		 * @throws IOException
+		 */
+		@NonNull
+		private Result write(@NonNull final FileChannel output) throws IOException {
+			mReader.release();
+			final int videoSamples = mVideo != null ? mVideo.count : 0;
+			final int audioSamples = mAudio != null ? mAudio.count : 0;
+			if (videoSamples + audioSamples == 0) {
+				throw new IOException("no sample found");
+			}
+			if ((mVideo != null) && (mAudio != null) && (videoSamples > 0) && (audioSamples > 0)) {
+				// 映像の再生時間は記録されていないので音声の長さに合わせる
+				final long audioUs = mAudio.duration() * 1000000L / mAudio.timescale;
+				mVideo.sampleDelta = (int)Math.max(1,
+					audioUs * mVideo.timescale / 1000000L / videoSamples);
+			}
+			final long mdatSize = mEnd - mMdatPos;
+			final boolean co64 = mEnd > 0xffffffffL;
+			final ByteBuffer moov = buildMoov(co64);
+			final int moovSize = moov.remaining();
+			final long truncated = mReader.mSize - mEnd;
+			final ByteBuffer header = ByteBuffer.allocate(16);
+			if ((mFreePos >= 0) && (mFreePos + mFreeSize == mMdatPos)
+				&& ((moovSize == mFreeSize) || (moovSize + BOX_HEADER_SIZE <= mFreeSize))) {
+
+				// moov用に予約されていたfreeへ書き込む
+				writeFully(output, moov, mFreePos);
+				if (moovSize < mFreeSize) {
+					header.clear();
+					header.putInt((int)(mFreeSize - moovSize));
+					putFourCC(header, "free");
+					header.flip();
+					writeFully(output, header, mFreePos + moovSize);
+				}
+				writeMdatSize(output, header, mdatSize, true);
+				output.truncate(mEnd);
+			} else {
+				writeMdatSize(output, header, mdatSize, false);
+				writeFully(output, moov, mEnd);
+				output.truncate(mEnd + moovSize);
+			}
+			output.force(true);
+			final long durationUs = Math.max(
+				mVideo != null ? mVideo.duration() * 1000000L / mVideo.timescale : 0,
+				mAudio != null ? mAudio.duration() * 1000000L / mAudio.timescale : 0);
+			return new Result(videoSamples, audioSamples, durationUs, mSkippedBytes, truncated);
+		}
+
+		/**
+		 * mdatのサイズを書き換える
+		 * @param output
+		 * @param work
+		 * @param mdatSize
+		 * @param isLast mdatがファイルの最後のボックスかどうか, 32ビットで表せない時は0(終端まで)にする
+		 * @throws IOException
+		 */
+		private void writeMdatSize(@NonNull final FileChannel output,
+			@NonNull final ByteBuffer work, final long mdatSize, final boolean isLast)
+				throws IOException {
+
+			work.clear();
+			if (mMdatHeaderSize > BOX_HEADER_SIZE) {
+				work.putInt(1);
+				putFourCC(work, "mdat");
+				work.putLong(mdatSize);
+			} else if (mdatSize <= 0xffffffffL) {
+				work.putInt((int)mdatSize);
+			} else if (isLast) {
+				work.putInt(0);
+			} else {
+				throw new IOException("mdat is too large for 32bit box header");
+			}
+			work.flip();
+			writeFully(output, work, mMdatPos);
+		}
+
+		@NonNull
+		private ByteBuffer buildMoov(final boolean co64) {
+			int capacity = 2048;
+			for (final Table table: new Table[] {mVideo, mAudio}) {
+				if (table != null) {
+					capacity += 1024 + table.count * 4 + table.syncCount * 4
+						+ table.chunkCount * 20;
+					for (final byte[] csd: table.info.csd) {
+						capacity += csd.length + 8;
+					}
+				}
+			}
+			final ByteBuffer b = ByteBuffer.allocate(capacity);
+			final long movieDuration = Math.max(
+				mVideo != null ? mVideo.duration() * MOVIE_TIMESCALE / mVideo.timescale : 0,
+				mAudio != null ? mAudio.duration() * MOVIE_TIMESCALE / mAudio.timescale : 0);
+			final int moov = beginBox(b, "moov");
+			int box = beginFullBox(b, "mvhd", 0, 0);
+			b.putInt(0);	// creation_time
+			b.putInt(0);	// modification_time
+			b.putInt(MOVIE_TIMESCALE);
+			b.putInt((int)movieDuration);
+			b.putInt(0x00010000);	// rate=1.0
+			b.putShort((short)0x0100);	// volume=1.0
+			b.putShort((short)0);
+			b.putInt(0).putInt(0);
+			putMatrix(b);
+			for (int i = 0; i < 6; i++) {
+				b.putInt(0);	// pre_defined
+			}
+			b.putInt((mAudio != null ? mAudio.trackId : mVideo.trackId) + 1);	// next_track_ID
+			endBox(b, box);
+			for (final Table table: new Table[] {mVideo, mAudio}) {
+				if ((table != null) && (table.count > 0)) {
+					writeTrak(b, table, co64);
+				}
+			}
+			endBox(b, moov);
+			b.flip();
+			return b;
+		}
+
+		private static void writeTrak(@NonNull final ByteBuffer b,
+			@NonNull final Table table, final boolean co64) {
+
+			final TrackInfo info = table.info;
+			final boolean isVideo = info.isVideo();
+			final int trak = beginBox(b, "trak");
+			int box = beginFullBox(b, "tkhd", 0, 0x000003);	// track_enabled | track_in_movie
+			b.putInt(0);	// creation_time
+			b.putInt(0);	// modification_time
+			b.putInt(table.trackId);
+			b.putInt(0);
+			b.putInt((int)(table.duration() * MOVIE_TIMESCALE / table.timescale));
+			b.putInt(0).putInt(0);
+			b.putShort((short)0);	// layer
+			b.putShort((short)0);	// alternate_group
+			b.putShort((short)(isVideo ? 0 : 0x0100));	// volume
+			b.putShort((short)0);
+			putMatrix(b);
+			b.putInt(info.width << 16);
+			b.putInt(info.height << 16);
+			endBox(b, box);
+			final int mdia = beginBox(b, "mdia");
+			box = beginFullBox(b, "mdhd", 0, 0);
+			b.putInt(0);	// creation_time
+			b.putInt(0);	// modification_time
+			b.putInt(table.timescale);
+			b.putInt((int)table.duration());
+			b.putShort((short)0x55c4);	// language='und'
+			b.putShort((short)0);
+			endBox(b, box);
+			box = beginFullBox(b, "hdlr", 0, 0);
+			b.putInt(0);
+			putFourCC(b, isVideo ? "vide" : "soun");
+			b.putInt(0).putInt(0).putInt(0);
+			putCString(b, isVideo ? "VideoHandler" : "SoundHandler");
+			endBox(b, box);
+			final int minf = beginBox(b, "minf");
+			if (isVideo) {
+				box = beginFullBox(b, "vmhd", 0, 1);
+				b.putShort((short)0);	// graphicsmode
+				b.putShort((short)0).putShort((short)0).putShort((short)0);	// opcolor
+			} else {
+				box = beginFullBox(b, "smhd", 0, 0);
+				b.putShort((short)0);	// balance
+				b.putShort((short)0);
+			}
+			endBox(b, box);
+			final int dinf = beginBox(b, "dinf");
+			final int dref = beginFullBox(b, "dref", 0, 0);
+			b.putInt(1);	// entry_count
+			box = beginFullBox(b, "url ", 0, 1);	// 同じファイル内
+			endBox(b, box);
+			endBox(b, dref);
+			endBox(b, dinf);
+			final int stbl = beginBox(b, "stbl");
+			final int stsd = beginFullBox(b, "stsd", 0, 0);
+			b.putInt(1);	// entry_count
+			if (isVideo) {
+				final List<byte[]> sps = new ArrayList<>();
+				final List<byte[]> pps = new ArrayList<>();
+				for (final byte[] csd: info.csd) {
+					splitParameterSets(csd, sps, pps);
+				}
+				writeAvc1(b, info.width, info.height, sps, pps);
+			} else {
+				writeMp4a(b, info.channelCount, info.sampleRate, info.bitrate,
+					info.csd.isEmpty() ? new byte[0] : info.csd.get(0));
+			}
+			endBox(b, stsd);
+			// 全サンプル同じ長さ
+			box = beginFullBox(b, "stts", 0, 0);
+			b.putInt(1);
+			b.putInt(table.count);
+			b.putInt(table.sampleDelta);
+			endBox(b, box);
+			if (isVideo && (table.syncCount < table.count)) {
+				box = beginFullBox(b, "stss", 0, 0);
+				b.putInt(table.syncCount);
+				for (int i = 0; i < table.syncCount; i++) {
+					b.putInt(table.syncSamples[i]);
+				}
+				endBox(b, box);
+			}
+			box = beginFullBox(b, "stsz", 0, 0);
+			b.putInt(0);	// sample_size, サンプル毎に指定
+			b.putInt(table.count);
+			for (int i = 0; i < table.count; i++) {
+				b.putInt(table.sizes[i]);
+			}
+			endBox(b, box);
+			box = beginFullBox(b, "stsc", 0, 0);
+			b.putInt(table.stscEntries());
+			for (int i = 0; i < table.chunkCount; i++) {
+				if ((i == 0) || (table.chunkSamples[i] != table.chunkSamples[i - 1])) {
+					b.putInt(i + 1);	// first_chunk
+					b.putInt(table.chunkSamples[i]);
+					b.putInt(1);	// sample_description_index
+				}
+			}
+			endBox(b, box);
+			box = beginFullBox(b, co64 ? "co64" : "stco", 0, 0);
+			b.putInt(table.chunkCount);
+			for (int i = 0; i < table.chunkCount; i++) {
+				if (co64) {
+					b.putLong(table.chunkOffsets[i]);
+				} else {
+					b.putInt((int)table.chunkOffsets[i]);
+				}
+			}
+			endBox(b, box);
+			endBox(b, stbl);
+			endBox(b, minf);
+			endBox(b, mdia);
+			endBox(b, trak);
+		}
+	}
+
+	/**
+	 * Annex-B形式のcsdからSPSとPPSを取り出す
+	 * @param csd
+	 * @param sps
+	 * @param pps
+	 */
+	private static void splitParameterSets(@NonNull final byte[] csd,
+		@NonNull final List<byte[]> sps, @NonNull final List<byte[]> pps) {
+
+		final ByteBuffer src = ByteBuffer.wrap(csd);
+		final AnnexBScanner scanner = new AnnexBScanner();
+		final int n = scanner.scan(src, 0, src.limit());
+		for (int i = 0; i < n; i++) {
+			final byte[] nal = new byte[scanner.getLength(i)];
+			src.position(scanner.getOffset(i));
+			src.get(nal);
+			switch (nal[0] & 0x1f) {
+			case 7:	sps.add(nal); break;
+			case 8:	pps.add(nal); break;
+			default: break;
+			}
+		}
+	}
+
+	private static void writeFully(@NonNull final FileChannel channel,
+		@NonNull final ByteBuffer buffer, long pos) throws IOException {
+
+		while (buffer.hasRemaining()) {
+			pos += channel.write(buffer, pos);
+		}
+	}
+}
@@ -0,0 +1,186 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import java.nio.ByteBuffer;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+
+/**
+ * NALユニットのペイロード(RBSP)をビット単位で読み込むためのヘルパークラス
+ * ByteBufferの指定範囲を絶対位置指定で読み込むのでposition/limitは変更しない
+ * 00 00 03のエミュレーション防止バイトは読み込み時に取り除く
+ */
+public class NalBitReader {
+	@NonNull
+	private final ByteBuffer mBuf;
+	private final int mEnd;
+	/**
+	 * 次に読み込むバイトの位置(絶対位置)
+	 */
+	private int mPos;
+	/**
+	 * 直前に連続して読み込んだ0x00の数
+	 */
+	private int mZeros;
+	/**
+	 * 読み込み中のバイト
+	 */
+	private int mCurrent;
+	/**
+	 * mCurrentの未読ビット数
+	 */
+	private int mBitsLeft;
+
+	/**
+	 * コンストラクタ
+	 * @param buf
+	 * @param offset NALユニットの先頭位置(絶対位置, スタートコードは含まない)
+	 * @param size NALユニットのバイト数
+	 */
+	public NalBitReader(@NonNull final ByteBuffer buf, final int offset, final int size) {
+		mBuf = buf;
+		mPos = offset;
+		mEnd = offset + size;
+	}
+
+	/**
+	 * 1ビット読み込む
+	 * @return
+	 * @throws IndexOutOfBoundsException 終端を超えて読み込もうとした
+	 */
+	public boolean readFlag() throws IndexOutOfBoundsException {
+		return readBit() != 0;
+	}
+
+	/**
+	 * 1ビット読み込む
+	 * @return 0または1
+	 * @throws IndexOutOfBoundsException 終端を超えて読み込もうとした
+	 */
+	public int readBit() throws IndexOutOfBoundsException {
+		if (mBitsLeft == 0) {
+			nextByte();
+		}
+		mBitsLeft--;
+		return (mCurrent >> mBitsLeft) & 1;
+	}
+
+	/**
+	 * 指定したビット数を読み込む
+	 * @param n 読み込むビット数
+	 * @return 32ビットの時は符号付きになるので必要であれば#readUnsignedIntを使う
+	 * @throws IndexOutOfBoundsException 終端を超えて読み込もうとした
+	 */
+	public int readBits(@IntRange(from=0, to=32) final int n) throws IndexOutOfBoundsException {
+		int result = 0;
+		for (int i = 0; i < n; i++) {
+			result = (result << 1) | readBit();
+		}
+		return result;
+	}
+
+	/**
+	 * 符号無し32ビット整数を読み込む
+	 * @return
+	 * @throws IndexOutOfBoundsException 終端を超えて読み込もうとした
+	 */
+	public long readUnsignedInt() throws IndexOutOfBoundsException {
+		return readBits(32) & 0xffffffffL;
+	}
+
+	/**
+	 * 指定したビット数を読み飛ばす
+	 * @param n
+	 * @throws IndexOutOfBoundsException 終端を超えて読み込もうとした
+	 */
+	public void skipBits(final int n) throws IndexOutOfBoundsException {
+		for (int i = 0; i < n; i++) {
+			readBit();
+		}
+	}
+
+	/**
+	 * 符号無し指数ゴロム符号(ue(v))を読み込む
+	 * @return
+	 * @throws IndexOutOfBoundsException 終端を超えて読み込もうとした
+	 * @throws IllegalArgumentException 32ビットを超える値だった
+	 */
+	public long readUE() throws IndexOutOfBoundsException, IllegalArgumentException {
+		int leadingZeros = 0;
+		while (readBit() == 0) {
+			if (++leadingZeros > 32) {
+				throw new IllegalArgumentException("invalid exp-golomb code");
+			}
+		}
+		if (leadingZeros == 0) {
+			return 0;
+		}
+		long suffix = 0;
+		for (int i = 0; i < leadingZeros; i++) {
+			suffix = (suffix << 1) | readBit();
+		}
+		return (1L << leadingZeros) - 1 + suffix;
+	}
+
+	/**
+	 * 符号付き指数ゴロム符号(se(v))を読み込む
+	 * @return
+	 * @throws IndexOutOfBoundsException 終端を超えて読み込もうとした
+	 * @throws IllegalArgumentException 32ビットを超える値だった
+	 */
+	public long readSE() throws IndexOutOfBoundsException, IllegalArgumentException {
+		final long k = readUE();
+		return (k & 1) != 0 ? (k + 1) / 2 : -(k / 2);
+	}
+
+	/**
+	 * ue(v)を読み込んでintの範囲に収まっているかを確認する
+	 * @param max 許容する最大値
+	 * @return
+	 * @throws IndexOutOfBoundsException 終端を超えて読み込もうとした
+	 * @throws IllegalArgumentException maxを超えていた
+	 */
+	public int readUE(final int max) throws IndexOutOfBoundsException, IllegalArgumentException {
+		final long v = readUE();
+		if (v > max) {
+			throw new IllegalArgumentException("value out of range," + v + ">" + max);
+		}
+		return (int)v;
+	}
+
+	private void nextByte() throws IndexOutOfBoundsException {
+		if (mPos >= mEnd) {
+			throw new IndexOutOfBoundsException("no more data");
+		}
+		int b = mBuf.get(mPos++) & 0xff;
+		if ((mZeros >= 2) && (b == 0x03)) {
+			// エミュレーション防止バイトなので読み飛ばす
+			if (mPos >= mEnd) {
+				throw new IndexOutOfBoundsException("no more data");
+			}
+			b = mBuf.get(mPos++) & 0xff;
+			mZeros = 0;
+		}
+		mZeros = b == 0 ? mZeros + 1 : 0;
+		mCurrent = b;
+		mBitsLeft = 8;
+	}
+}
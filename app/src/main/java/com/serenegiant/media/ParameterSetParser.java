@@ -0,0 +1,580 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import com.serenegiant.utils.AnnexBScanner;
+
+import java.nio.ByteBuffer;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * H.264/AVCとH.265/HEVCのパラメータセット(SPS/PPS/VPS)を解析するためのヘルパークラス
+ * プロファイル, レベル, クロップ後の映像サイズ, VUIのタイミング情報などを取り出して
+ * VideoStreamInfoとして返す
+ */
+public class ParameterSetParser {
+	private static final boolean DEBUG = false;	// set false on production
+	private static final String TAG = ParameterSetParser.class.getSimpleName();
+
+	public static final String MIME_AVC = "video/avc";
+	public static final String MIME_HEVC = "video/hevc";
+
+	private static final int AVC_NAL_SPS = 7;
+	private static final int AVC_NAL_PPS = 8;
+	private static final int HEVC_NAL_VPS = 32;
+	private static final int HEVC_NAL_SPS = 33;
+	private static final int HEVC_NAL_PPS = 34;
+	/**
+	 * VUIのaspect_ratio_idcでサンプルアスペクト比を明示する値
+	 */
+	private static final int EXTENDED_SAR = 255;
+	private static final float MIN_FRAME_RATE = 1.0f;
+	private static final float MAX_FRAME_RATE = 1000.0f;
+	/**
+	 * aspect_ratio_idc=1〜16に対応するサンプルアスペクト比
+	 */
+	private static final int[][] SAR_TABLE = {
+		{ 1, 1 }, { 12, 11 }, { 10, 11 }, { 16, 11 },
+		{ 40, 33 }, { 24, 11 }, { 20, 11 }, { 32, 11 },
+		{ 80, 33 }, { 18, 11 }, { 15, 11 }, { 64, 33 },
+		{ 160, 99 }, { 4, 3 }, { 3, 2 }, { 2, 1 },
+	};
+
+	private ParameterSetParser() {
+		// インスタンス化をエラーにするためにデフォルトコンストラクタをprivateに
+	}
+
+	/**
+	 * エンコーダーからの出力フォーマットのcsd-0/csd-1を解析する
+	 * @param format
+	 * @return 解析できなければnull
+	 */
+	@Nullable
+	public static VideoStreamInfo parse(@NonNull final MediaFormat format) {
+		final Collector collector = new Collector();
+		collector.add(format.containsKey("csd-0") ? format.getByteBuffer("csd-0") : null);
+		collector.add(format.containsKey("csd-1") ? format.getByteBuffer("csd-1") : null);
+		return collector.parse();
+	}
+
+	/**
+	 * Annex-B形式のパラメータセットを解析する
+	 * @param buf
+	 * @param offset 先頭位置(絶対位置)
+	 * @param size バイト数
+	 * @return 解析できなければnull
+	 */
+	@Nullable
+	public static VideoStreamInfo parse(@NonNull final ByteBuffer buf,
+		final int offset, final int size) {
+
+		final Collector collector = new Collector();
+		collector.add(buf, offset, size);
+		return collector.parse();
+	}
+
+	/**
+	 * 複数のバッファからパラメータセットを集めるためのヘルパークラス
+	 * 同じ種類のパラメータセットが複数ある時は最初のものを使う
+	 */
+	private static class Collector {
+		private final AnnexBScanner mScanner = new AnnexBScanner();
+		private byte[] avcSps, avcPps;
+		private byte[] hevcVps, hevcSps, hevcPps;
+
+		private void add(@Nullable final ByteBuffer buf) {
+			if (buf != null) {
+				// csdはposition/limitが壊れていることがあるので0..limitを使う
+				add(buf, 0, buf.limit());
+			}
+		}
+
+		private void add(@NonNull final ByteBuffer buf, final int offset, final int size) {
+			final int n = mScanner.scan(buf, offset, size);
+			for (int i = 0; i < n; i++) {
+				final int header = buf.get(mScanner.getOffset(i)) & 0xff;
+				if ((header & 0x80) != 0) {
+					continue;	// forbidden_zero_bitが立っているのは不正なNALユニット
+				}
+				switch (header & 0x1f) {
+				case AVC_NAL_SPS:
+					if (avcSps == null) avcSps = copy(buf, i);
+					continue;
+				case AVC_NAL_PPS:
+					if (avcPps == null) avcPps = copy(buf, i);
+					continue;
+				}
+				switch ((header >> 1) & 0x3f) {
+				case HEVC_NAL_VPS:
+					if (hevcVps == null) hevcVps = copy(buf, i);
+					break;
+				case HEVC_NAL_SPS:
+					if (hevcSps == null) hevcSps = copy(buf, i);
+					break;
+				case HEVC_NAL_PPS:
+					if (hevcPps == null) hevcPps = copy(buf, i);
+					break;
+				}
+			}
+		}
+
+		@NonNull
+		private byte[] copy(@NonNull final ByteBuffer buf, final int index) {
+			final byte[] result = new byte[mScanner.getLength(index)];
+			final ByteBuffer src = buf.duplicate();
+			src.clear();
+			src.position(mScanner.getOffset(index));
+			src.get(result);
+			return result;
+		}
+
+		@Nullable
+		private VideoStreamInfo parse() {
+			try {
+				if ((avcSps != null) && (avcPps != null)) {
+					final VideoStreamInfo info = new VideoStreamInfo(MIME_AVC, null, avcSps, avcPps);
+					parseAvcSps(info);
+					return info;
+				} else if ((hevcVps != null) && (hevcSps != null) && (hevcPps != null)) {
+					final VideoStreamInfo info = new VideoStreamInfo(MIME_HEVC, hevcVps, hevcSps, hevcPps);
+					parseHevcSps(info);
+					return info;
+				}
+			} catch (final IndexOutOfBoundsException | IllegalArgumentException e) {
+				Log.w(TAG, "failed to parse parameter sets", e);
+			}
+			if (DEBUG) Log.v(TAG, "parse:parameter sets not found");
+			return null;
+		}
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * H.264/AVCのSPSを解析する(ITU-T H.264 7.3.2.1.1)
+	 * @param info
+	 * @throws IndexOutOfBoundsException
+	 * @throws IllegalArgumentException
+	 */
+	private static void parseAvcSps(@NonNull final VideoStreamInfo info)
+		throws IndexOutOfBoundsException, IllegalArgumentException {
+
+		final NalBitReader r = new NalBitReader(ByteBuffer.wrap(info.sps), 1, info.sps.length - 1);
+		info.profileIdc = r.readBits(8);
+		final int constraints = r.readBits(8);
+		info.levelIdc = r.readBits(8);
+		r.readUE(31);	// seq_parameter_set_id
+		boolean separateColourPlane = false;
+		switch (info.profileIdc) {
+		case 100: case 110: case 122: case 244: case 44:
+		case 83: case 86: case 118: case 128: case 138:
+		case 139: case 134: case 135:
+			info.chromaFormat = r.readUE(3);
+			if (info.chromaFormat == 3) {
+				separateColourPlane = r.readFlag();
+			}
+			info.bitDepthLuma = r.readUE(6) + 8;
+			info.bitDepthChroma = r.readUE(6) + 8;
+			r.skipBits(1);	// qpprime_y_zero_transform_bypass_flag
+			if (r.readFlag()) {	// seq_scaling_matrix_present_flag
+				final int n = info.chromaFormat != 3 ? 8 : 12;
+				for (int i = 0; i < n; i++) {
+					if (r.readFlag()) {
+						skipAvcScalingList(r, i < 6 ? 16 : 64);
+					}
+				}
+			}
+			break;
+		}
+		r.readUE(12);	// log2_max_frame_num_minus4
+		final int pocType = r.readUE(2);
+		if (pocType == 0) {
+			r.readUE(12);	// log2_max_pic_order_cnt_lsb_minus4
+		} else if (pocType == 1) {
+			r.skipBits(1);	// delta_pic_order_always_zero_flag
+			r.readSE();		// offset_for_non_ref_pic
+			r.readSE();		// offset_for_top_to_bottom_field
+			final int n = r.readUE(255);
+			for (int i = 0; i < n; i++) {
+				r.readSE();	// offset_for_ref_frame
+			}
+		}
+		info.maxRefFrames = r.readUE(16);
+		r.skipBits(1);	// gaps_in_frame_num_value_allowed_flag
+		final int widthInMbs = r.readUE(8191) + 1;
+		final int heightInMapUnits = r.readUE(8191) + 1;
+		info.progressive = r.readFlag();	// frame_mbs_only_flag
+		if (!info.progressive) {
+			r.skipBits(1);	// mb_adaptive_frame_field_flag
+		}
+		r.skipBits(1);	// direct_8x8_inference_flag
+		final int frameHeightFactor = info.progressive ? 1 : 2;
+		info.codedWidth = widthInMbs * 16;
+		info.codedHeight = heightInMapUnits * 16 * frameHeightFactor;
+		info.width = info.codedWidth;
+		info.height = info.codedHeight;
+		if (r.readFlag()) {	// frame_cropping_flag
+			final int left = r.readUE(info.codedWidth);
+			final int right = r.readUE(info.codedWidth);
+			final int top = r.readUE(info.codedHeight);
+			final int bottom = r.readUE(info.codedHeight);
+			final int chroma = separateColourPlane ? 0 : info.chromaFormat;
+			final int cropUnitX = (chroma == 1) || (chroma == 2) ? 2 : 1;
+			final int cropUnitY = (chroma == 1 ? 2 : 1) * frameHeightFactor;
+			info.width -= cropUnitX * (left + right);
+			info.height -= cropUnitY * (top + bottom);
+		}
+		if (r.readFlag()) {	// vui_parameters_present_flag
+			parseVuiHeader(r, info);
+			if (r.readFlag()) {	// timing_info_present_flag
+				final long numUnitsInTick = r.readUnsignedInt();
+				final long timeScale = r.readUnsignedInt();
+				info.fixedFrameRate = r.readFlag();
+				if (numUnitsInTick > 0) {
+					// H.264のタイミング情報はフィールド単位
+					info.frameRate = checkFrameRate(timeScale / (2f * numUnitsInTick));
+				}
+			}
+		}
+		info.profile = toAvcProfile(info.profileIdc, constraints);
+		info.level = toAvcLevel(info.profileIdc, info.levelIdc, constraints);
+		if (DEBUG) Log.v(TAG, "parseAvcSps:" + info);
+	}
+
+	private static void skipAvcScalingList(@NonNull final NalBitReader r, final int size)
+		throws IndexOutOfBoundsException, IllegalArgumentException {
+
+		int lastScale = 8;
+		int nextScale = 8;
+		for (int j = 0; j < size; j++) {
+			if (nextScale != 0) {
+				final long delta = r.readSE();	// delta_scale
+				nextScale = (int)((lastScale + delta + 256) % 256);
+			}
+			lastScale = nextScale == 0 ? lastScale : nextScale;
+		}
+	}
+
+	/**
+	 * H.265/HEVCのSPSを解析する(ITU-T H.265 7.3.2.2.1)
+	 * @param info
+	 * @throws IndexOutOfBoundsException
+	 * @throws IllegalArgumentException
+	 */
+	private static void parseHevcSps(@NonNull final VideoStreamInfo info)
+		throws IndexOutOfBoundsException, IllegalArgumentException {
+
+		final NalBitReader r = new NalBitReader(ByteBuffer.wrap(info.sps), 2, info.sps.length - 2);
+		r.skipBits(4);	// sps_video_parameter_set_id
+		final int maxSubLayersMinus1 = r.readBits(3);
+		r.skipBits(1);	// sps_temporal_id_nesting_flag
+		// profile_tier_level(1, sps_max_sub_layers_minus1)
+		r.skipBits(2);	// general_profile_space
+		info.highTier = r.readFlag();
+		info.profileIdc = r.readBits(5);
+		r.skipBits(32);	// general_profile_compatibility_flag[32]
+		r.skipBits(48);	// general_progressive_source_flag〜general_inbld_flag/reserved
+		info.levelIdc = r.readBits(8);
+		final boolean[] subLayerProfilePresent = new boolean[maxSubLayersMinus1];
+		final boolean[] subLayerLevelPresent = new boolean[maxSubLayersMinus1];
+		for (int i = 0; i < maxSubLayersMinus1; i++) {
+			subLayerProfilePresent[i] = r.readFlag();
+			subLayerLevelPresent[i] = r.readFlag();
+		}
+		if (maxSubLayersMinus1 > 0) {
+			r.skipBits(2 * (8 - maxSubLayersMinus1));	// reserved_zero_2bits
+		}
+		for (int i = 0; i < maxSubLayersMinus1; i++) {
+			if (subLayerProfilePresent[i]) {
+				r.skipBits(88);
+			}
+			if (subLayerLevelPresent[i]) {
+				r.skipBits(8);
+			}
+		}
+		r.readUE(15);	// sps_seq_parameter_set_id
+		info.chromaFormat = r.readUE(3);
+		boolean separateColourPlane = false;
+		if (info.chromaFormat == 3) {
+			separateColourPlane = r.readFlag();
+		}
+		info.codedWidth = r.readUE(65535);
+		info.codedHeight = r.readUE(65535);
+		info.width = info.codedWidth;
+		info.height = info.codedHeight;
+		if (r.readFlag()) {	// conformance_window_flag
+			final int left = r.readUE(info.codedWidth);
+			final int right = r.readUE(info.codedWidth);
+			final int top = r.readUE(info.codedHeight);
+			final int bottom = r.readUE(info.codedHeight);
+			final int chroma = separateColourPlane ? 0 : info.chromaFormat;
+			final int subWidthC = (chroma == 1) || (chroma == 2) ? 2 : 1;
+			final int subHeightC = chroma == 1 ? 2 : 1;
+			info.width -= subWidthC * (left + right);
+			info.height -= subHeightC * (top + bottom);
+		}
+		info.bitDepthLuma = r.readUE(8) + 8;
+		info.bitDepthChroma = r.readUE(8) + 8;
+		final int log2MaxPocLsb = r.readUE(12) + 4;
+		final boolean subLayerOrderingInfoPresent = r.readFlag();
+		for (int i = subLayerOrderingInfoPresent ? 0 : maxSubLayersMinus1; i <= maxSubLayersMinus1; i++) {
+			// 最上位のサブレイヤーの値が残る
+			info.maxRefFrames = r.readUE(15) + 1;	// sps_max_dec_pic_buffering_minus1
+			r.readUE();	// sps_max_num_reorder_pics
+			r.readUE();	// sps_max_latency_increase_plus1
+		}
+		r.readUE();	// log2_min_luma_coding_block_size_minus3
+		r.readUE();	// log2_diff_max_min_luma_coding_block_size
+		r.readUE();	// log2_min_luma_transform_block_size_minus2
+		r.readUE();	// log2_diff_max_min_luma_transform_block_size
+		r.readUE();	// max_transform_hierarchy_depth_inter
+		r.readUE();	// max_transform_hierarchy_depth_intra
+		if (r.readFlag()) {	// scaling_list_enabled_flag
+			if (r.readFlag()) {	// sps_scaling_list_data_present_flag
+				skipHevcScalingListData(r);
+			}
+		}
+		r.skipBits(2);	// amp_enabled_flag, sample_adaptive_offset_enabled_flag
+		if (r.readFlag()) {	// pcm_enabled_flag
+			r.skipBits(8);	// pcm_sample_bit_depth_luma_minus1, pcm_sample_bit_depth_chroma_minus1
+			r.readUE();		// log2_min_pcm_luma_coding_block_size_minus3
+			r.readUE();		// log2_diff_max_min_pcm_luma_coding_block_size
+			r.skipBits(1);	// pcm_loop_filter_disabled_flag
+		}
+		final int numShortTermRefPicSets = r.readUE(64);
+		final int[] numDeltaPocs = new int[numShortTermRefPicSets];
+		for (int i = 0; i < numShortTermRefPicSets; i++) {
+			skipHevcShortTermRefPicSet(r, i, numDeltaPocs);
+		}
+		if (r.readFlag()) {	// long_term_ref_pics_present_flag
+			final int n = r.readUE(32);
+			for (int i = 0; i < n; i++) {
+				r.skipBits(log2MaxPocLsb + 1);	// lt_ref_pic_poc_lsb_sps, used_by_curr_pic_lt_sps_flag
+			}
+		}
+		r.skipBits(2);	// sps_temporal_mvp_enabled_flag, strong_intra_smoothing_enabled_flag
+		if (r.readFlag()) {	// vui_parameters_present_flag
+			parseVuiHeader(r, info);
+			r.skipBits(1);	// neutral_chroma_indication_flag
+			info.progressive = !r.readFlag();	// field_seq_flag
+			r.skipBits(1);	// frame_field_info_present_flag
+			if (r.readFlag()) {	// default_display_window_flag
+				r.readUE();
+				r.readUE();
+				r.readUE();
+				r.readUE();
+			}
+			if (r.readFlag()) {	// vui_timing_info_present_flag
+				final long numUnitsInTick = r.readUnsignedInt();
+				final long timeScale = r.readUnsignedInt();
+				if (numUnitsInTick > 0) {
+					info.frameRate = checkFrameRate(timeScale / (float)numUnitsInTick);
+				}
+			}
+		}
+		info.profile = toHevcProfile(info.profileIdc);
+		info.level = toHevcLevel(info.levelIdc, info.highTier);
+		if (DEBUG) Log.v(TAG, "parseHevcSps:" + info);
+	}
+
+	private static void skipHevcScalingListData(@NonNull final NalBitReader r)
+		throws IndexOutOfBoundsException, IllegalArgumentException {
+
+		for (int sizeId = 0; sizeId < 4; sizeId++) {
+			for (int matrixId = 0; matrixId < 6; matrixId += (sizeId == 3) ? 3 : 1) {
+				if (!r.readFlag()) {	// scaling_list_pred_mode_flag
+					r.readUE();	// scaling_list_pred_matrix_id_delta
+				} else {
+					final int coefNum = Math.min(64, 1 << (4 + (sizeId << 1)));
+					if (sizeId > 1) {
+						r.readSE();	// scaling_list_dc_coef_minus8
+					}
+					for (int i = 0; i < coefNum; i++) {
+						r.readSE();	// scaling_list_delta_coef
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * st_ref_pic_set(stRpsIdx)を読み飛ばす(ITU-T H.265 7.3.7)
+	 * 後続の参照ピクチャセットの解析に必要なのでNumDeltaPocsだけは記録する
+	 * @param r
+	 * @param idx
+	 * @param numDeltaPocs
+	 */
+	private static void skipHevcShortTermRefPicSet(@NonNull final NalBitReader r,
+		final int idx, @NonNull final int[] numDeltaPocs)
+			throws IndexOutOfBoundsException, IllegalArgumentException {
+
+		if ((idx != 0) && r.readFlag()) {	// inter_ref_pic_set_prediction_flag
+			// SPS内ではdelta_idx_minus1は無いので直前の参照ピクチャセットから予測する
+			r.skipBits(1);	// delta_rps_sign
+			r.readUE();		// abs_delta_rps_minus1
+			int n = 0;
+			for (int j = 0; j <= numDeltaPocs[idx - 1]; j++) {
+				final boolean usedByCurrPic = r.readFlag();
+				final boolean useDelta = usedByCurrPic || r.readFlag();
+				if (useDelta) {
+					n++;
+				}
+			}
+			numDeltaPocs[idx] = n;
+		} else {
+			final int numNegative = r.readUE(16);
+			final int numPositive = r.readUE(16);
+			for (int i = 0; i < numNegative + numPositive; i++) {
+				r.readUE();		// delta_poc_s0_minus1/delta_poc_s1_minus1
+				r.skipBits(1);	// used_by_curr_pic_s0_flag/used_by_curr_pic_s1_flag
+			}
+			numDeltaPocs[idx] = numNegative + numPositive;
+		}
+	}
+
+	/**
+	 * H.264/H.265で共通のVUIの先頭部分(chroma_loc_info_present_flagまで)を解析する
+	 * @param r
+	 * @param info
+	 */
+	private static void parseVuiHeader(@NonNull final NalBitReader r,
+		@NonNull final VideoStreamInfo info)
+			throws IndexOutOfBoundsException, IllegalArgumentException {
+
+		if (r.readFlag()) {	// aspect_ratio_info_present_flag
+			final int aspectRatioIdc = r.readBits(8);
+			if (aspectRatioIdc == EXTENDED_SAR) {
+				info.sarWidth = r.readBits(16);
+				info.sarHeight = r.readBits(16);
+			} else if ((aspectRatioIdc > 0) && (aspectRatioIdc <= SAR_TABLE.length)) {
+				info.sarWidth = SAR_TABLE[aspectRatioIdc - 1][0];
+				info.sarHeight = SAR_TABLE[aspectRatioIdc - 1][1];
+			}
+		}
+		if (r.readFlag()) {	// overscan_info_present_flag
+			r.skipBits(1);	// overscan_appropriate_flag
+		}
+		if (r.readFlag()) {	// video_signal_type_present_flag
+			r.skipBits(4);	// video_format, video_full_range_flag
+			if (r.readFlag()) {	// colour_description_present_flag
+				r.skipBits(24);	// colour_primaries, transfer_characteristics, matrix_coeffs
+			}
+		}
+		if (r.readFlag()) {	// chroma_loc_info_present_flag
+			r.readUE();	// chroma_sample_loc_type_top_field
+			r.readUE();	// chroma_sample_loc_type_bottom_field
+		}
+	}
+
+	/**
+	 * VUIのタイミング情報にはでたらめな値が入っていることがあるのであり得ない値なら0(不明)にする
+	 * @param frameRate
+	 * @return
+	 */
+	private static float checkFrameRate(final float frameRate) {
+		return (frameRate >= MIN_FRAME_RATE) && (frameRate <= MAX_FRAME_RATE) ? frameRate : 0;
+	}
+
+//--------------------------------------------------------------------------------
+	private static int toAvcProfile(final int profileIdc, final int constraints) {
+		switch (profileIdc) {
+		case 66:
+			// constraint_set1_flag
+			return (constraints & 0x40) != 0
+				? MediaCodecInfo.CodecProfileLevel.AVCProfileConstrainedBaseline
+				: MediaCodecInfo.CodecProfileLevel.AVCProfileBaseline;
+		case 77:	return MediaCodecInfo.CodecProfileLevel.AVCProfileMain;
+		case 88:	return MediaCodecInfo.CodecProfileLevel.AVCProfileExtended;
+		case 100:
+			// constraint_set4_flagとconstraint_set5_flag
+			return (constraints & 0x0c) == 0x0c
+				? MediaCodecInfo.CodecProfileLevel.AVCProfileConstrainedHigh
+				: MediaCodecInfo.CodecProfileLevel.AVCProfileHigh;
+		case 110:	return MediaCodecInfo.CodecProfileLevel.AVCProfileHigh10;
+		case 122:	return MediaCodecInfo.CodecProfileLevel.AVCProfileHigh422;
+		case 244:	return MediaCodecInfo.CodecProfileLevel.AVCProfileHigh444;
+		default:	return 0;
+		}
+	}
+
+	private static int toAvcLevel(final int profileIdc, final int levelIdc, final int constraints) {
+		switch (levelIdc) {
+		case 9:		return MediaCodecInfo.CodecProfileLevel.AVCLevel1b;
+		case 10:	return MediaCodecInfo.CodecProfileLevel.AVCLevel1;
+		case 11:
+			// Baseline/Main/Extendedでconstraint_set3_flagが立っていればレベル1b
+			return ((constraints & 0x10) != 0)
+				&& ((profileIdc == 66) || (profileIdc == 77) || (profileIdc == 88))
+				? MediaCodecInfo.CodecProfileLevel.AVCLevel1b
+				: MediaCodecInfo.CodecProfileLevel.AVCLevel11;
+		case 12:	return MediaCodecInfo.CodecProfileLevel.AVCLevel12;
+		case 13:	return MediaCodecInfo.CodecProfileLevel.AVCLevel13;
+		case 20:	return MediaCodecInfo.CodecProfileLevel.AVCLevel2;
+		case 21:	return MediaCodecInfo.CodecProfileLevel.AVCLevel21;
+		case 22:	return MediaCodecInfo.CodecProfileLevel.AVCLevel22;
+		case 30:	return MediaCodecInfo.CodecProfileLevel.AVCLevel3;
+		case 31:	return MediaCodecInfo.CodecProfileLevel.AVCLevel31;
+		case 32:	return MediaCodecInfo.CodecProfileLevel.AVCLevel32;
+		case 40:	return MediaCodecInfo.CodecProfileLevel.AVCLevel4;
+		case 41:	return MediaCodecInfo.CodecProfileLevel.AVCLevel41;
+		case 42:	return MediaCodecInfo.CodecProfileLevel.AVCLevel42;
+		case 50:	return MediaCodecInfo.CodecProfileLevel.AVCLevel5;
+		case 51:	return MediaCodecInfo.CodecProfileLevel.AVCLevel51;
+		case 52:	return MediaCodecInfo.CodecProfileLevel.AVCLevel52;
+		case 60:	return MediaCodecInfo.CodecProfileLevel.AVCLevel6;
+		case 61:	return MediaCodecInfo.CodecProfileLevel.AVCLevel61;
+		case 62:	return MediaCodecInfo.CodecProfileLevel.AVCLevel62;
+		default:	return 0;
+		}
+	}
+
+	private static int toHevcProfile(final int profileIdc) {
+		switch (profileIdc) {
+		case 1:		return MediaCodecInfo.CodecProfileLevel.HEVCProfileMain;
+		case 2:		return MediaCodecInfo.CodecProfileLevel.HEVCProfileMain10;
+		case 3:		return MediaCodecInfo.CodecProfileLevel.HEVCProfileMainStill;
+		default:	return 0;
+		}
+	}
+
+	private static int toHevcLevel(final int levelIdc, final boolean highTier) {
+		// general_level_idcはレベルの30倍
+		switch (levelIdc) {
+		case 30:	return highTier ? MediaCodecInfo.CodecProfileLevel.HEVCHighTierLevel1 : MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel1;
+		case 60:	return highTier ? MediaCodecInfo.CodecProfileLevel.HEVCHighTierLevel2 : MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel2;
+		case 63:	return highTier ? MediaCodecInfo.CodecProfileLevel.HEVCHighTierLevel21 : MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel21;
+		case 90:	return highTier ? MediaCodecInfo.CodecProfileLevel.HEVCHighTierLevel3 : MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel3;
+		case 93:	return highTier ? MediaCodecInfo.CodecProfileLevel.HEVCHighTierLevel31 : MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel31;
+		case 120:	return highTier ? MediaCodecInfo.CodecProfileLevel.HEVCHighTierLevel4 : MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel4;
+		case 123:	return highTier ? MediaCodecInfo.CodecProfileLevel.HEVCHighTierLevel41 : MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel41;
+		case 150:	return highTier ? MediaCodecInfo.CodecProfileLevel.HEVCHighTierLevel5 : MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel5;
+		case 153:	return highTier ? MediaCodecInfo.CodecProfileLevel.HEVCHighTierLevel51 : MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel51;
+		case 156:	return highTier ? MediaCodecInfo.CodecProfileLevel.HEVCHighTierLevel52 : MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel52;
+		case 180:	return highTier ? MediaCodecInfo.CodecProfileLevel.HEVCHighTierLevel6 : MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel6;
+		case 183:	return highTier ? MediaCodecInfo.CodecProfileLevel.HEVCHighTierLevel61 : MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel61;
+		case 186:	return highTier ? MediaCodecInfo.CodecProfileLevel.HEVCHighTierLevel62 : MediaCodecInfo.CodecProfileLevel.HEVCMainTierLevel62;
+		default:	return 0;
+		}
+	}
+}
@@ -0,0 +1,388 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.serenegiant.utils.Pool;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * 直近のエンコード済みデータをメモリー上に保持するためのリングバッファ
+ * (いわゆるインスタントリプレイ/「直前のN秒を保存」用)
+ *
+ * 映像トラックがある場合は先頭が必ず映像のキーフレームになるようにGOP単位で古いデータを破棄する
+ * 保持するデータはRecycleMediaData(内部バッファはDirectBufferArenaから確保するダイレクトバッファ)で、
+ * 保持するメモリー量は#getMaxBytesで指定したバイト数(内部バッファの容量の合計)を上限とする
+ * #flushToはリングバッファの内容を参照カウントを増やしてコピーせずに取り出してから書き込むので、
+ * 書き込み中も#writeSampleDataで新しいデータを追加し続けることができる
+ * (書き込み中に破棄されたデータの内部バッファは書き込みが終わるまで解放されないので、
+ * その間は一時的に上限を超えることがある)
+ */
+public class PreRollBuffer implements IRecycleParent<RecycleMediaData> {
+	private static final boolean DEBUG = false;	// set false on production
+	private static final String TAG = PreRollBuffer.class.getSimpleName();
+
+	/**
+	 * プール内に保持するRecycleMediaDataの最大数
+	 */
+	private static final int MAX_POOL_NUM = 64;
+
+	@NonNull
+	private final Object mSync = new Object();
+	/**
+	 * 保持するデータの最大バイト数(内部バッファの容量の合計)
+	 */
+	private final long mMaxBytes;
+	/**
+	 * 保持するデータの最大の長さ[マイクロ秒], 0以下なら長さでは制限しない
+	 */
+	private final long mMaxDurationUs;
+	@NonNull
+	private final Pool<RecycleMediaData> mPool;
+	/**
+	 * 古い順に並べたデータ
+	 */
+	@NonNull
+	private final ArrayDeque<RecycleMediaData> mSamples = new ArrayDeque<>();
+	/**
+	 * mSamplesに含まれる映像のキーフレーム(古い順)
+	 */
+	@NonNull
+	private final ArrayDeque<RecycleMediaData> mKeyFrames = new ArrayDeque<>();
+	/**
+	 * トラック番号をキーにしたMediaFormat
+	 */
+	@NonNull
+	private final SparseArray<MediaFormat> mFormats = new SparseArray<>();
+	/**
+	 * 映像トラックのトラック番号, 映像トラックがなければ-1
+	 */
+	private int mVideoTrackIx = -1;
+	/**
+	 * mSamplesが保持している内部バッファの容量の合計
+	 */
+	private long mBytes;
+
+	/**
+	 * コンストラクタ
+	 * 長さでは制限しない
+	 * @param maxBytes 保持するデータの最大バイト数
+	 */
+	public PreRollBuffer(@IntRange(from = 1L) final long maxBytes) {
+		this(maxBytes, 0);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param maxBytes 保持するデータの最大バイト数
+	 * @param maxDurationUs 保持するデータの最大の長さ[マイクロ秒], 0以下なら長さでは制限しない
+	 *                      GOP単位で破棄するので実際にはmaxDurationUs以上maxDurationUs+1GOP未満の長さを保持する
+	 */
+	public PreRollBuffer(@IntRange(from = 1L) final long maxBytes, final long maxDurationUs) {
+		if (maxBytes <= 0) {
+			throw new IllegalArgumentException("maxBytes should be positive");
+		}
+		mMaxBytes = maxBytes;
+		mMaxDurationUs = maxDurationUs;
+		mPool = new Pool<RecycleMediaData>(0, MAX_POOL_NUM, Integer.MAX_VALUE) {
+			@NonNull
+			@Override
+			protected RecycleMediaData createObject(@Nullable final Object... args) {
+				return new RecycleMediaData(PreRollBuffer.this);
+			}
+		};
+	}
+
+	/**
+	 * 保持するデータの最大バイト数を取得
+	 * @return
+	 */
+	public long getMaxBytes() {
+		return mMaxBytes;
+	}
+
+	/**
+	 * トラックを登録する
+	 * @param trackIx #writeSampleDataで使うトラック番号
+	 * @param format
+	 */
+	public void addTrack(final int trackIx, @NonNull final MediaFormat format) {
+		if (DEBUG) Log.v(TAG, "addTrack:" + trackIx + "," + format);
+		synchronized (mSync) {
+			mFormats.put(trackIx, format);
+			final String mime = format.getString(MediaFormat.KEY_MIME);
+			if ((mime != null) && mime.startsWith("video/")) {
+				mVideoTrackIx = trackIx;
+			}
+		}
+	}
+
+	/**
+	 * エンコード済みデータを追加する
+	 * byteBufの内容はコピーするのでbyteBufのposition/limitは変更しない
+	 * 映像トラックがある場合、空のときは映像のキーフレームが来るまでデータを破棄する
+	 * @param trackIx #addTrackで登録したトラック番号
+	 * @param byteBuf
+	 * @param info
+	 */
+	public void writeSampleData(final int trackIx,
+		@NonNull final ByteBuffer byteBuf,
+		@NonNull final MediaCodec.BufferInfo info) {
+
+		if ((info.size <= 0)
+			|| ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0)) {
+			// コーデック固有データはMediaFormatに含まれているので保持しない
+			return;
+		}
+		synchronized (mSync) {
+			if (mFormats.indexOfKey(trackIx) < 0) {
+				if (DEBUG) Log.w(TAG, "writeSampleData:unknown track " + trackIx);
+				return;
+			}
+			final boolean isKeyFrame = (trackIx == mVideoTrackIx)
+				&& ((info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+			if ((mVideoTrackIx >= 0) && mKeyFrames.isEmpty() && !isKeyFrame) {
+				// キーフレームから始まらないデータは再生できないので保持しない
+				return;
+			}
+			final RecycleMediaData data = mPool.obtain();
+			if (data == null) {
+				return;
+			}
+			data.setRecycled(false);
+			data.set(trackIx, byteBuf.duplicate(), info);
+			mSamples.addLast(data);
+			mBytes += data.capacity();
+			if (isKeyFrame) {
+				mKeyFrames.addLast(data);
+			}
+			trimLocked(info.presentationTimeUs);
+		}
+	}
+
+	/**
+	 * リングバッファの内容をIMuxerへ書き込む
+	 * muxerへのトラックの追加、muxerの開始と終了もここで行う(muxerの破棄は呼び出し元で行うこと)
+	 * 書き込み中も#writeSampleDataで新しいデータを追加し続けることができる
+	 * @param muxer 未開始のIMuxer
+	 * @return 書き込んだデータの数
+	 * @throws IllegalStateException muxerが開始済みの場合
+	 */
+	public int flushTo(@NonNull final IMuxer muxer) throws IllegalStateException {
+		if (muxer.isStarted()) {
+			throw new IllegalStateException("muxer already started");
+		}
+		final SparseArray<MediaFormat> formats;
+		final List<RecycleMediaData> samples;
+		synchronized (mSync) {
+			formats = mFormats.clone();
+			samples = new ArrayList<>(mSamples.size());
+			for (final RecycleMediaData data: mSamples) {
+				samples.add(data.retain());
+			}
+		}
+		if (DEBUG) Log.v(TAG, "flushTo:samples=" + samples.size());
+		int result = 0;
+		try {
+			final SparseArray<Integer> trackMap = new SparseArray<>();
+			final int n = formats.size();
+			for (int i = 0; i < n; i++) {
+				trackMap.put(formats.keyAt(i), muxer.addTrack(formats.valueAt(i)));
+			}
+			muxer.start();
+			final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+			for (final RecycleMediaData data: samples) {
+				final Integer muxerTrackIx = trackMap.get(data.trackIx());
+				final ByteBuffer raw = data.getRaw();
+				if ((muxerTrackIx != null) && (raw != null)) {
+					// 他のスレッドからも同じデータを書き込むかもしれないので
+					// 内部バッファのposition/limitは変更しない
+					final ByteBuffer buffer = raw.duplicate();
+					buffer.clear();
+					buffer.limit(data.size());
+					data.get(info);
+					muxer.writeSampleData(muxerTrackIx, buffer, info);
+					result++;
+				}
+			}
+			muxer.stop();
+		} finally {
+			for (final RecycleMediaData data: samples) {
+				data.recycle();
+			}
+		}
+		if (DEBUG) Log.v(TAG, "flushTo:finished," + result);
+		return result;
+	}
+
+	/**
+	 * 保持しているデータを全て破棄する
+	 * 登録済みのトラックはそのまま
+	 */
+	public void clear() {
+		synchronized (mSync) {
+			while (!mSamples.isEmpty()) {
+				mSamples.pollFirst().recycle();
+			}
+			mKeyFrames.clear();
+			mBytes = 0;
+		}
+	}
+
+	/**
+	 * 保持しているデータを全て破棄してトラックの登録も解除する
+	 */
+	public void release() {
+		synchronized (mSync) {
+			clear();
+			mFormats.clear();
+			mVideoTrackIx = -1;
+		}
+		mPool.clear();
+	}
+
+	/**
+	 * 保持しているデータの数を取得
+	 * @return
+	 */
+	public int count() {
+		synchronized (mSync) {
+			return mSamples.size();
+		}
+	}
+
+	/**
+	 * 保持しているデータの内部バッファの容量の合計を取得
+	 * @return
+	 */
+	public long getBytes() {
+		synchronized (mSync) {
+			return mBytes;
+		}
+	}
+
+	/**
+	 * 保持しているデータの長さ(最初と最後のデータのpresentationTimeUsの差)を取得
+	 * @return
+	 */
+	public long getDurationUs() {
+		synchronized (mSync) {
+			return mSamples.isEmpty() ? 0
+				: mSamples.peekLast().presentationTimeUs() - mSamples.peekFirst().presentationTimeUs();
+		}
+	}
+
+	/**
+	 * IRecycleParentの実装
+	 * RecycleMediaData#recycleで最後の参照が解放された時に呼ばれる
+	 * @param buffer
+	 * @return
+	 */
+	@Override
+	public boolean recycle(@NonNull final RecycleMediaData buffer) {
+		if (!buffer.isRecycled()) {
+			buffer.setRecycled(true);
+			return mPool.recycle(buffer);
+		} else {
+			return false;
+		}
+	}
+
+	/**
+	 * 上限を超えた古いデータを破棄する
+	 * 映像トラックがある場合は先頭が映像のキーフレームになるようにGOP単位で破棄する
+	 * 最新のGOPだけで最大バイト数を超えた場合は次のキーフレームまで何も保持しない
+	 * @param latestPtsUs 最後に追加したデータのpresentationTimeUs
+	 */
+	private void trimLocked(final long latestPtsUs) {
+		if (mVideoTrackIx < 0) {
+			// 音声のみなら1つずつ破棄する
+			while ((mBytes > mMaxBytes)
+				|| ((mMaxDurationUs > 0) && !mSamples.isEmpty()
+					&& (latestPtsUs - mSamples.peekFirst().presentationTimeUs() > mMaxDurationUs))) {
+
+				removeFirstLocked();
+			}
+			return;
+		}
+		while (mKeyFrames.size() > 1) {
+			// 2番目のGOPから後ろだけで条件を満たすなら先頭のGOPを破棄する
+			final long nextGopPtsUs = secondKeyFrameLocked().presentationTimeUs();
+			if ((mBytes > mMaxBytes)
+				|| ((mMaxDurationUs > 0) && (latestPtsUs - nextGopPtsUs >= mMaxDurationUs))) {
+
+				dropFirstGopLocked();
+			} else {
+				break;
+			}
+		}
+		if (mBytes > mMaxBytes) {
+			if (DEBUG) Log.w(TAG, "trimLocked:single GOP exceeds maxBytes, drop all");
+			clear();
+		}
+	}
+
+	/**
+	 * 先頭から2番目のキーフレームを取得
+	 * mKeyFrames.size() > 1の時に呼ぶこと
+	 * @return
+	 */
+	@NonNull
+	private RecycleMediaData secondKeyFrameLocked() {
+		final Iterator<RecycleMediaData> it = mKeyFrames.iterator();
+		it.next();
+		return it.next();
+	}
+
+	/**
+	 * 先頭のGOP(先頭のキーフレームから次のキーフレームの直前まで)を破棄する
+	 * mKeyFrames.size() > 1の時に呼ぶこと
+	 */
+	private void dropFirstGopLocked() {
+		mKeyFrames.pollFirst();
+		final RecycleMediaData next = mKeyFrames.peekFirst();
+		while (!mSamples.isEmpty() && (mSamples.peekFirst() != next)) {
+			removeFirstLocked();
+		}
+	}
+
+	/**
+	 * 先頭のデータを1つ破棄する
+	 */
+	private void removeFirstLocked() {
+		final RecycleMediaData data = mSamples.pollFirst();
+		if (data != null) {
+			mBytes -= data.capacity();
+			data.recycle();
+		}
+	}
+}
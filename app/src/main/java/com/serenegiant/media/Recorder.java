@@ -20,6 +20,7 @@ package com.serenegiant.media;
 
 import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.content.Context;
 import android.media.MediaCodec;
@@ -30,6 +31,9 @@ import android.os.Message;
 import android.util.Log;
 import android.view.Surface;
 
+import com.serenegiant.system.StorageInfo;
+import com.serenegiant.utils.FileUtils;
+
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
@@ -40,7 +44,7 @@ public abstract class Recorder implements IRecorder {
 	private static final boolean DEBUG = false;	// FIXME 実働時はfalseにすること
 	private static final String TAG = Recorder.class.getSimpleName();
 
-	public static final long CHECK_INTERVAL = 45 * 1000L;	// 空き容量,EOSのチェクする間隔[ミリ秒](=45秒)
+	public static final long CHECK_INTERVAL = 45 * 1000L;	// 空き容量,EOSのチェクする間隔の最大値[ミリ秒](=45秒)
 
 //--------------------------------------------------------------------------------
 	@NonNull
@@ -62,6 +66,29 @@ public abstract class Recorder implements IRecorder {
     private EosHandler mEosHandler;
     protected long mStartTime;
     private volatile boolean mReleased;
+	/**
+	 * 録画開始にかかった時間の計測用, #prepareを呼んだ時刻と#prepareにかかった時間
+	 */
+	private long mPrepareStartNs, mPrepareNs;
+	/**
+	 * muxerへの書き込みと並行してエンコード済みデータを保持するリングバッファ
+	 */
+	@Nullable
+	private volatile PreRollBuffer mPreRollBuffer;
+	/**
+	 * 空き容量の予測用, 録画開始からmuxerへ書き込んだバイト数
+	 * 書き込み時はカウンタを加算するだけで空き容量の取得はEosHandlerのスレッドで行う
+	 */
+	@NonNull
+	private final AtomicLong mBytesWritten = new AtomicLong();
+	@NonNull
+	private final StorageBudget mStorageBudget
+		= new StorageBudget(FileUtils.FREE_RATIO, (long)FileUtils.FREE_SIZE);
+	/**
+	 * 強制終了時に録画ファイルを修復するためのサイドカーファイル
+	 */
+	@Nullable
+	private volatile RecoveryJournal mRecoveryJournal;
 
 	/**
 	 * コンストラクタ
@@ -119,6 +146,54 @@ public abstract class Recorder implements IRecorder {
 		return mMuxerFactory;
 	}
 
+	/**
+	 * muxerへ書き込むのと同じエンコード済みデータを保持させるPreRollBufferをセットする
+	 * トラックを登録するため録画開始前に呼ぶこと
+	 * PreRollBufferの破棄は呼び出し元で行うこと
+	 * @param buffer nullなら保持しない
+	 */
+	public void setPreRollBuffer(@Nullable final PreRollBuffer buffer) {
+		mPreRollBuffer = buffer;
+	}
+
+	@Nullable
+	public PreRollBuffer getPreRollBuffer() {
+		return mPreRollBuffer;
+	}
+
+	/**
+	 * 強制終了時に録画ファイルを修復するためのRecoveryJournalをセットする
+	 * トラック情報を書き込むため録画開始前に呼ぶこと
+	 * muxerを正常に終了すれば削除し(RecoveryJournal#setDeferDeleteで保留した時は閉じるだけ)、#releaseで閉じる
+	 * MediaMuxerで録画する時のみ意味がある
+	 * @param journal nullなら書き込まない
+	 */
+	public void setRecoveryJournal(@Nullable final RecoveryJournal journal) {
+		mRecoveryJournal = journal;
+	}
+
+	@Nullable
+	public RecoveryJournal getRecoveryJournal() {
+		return mRecoveryJournal;
+	}
+
+	/**
+	 * 空き容量の確認間隔や予約領域を変更するためにStorageBudgetを取得する
+	 * @return
+	 */
+	@NonNull
+	public StorageBudget getStorageBudget() {
+		return mStorageBudget;
+	}
+
+	/**
+	 * 録画開始からmuxerへ書き込んだバイト数を取得する
+	 * @return
+	 */
+	public long getBytesWritten() {
+		return mBytesWritten.get();
+	}
+
 	/**
 	 * デバッグ用にいつ破棄されるかを確認したいだけ
 	 */
@@ -138,6 +213,7 @@ public abstract class Recorder implements IRecorder {
 			if (mState != STATE_INITIALIZED) {
 				throw new IllegalStateException("prepare:state=" + mState);
 			}
+			mPrepareStartNs = System.nanoTime();
 		}
 		try {
 			if (mVideoEncoder != null) {
@@ -152,6 +228,7 @@ public abstract class Recorder implements IRecorder {
 		}
 		synchronized(this) {
 			mState = STATE_PREPARED;
+			mPrepareNs = System.nanoTime() - mPrepareStartNs;
 		}
 		callOnPrepared();
 	}
@@ -170,6 +247,8 @@ public abstract class Recorder implements IRecorder {
 		}
 		if (DEBUG) Log.v(TAG, "call encoder#start");
 		mStartTime = System.currentTimeMillis();
+		mBytesWritten.set(0);
+		mStorageBudget.reset();
 		if (mVideoEncoder != null) {
 			mVideoEncoder.start();
 		}
@@ -179,7 +258,7 @@ public abstract class Recorder implements IRecorder {
     	if (mEosHandler == null) {
     		mEosHandler = EosHandler.createHandler(this);
 		}
-    	mEosHandler.startCheckFreeSpace();	// 空き容量のチェック開始
+    	mEosHandler.startCheckFreeSpace(mStorageBudget.getNextIntervalMs());	// 空き容量のチェック開始
 	}
 
 	@Override
@@ -279,6 +358,10 @@ public abstract class Recorder implements IRecorder {
 			if (mMuxer != null) {
 				mMuxer.release();
 			}
+			final RecoveryJournal journal = mRecoveryJournal;
+			if (journal != null) {
+				journal.close();
+			}
 		}
 		mAudioEncoder = null;
 		mVideoEncoder = null;
@@ -367,6 +450,8 @@ public abstract class Recorder implements IRecorder {
 				mState = STATE_STARTED;
 				notifyAll();
 				callOnStarted();
+				callOnStartLatency(mPrepareNs / 1000000L,
+					(System.nanoTime() - mPrepareStartNs) / 1000000L);
 				// 最大録画時間をセット
 				if (mEosHandler != null) {
 					mEosHandler.setDuration(mVideoConfig.maxDuration());
@@ -404,6 +489,11 @@ public abstract class Recorder implements IRecorder {
 			if (mState == STATE_STOPPING) {
 //				if (DEBUG) Log.v(TAG, "call muxer#stop");
 				mMuxer.stop();
+				final RecoveryJournal journal = mRecoveryJournal;
+				if (journal != null) {
+					// 正常に終了したので修復用のサイドカーファイルは不要
+					journal.finish();
+				}
 			}
 			mState = STATE_INITIALIZED/*STATE_STOPPED*/;
 			mVideoEncoder = null;
@@ -431,6 +521,14 @@ public abstract class Recorder implements IRecorder {
 				throw new IllegalStateException("muxer not ready:state=" + mState);
 			}
 			trackIx = mMuxer.addTrack(format);
+			final PreRollBuffer preRoll = mPreRollBuffer;
+			if ((preRoll != null) && (trackIx >= 0)) {
+				preRoll.addTrack(trackIx, format);
+			}
+			final RecoveryJournal journal = mRecoveryJournal;
+			if ((journal != null) && (trackIx >= 0)) {
+				journal.addTrack(trackIx, format);
+			}
 		} catch (final Exception e) {
 			Log.w(TAG, "addTrack:", e);
 			trackIx = -1;
@@ -454,7 +552,22 @@ public abstract class Recorder implements IRecorder {
 
 		try {
 			if (!mReleased && isStarted()) {
+				final PreRollBuffer preRoll = mPreRollBuffer;
+				if (preRoll != null) {
+					preRoll.writeSampleData(trackIndex, byteBuf, bufferInfo);
+				}
+				final long startNs = MediaMetrics.startNs();
 				mMuxer.writeSampleData(trackIndex, byteBuf, bufferInfo);
+				MediaMetrics.recordSince(MediaMetrics.MUXER_WRITE, startNs);
+				mBytesWritten.addAndGet(bufferInfo.size);
+				final RecoveryJournal journal = mRecoveryJournal;
+				if (journal != null) {
+					journal.onSampleWritten(trackIndex, bufferInfo.size);
+				}
+				MediaMetrics.BYTES_WRITTEN.add(bufferInfo.size);
+				MediaMetrics.FRAMES_WRITTEN.inc();
+			} else {
+				MediaMetrics.FRAMES_DROPPED.inc();
 			}
 		} catch (final Exception e) {
 //			if (DEBUG) Log.w(TAG, "writeSampleData:", e);
@@ -485,6 +598,17 @@ public abstract class Recorder implements IRecorder {
 		}
 	}
 
+	protected void callOnStartLatency(final long prepareMs, final long startMs) {
+//		if (DEBUG) Log.v(TAG, "callOnStartLatency:");
+		if (mCallback != null) {
+			try {
+				mCallback.onStartLatency(this, prepareMs, startMs);
+			} catch (final Exception e) {
+				Log.e(TAG, "onStartLatency:", e);
+			}
+		}
+	}
+
 	protected void callOnStopped() {
 //		if (DEBUG) Log.v(TAG, "callOnStopped:");
 		if (mCallback != null) {
@@ -510,13 +634,57 @@ public abstract class Recorder implements IRecorder {
 //================================================================================
 	/**
 	 * 空き容量等のチェック処理の実体
+	 * #getStorageInfoで出力先のストレージ情報を取得できない時にCHECK_INTERVAL毎に呼び出される
 	 * @return trueを返すとrecordingを終了する
 	 */
 	protected abstract boolean check();
 
+	/**
+	 * 出力先のストレージ情報を取得する
+	 * ここで取得した空き容量とmuxerへ書き込んだバイト数からStorageBudgetで空き容量が尽きるまでの時間を予測して
+	 * 次に確認するまでの間隔を決める
+	 * EosHandlerのスレッドから呼び出される
+	 * @return 取得できない時はnull
+	 */
+	@Nullable
+	protected StorageInfo getStorageInfo() {
+		return null;
+	}
+
+	/**
+	 * 空き容量が少なくなってきた時(StorageBudget#STATE_LOWになった時)に呼び出される
+	 * デフォルトは何もしない
+	 * EosHandlerのスレッドから呼び出される
+	 */
+	protected void onStorageLow() {
+	}
+
+	/**
+	 * 空き容量を確認する
+	 * EosHandlerのスレッドから呼び出される
+	 * @return 次に確認するまでの時間[ミリ秒], 負なら録画を終了する
+	 */
+	private long checkStorage() {
+		final StorageInfo info = getStorageInfo();
+		if ((info == null) || (info.totalBytes == 0)) {
+			return check() ? -1 : CHECK_INTERVAL;
+		}
+		final int prevState = mStorageBudget.getState();
+		final int state = mStorageBudget.update(System.nanoTime() / 1000L,
+			mBytesWritten.get(), info.freeBytes, info.totalBytes);
+		if (DEBUG) Log.v(TAG, "checkStorage:" + mStorageBudget);
+		if (state == StorageBudget.STATE_FULL) {
+			return -1;
+		} else if ((state == StorageBudget.STATE_LOW) && (prevState == StorageBudget.STATE_OK)) {
+			onStorageLow();
+		}
+		return mStorageBudget.getNextIntervalMs();
+	}
+
 //================================================================================
 	/**
-	 * 一定時間毎の空き容量チェック＆一定時間後に録画を停止させるためのハンドラー
+	 * 空き容量チェック＆一定時間後に録画を停止させるためのハンドラー
+	 * 空き容量の確認間隔はStorageBudgetが予測した空き容量が尽きるまでの時間に応じて変わる
 	 */
 	private static final class EosHandler extends Handler {
 	    private static final int MSG_CHECK_FREESPACE = 5;
@@ -554,13 +722,14 @@ public abstract class Recorder implements IRecorder {
 
     	/**
     	 * 空き容量のチェック開始要求
-    	 * 一度開始要求を送るとこのスレッドが停止されるまで自分で繰返し定期的に呼び出す
+    	 * 一度開始要求を送るとこのスレッドが停止されるまで自分で繰返し呼び出す
+    	 * @param delayMs 最初にチェックするまでの時間[ミリ秒]
     	 */
-    	public final void startCheckFreeSpace() {
+    	public final void startCheckFreeSpace(final long delayMs) {
     		// 未処理の空き容量チェックメッセージがあれば破棄
     		removeMessages(MSG_CHECK_FREESPACE);
     		// 一定時間後に空き容量チェックメッセージを送る
-    		sendEmptyMessageDelayed(MSG_CHECK_FREESPACE, CHECK_INTERVAL);
+    		sendEmptyMessageDelayed(MSG_CHECK_FREESPACE, delayMs);
     	}
 
     	/**
@@ -592,12 +761,15 @@ public abstract class Recorder implements IRecorder {
 				recorder.stopRecording();
 				break;
             case MSG_CHECK_FREESPACE:	// 空き容量チェックメッセージ
-            	if (!mThread.check(recorder)) {
-            		sendEmptyMessageDelayed(MSG_CHECK_FREESPACE, CHECK_INTERVAL);
+            {
+            	final long nextMs = mThread.check(recorder);
+            	if (nextMs >= 0) {
+            		sendEmptyMessageDelayed(MSG_CHECK_FREESPACE, nextMs);
             	} else {
             		recorder.stopRecording();
             	}
 				break;
+            }
 			case MSG_SEND_QUIT:
 				try {
 					Looper.myLooper().quit();
@@ -653,8 +825,8 @@ public abstract class Recorder implements IRecorder {
 	            }
 	    	}
 
-	    	private boolean check(final Recorder recorder) {
-				return recorder.check();
+	    	private long check(final Recorder recorder) {
+				return recorder.checkStorage();
 	    	}
 	    }
 	}
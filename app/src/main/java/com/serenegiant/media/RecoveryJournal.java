@@ -0,0 +1,295 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.content.Context;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+
+import static com.serenegiant.media.Mp4Recovery.*;
+
+/**
+ * MediaMuxerでの録画中にアプリが強制終了した時にMp4Recoveryで修復するためのサイドカーファイル
+ * ・トラック追加時(MediaReaperのINFO_OUTPUT_FORMAT_CHANGEDからRecorder#addTrackが呼ばれた時)に
+ *   コーデック設定(csd-0, csd-1...)を書き込む
+ * ・音声(AAC)はフレーム境界をmdatから求められないのでフレームサイズをFLUSH_FRAMESフレーム毎に追記する
+ *   映像はmdatから境界を求められるので何も書き込まない
+ * 正常に録画終了した時は#finishで削除する
+ * (#setDeferDeleteで保留した時は録画ファイルの書き換えが終わってから#deleteで削除する)
+ * 各メソッドはスレッドセーフ, 書き込みに失敗した時は以降の書き込みを行わない(録画は継続する)
+ */
+public class RecoveryJournal {
+	private static final boolean DEBUG = false;	// set false on production
+	private static final String TAG = RecoveryJournal.class.getSimpleName();
+
+	/**
+	 * サイドカーファイルの拡張子
+	 */
+	public static final String EXTENSION = ".rec";
+	private static final String DIR_NAME = "recovery";
+	/**
+	 * 音声のフレームサイズを追記する間隔[フレーム数]
+	 * 44.1kHzで約6秒分, 強制終了時にはこれ以降の音声が失われる
+	 */
+	private static final int FLUSH_FRAMES = 256;
+	private static final int MAX_TRACKS = 8;
+
+	/**
+	 * サイドカーファイルの保存先ディレクトリを取得する
+	 * @param context
+	 * @return
+	 */
+	@NonNull
+	public static File getDirectory(@NonNull final Context context) {
+		final File dir = new File(context.getFilesDir(), DIR_NAME);
+		if (!dir.exists() && !dir.mkdirs()) {
+			Log.w(TAG, "failed to create directory," + dir);
+		}
+		return dir;
+	}
+
+	/**
+	 * 正常に終了しなかった録画のサイドカーファイル一覧を取得する
+	 * 録画中のものも含まれるので録画開始前に呼び出すこと
+	 * @param context
+	 * @return
+	 */
+	@NonNull
+	public static List<File> listJournals(@NonNull final Context context) {
+		final List<File> result = new ArrayList<>();
+		final File[] files = getDirectory(context).listFiles();
+		if (files != null) {
+			for (final File file: files) {
+				if (file.isFile() && file.getName().endsWith(EXTENSION)) {
+					result.add(file);
+				}
+			}
+		}
+		return result;
+	}
+
+	@NonNull
+	private final File mFile;
+	@NonNull
+	private final DataOutputStream mOut;
+	/**
+	 * 音声トラックかどうか(トラックインデックス毎)
+	 */
+	@NonNull
+	private final boolean[] mAudioTracks = new boolean[MAX_TRACKS];
+	@NonNull
+	private final int[] mPendingSizes = new int[FLUSH_FRAMES];
+	private int mPendingTrack = -1;
+	private int mPendingCount;
+	private boolean mClosed;
+	private boolean mDeferDelete;
+	private boolean mFinished;
+
+	/**
+	 * コンストラクタ
+	 * @param file サイドカーファイル
+	 * @param output 録画ファイルのuri文字列またはファイルパス
+	 * @throws IOException
+	 */
+	public RecoveryJournal(@NonNull final File file, @NonNull final String output)
+		throws IOException {
+
+		mFile = file;
+		mOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			mOut.writeInt(JOURNAL_MAGIC);
+			mOut.writeInt(JOURNAL_VERSION);
+			mOut.writeUTF(output);
+			mOut.flush();
+		} catch (final IOException e) {
+			mOut.close();
+			//noinspection ResultOfMethodCallIgnored
+			file.delete();
+			throw e;
+		}
+	}
+
+	@NonNull
+	public File getFile() {
+		return mFile;
+	}
+
+	/**
+	 * トラック情報を書き込む
+	 * @param trackIndex IMuxer#addTrackの返り値
+	 * @param format エンコーダーの出力フォーマット
+	 */
+	public synchronized void addTrack(final int trackIndex, @NonNull final MediaFormat format) {
+		if (mClosed || (trackIndex < 0) || (trackIndex >= MAX_TRACKS)) return;
+		final String mime = format.getString(MediaFormat.KEY_MIME);
+		mAudioTracks[trackIndex] = (mime != null) && mime.startsWith("audio/");
+		final List<byte[]> csd = new ArrayList<>();
+		for (int i = 0; format.containsKey("csd-" + i); i++) {
+			// 他のスレッドで使用中かもしれないのでpositionを変更しないように複製する
+			final ByteBuffer buf = format.getByteBuffer("csd-" + i).duplicate();
+			buf.clear();
+			final byte[] bytes = new byte[buf.remaining()];
+			buf.get(bytes);
+			csd.add(bytes);
+		}
+		try {
+			mOut.write(TAG_TRACK);
+			mOut.write(trackIndex);
+			mOut.writeUTF(mime != null ? mime : "");
+			mOut.writeInt(getInteger(format, MediaFormat.KEY_WIDTH));
+			mOut.writeInt(getInteger(format, MediaFormat.KEY_HEIGHT));
+			mOut.writeInt(getInteger(format, MediaFormat.KEY_FRAME_RATE));
+			mOut.writeInt(getInteger(format, MediaFormat.KEY_SAMPLE_RATE));
+			mOut.writeInt(getInteger(format, MediaFormat.KEY_CHANNEL_COUNT));
+			mOut.writeInt(getInteger(format, MediaFormat.KEY_BIT_RATE));
+			mOut.write(csd.size());
+			for (final byte[] bytes: csd) {
+				mOut.writeInt(bytes.length);
+				mOut.write(bytes);
+			}
+			mOut.flush();
+		} catch (final IOException e) {
+			onError(e);
+		}
+	}
+
+	/**
+	 * muxerへサンプルを書き込んだ時に呼び出す
+	 * @param trackIndex
+	 * @param size
+	 */
+	public synchronized void onSampleWritten(final int trackIndex, final int size) {
+		if (mClosed || (trackIndex < 0) || (trackIndex >= MAX_TRACKS)
+			|| !mAudioTracks[trackIndex] || (size <= 0)) return;
+		if ((mPendingTrack != trackIndex) && (mPendingCount > 0)) {
+			flushSizes();
+		}
+		mPendingTrack = trackIndex;
+		mPendingSizes[mPendingCount++] = size;
+		if (mPendingCount >= FLUSH_FRAMES) {
+			flushSizes();
+		}
+	}
+
+	/**
+	 * #finishでサイドカーファイルを削除せずに閉じるだけにするかどうかを設定する
+	 * 録画終了後にFastStartFinalizer#processInPlace等で録画ファイルをその場で書き換える時に
+	 * 書き換え中に強制終了しても修復できるように使う, 書き換えが終わったら#deleteを呼ぶこと
+	 * @param deferDelete
+	 */
+	public synchronized void setDeferDelete(final boolean deferDelete) {
+		mDeferDelete = deferDelete;
+	}
+
+	/**
+	 * 録画を正常に終了した時に呼び出す
+	 * サイドカーファイルを閉じて削除する(#setDeferDeleteで保留した時は閉じるだけ)
+	 */
+	public synchronized void finish() {
+		close();
+		mFinished = true;
+		if (!mDeferDelete) {
+			delete();
+		}
+	}
+
+	/**
+	 * #finishを呼んだ(録画を正常に終了した)かどうか
+	 * @return
+	 */
+	public synchronized boolean isFinished() {
+		return mFinished;
+	}
+
+	/**
+	 * サイドカーファイルを閉じて削除する
+	 */
+	public synchronized void delete() {
+		close();
+		if (mFile.exists() && !mFile.delete()) {
+			Log.w(TAG, "failed to delete," + mFile);
+		}
+	}
+
+	/**
+	 * サイドカーファイルを閉じる
+	 * 削除しないので次回起動時に修復対象になる
+	 */
+	public synchronized void close() {
+		if (!mClosed) {
+			flushSizes();
+			mClosed = true;
+			try {
+				mOut.close();
+			} catch (final IOException e) {
+				Log.w(TAG, e);
+			}
+		}
+	}
+
+	private void flushSizes() {
+		if (mClosed || (mPendingCount <= 0)) return;
+		try {
+			mOut.write(TAG_SAMPLE_SIZES);
+			mOut.write(mPendingTrack);
+			mOut.writeShort(mPendingCount);
+			for (int i = 0; i < mPendingCount; i++) {
+				mOut.writeInt(mPendingSizes[i]);
+			}
+			mOut.flush();
+			if (DEBUG) Log.v(TAG, "flushSizes:track=" + mPendingTrack + ",n=" + mPendingCount);
+		} catch (final IOException e) {
+			onError(e);
+		}
+		mPendingCount = 0;
+	}
+
+	private void onError(@NonNull final IOException e) {
+		Log.w(TAG, e);
+		mClosed = true;
+		try {
+			mOut.close();
+		} catch (final IOException e1) {
+			// ignore
+		}
+	}
+
+	private static int getInteger(@NonNull final MediaFormat format, @NonNull final String key) {
+		if (!format.containsKey(key)) {
+			return 0;
+		}
+		try {
+			return format.getInteger(key);
+		} catch (final ClassCastException e) {
+			// KEY_FRAME_RATEはfloatで入っていることがある
+			return (int)format.getFloat(key);
+		}
+	}
+}
@@ -19,19 +19,33 @@ package com.serenegiant.media;
 */
 
 import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import androidx.annotation.IntRange;
 import androidx.annotation.NonNull;
 
 /**
  * IRecycleBufferを実装したMediaData
+ * 参照カウントを持つので、#retainまたは#sliceで参照を増やせば
+ * 複数の処理(muxer, ネットワーク送信, メモリー上のリングバッファ等)へコピーせずに引き渡せる
+ * #retain/#sliceは独自のposition/limitを持つByteBufferでメモリーを共有するビューを返すので
+ * 引き渡し先ごとに読み込み位置が干渉することは無い
+ * #retain/#sliceで得たビュー毎に1回#recycleを呼ぶ必要があり、
+ * 最後の#recycle呼び出しで親のIRecycleParentへ返却される
  */
 public class RecycleMediaData extends MediaData implements IRecycleBuffer {
 	@NonNull
 	private final WeakReference<IRecycleParent<RecycleMediaData>> mWeakParent;
 
 	private volatile boolean mIsRecycled = false;
+	/**
+	 * #retain/#sliceで生成したビューの数
+	 * 0の時に#recycleを呼ぶと親のIRecycleParentへ返却する
+	 */
+	@NonNull
+	private final AtomicInteger mRefCount = new AtomicInteger();
 
 	/**
 	 * コンストラクタ
@@ -89,9 +103,71 @@ public class RecycleMediaData extends MediaData implements IRecycleBuffer {
 		mIsRecycled = src.mIsRecycled;
 	}
 
+	/**
+	 * スライス生成用のコンストラクタ
+	 * 親のIRecycleParentは持たない
+	 */
+	private RecycleMediaData() {
+		super();
+		mWeakParent = new WeakReference<IRecycleParent<RecycleMediaData>>(null);
+	}
+
+	/**
+	 * 参照を追加して保持しているデータ全体をコピーせずに参照するRecycleMediaDataを生成する
+	 * #slice(0, #size)と同じ
+	 * 返したRecycleMediaDataは独自のposition/limitを持つのでこのオブジェクトと
+	 * 別々のスレッドで読み込んでもよいが、経由して内容を書き換えてはいけない
+	 * 不要になれば返したRecycleMediaDataの#recycleを呼ぶこと
+	 * @return
+	 * @throws IllegalStateException 既にリサイクル済みの場合
+	 */
+	@NonNull
+	public RecycleMediaData retain() throws IllegalStateException {
+		return slice(0, size());
+	}
+
+	/**
+	 * 現在の参照数を取得
+	 * @return リサイクル済みなら0
+	 */
+	public int refCount() {
+		return isRecycled() ? 0 : mRefCount.get() + 1;
+	}
+
+	/**
+	 * 保持しているデータの一部をコピーせずに参照するRecycleMediaDataを生成する
+	 * スライスが生きている間はこのオブジェクトへの参照が1つ追加される
+	 * スライスが不要になればスライスの#recycleを呼ぶこと
+	 * スライスを経由して内容を書き換えてはいけない
+	 * @param offset
+	 * @param size
+	 * @return
+	 * @throws IndexOutOfBoundsException
+	 * @throws IllegalStateException 既にリサイクル済みの場合
+	 */
+	@NonNull
+	public RecycleMediaData slice(
+		@IntRange(from = 0L) final int offset,
+		@IntRange(from = 0L) final int size)
+			throws IndexOutOfBoundsException, IllegalStateException {
+
+		if ((offset < 0) || (size < 0) || (offset + size > size())) {
+			throw new IndexOutOfBoundsException("offset=" + offset + ",size=" + size + ",data size=" + size());
+		}
+		if (isRecycled()) {
+			throw new IllegalStateException("already recycled");
+		}
+		mRefCount.incrementAndGet();
+		return new Slice(this, offset, size);
+	}
+
+	/**
+	 * 参照を1つ解放する
+	 * 最後の参照であれば親のIRecycleParentへ返却する
+	 */
 	@Override
 	public void recycle() {
-		if (!isRecycled()) {
+		if (!isRecycled() && releaseRef()) {
 			final IRecycleParent<RecycleMediaData> parent = mWeakParent.get();
 			if (parent != null) {
 				parent.recycle(this);
@@ -106,5 +182,55 @@ public class RecycleMediaData extends MediaData implements IRecycleBuffer {
 
 	/*package*/ void setRecycled(final boolean recycled) {
 		mIsRecycled = recycled;
+		if (recycled) {
+			mRefCount.set(0);
+		}
+	}
+
+	/**
+	 * 参照カウントを1つ減らす
+	 * @return 最後の参照だった場合にtrue
+	 */
+	private boolean releaseRef() {
+		for ( ; ; ) {
+			final int count = mRefCount.get();
+			if (count <= 0) {
+				return true;
+			}
+			if (mRefCount.compareAndSet(count, count - 1)) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * #retain/#sliceで生成する、元のRecycleMediaDataのメモリーを参照するRecycleMediaData
+	 * 最後の参照を#recycleした時に元のRecycleMediaDataの参照を解放する
+	 */
+	private static class Slice extends RecycleMediaData {
+		@NonNull
+		private final RecycleMediaData mOrigin;
+
+		private Slice(@NonNull final RecycleMediaData origin,
+			final int offset, final int size) {
+
+			super();
+			mOrigin = origin;
+			order(origin.order());
+			ByteBuffer buffer = origin.getRaw();
+			if (buffer == null) {
+				buffer = origin.get();
+			}
+			wrap(origin.trackIx(), buffer, offset, size,
+				origin.presentationTimeUs(), origin.flags());
+		}
+
+		@Override
+		public void recycle() {
+			if (!isRecycled() && super.releaseRef()) {
+				setRecycled(true);
+				mOrigin.recycle();
+			}
+		}
 	}
 }
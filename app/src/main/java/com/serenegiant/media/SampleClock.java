@@ -0,0 +1,323 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.util.Log;
+
+import com.serenegiant.system.Time;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+
+/**
+ * 音声データのpresentationTimeUsを累積サンプル数から求めるためのヘルパークラス
+ *
+ * 読み込む度にシステム時刻を使うとAudioRecord#readから戻るタイミングの揺らぎがそのまま乗る上に
+ * 値が重なった時に適当な値を足して逃がすしかないので、長時間録音すると映像とずれていく
+ * このクラスでは最初のバッファで一度だけシステム時刻へ合わせた後は
+ * 累積サンプル数 / サンプリング周波数で時刻を進める。
+ * 音声デバイスのクロックとシステム時刻のずれ(ドリフト)は一定間隔毎に平均して測定し、
+ * 上限(#setMaxSlewPpm)以内の割合で時刻の進み方を補正して少しずつ追従させる(再アンカー)
+ * ずれが#setResyncThresholdUsを超えた時(バッファのオーバーランで欠落した時など)だけは
+ * 直ちにシステム時刻へ合わせ直す
+ * 返すpresentationTimeUsは常に単調増加する
+ * スレッドセーフではないので1つの音声取得スレッドからのみ呼び出すこと
+ */
+public class SampleClock {
+	private static final boolean DEBUG = false;	// set false on production
+	private static final String TAG = SampleClock.class.getSimpleName();
+
+	/**
+	 * システム時刻を取得するためのインターフェース
+	 */
+	public interface TimeSource {
+		/**
+		 * 単調増加する現在時刻を取得する
+		 * @return [マイクロ秒]
+		 */
+		public long nowUs();
+	}
+
+	/**
+	 * 映像側と同じ時刻基準を使うためにTime#nanoTimeを使うTimeSource
+	 */
+	public static final TimeSource SYSTEM_TIME = new TimeSource() {
+		@Override
+		public long nowUs() {
+			return Time.nanoTime() / 1000L;
+		}
+	};
+
+	private static final long DEFAULT_REANCHOR_INTERVAL_US = 1000000L;	// 1秒
+	private static final int DEFAULT_MAX_SLEW_PPM = 1000;				// 0.1%
+	private static final long DEFAULT_RESYNC_THRESHOLD_US = 200000L;		// 200ミリ秒
+	/**
+	 * 測定したずれを何回分の再アンカー間隔で解消するか
+	 */
+	private static final int CONVERGE_INTERVALS = 10;
+
+	@NonNull
+	private final TimeSource mTimeSource;
+	private final int mSampleRate;
+	private long mReanchorIntervalUs = DEFAULT_REANCHOR_INTERVAL_US;
+	private int mMaxSlewPpm = DEFAULT_MAX_SLEW_PPM;
+	private long mResyncThresholdUs = DEFAULT_RESYNC_THRESHOLD_US;
+
+	/**
+	 * 累積サンプル数
+	 */
+	private long mSamples;
+	/**
+	 * アンカー時点の累積サンプル数とpresentationTimeUs
+	 */
+	private long mAnchorSamples;
+	private long mAnchorPtsUs = -1;
+	/**
+	 * 現在の補正量[ppm], 正ならサンプル数から求めるよりも速く進める
+	 */
+	private int mCorrectionPpm;
+	private long mLastPtsUs = -1;
+	// 再アンカー間隔内のずれの集計値
+	private long mWindowStartUs;
+	private long mWindowErrorSumUs;
+	private int mWindowCount;
+	// 統計情報
+	private long mDriftUs;
+	private long mMaxDriftUs;
+	private int mReanchorCount;
+	private int mResyncCount;
+
+	/**
+	 * コンストラクタ
+	 * Time#nanoTimeを時刻基準に使う
+	 * @param sampleRate サンプリング周波数[Hz]
+	 */
+	public SampleClock(@IntRange(from = 1L) final int sampleRate) {
+		this(sampleRate, SYSTEM_TIME);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param sampleRate サンプリング周波数[Hz]
+	 * @param timeSource
+	 * @throws IllegalArgumentException
+	 */
+	public SampleClock(@IntRange(from = 1L) final int sampleRate,
+		@NonNull final TimeSource timeSource) throws IllegalArgumentException {
+
+		if (sampleRate <= 0) {
+			throw new IllegalArgumentException("invalid sample rate," + sampleRate);
+		}
+		mSampleRate = sampleRate;
+		mTimeSource = timeSource;
+	}
+
+	/**
+	 * ずれを測定して補正量を更新する間隔を設定する
+	 * @param intervalUs [マイクロ秒]
+	 */
+	public void setReanchorIntervalUs(@IntRange(from = 1L) final long intervalUs) {
+		mReanchorIntervalUs = intervalUs;
+	}
+
+	/**
+	 * 補正量の上限を設定する
+	 * @param maxSlewPpm [ppm], 0なら再アンカー時に補正しない
+	 */
+	public void setMaxSlewPpm(@IntRange(from = 0L) final int maxSlewPpm) {
+		mMaxSlewPpm = maxSlewPpm;
+	}
+
+	/**
+	 * 直ちにシステム時刻へ合わせ直すずれの閾値を設定する
+	 * @param thresholdUs [マイクロ秒]
+	 */
+	public void setResyncThresholdUs(@IntRange(from = 1L) final long thresholdUs) {
+		mResyncThresholdUs = thresholdUs;
+	}
+
+	public int getSampleRate() {
+		return mSampleRate;
+	}
+
+	/**
+	 * 状態をクリアする, 次の#nextで改めてシステム時刻へ合わせる
+	 * 返すpresentationTimeUsが単調増加になるように前回の値だけは保持する
+	 */
+	public void reset() {
+		mSamples = mAnchorSamples = 0;
+		mAnchorPtsUs = -1;
+		mCorrectionPpm = 0;
+		mWindowErrorSumUs = mWindowCount = 0;
+		mDriftUs = mMaxDriftUs = 0;
+		mReanchorCount = mResyncCount = 0;
+	}
+
+	/**
+	 * 読み込んだ音声データのpresentationTimeUsを取得して累積サンプル数を進める
+	 * 読み込みから戻った直後に呼び出すこと
+	 * @param samples 読み込んだサンプル数(1チャネルあたり)
+	 * @return 読み込んだ音声データの先頭サンプルのpresentationTimeUs
+	 */
+	public long next(@IntRange(from = 0L) final int samples) {
+		final long nowUs = mTimeSource.nowUs();
+		// 読み込みから戻った時点で最後のサンプルを取得し終わっているとみなす
+		final long wallUs = nowUs - samplesToUs(samples);
+		long ptsUs;
+		if (mAnchorPtsUs < 0) {
+			// 最初のバッファでシステム時刻に合わせる
+			ptsUs = anchor(wallUs, nowUs);
+		} else {
+			ptsUs = samplePtsUs();
+			final long errorUs = wallUs - ptsUs;
+			if (Math.abs(errorUs) > mResyncThresholdUs) {
+				// 欠落などで大きくずれた時は補正せずにシステム時刻へ合わせ直す
+				if (DEBUG) Log.v(TAG, "next:resync,error=" + errorUs);
+				mResyncCount++;
+				ptsUs = anchor(wallUs, nowUs);
+			} else {
+				mWindowErrorSumUs += errorUs;
+				mWindowCount++;
+				if (nowUs - mWindowStartUs >= mReanchorIntervalUs) {
+					reanchor(ptsUs, nowUs);
+				}
+			}
+		}
+		if (ptsUs <= mLastPtsUs) {
+			ptsUs = mLastPtsUs + 1;
+		}
+		mLastPtsUs = ptsUs;
+		mSamples += samples;
+		return ptsUs;
+	}
+
+	/**
+	 * 読み込んだ音声データのpresentationTimeUsを取得して累積サンプル数を進める
+	 * @param bytes 読み込んだバイト数
+	 * @param bytesPerFrame 1フレーム(全チャネル分の1サンプル)あたりのバイト数
+	 * @return 読み込んだ音声データの先頭サンプルのpresentationTimeUs
+	 */
+	public long nextBytes(@IntRange(from = 0L) final int bytes,
+		@IntRange(from = 1L) final int bytesPerFrame) {
+
+		return next(bytes / bytesPerFrame);
+	}
+
+	/**
+	 * 最後に再アンカーした時点で測定したずれ(システム時刻 - サンプル数から求めた時刻)
+	 * @return [マイクロ秒]
+	 */
+	public long getDriftUs() {
+		return mDriftUs;
+	}
+
+	/**
+	 * 測定したずれの絶対値の最大値
+	 * @return [マイクロ秒]
+	 */
+	public long getMaxDriftUs() {
+		return mMaxDriftUs;
+	}
+
+	/**
+	 * 現在の補正量
+	 * @return [ppm]
+	 */
+	public int getCorrectionPpm() {
+		return mCorrectionPpm;
+	}
+
+	/**
+	 * 補正量を更新した回数
+	 * @return
+	 */
+	public int getReanchorCount() {
+		return mReanchorCount;
+	}
+
+	/**
+	 * ずれが大きすぎてシステム時刻へ合わせ直した回数
+	 * @return
+	 */
+	public int getResyncCount() {
+		return mResyncCount;
+	}
+
+	/**
+	 * 累積サンプル数
+	 * @return
+	 */
+	public long getSampleCount() {
+		return mSamples;
+	}
+
+	@NonNull
+	@Override
+	public String toString() {
+		return "SampleClock{" +
+			"sampleRate=" + mSampleRate +
+			", samples=" + mSamples +
+			", driftUs=" + mDriftUs +
+			", maxDriftUs=" + mMaxDriftUs +
+			", correctionPpm=" + mCorrectionPpm +
+			", reanchor=" + mReanchorCount +
+			", resync=" + mResyncCount +
+			'}';
+	}
+
+	private long anchor(final long ptsUs, final long nowUs) {
+		mAnchorPtsUs = ptsUs;
+		mAnchorSamples = mSamples;
+		mCorrectionPpm = 0;
+		mWindowStartUs = nowUs;
+		mWindowErrorSumUs = mWindowCount = 0;
+		return ptsUs;
+	}
+
+	/**
+	 * 間隔内の平均のずれから補正量を決めて現在位置を新しいアンカーにする
+	 * アンカーは今の時刻のまま動かすので補正量を変えても時刻は飛ばない
+	 * @param ptsUs 現在のサンプル数から求めたpresentationTimeUs
+	 * @param nowUs
+	 */
+	private void reanchor(final long ptsUs, final long nowUs) {
+		final long driftUs = mWindowCount > 0 ? mWindowErrorSumUs / mWindowCount : 0;
+		final long elapsedUs = nowUs - mWindowStartUs;
+		mDriftUs = driftUs;
+		mMaxDriftUs = Math.max(mMaxDriftUs, Math.abs(driftUs));
+		// ずれをCONVERGE_INTERVALS回分の間隔で解消できるだけ進み方を変える
+		final long ppm = driftUs * 1000000L / (elapsedUs * CONVERGE_INTERVALS);
+		mCorrectionPpm = (int)Math.max(-mMaxSlewPpm, Math.min(mMaxSlewPpm, ppm));
+		mAnchorPtsUs = ptsUs;
+		mAnchorSamples = mSamples;
+		mWindowStartUs = nowUs;
+		mWindowErrorSumUs = mWindowCount = 0;
+		mReanchorCount++;
+		if (DEBUG) Log.v(TAG, "reanchor:" + this);
+	}
+
+	private long samplePtsUs() {
+		final long us = samplesToUs(mSamples - mAnchorSamples);
+		return mAnchorPtsUs + us + us * mCorrectionPpm / 1000000L;
+	}
+
+	private long samplesToUs(final long samples) {
+		return samples * 1000000L / mSampleRate;
+	}
+}
@@ -0,0 +1,500 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import com.serenegiant.utils.HandlerThreadHandler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.WorkerThread;
+
+/**
+ * 一定時間毎または一定サイズ毎に出力先を切り替えるIMuxer実装
+ * 切り替え条件を満たした後の最初の映像のキーフレーム(音声のみの時は次のサンプル)から次のセグメントへ書き込む
+ * エンコーダーは止めずに出力先のIMuxerだけを入れ替えるので各セグメントはそれぞれ単独で再生できる
+ * 次のセグメント用IMuxerの生成/開始と前のセグメントの終了処理はワーカースレッドで行うので
+ * #writeSampleDataを呼び出すスレッドはファイルの生成や終了処理でブロックされない
+ * (次のセグメントの準備が間に合わなかったときは準備ができた後のキーフレームまで今のセグメントへ書き込む)
+ */
+public class SegmentedMuxer implements IMuxer {
+	private static final boolean DEBUG = false;	// set false on production
+	private static final String TAG = SegmentedMuxer.class.getSimpleName();
+
+	/**
+	 * ワーカースレッドの終了待ちをする最大時間[ミリ秒]
+	 */
+	private static final long MAX_WAIT_FINISH_MS = 3000L;
+
+	/**
+	 * セグメント毎のIMuxerを生成するためのファクトリーインターフェース
+	 */
+	public interface SegmentFactory {
+		/**
+		 * 指定したセグメント用のIMuxerを生成する
+		 * 最初のセグメント以外はワーカースレッドから呼び出される
+		 * @param segment 0から始まるセグメント番号
+		 * @return
+		 * @throws IOException
+		 */
+		@NonNull
+		public IMuxer createMuxer(final int segment) throws IOException;
+
+		/**
+		 * 1つもサンプルを書き込まないまま破棄したセグメントの後始末をする
+		 * IMuxer#releaseは呼び出し済み、出力先を削除する等
+		 * @param segment
+		 * @param muxer
+		 */
+		public void discardMuxer(final int segment, @NonNull final IMuxer muxer);
+	}
+
+	/**
+	 * セグメントの切り替えを通知するためのコールバックリスナー
+	 */
+	public interface SegmentCallback {
+		/**
+		 * セグメントへの書き込みを開始した
+		 * @param segment
+		 */
+		public void onSegmentStarted(final int segment);
+		/**
+		 * セグメントの終了処理が完了した
+		 * @param segment
+		 */
+		@WorkerThread
+		public void onSegmentFinished(final int segment);
+		/**
+		 * セグメントの生成または終了処理でエラーが発生した
+		 * @param e
+		 */
+		public void onError(@NonNull final Exception e);
+	}
+
+	/**
+	 * 1つのセグメントの出力先
+	 */
+	private static class Segment {
+		private final int index;
+		@NonNull
+		private final IMuxer muxer;
+		@NonNull
+		private final int[] trackIndexes;
+		private long startPtsUs = -1;
+		private long bytes;
+
+		private Segment(final int index, @NonNull final IMuxer muxer, final int numTracks) {
+			this.index = index;
+			this.muxer = muxer;
+			this.trackIndexes = new int[numTracks];
+		}
+	}
+
+	@NonNull
+	private final Object mSync = new Object();
+	@NonNull
+	private final SegmentFactory mFactory;
+	@Nullable
+	private final SegmentCallback mCallback;
+	private final long mMaxDurationUs;
+	private final long mMaxBytes;
+	@NonNull
+	private final List<MediaFormat> mFormats = new ArrayList<>();
+	private int mVideoTrack = -1;
+	@Nullable
+	private HandlerThreadHandler mWorker;
+	@Nullable
+	private Segment mCurrent;
+	@Nullable
+	private Segment mNext;
+	private int mNextIndex;
+	/**
+	 * ワーカースレッドで次のセグメントを準備中かどうか
+	 */
+	private boolean mPreparing;
+	private boolean mRequestRollover;
+	private volatile boolean mIsStarted;
+	private volatile boolean mReleased;
+
+	/**
+	 * コンストラクタ
+	 * @param factory
+	 * @param maxDurationUs 1セグメントの最大長[マイクロ秒], 0以下なら時間では切り替えない
+	 * @param maxBytes 1セグメントの最大バイト数, 0以下ならサイズでは切り替えない
+	 * @param callback
+	 */
+	public SegmentedMuxer(
+		@NonNull final SegmentFactory factory,
+		final long maxDurationUs, final long maxBytes,
+		@Nullable final SegmentCallback callback) {
+
+		mFactory = factory;
+		mMaxDurationUs = maxDurationUs;
+		mMaxBytes = maxBytes;
+		mCallback = callback;
+	}
+
+	/**
+	 * トラックを追加する
+	 * 全てのセグメントへ同じ順番で追加する
+	 * @param format
+	 * @return
+	 */
+	@Override
+	public int addTrack(@NonNull final MediaFormat format) {
+		synchronized (mSync) {
+			if (mIsStarted || mReleased) {
+				throw new IllegalStateException("muxer already started/released");
+			}
+			final String mime = format.getString(MediaFormat.KEY_MIME);
+			if ((mVideoTrack < 0) && (mime != null) && mime.startsWith("video/")) {
+				mVideoTrack = mFormats.size();
+			}
+			mFormats.add(format);
+			return mFormats.size() - 1;
+		}
+	}
+
+	/**
+	 * 最初のセグメントは呼び出したスレッドで生成して開始する
+	 * 生成に失敗したときはIllegalStateExceptionを投げる
+	 */
+	@Override
+	public void start() {
+		synchronized (mSync) {
+			if (mIsStarted || mReleased) {
+				throw new IllegalStateException("muxer already started/released");
+			}
+			try {
+				mCurrent = createSegment(mNextIndex++);
+			} catch (final IOException e) {
+				throw new IllegalStateException(e);
+			}
+			mWorker = HandlerThreadHandler.createHandler(TAG);
+			mIsStarted = true;
+		}
+		callOnSegmentStarted(0);
+		requestPrepareNext();
+	}
+
+	@Override
+	public void writeSampleData(final int trackIndex,
+		@NonNull final ByteBuffer byteBuf,
+		@NonNull final MediaCodec.BufferInfo bufferInfo) {
+
+		Segment finished = null;
+		Segment current;
+		boolean needPrepare = false;
+		synchronized (mSync) {
+			current = mCurrent;
+			if (!mIsStarted || (current == null)) {
+				return;
+			}
+			if (mRequestRollover && (mNext != null) && isSwapPoint(trackIndex, bufferInfo)) {
+				// 次のセグメントへ切り替える
+				finished = current;
+				current = mCurrent = mNext;
+				mNext = null;
+				mRequestRollover = false;
+			}
+			current.muxer.writeSampleData(current.trackIndexes[trackIndex], byteBuf, bufferInfo);
+			if (current.startPtsUs < 0) {
+				current.startPtsUs = bufferInfo.presentationTimeUs;
+			}
+			current.bytes += bufferInfo.size;
+			if (!mRequestRollover
+				&& (((mMaxDurationUs > 0)
+						&& (bufferInfo.presentationTimeUs - current.startPtsUs >= mMaxDurationUs))
+					|| ((mMaxBytes > 0) && (current.bytes >= mMaxBytes)))) {
+
+				if (DEBUG) Log.v(TAG, "writeSampleData:request rollover,segment=" + current.index);
+				mRequestRollover = true;
+				// 前回の準備に失敗していたときのために再度準備要求する
+				needPrepare = (mNext == null);
+			}
+		}
+		if (finished != null) {
+			callOnSegmentStarted(current.index);
+			requestFinish(finished);
+			requestPrepareNext();
+		} else if (needPrepare) {
+			requestPrepareNext();
+		}
+	}
+
+	/**
+	 * 時間やサイズの条件に関係なく次の切り替えポイントで次のセグメントへ切り替える
+	 * 開始していない時は何もしない
+	 */
+	public void requestRollover() {
+		final boolean needPrepare;
+		synchronized (mSync) {
+			if (!mIsStarted || (mCurrent == null) || mRequestRollover) {
+				return;
+			}
+			if (DEBUG) Log.v(TAG, "requestRollover:segment=" + mCurrent.index);
+			mRequestRollover = true;
+			needPrepare = (mNext == null);
+		}
+		if (needPrepare) {
+			requestPrepareNext();
+		}
+	}
+
+	/**
+	 * 今のセグメントを終了する
+	 * ワーカースレッドで処理中の終了処理も完了するまで待機する
+	 */
+	@Override
+	public void stop() {
+		final Segment current;
+		final Segment next;
+		final HandlerThreadHandler worker;
+		synchronized (mSync) {
+			if (!mIsStarted) {
+				return;
+			}
+			mIsStarted = false;
+			current = mCurrent;
+			next = mNext;
+			worker = mWorker;
+			mCurrent = mNext = null;
+			mWorker = null;
+		}
+		if (current != null) {
+			finish(current);
+		}
+		if (next != null) {
+			discard(next);
+		}
+		quitWorker(worker);
+	}
+
+	@Override
+	public void release() {
+		final Segment current;
+		final Segment next;
+		final HandlerThreadHandler worker;
+		synchronized (mSync) {
+			if (mReleased) {
+				return;
+			}
+			mReleased = true;
+			mIsStarted = false;
+			current = mCurrent;
+			next = mNext;
+			worker = mWorker;
+			mCurrent = mNext = null;
+			mWorker = null;
+		}
+		if (current != null) {
+			current.muxer.release();
+		}
+		if (next != null) {
+			discard(next);
+		}
+		quitWorker(worker);
+	}
+
+	@Override
+	public boolean isStarted() {
+		return mIsStarted && !mReleased;
+	}
+
+	/**
+	 * 書き込み中のセグメント番号を取得する
+	 * @return 開始していなければ-1
+	 */
+	public int getCurrentSegment() {
+		synchronized (mSync) {
+			return mCurrent != null ? mCurrent.index : -1;
+		}
+	}
+
+	/**
+	 * 次のセグメントへ切り替える位置かどうか
+	 * 映像トラックがあるときは映像のキーフレーム、音声のみのときは全てのサンプル
+	 * @param trackIndex
+	 * @param info
+	 * @return
+	 */
+	private boolean isSwapPoint(final int trackIndex, @NonNull final MediaCodec.BufferInfo info) {
+		if (mVideoTrack < 0) {
+			return true;
+		}
+		return (trackIndex == mVideoTrack)
+			&& ((info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0)
+			&& ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0);
+	}
+
+	/**
+	 * セグメント用のIMuxerを生成してトラックを追加し開始する
+	 * @param index
+	 * @return
+	 * @throws IOException
+	 */
+	@NonNull
+	private Segment createSegment(final int index) throws IOException {
+		if (DEBUG) Log.v(TAG, "createSegment:" + index);
+		final IMuxer muxer = mFactory.createMuxer(index);
+		final Segment result = new Segment(index, muxer, mFormats.size());
+		try {
+			for (int i = 0; i < mFormats.size(); i++) {
+				result.trackIndexes[i] = muxer.addTrack(mFormats.get(i));
+			}
+			muxer.start();
+		} catch (final RuntimeException e) {
+			discard(result);
+			throw e;
+		}
+		return result;
+	}
+
+	/**
+	 * 次のセグメントの準備をワーカースレッドで行う
+	 */
+	private void requestPrepareNext() {
+		final HandlerThreadHandler worker;
+		final int index;
+		synchronized (mSync) {
+			worker = mWorker;
+			if ((worker == null) || (mNext != null) || mPreparing) {
+				return;
+			}
+			mPreparing = true;
+			index = mNextIndex++;
+		}
+		worker.post(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					final Segment segment = createSegment(index);
+					boolean discard;
+					synchronized (mSync) {
+						mPreparing = false;
+						discard = !mIsStarted;
+						if (!discard) {
+							mNext = segment;
+						}
+					}
+					if (discard) {
+						discard(segment);
+					}
+				} catch (final Exception e) {
+					synchronized (mSync) {
+						mPreparing = false;
+					}
+					callOnError(e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * 書き込みが終わったセグメントの終了処理をワーカースレッドで行う
+	 * @param segment
+	 */
+	private void requestFinish(@NonNull final Segment segment) {
+		final HandlerThreadHandler worker;
+		synchronized (mSync) {
+			worker = mWorker;
+		}
+		if (worker != null) {
+			worker.post(new Runnable() {
+				@Override
+				public void run() {
+					finish(segment);
+				}
+			});
+		} else {
+			finish(segment);
+		}
+	}
+
+	private void finish(@NonNull final Segment segment) {
+		if (DEBUG) Log.v(TAG, "finish:" + segment.index);
+		try {
+			segment.muxer.stop();
+		} catch (final Exception e) {
+			callOnError(e);
+		}
+		segment.muxer.release();
+		if (mCallback != null) {
+			try {
+				mCallback.onSegmentFinished(segment.index);
+			} catch (final Exception e) {
+				Log.w(TAG, e);
+			}
+		}
+	}
+
+	private void discard(@NonNull final Segment segment) {
+		if (DEBUG) Log.v(TAG, "discard:" + segment.index);
+		try {
+			segment.muxer.release();
+		} catch (final Exception e) {
+			Log.w(TAG, e);
+		}
+		mFactory.discardMuxer(segment.index, segment.muxer);
+	}
+
+	/**
+	 * ワーカースレッドに残っている処理が終わるのを待ってから終了させる
+	 * @param worker
+	 */
+	private static void quitWorker(@Nullable final HandlerThreadHandler worker) {
+		if (worker != null) {
+			worker.quitSafely();
+			try {
+				worker.getLooper().getThread().join(MAX_WAIT_FINISH_MS);
+			} catch (final InterruptedException e) {
+				// ignore
+			}
+		}
+	}
+
+	private void callOnSegmentStarted(final int segment) {
+		if (mCallback != null) {
+			try {
+				mCallback.onSegmentStarted(segment);
+			} catch (final Exception e) {
+				Log.w(TAG, e);
+			}
+		}
+	}
+
+	private void callOnError(@NonNull final Exception e) {
+		Log.w(TAG, e);
+		if (mCallback != null) {
+			try {
+				mCallback.onError(e);
+			} catch (final Exception e1) {
+				Log.w(TAG, e1);
+			}
+		}
+	}
+}
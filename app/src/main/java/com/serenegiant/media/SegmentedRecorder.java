@@ -0,0 +1,231 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.content.Context;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.serenegiant.system.StorageInfo;
+import com.serenegiant.system.StorageUtils;
+import com.serenegiant.utils.FileUtils;
+
+import java.io.IOException;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.documentfile.provider.DocumentFile;
+
+/**
+ * 一定時間毎または一定サイズ毎に出力ファイルを切り替えながら録音録画するRecorder実装
+ * 出力先の切り替えはSegmentedMuxerで行うのでエンコーダーは録画終了まで動かしたままになる
+ * VideoConfig#maxDurationは全セグメントの合計の最大録画時間として扱う(0なら時間制限なし)
+ */
+public class SegmentedRecorder extends Recorder {
+	private static final boolean DEBUG = false;	// set false on production
+	private static final String TAG = SegmentedRecorder.class.getSimpleName();
+
+	/**
+	 * セグメント毎の出力ファイルを生成するためのインターフェース
+	 */
+	public interface OutputFactory {
+		/**
+		 * 指定したセグメント用の出力ファイルを生成する
+		 * 最初のセグメント以外はワーカースレッドから呼び出される
+		 * @param segment 0から始まるセグメント番号
+		 * @return
+		 * @throws IOException
+		 */
+		@NonNull
+		public DocumentFile createOutput(final int segment) throws IOException;
+	}
+
+	@NonNull
+	private final OutputFactory mOutputFactory;
+	@Nullable
+	private final SegmentedMuxer.SegmentCallback mSegmentCallback;
+	/**
+	 * 生成済みで終了/破棄していないセグメントの出力ファイル
+	 */
+	@NonNull
+	private final SparseArray<DocumentFile> mOutputs = new SparseArray<>();
+	@Nullable
+	private volatile DocumentFile mCurrentOutput;
+
+	/**
+	 * コンストラクタ
+	 * @param context
+	 * @param callback
+	 * @param config
+	 * @param factory
+	 * @param outputFactory
+	 * @param segmentDurationMs 1セグメントの最大長[ミリ秒], 0以下なら時間では切り替えない
+	 * @param segmentBytes 1セグメントの最大バイト数, 0以下ならサイズでは切り替えない
+	 * @param segmentCallback
+	 */
+	public SegmentedRecorder(@NonNull final Context context,
+		@Nullable final RecorderCallback callback,
+		@Nullable final VideoConfig config,
+		@Nullable final IMuxer.IMuxerFactory factory,
+		@NonNull final OutputFactory outputFactory,
+		final long segmentDurationMs, final long segmentBytes,
+		@Nullable final SegmentedMuxer.SegmentCallback segmentCallback) {
+
+		super(context, callback, config, factory);
+		mOutputFactory = outputFactory;
+		mSegmentCallback = segmentCallback;
+		setMuxer(new SegmentedMuxer(mSegmentFactory,
+			segmentDurationMs * 1000L, segmentBytes, mMuxerCallback));
+	}
+
+	@Deprecated
+	@Nullable
+	@Override
+	public String getOutputPath() {
+		return null;
+	}
+
+	/**
+	 * 書き込み中のセグメントの出力ファイルを返す
+	 * @return
+	 */
+	@Nullable
+	@Override
+	public DocumentFile getOutputFile() {
+		return mCurrentOutput;
+	}
+
+	/**
+	 * 書き込み中のセグメントの出力先の空き容量をチェックして足りなければtrueを返す
+	 * @return true: 空き容量が足りない
+	 */
+	@Override
+	protected boolean check() {
+		final StorageInfo info = getStorageInfo();
+		if ((info != null) && (info.totalBytes != 0)) {
+			return ((info.freeBytes / (float)info.totalBytes) < FileUtils.FREE_RATIO)
+				|| (info.freeBytes < FileUtils.FREE_SIZE);
+		}
+		return getContext() == null;
+	}
+
+	/**
+	 * 書き込み中のセグメントの出力先のストレージ情報を返す
+	 * @return
+	 */
+	@Nullable
+	@Override
+	protected StorageInfo getStorageInfo() {
+		final Context context = getContext();
+		final DocumentFile output = mCurrentOutput;
+		if ((context != null) && (output != null)) {
+			try {
+				return StorageUtils.getStorageInfo(context, output);
+			} catch (final IOException e) {
+				Log.w(TAG, e);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * 空き容量が少なくなってきたら次のキーフレームでセグメントを切り替える
+	 * 空き容量が尽きる前に録画を終了するときに終了処理が必要なのは短い最後のセグメントだけになり、
+	 * それまでに書き込んだ分は完結したファイルとして残る
+	 */
+	@Override
+	protected void onStorageLow() {
+		if (DEBUG) Log.v(TAG, "onStorageLow:");
+		final IMuxer muxer = getMuxer();
+		if (muxer instanceof SegmentedMuxer) {
+			((SegmentedMuxer)muxer).requestRollover();
+		}
+	}
+
+	/**
+	 * セグメント毎に出力ファイルを生成してIMuxerFactoryでIMuxerを生成する
+	 */
+	private final SegmentedMuxer.SegmentFactory mSegmentFactory
+		= new SegmentedMuxer.SegmentFactory() {
+		@NonNull
+		@Override
+		public IMuxer createMuxer(final int segment) throws IOException {
+			if (DEBUG) Log.v(TAG, "createMuxer:segment=" + segment);
+			final DocumentFile output = mOutputFactory.createOutput(segment);
+			synchronized (mOutputs) {
+				mOutputs.put(segment, output);
+			}
+			return getMuxerFactory().createMuxer(
+				requireContext(), getConfig().useMediaMuxer(), output);
+		}
+
+		@Override
+		public void discardMuxer(final int segment, @NonNull final IMuxer muxer) {
+			if (DEBUG) Log.v(TAG, "discardMuxer:segment=" + segment);
+			final DocumentFile output;
+			synchronized (mOutputs) {
+				output = mOutputs.get(segment);
+				mOutputs.remove(segment);
+			}
+			if (output != null) {
+				try {
+					output.delete();
+				} catch (final Exception e) {
+					Log.w(TAG, e);
+				}
+			}
+		}
+	};
+
+	/**
+	 * SegmentedMuxerからのコールバックを受け取って書き込み中の出力ファイルを更新する
+	 */
+	private final SegmentedMuxer.SegmentCallback mMuxerCallback
+		= new SegmentedMuxer.SegmentCallback() {
+		@Override
+		public void onSegmentStarted(final int segment) {
+			if (DEBUG) Log.v(TAG, "onSegmentStarted:" + segment);
+			synchronized (mOutputs) {
+				mCurrentOutput = mOutputs.get(segment);
+			}
+			if (mSegmentCallback != null) {
+				mSegmentCallback.onSegmentStarted(segment);
+			}
+		}
+
+		@Override
+		public void onSegmentFinished(final int segment) {
+			if (DEBUG) Log.v(TAG, "onSegmentFinished:" + segment);
+			synchronized (mOutputs) {
+				mOutputs.remove(segment);
+			}
+			if (mSegmentCallback != null) {
+				mSegmentCallback.onSegmentFinished(segment);
+			}
+		}
+
+		@Override
+		public void onError(@NonNull final Exception e) {
+			if (mSegmentCallback != null) {
+				mSegmentCallback.onError(e);
+			}
+			callOnError(e);
+		}
+	};
+}
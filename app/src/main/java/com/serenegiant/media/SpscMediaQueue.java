@@ -0,0 +1,329 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * 書き込みスレッドと読み込みスレッドが1つずつの場合に使うIMediaQueueのロックフリー実装
+ * (Single Producer Single Consumer)
+ * RecycleMediaDataは#initの時点で最大数まで生成しておき、以降は新規生成しない
+ * #obtain/#queueFrameは書き込みスレッド、#peek/#poll/#drainAllは読み込みスレッドからのみ呼び出すこと
+ * #recycleはどのスレッドから呼び出しても良い
+ * #init/#clearはどちらのスレッドも動いていないときに呼び出すこと
+ * MemMediaQueueと違って最大数を超えて#obtainした場合は新規生成せずにnullを返す
+ */
+public class SpscMediaQueue implements IMediaQueue<RecycleMediaData> {
+	private static final int STATE_FREE = 0;
+	private static final int STATE_IN_USE = 1;
+
+	/**
+	 * #poll(long, TimeUnit)でパーキングする前にスピンする回数
+	 */
+	private static final int MAX_SPINS = 64;
+	/**
+	 * #poll(long, TimeUnit)で1回にパーキングする最大時間[ナノ秒]
+	 * 起床通知を取りこぼしてもこの時間で復帰する
+	 */
+	private static final long MAX_PARK_NS = 2000000L;	// 2ミリ秒
+
+	private final int mCapacity;
+	private final int mMask;
+	/**
+	 * 各スロットの状態, STATE_FREEまたはSTATE_IN_USE
+	 */
+	@NonNull
+	private final AtomicIntegerArray mStates;
+	/**
+	 * キューイングされたスロットのリングバッファ
+	 */
+	@NonNull
+	private final Slot[] mRing;
+	/**
+	 * 読み込み位置, 読み込みスレッドのみが更新する
+	 */
+	@NonNull
+	private final AtomicLong mHead = new AtomicLong();
+	/**
+	 * 書き込み位置, 書き込みスレッドのみが更新する
+	 */
+	@NonNull
+	private final AtomicLong mTail = new AtomicLong();
+	@NonNull
+	private Slot[] mSlots;
+	/**
+	 * 次に#obtainで探し始めるスロットのインデックス, 書き込みスレッドのみがアクセスする
+	 */
+	private int mObtainIx;
+	/**
+	 * #poll(long, TimeUnit)でパーキング中の読み込みスレッド
+	 */
+	@Nullable
+	private volatile Thread mWaiter;
+
+	/**
+	 * コンストラクタ
+	 * @param capacity プール内に保持するRecycleMediaDataの数==キューに存在できる最大数
+	 */
+	public SpscMediaQueue(final int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity should be positive");
+		}
+		mCapacity = capacity;
+		int ringSize = 1;
+		while (ringSize < capacity) {
+			ringSize <<= 1;
+		}
+		mMask = ringSize - 1;
+		mRing = new Slot[ringSize];
+		mStates = new AtomicIntegerArray(capacity);
+		mSlots = createSlots((Object[])null);
+	}
+
+	/**
+	 * スロットを全て生成し直す
+	 * @param args 生成するRecycleMediaDataのバッファサイズ(Integer)とエンディアン(ByteOrder)を指定可能
+	 */
+	@Override
+	public void init(@Nullable final Object... args) {
+		clear();
+		mSlots = createSlots(args);
+	}
+
+	@Override
+	public void clear() {
+		for (int i = 0; i < mRing.length; i++) {
+			mRing[i] = null;
+		}
+		for (int i = 0; i < mCapacity; i++) {
+			mStates.set(i, STATE_FREE);
+			mSlots[i].setRecycled(true);
+		}
+		mHead.set(0);
+		mTail.set(0);
+		mObtainIx = 0;
+	}
+
+	@Override
+	public void drainAll() {
+		for (RecycleMediaData data = poll(); data != null; data = poll()) {
+			recycle(data);
+		}
+	}
+
+	/**
+	 * 空いているスロットを取得する
+	 * 書き込みスレッドからのみ呼び出すこと
+	 * 最大でスロット数分を探すだけなので他のスレッドの状態によらず一定時間内に終了する
+	 * @param args 無視する
+	 * @return 空きスロットが無ければnull
+	 */
+	@Nullable
+	@Override
+	public RecycleMediaData obtain(@Nullable final Object... args) {
+		final int n = mCapacity;
+		int ix = mObtainIx;
+		for (int i = 0; i < n; i++) {
+			if (mStates.compareAndSet(ix, STATE_FREE, STATE_IN_USE)) {
+				mObtainIx = ix + 1 < n ? ix + 1 : 0;
+				final Slot result = mSlots[ix];
+				result.setRecycled(false);
+				return result;
+			}
+			ix = ix + 1 < n ? ix + 1 : 0;
+		}
+		return null;
+	}
+
+	/**
+	 * キューにデータを追加する
+	 * 書き込みスレッドからのみ呼び出すこと
+	 * @param buffer このキューの#obtainで取得したRecycleMediaData
+	 * @return true: 正常にキューに追加できた
+	 */
+	@Override
+	public boolean queueFrame(@NonNull final RecycleMediaData buffer) {
+		if (!isOwnSlot(buffer)) {
+			return false;
+		}
+		final long tail = mTail.get();
+		final long depth = tail - mHead.get();
+		if (depth > mMask) {
+			MediaMetrics.QUEUE_DROPPED.inc();
+			return false;
+		}
+		buffer.setRecycled(false);
+		mRing[(int)tail & mMask] = (Slot)buffer;
+		// 読み込みスレッドの#pollでmWaiterを書き込んだ後にmTailを読み込むので
+		// 起床通知を取りこぼさないようにここはlazySetではなくsetを使う
+		mTail.set(tail + 1);
+		final Thread waiter = mWaiter;
+		if (waiter != null) {
+			LockSupport.unpark(waiter);
+		}
+		MediaMetrics.QUEUE_DEPTH.record(depth + 1);
+		return true;
+	}
+
+	/**
+	 * キューの先頭を取得
+	 * 読み込みスレッドからのみ呼び出すこと
+	 * @return
+	 */
+	@Nullable
+	@Override
+	public RecycleMediaData peek() {
+		final long head = mHead.get();
+		return head < mTail.get() ? mRing[(int)head & mMask] : null;
+	}
+
+	/**
+	 * キューの先頭を除去して返す
+	 * 読み込みスレッドからのみ呼び出すこと
+	 * @return
+	 */
+	@Nullable
+	@Override
+	public RecycleMediaData poll() {
+		final long head = mHead.get();
+		if (head >= mTail.get()) {
+			return null;
+		}
+		final int ix = (int)head & mMask;
+		final Slot result = mRing[ix];
+		mRing[ix] = null;
+		mHead.lazySet(head + 1);
+		return result;
+	}
+
+	/**
+	 * キューの先頭を除去して返す
+	 * キューが空の時はしばらくスピンした後、最大で指定時間パーキングして待機する
+	 * 読み込みスレッドからのみ呼び出すこと
+	 * @param timeout
+	 * @param unit
+	 * @return
+	 * @throws InterruptedException
+	 */
+	@Nullable
+	@Override
+	public RecycleMediaData poll(final long timeout, final TimeUnit unit)
+		throws InterruptedException {
+
+		RecycleMediaData result = poll();
+		if (result != null) {
+			return result;
+		}
+		final long deadline = System.nanoTime() + unit.toNanos(timeout);
+		int spins = 0;
+		for ( ; ; ) {
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+			final long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				return null;
+			}
+			if (spins < MAX_SPINS) {
+				spins++;
+				Thread.yield();
+			} else {
+				mWaiter = Thread.currentThread();
+				if (mHead.get() >= mTail.get()) {
+					LockSupport.parkNanos(this, Math.min(remaining, MAX_PARK_NS));
+				}
+				mWaiter = null;
+			}
+			result = poll();
+			if (result != null) {
+				return result;
+			}
+		}
+	}
+
+	@Override
+	public int count() {
+		return (int)(mTail.get() - mHead.get());
+	}
+
+	/**
+	 * スロットを空き状態に戻す
+	 * どのスレッドから呼び出しても良い
+	 * @param buffer
+	 * @return
+	 */
+	@Override
+	public boolean recycle(@NonNull final RecycleMediaData buffer) {
+		if (isOwnSlot(buffer) && !buffer.isRecycled()) {
+			buffer.setRecycled(true);
+			return mStates.compareAndSet(((Slot)buffer).mIndex, STATE_IN_USE, STATE_FREE);
+		} else {
+			return false;
+		}
+	}
+
+	private boolean isOwnSlot(@NonNull final RecycleMediaData buffer) {
+		return (buffer instanceof Slot) && (((Slot)buffer).mOwner == this);
+	}
+
+	@NonNull
+	private Slot[] createSlots(@Nullable final Object... args) {
+		int sz = 0;
+		ByteOrder order = ByteOrder.nativeOrder();
+		if ((args != null) && args.length > 0) {
+			for (final Object arg: args) {
+				if (arg instanceof Integer) {
+					sz = (int)arg;
+				} else if (arg instanceof ByteOrder) {
+					order = (ByteOrder)arg;
+				}
+			}
+		}
+		final Slot[] result = new Slot[mCapacity];
+		for (int i = 0; i < mCapacity; i++) {
+			result[i] = new Slot(this, i, sz, order);
+			result[i].setRecycled(true);
+		}
+		return result;
+	}
+
+	/**
+	 * スロットのインデックスを保持するためのRecycleMediaData
+	 */
+	private static class Slot extends RecycleMediaData {
+		@NonNull
+		private final SpscMediaQueue mOwner;
+		private final int mIndex;
+
+		private Slot(@NonNull final SpscMediaQueue owner,
+			final int index, final int size, @NonNull final ByteOrder order) {
+
+			super(owner, size, order);
+			mOwner = owner;
+			mIndex = index;
+		}
+	}
+}
@@ -0,0 +1,292 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.util.Log;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+
+import androidx.annotation.IntDef;
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+
+/**
+ * 録画中の出力先の空き容量が尽きるまでの時間を予測して次に確認する時刻を決めるための制御則
+ *
+ * 一定間隔で空き容量を取得するだけだと、高ビットレートでは確認と確認の間にディスクが一杯になって
+ * 出力ファイルが壊れることがある。このクラスでは
+ * ・実際に書き込んだバイト数(書き込み側はカウンタを加算するだけ)の推移から書き込み速度を求め、
+ *   空き容量の減り方(他のアプリ等の書き込みも含む)と比べて速い方で予約領域へ達するまでの時間を予測する
+ * ・予測した時間に余裕があれば確認間隔を延ばし(最大#setMaxIntervalMs)、
+ *   余裕が無くなるにつれて短くする(最小#setMinIntervalMs)
+ * ・予約領域へ達するまでの時間が#setLowLeadMs未満になればSTATE_LOW、
+ *   #setStopLeadMs未満になればSTATE_FULLを返すので、呼び出し元でセグメントの切り替えや録画の停止を行う
+ * 時刻や空き容量は全て呼び出し元から受け取る
+ * 各メソッドはスレッドセーフ
+ */
+public class StorageBudget {
+	private static final boolean DEBUG = false;	// set false on production
+	private static final String TAG = StorageBudget.class.getSimpleName();
+
+	/**
+	 * 空き容量に余裕がある
+	 */
+	public static final int STATE_OK = 0;
+	/**
+	 * 空き容量が少なくなってきた
+	 */
+	public static final int STATE_LOW = 1;
+	/**
+	 * 空き容量が尽きる前に録画を終了させないといけない
+	 */
+	public static final int STATE_FULL = 2;
+
+	@IntDef({
+		STATE_OK,
+		STATE_LOW,
+		STATE_FULL,
+	})
+	@Retention(RetentionPolicy.SOURCE)
+	public @interface BudgetState {}
+
+	private static final long DEFAULT_MIN_INTERVAL_MS = 500L;
+	private static final long DEFAULT_MAX_INTERVAL_MS = Recorder.CHECK_INTERVAL;
+	private static final long DEFAULT_LOW_LEAD_MS = 60 * 1000L;		// 1分
+	private static final long DEFAULT_STOP_LEAD_MS = 10 * 1000L;	// 10秒
+	/**
+	 * 最初の速度を測定するまでの確認間隔[ミリ秒]
+	 */
+	private static final long FIRST_INTERVAL_MS = 1000L;
+	/**
+	 * 予測した残り時間のうち次の確認までに使ってよい割合
+	 * 書き込み速度が2倍になっても次の確認で間に合うように0.5にする
+	 */
+	private static final float INTERVAL_RATIO = 0.5f;
+	/**
+	 * 書き込み速度の指数移動平均の係数
+	 */
+	private static final float RATE_SMOOTHING = 0.3f;
+
+	private float mReserveRatio;
+	private long mReserveBytes;
+	private long mMinIntervalMs = DEFAULT_MIN_INTERVAL_MS;
+	private long mMaxIntervalMs = DEFAULT_MAX_INTERVAL_MS;
+	private long mLowLeadMs = DEFAULT_LOW_LEAD_MS;
+	private long mStopLeadMs = DEFAULT_STOP_LEAD_MS;
+
+	// 前回確認した時の値
+	private long mLastUs = -1;
+	private long mLastWritten;
+	private long mLastFreeBytes = -1;
+	/**
+	 * 書き込み速度/空き容量の消費速度[バイト/秒], 不明なら負
+	 */
+	private float mWriteBytesPerSec = -1;
+	private float mConsumeBytesPerSec = -1;
+	@BudgetState
+	private int mState = STATE_OK;
+	private long mRemainingMs = -1;
+	private long mNextIntervalMs = FIRST_INTERVAL_MS;
+	private int mCheckCount;
+
+	/**
+	 * コンストラクタ
+	 * @param reserveRatio 全容量に対してこの割合は常に空けておく
+	 * @param reserveBytes このバイト数は常に空けておく
+	 */
+	public StorageBudget(final float reserveRatio, @IntRange(from = 0L) final long reserveBytes) {
+		mReserveRatio = reserveRatio;
+		mReserveBytes = reserveBytes;
+	}
+
+	/**
+	 * 常に空けておく容量を設定する
+	 * 全容量 x reserveRatioとreserveBytesの大きい方を予約領域とする
+	 * @param reserveRatio
+	 * @param reserveBytes
+	 */
+	public synchronized void setReserve(final float reserveRatio,
+		@IntRange(from = 0L) final long reserveBytes) {
+
+		mReserveRatio = reserveRatio;
+		mReserveBytes = reserveBytes;
+	}
+
+	/**
+	 * 確認間隔の範囲を設定する
+	 * @param minIntervalMs 最小確認間隔[ミリ秒]
+	 * @param maxIntervalMs 最大確認間隔[ミリ秒]
+	 */
+	public synchronized void setIntervalMs(
+		@IntRange(from = 1L) final long minIntervalMs,
+		@IntRange(from = 1L) final long maxIntervalMs) {
+
+		mMinIntervalMs = minIntervalMs;
+		mMaxIntervalMs = Math.max(minIntervalMs, maxIntervalMs);
+	}
+
+	/**
+	 * 予約領域に達するまでの時間がこれより短くなればSTATE_LOWにする
+	 * @param leadMs [ミリ秒]
+	 */
+	public synchronized void setLowLeadMs(@IntRange(from = 0L) final long leadMs) {
+		mLowLeadMs = leadMs;
+	}
+
+	/**
+	 * 予約領域に達するまでの時間がこれより短くなればSTATE_FULLにする
+	 * 録画の終了処理(moov等の書き込み)を行う時間を見込んでおくこと
+	 * @param leadMs [ミリ秒]
+	 */
+	public synchronized void setStopLeadMs(@IntRange(from = 0L) final long leadMs) {
+		mStopLeadMs = leadMs;
+	}
+
+	/**
+	 * 状態をクリアする
+	 * 録画開始時に呼び出す
+	 */
+	public synchronized void reset() {
+		mLastUs = -1;
+		mLastWritten = 0;
+		mLastFreeBytes = -1;
+		mWriteBytesPerSec = mConsumeBytesPerSec = -1;
+		mState = STATE_OK;
+		mRemainingMs = -1;
+		mNextIntervalMs = FIRST_INTERVAL_MS;
+		mCheckCount = 0;
+	}
+
+	/**
+	 * 出力先の空き容量を取得した時に呼び出して状態と次の確認間隔を更新する
+	 * @param nowUs 現在時刻[マイクロ秒]
+	 * @param writtenBytes 録画開始からの累積書き込みバイト数
+	 * @param freeBytes 空き容量[バイト]
+	 * @param totalBytes 全容量[バイト]
+	 * @return 更新後の状態
+	 */
+	@BudgetState
+	public synchronized int update(final long nowUs,
+		final long writtenBytes, final long freeBytes, final long totalBytes) {
+
+		if ((mLastUs >= 0) && (nowUs > mLastUs)) {
+			final long elapsedUs = nowUs - mLastUs;
+			mWriteBytesPerSec = smooth(mWriteBytesPerSec,
+				(writtenBytes - mLastWritten) * 1000000f / elapsedUs);
+			if (mLastFreeBytes >= freeBytes) {
+				mConsumeBytesPerSec = smooth(mConsumeBytesPerSec,
+					(mLastFreeBytes - freeBytes) * 1000000f / elapsedUs);
+			}
+		}
+		mLastUs = nowUs;
+		mLastWritten = writtenBytes;
+		mLastFreeBytes = freeBytes;
+		mCheckCount++;
+
+		final long headroom = freeBytes - Math.max((long)(totalBytes * mReserveRatio), mReserveBytes);
+		final float rate = Math.max(mWriteBytesPerSec, mConsumeBytesPerSec);
+		if (headroom <= 0) {
+			mRemainingMs = 0;
+		} else if (rate > 0) {
+			mRemainingMs = (long)(headroom * 1000f / rate);
+		} else {
+			mRemainingMs = -1;
+		}
+		if (mRemainingMs == 0) {
+			mState = STATE_FULL;
+		} else if (mRemainingMs < 0) {
+			// 速度が未測定/書き込みがない
+			mState = STATE_OK;
+		} else if (mRemainingMs < mStopLeadMs) {
+			mState = STATE_FULL;
+		} else if (mRemainingMs < mLowLeadMs) {
+			mState = STATE_LOW;
+		} else {
+			mState = STATE_OK;
+		}
+		if (mCheckCount < 2) {
+			// 速度を測定するためにすぐにもう一度確認する
+			mNextIntervalMs = Math.max(mMinIntervalMs, Math.min(mMaxIntervalMs, FIRST_INTERVAL_MS));
+		} else if (mRemainingMs < 0) {
+			mNextIntervalMs = mMaxIntervalMs;
+		} else {
+			// STATE_FULLになるまでの時間の一部だけ待つ
+			final long intervalMs = (long)((mRemainingMs - mStopLeadMs) * INTERVAL_RATIO);
+			mNextIntervalMs = Math.max(mMinIntervalMs, Math.min(mMaxIntervalMs, intervalMs));
+		}
+		if (DEBUG) Log.v(TAG, "update:" + this);
+		return mState;
+	}
+
+	@BudgetState
+	public synchronized int getState() {
+		return mState;
+	}
+
+	/**
+	 * 次に空き容量を確認するまでの時間
+	 * @return [ミリ秒]
+	 */
+	public synchronized long getNextIntervalMs() {
+		return mNextIntervalMs;
+	}
+
+	/**
+	 * 予約領域に達するまでの予測時間
+	 * @return [ミリ秒], 予測できない時は負
+	 */
+	public synchronized long getRemainingMs() {
+		return mRemainingMs;
+	}
+
+	/**
+	 * 書き込み速度と空き容量の消費速度の大きい方
+	 * @return [バイト/秒], 未測定なら負
+	 */
+	public synchronized float getBytesPerSec() {
+		return Math.max(mWriteBytesPerSec, mConsumeBytesPerSec);
+	}
+
+	@NonNull
+	@Override
+	public synchronized String toString() {
+		return "StorageBudget{" +
+			"state=" + mState +
+			", free=" + mLastFreeBytes +
+			", writeRate=" + mWriteBytesPerSec +
+			", consumeRate=" + mConsumeBytesPerSec +
+			", remainingMs=" + mRemainingMs +
+			", nextIntervalMs=" + mNextIntervalMs +
+			'}';
+	}
+
+	/**
+	 * 書き込み速度の変化に遅れないように、速くなった時は直ちに追従して遅くなった時だけ平滑化する
+	 * @param current
+	 * @param rate
+	 * @return
+	 */
+	private static float smooth(final float current, final float rate) {
+		if ((current < 0) || (rate > current)) {
+			return rate;
+		}
+		return current + RATE_SMOOTHING * (rate - current);
+	}
+}
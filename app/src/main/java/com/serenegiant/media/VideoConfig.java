@@ -74,8 +74,8 @@ public class VideoConfig implements Parcelable, Cloneable {
 	private long mMaxDuration;
 
 	/**
-	 * trueならMediaMuxerを使う、 falseならVideoMuxerを使う
-	 * ・・・VideoMuxerを使ってnative側での最大録画時間チェックを有効にするため常にfalse
+	 * trueならMediaMuxerを使う、 falseならFragmentedMp4Muxerを使う
+	 * FragmentedMp4Muxerなら録画中に強制終了してもそれまでに書き込んだフラグメントは再生できる
 	 */
 	private boolean mUseMediaMuxer;
 
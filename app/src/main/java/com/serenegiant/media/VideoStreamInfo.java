@@ -0,0 +1,205 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.media.MediaFormat;
+
+import com.serenegiant.utils.DirectBufferArena;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * ParameterSetParserでSPS/PPS(/VPS)を解析した結果のホルダークラス
+ * 値は読み取り専用として扱うこと
+ */
+public class VideoStreamInfo {
+	private static final byte[] START_CODE = { 0, 0, 0, 1, };
+
+	/**
+	 * MIME, video/avcまたはvideo/hevc
+	 */
+	@NonNull
+	public final String mime;
+	/**
+	 * SPSのprofile_idc/general_profile_idc
+	 */
+	public int profileIdc;
+	/**
+	 * SPSのlevel_idc/general_level_idc
+	 */
+	public int levelIdc;
+	/**
+	 * HEVCでHigh tierならtrue
+	 */
+	public boolean highTier;
+	/**
+	 * MediaCodecInfo.CodecProfileLevelのプロファイル定数, 対応するものが無ければ0
+	 */
+	public int profile;
+	/**
+	 * MediaCodecInfo.CodecProfileLevelのレベル定数, 対応するものが無ければ0
+	 */
+	public int level;
+	/**
+	 * クロップ後の映像サイズ
+	 */
+	public int width, height;
+	/**
+	 * クロップ前の符号化サイズ
+	 */
+	public int codedWidth, codedHeight;
+	/**
+	 * chroma_format_idc, 0: モノクロ, 1: 4:2:0, 2: 4:2:2, 3: 4:4:4
+	 */
+	public int chromaFormat = 1;
+	public int bitDepthLuma = 8;
+	public int bitDepthChroma = 8;
+	/**
+	 * フレーム単位(プログレッシブ)のみならtrue
+	 */
+	public boolean progressive = true;
+	/**
+	 * サンプルアスペクト比, VUIに無ければ1:1
+	 */
+	public int sarWidth = 1, sarHeight = 1;
+	/**
+	 * VUIのタイミング情報から求めたフレームレート, VUIに無ければ0
+	 */
+	public float frameRate;
+	/**
+	 * VUIのfixed_frame_rate_flag(H.264のみ)
+	 */
+	public boolean fixedFrameRate;
+	/**
+	 * H.264のmax_num_ref_frames, H.265のsps_max_dec_pic_buffering_minus1 + 1
+	 */
+	public int maxRefFrames;
+	/**
+	 * スタートコードを含まないパラメータセット, HEVC以外ではvpsはnull
+	 */
+	@Nullable
+	public byte[] vps;
+	@NonNull
+	public byte[] sps;
+	@NonNull
+	public byte[] pps;
+
+	/*package*/VideoStreamInfo(@NonNull final String mime,
+		@Nullable final byte[] vps, @NonNull final byte[] sps, @NonNull final byte[] pps) {
+
+		this.mime = mime;
+		this.vps = vps;
+		this.sps = sps;
+		this.pps = pps;
+	}
+
+	public boolean isHevc() {
+		return ParameterSetParser.MIME_HEVC.equals(mime);
+	}
+
+	/**
+	 * パラメータセットが同じかどうか
+	 * @param other
+	 * @return
+	 */
+	public boolean hasSameParameterSets(@Nullable final VideoStreamInfo other) {
+		return (other != null)
+			&& mime.equals(other.mime)
+			&& Arrays.equals(vps, other.vps)
+			&& Arrays.equals(sps, other.sps)
+			&& Arrays.equals(pps, other.pps);
+	}
+
+	/**
+	 * 解析結果から出力用のMediaFormatを生成する
+	 * H.264はcsd-0へSPS, csd-1へPPS, H.265はcsd-0へVPS+SPS+PPSをスタートコード付きでセットする
+	 * @return
+	 */
+	@NonNull
+	public MediaFormat createMediaFormat() {
+		final MediaFormat format = MediaFormat.createVideoFormat(mime, width, height);
+		if (isHevc()) {
+			format.setByteBuffer("csd-0", toCsd(vps, sps, pps));
+		} else {
+			format.setByteBuffer("csd-0", toCsd(sps));
+			format.setByteBuffer("csd-1", toCsd(pps));
+		}
+		applyTo(format);
+		return format;
+	}
+
+	/**
+	 * 解析結果のうち指定したMediaFormatにセットされていない値を追加する
+	 * @param format
+	 */
+	public void applyTo(@NonNull final MediaFormat format) {
+		if ((profile != 0) && !format.containsKey(MediaFormat.KEY_PROFILE)) {
+			format.setInteger(MediaFormat.KEY_PROFILE, profile);
+		}
+		if ((level != 0) && !format.containsKey(MediaFormat.KEY_LEVEL)) {
+			format.setInteger(MediaFormat.KEY_LEVEL, level);
+		}
+		if ((frameRate > 0) && !format.containsKey(MediaFormat.KEY_FRAME_RATE)) {
+			format.setInteger(MediaFormat.KEY_FRAME_RATE, Math.round(frameRate));
+		}
+	}
+
+	@NonNull
+	private static ByteBuffer toCsd(@NonNull final byte[]... nals) {
+		int size = 0;
+		for (final byte[] nal: nals) {
+			if (nal != null) {
+				size += START_CODE.length + nal.length;
+			}
+		}
+		final ByteBuffer result = DirectBufferArena.getDefault().allocateExact(size)
+			.order(ByteOrder.nativeOrder());
+		for (final byte[] nal: nals) {
+			if (nal != null) {
+				result.put(START_CODE).put(nal);
+			}
+		}
+		result.flip();
+		return result;
+	}
+
+	@NonNull
+	@Override
+	public String toString() {
+		return "VideoStreamInfo{" +
+			"mime=" + mime +
+			", profileIdc=" + profileIdc +
+			", levelIdc=" + levelIdc +
+			", highTier=" + highTier +
+			", size=" + width + "x" + height +
+			", coded=" + codedWidth + "x" + codedHeight +
+			", chromaFormat=" + chromaFormat +
+			", bitDepth=" + bitDepthLuma + "/" + bitDepthChroma +
+			", progressive=" + progressive +
+			", sar=" + sarWidth + ":" + sarHeight +
+			", frameRate=" + frameRate +
+			", maxRefFrames=" + maxRefFrames +
+			'}';
+	}
+}
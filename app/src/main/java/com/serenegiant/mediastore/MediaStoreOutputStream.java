@@ -23,6 +23,7 @@ import android.content.Context;
 import android.net.Uri;
 import android.os.ParcelFileDescriptor;
 
+import com.serenegiant.utils.CoalescingOutputStream;
 import com.serenegiant.utils.UriHelper;
 
 import java.io.FileDescriptor;
@@ -30,6 +31,7 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -37,6 +39,8 @@ import androidx.documentfile.provider.DocumentFile;
 
 /**
  * MediaStoreへ保存するためのOutputStream実装
+ * #writeで書き込むデータはCoalescingOutputStreamでまとめてから書き込む
+ * #getFd/#getChannelで直接書き込む場合は#writeと混在させないこと
  */
 public class MediaStoreOutputStream extends OutputStream {
 	private static final boolean DEBUG = false;	// set false on production
@@ -51,6 +55,12 @@ public class MediaStoreOutputStream extends OutputStream {
 	private final FileOutputStream mOutputStream;	// XXX BufferedOutputStreamでラップしたいけどgetFDを使うにはFileOutputStreamでないとだめ
 	@Nullable
 	private final String mOutputPath;
+	/**
+	 * #writeで書き込むデータをまとめるためのOutputStream
+	 * 何も書き込まなければファイルの内容は変更しない
+	 */
+	@NonNull
+	private final CoalescingOutputStream mSink;
 
 	/**
 	 * コンストラクタ
@@ -87,6 +97,7 @@ public class MediaStoreOutputStream extends OutputStream {
 		mUri = MediaStoreUtils.getContentUri(mCr, mimeType, relativePath, nameWithExt, null);
 		final ParcelFileDescriptor pfd = mCr.openFileDescriptor(mUri, "w");
 		mOutputStream = new FileOutputStream(pfd.getFileDescriptor());
+		mSink = new CoalescingOutputStream(mOutputStream);
 		mOutputPath = UriHelper.getPath(context, mUri);
 	}
 
@@ -111,6 +122,7 @@ public class MediaStoreOutputStream extends OutputStream {
 		mUri = MediaStoreUtils.getContentUri(mCr, mimeType, relativePath, nameWithExt, dataPath);
 		final ParcelFileDescriptor pfd = mCr.openFileDescriptor(mUri, "rw");
 		mOutputStream = new FileOutputStream(pfd.getFileDescriptor());
+		mSink = new CoalescingOutputStream(mOutputStream);
 		mOutputPath = UriHelper.getPath(context, mUri);
 	}
 
@@ -127,6 +139,7 @@ public class MediaStoreOutputStream extends OutputStream {
 		mUri = output.getUri();
 		final ParcelFileDescriptor pfd = mCr.openFileDescriptor(mUri, "rw");
 		mOutputStream = new FileOutputStream(pfd.getFileDescriptor());
+		mSink = new CoalescingOutputStream(mOutputStream);
 		mOutputPath = UriHelper.getPath(context, mUri);
 	}
 
@@ -146,6 +159,25 @@ public class MediaStoreOutputStream extends OutputStream {
 		return mOutputStream.getFD();
 	}
 
+	/**
+	 * 出力先ファイルのFileChannelを取得
+	 * @return
+	 */
+	@NonNull
+	public FileChannel getChannel() {
+		return mOutputStream.getChannel();
+	}
+
+	/**
+	 * #writeで書き込むデータをまとめるCoalescingOutputStreamを取得
+	 * ビットレートやfsyncの間隔を設定する時、ByteBufferから直接書き込む時に使う
+	 * @return
+	 */
+	@NonNull
+	public CoalescingOutputStream getSink() {
+		return mSink;
+	}
+
 	/**
 	 * Writes the specified byte to this output stream. The general
 	 * contract for <code>write</code> is that one byte is written
@@ -163,7 +195,7 @@ public class MediaStoreOutputStream extends OutputStream {
 	 */
 	@Override
 	public void write(final int b) throws IOException {
-		mOutputStream.write(b);
+		mSink.write(b);
 	}
 
 	/**
@@ -178,7 +210,7 @@ public class MediaStoreOutputStream extends OutputStream {
 	 */
 	@Override
 	public void write(@NonNull byte[] b) throws IOException {
-		mOutputStream.write(b, 0, b.length);
+		write(b, 0, b.length);
 	}
 
 	/**
@@ -216,7 +248,7 @@ public class MediaStoreOutputStream extends OutputStream {
 		if (closed && len > 0) {
 			throw new IOException("Stream Closed");
 		}
-		mOutputStream.write(b, off, len);
+		mSink.write(b, off, len);
 	}
 
 	/**
@@ -239,6 +271,7 @@ public class MediaStoreOutputStream extends OutputStream {
 	 */
 	@Override
 	public void flush() throws IOException {
+		mSink.flush();
 		mOutputStream.flush();
 	}
 
@@ -265,7 +298,12 @@ public class MediaStoreOutputStream extends OutputStream {
 		}
 
 		try {
-			mOutputStream.close();
+			try {
+				// 事前確保した領域を切り詰めてから閉じる
+				mSink.close();
+			} finally {
+				mOutputStream.close();
+			}
 		} finally {
 			if (UriHelper.isContentUri(mUri)) {
 				MediaStoreUtils.updateContentUri(mCr, mUri);
@@ -31,9 +31,11 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.media.projection.MediaProjection;
 import android.media.projection.MediaProjectionManager;
+import android.net.Uri;
 import android.os.Build;
 import android.os.Environment;
 import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
 import android.text.TextUtils;
 import android.util.DisplayMetrics;
 import android.util.Log;
@@ -42,24 +44,39 @@ import android.view.WindowManager;
 
 import com.serenegiant.libcommon.Const;
 //import com.serenegiant.libcommon.R;
+import com.serenegiant.media.AdaptiveBitrateController;
 import com.serenegiant.media.AudioSampler;
 import com.serenegiant.media.AudioSamplerEncoder;
+import com.serenegiant.media.CodecCapabilityCache;
 import com.serenegiant.media.Encoder;
 import com.serenegiant.media.EncoderListener2;
+import com.serenegiant.media.EncoderPool;
+import com.serenegiant.media.EncoderRanking;
+import com.serenegiant.media.FastStartFinalizer;
 import com.serenegiant.media.IAudioSampler;
+import com.serenegiant.media.IMuxer;
 import com.serenegiant.media.IRecorder;
-import com.serenegiant.media.IVideoEncoder;
 import com.serenegiant.media.MediaAVRecorder;
+import com.serenegiant.media.MediaCodecUtils;
 import com.serenegiant.media.MediaFileUtils;
 import com.serenegiant.media.MediaScreenEncoder;
+import com.serenegiant.media.Mp4Recovery;
+import com.serenegiant.media.PreRollBuffer;
+import com.serenegiant.media.RecoveryJournal;
 import com.serenegiant.media.VideoConfig;
 import com.serenegiant.mediastore.MediaStoreUtils;
 import com.serenegiant.screenrecordingsample.MainActivity3;
 import com.serenegiant.screenrecordingsample.R;
 import com.serenegiant.system.BuildCheck;
+import com.serenegiant.system.StorageUtils;
 import com.serenegiant.utils.FileUtils;
+import com.serenegiant.utils.MetricsRegistry;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.List;
 
 import androidx.annotation.DrawableRes;
 import androidx.annotation.NonNull;
@@ -91,6 +108,46 @@ public class ScreenRecorderService extends BaseService {
 	public static final String EXTRA_RESULT_CODE = BASE + "EXTRA_RESULT_CODE";
 	public static final String EXTRA_QUERY_RESULT_RECORDING = BASE + "EXTRA_QUERY_RESULT_RECORDING";
 	public static final String EXTRA_QUERY_RESULT_PAUSING = BASE + "EXTRA_QUERY_RESULT_PAUSING";
+	/**
+	 * ACTION_STARTのextraにtrueをセットすると録画処理の計測を有効にする
+	 */
+	public static final String EXTRA_ENABLE_METRICS = BASE + "EXTRA_ENABLE_METRICS";
+	/**
+	 * 計測が有効な時にACTION_QUERY_STATUS_RESULTへセットする計測値のスナップショット(Bundle)
+	 * MetricsRegistry.Snapshot#toBundleを参照
+	 */
+	public static final String EXTRA_QUERY_RESULT_METRICS = BASE + "EXTRA_QUERY_RESULT_METRICS";
+	/**
+	 * 録画中に直前のエンコード済みデータ(PreRollBufferの内容)を別ファイルへ保存する
+	 * ACTION_STARTのEXTRA_PRE_ROLL_BYTESで保持する最大バイト数を指定した場合のみ有効
+	 */
+	public static final String ACTION_SAVE_REPLAY = BASE + "ACTION_SAVE_REPLAY";
+	/**
+	 * ACTION_STARTのextraに正の値(long)をセットすると
+	 * 録画と並行して直前のエンコード済みデータを最大で指定したバイト数までメモリー上に保持する
+	 */
+	public static final String EXTRA_PRE_ROLL_BYTES = BASE + "EXTRA_PRE_ROLL_BYTES";
+	/**
+	 * ACTION_STARTのextraにtrueをセットすると書き込み状況と空き容量に合わせて映像のビットレートを調整する
+	 */
+	public static final String EXTRA_ADAPTIVE_BITRATE = BASE + "EXTRA_ADAPTIVE_BITRATE";
+	/**
+	 * ACTION_STARTのextraに正の値(long, ミリ秒)をセットすると画面が変化しない間はエンコードせず、
+	 * 指定した間隔毎に直前の映像だけをエンコードする
+	 */
+	public static final String EXTRA_MAX_FRAME_GAP_MS = BASE + "EXTRA_MAX_FRAME_GAP_MS";
+	/**
+	 * ACTION_STARTのextraにtrueをセットすると録画終了後にmoovをファイルの先頭へ移動する
+	 */
+	public static final String EXTRA_FAST_START = BASE + "EXTRA_FAST_START";
+	/**
+	 * moovの移動中に進捗を通知するためのローカルブロードキャスト
+	 */
+	public static final String ACTION_FAST_START_PROGRESS = BASE + "ACTION_FAST_START_PROGRESS";
+	/**
+	 * ACTION_FAST_START_PROGRESSへセットする進捗率(int, 0-100)
+	 */
+	public static final String EXTRA_FAST_START_PROGRESS = BASE + "EXTRA_FAST_START_PROGRESS";
 
 	private MediaProjectionManager mMediaProjectionManager;
 	private WindowManager mWindowManager;
@@ -100,6 +157,15 @@ public class ScreenRecorderService extends BaseService {
 	private IRecorder mRecorder;
 	@Nullable
 	private IAudioSampler mAudioSampler;
+	@Nullable
+	private PreRollBuffer mPreRollBuffer;
+	private volatile boolean mFastStart;
+	@Nullable
+	private EncoderRanking mEncoderRanking;
+	/**
+	 * 録画終了後にエンコーダーを計測する時の映像サイズとビットレート
+	 */
+	private int mRankingWidth, mRankingHeight, mRankingBitrate;
 
 	public ScreenRecorderService() {
 		super();
@@ -111,11 +177,26 @@ public class ScreenRecorderService extends BaseService {
 		if (DEBUG) Log.v(TAG, "onCreate:");
 		mMediaProjectionManager = (MediaProjectionManager)getSystemService(Context.MEDIA_PROJECTION_SERVICE);
 		mWindowManager = (WindowManager)getSystemService(Context.WINDOW_SERVICE);
+		// 録画開始時にコーデックを列挙しなくて済むように選択済みのエンコーダーの情報を読み込んでおく
+		CodecCapabilityCache.preload(this);
+		mEncoderRanking = EncoderRanking.create(this);
+		// 録画を開始する前に前回強制終了した録画のサイドカーファイルを取得しておく
+		final List<File> journals = RecoveryJournal.listJournals(this);
+		if (!journals.isEmpty()) {
+			queueEvent(new Runnable() {
+				@Override
+				public void run() {
+					recoverRecordings(journals);
+				}
+			});
+		}
 	}
 
 	@Override
 	public void onDestroy() {
 		if (DEBUG) Log.v(TAG, "onDestroy:");
+		// 保持しているエンコーダーを他のアプリが使えるように破棄する
+		EncoderPool.getInstance().evictAll();
 		releaseNotification();
 		super.onDestroy();
 	}
@@ -143,8 +224,15 @@ public class ScreenRecorderService extends BaseService {
 					getString(R.string.app_name),
 					contextIntent());
 			// 録画開始要求
+			final MetricsRegistry metrics = MetricsRegistry.getDefault();
+			metrics.reset();
+			metrics.setEnabled(intent.getBooleanExtra(EXTRA_ENABLE_METRICS, false));
+			mFastStart = intent.getBooleanExtra(EXTRA_FAST_START, false);
 			startScreenRecord(intent);
 			updateStatus();
+		} else if (ACTION_SAVE_REPLAY.equals(action)) {
+			// 直前のエンコード済みデータの保存要求
+			saveReplay();
 		} else if (ACTION_STOP.equals(action) || TextUtils.isEmpty(action)) {
 			// 録画停止要求
 			stopScreenRecord();
@@ -218,6 +306,10 @@ public class ScreenRecorderService extends BaseService {
 		result.setAction(ACTION_QUERY_STATUS_RESULT);
 		result.putExtra(EXTRA_QUERY_RESULT_RECORDING, isRecording);
 		result.putExtra(EXTRA_QUERY_RESULT_PAUSING, false);
+		final MetricsRegistry metrics = MetricsRegistry.getDefault();
+		if (metrics.isEnabled()) {
+			result.putExtra(EXTRA_QUERY_RESULT_METRICS, metrics.snapshot().toBundle());
+		}
 		if (DEBUG) Log.v(TAG, "sendBroadcast:isRecording=" + isRecording);
 		sendLocalBroadcast(result);
 		return isRecording;
@@ -259,24 +351,13 @@ public class ScreenRecorderService extends BaseService {
 					}*/
 					if (DEBUG) Log.v(TAG, String.format("startRecording:(%d,%d)(%d,%d)", metrics.widthPixels, metrics.heightPixels, width, height));
 					try {
-						DocumentFile outputFile;
-						if (BuildCheck.isAPI29()) {
-							// API29以降は対象範囲別ストレージ
-							outputFile = MediaStoreUtils.getContentDocument(
-								this, "video/mp4",
-								Environment.DIRECTORY_MOVIES + "/" + Const.APP_DIR,
-								FileUtils.getDateTimeString() + ".mp4", null);
-						} else {
-							outputFile = MediaFileUtils.getRecordingFile(
-								this, Const.REQUEST_ACCESS_SD, Environment.DIRECTORY_MOVIES, "video/mp4",".mp4");
-						}
+						final DocumentFile outputFile = createOutputFile();
 						if (DEBUG) Log.v(TAG, "startRecording:output=" + outputFile.getName());
-						if (outputFile != null) {
-							startRecorder(outputFile, projection,
-								metrics.densityDpi, width, height);
-						} else {
-							throw new IOException("could not access storage");
-						}
+						startRecorder(outputFile, projection,
+							metrics.densityDpi, width, height,
+							intent.getLongExtra(EXTRA_PRE_ROLL_BYTES, 0),
+							intent.getBooleanExtra(EXTRA_ADAPTIVE_BITRATE, false),
+							intent.getLongExtra(EXTRA_MAX_FRAME_GAP_MS, 0));
 						/*showNotification(NOTIFICATION,
 							getString(R.string.notification_service),
 							NOTIFICATION_ICON_ID, R.drawable.ic_recording_service,
@@ -291,6 +372,176 @@ public class ScreenRecorderService extends BaseService {
 		}
 	}
 
+	/**
+	 * 録画ファイルの出力先を生成する
+	 * @return
+	 * @throws IOException
+	 */
+	@NonNull
+	private DocumentFile createOutputFile() throws IOException {
+		final DocumentFile outputFile;
+		if (BuildCheck.isAPI29()) {
+			// API29以降は対象範囲別ストレージ
+			outputFile = MediaStoreUtils.getContentDocument(
+				this, "video/mp4",
+				Environment.DIRECTORY_MOVIES + "/" + Const.APP_DIR,
+				FileUtils.getDateTimeString() + ".mp4", null);
+		} else {
+			outputFile = MediaFileUtils.getRecordingFile(
+				this, Const.REQUEST_ACCESS_SD, Environment.DIRECTORY_MOVIES, "video/mp4",".mp4");
+		}
+		if (outputFile == null) {
+			throw new IOException("could not access storage");
+		}
+		return outputFile;
+	}
+
+	/**
+	 * 直前の録画と同じ条件でエンコーダーが未計測なら計測する
+	 * 次の録画からは計測結果から最も速いエンコーダーを使う
+	 * 数秒かかるので録画終了後にqueueEventで呼び出す
+	 */
+	private void rankEncoders() {
+		final int width, height, bitrate;
+		synchronized (mSync) {
+			if ((mEncoderRanking == null) || (mRecorder != null) || (mRankingWidth <= 0)) {
+				return;
+			}
+			width = mRankingWidth;
+			height = mRankingHeight;
+			bitrate = mRankingBitrate;
+		}
+		if (mEncoderRanking.getScores(MediaCodecUtils.MIME_VIDEO_AVC, width, height, 30) == null) {
+			// 再利用のために保持しているエンコーダーがセッション数の上限に掛からないように先に破棄する
+			EncoderPool.getInstance().evictAll();
+			mEncoderRanking.rank(MediaCodecUtils.MIME_VIDEO_AVC, width, height, 30, bitrate);
+		}
+	}
+
+	/**
+	 * 強制終了して正常に終了できなかった録画ファイルを修復する
+	 * 修復できなかった時もサイドカーファイルは削除する
+	 * @param journals
+	 */
+	private void recoverRecordings(@NonNull final List<File> journals) {
+		for (final File file: journals) {
+			if (DEBUG) Log.v(TAG, "recoverRecordings:" + file);
+			try {
+				final Mp4Recovery.Journal journal = Mp4Recovery.Journal.read(file);
+				final Uri uri = Uri.parse(journal.output);
+				try (final ParcelFileDescriptor pfd
+						= getContentResolver().openFileDescriptor(uri, "rw");
+					final FileInputStream in = new FileInputStream(pfd.getFileDescriptor());
+					final FileOutputStream out = new FileOutputStream(pfd.getFileDescriptor())) {
+
+					final Mp4Recovery.Result result
+						= Mp4Recovery.recover(in.getChannel(), out.getChannel(), journal);
+					if (DEBUG) Log.v(TAG, "recoverRecordings:" + result);
+				}
+				// Android10以降はIS_PENDING=1のままなので他のアプリから見えるようにする
+				MediaStoreUtils.updateContentUri(this, uri);
+			} catch (final Exception e) {
+				Log.w(TAG, "recoverRecordings:failed to recover," + file, e);
+			}
+			if (!file.delete()) {
+				Log.w(TAG, "recoverRecordings:failed to delete," + file);
+			}
+		}
+	}
+
+	/**
+	 * 録画終了後の録画ファイルのmoovを先頭へ移動する
+	 * ファイルパスへアクセスできる時は一時ファイル経由で置き換え、
+	 * content uriしか得られない時はその場で書き換える
+	 * @param output
+	 * @return 正常に終了すればtrue
+	 */
+	private boolean finalizeFastStart(@NonNull final DocumentFile output) {
+		if (DEBUG) Log.v(TAG, "finalizeFastStart:" + output.getUri());
+		final Uri uri = output.getUri();
+		final FastStartFinalizer.ProgressListener listener
+			= new FastStartFinalizer.ProgressListener() {
+			private int mPercent = -1;
+
+			@Override
+			public void onProgress(final long processedBytes, final long totalBytes) {
+				final int percent = totalBytes > 0 ? (int)(processedBytes * 100 / totalBytes) : 100;
+				if (percent != mPercent) {
+					mPercent = percent;
+					final Intent intent = new Intent();
+					intent.setAction(ACTION_FAST_START_PROGRESS);
+					intent.putExtra(EXTRA_FAST_START_PROGRESS, percent);
+					sendLocalBroadcast(intent);
+				}
+			}
+		};
+		try {
+			final int result;
+			if ("file".equals(uri.getScheme())) {
+				result = FastStartFinalizer.process(new File(uri.getPath()), listener);
+			} else {
+				try (final ParcelFileDescriptor pfd
+						= getContentResolver().openFileDescriptor(uri, "rw");
+					final FileInputStream in = new FileInputStream(pfd.getFileDescriptor());
+					final FileOutputStream out = new FileOutputStream(pfd.getFileDescriptor())) {
+
+					result = FastStartFinalizer.processInPlace(
+						in.getChannel(), out.getChannel(), listener);
+				}
+				if (result != FastStartFinalizer.RESULT_ALREADY_FAST_START) {
+					// ファイルサイズが変わるのでMediaStoreの情報を更新する
+					MediaStoreUtils.updateContentUri(this, uri);
+				}
+			}
+			if (DEBUG) Log.v(TAG, "finalizeFastStart:result=" + result);
+			return true;
+		} catch (final Exception e) {
+			Log.w(TAG, "finalizeFastStart:failed," + uri, e);
+			return false;
+		}
+	}
+
+	/**
+	 * 録画中であればPreRollBufferの内容を新しいファイルへ保存する
+	 * 録画はそのまま継続する
+	 */
+	private void saveReplay() {
+		final PreRollBuffer preRoll;
+		synchronized (mSync) {
+			preRoll = mPreRollBuffer;
+		}
+		if (DEBUG) Log.v(TAG, "saveReplay:" + preRoll);
+		if (preRoll == null) {
+			return;
+		}
+		try {
+			queueEvent(new Runnable() {
+				@Override
+				public void run() {
+					IMuxer muxer = null;
+					try {
+						final DocumentFile outputFile = createOutputFile();
+						if (DEBUG) Log.v(TAG, "saveReplay:output=" + outputFile.getName());
+						muxer = new IMuxer.DefaultFactory().createMuxer(
+							ScreenRecorderService.this,
+							requireConfig().useMediaMuxer(), outputFile);
+						final int n = preRoll.flushTo(muxer);
+						if (DEBUG) Log.v(TAG, "saveReplay:finished,samples=" + n);
+					} catch (final Exception e) {
+						Log.w(TAG, e);
+					} finally {
+						if (muxer != null) {
+							muxer.release();
+						}
+					}
+				}
+			});
+		} catch (final IllegalStateException e) {
+			// ignore, will be already released
+			Log.w(TAG, e);
+		}
+	}
+
 	/**
 	 * stop screen recording
 	 */
@@ -316,23 +567,33 @@ public class ScreenRecorderService extends BaseService {
 	private void startRecorder(
 		@NonNull final DocumentFile outputFile,
 		@NonNull final MediaProjection projection,
-		final int densityDpi, final int width, final int height) throws IOException {
+		final int densityDpi, final int width, final int height,
+		final long preRollBytes, final boolean adaptiveBitrate,
+		final long maxFrameGapMs) throws IOException {
 
 		IRecorder recorder = mRecorder;
 		if (DEBUG) Log.d(TAG, "startEncoder:recorder=" + recorder);
 		if (recorder == null) {
+			if (mEncoderRanking != null) {
+				// 計測中ならハードウエアエンコーダーを使わないように中断する
+				mEncoderRanking.cancel();
+			}
 			try {
 				recorder = createRecorder(
 					outputFile,
 					projection,
 					densityDpi,
-					width, height);
+					width, height, preRollBytes, adaptiveBitrate, maxFrameGapMs);
 				recorder.prepare();
 				recorder.startRecording();
 				mRecorder = recorder;
 			} catch (final Exception e) {
 				Log.w(TAG, "startEncoder:", e);
 				stopSampler();
+				if (mPreRollBuffer != null) {
+					mPreRollBuffer.release();
+					mPreRollBuffer = null;
+				}
 				if (recorder != null) {
 					recorder.stopRecording();
 				}
@@ -346,6 +607,9 @@ public class ScreenRecorderService extends BaseService {
 	/**
 	 * create recorder and related encoder
 	 * @param outputFile
+	 * @param preRollBytes 正の値なら録画と並行して直前のエンコード済みデータを最大でこのバイト数まで保持する
+	 * @param adaptiveBitrate 書き込み状況と空き容量に合わせて映像のビットレートを調整するかどうか
+	 * @param maxFrameGapMs 正の値なら画面が変化しない間はエンコードせずにこの間隔毎に直前の映像をエンコードする
 	 * @return
 	 * @throws IOException
 	 */
@@ -353,21 +617,71 @@ public class ScreenRecorderService extends BaseService {
 	private IRecorder createRecorder(
 		@NonNull final DocumentFile outputFile,
 		@NonNull final MediaProjection projection,
-		final int densityDpi, final int width, final int height) throws IOException {
+		final int densityDpi, final int width, final int height,
+		final long preRollBytes, final boolean adaptiveBitrate,
+		final long maxFrameGapMs) throws IOException {
 
 		if (DEBUG) Log.v(TAG, "createRecorder:basePath=" + outputFile.getUri());
-		IRecorder recorder = new MediaAVRecorder(
+		final MediaAVRecorder recorder = new MediaAVRecorder(
 			this, mRecorderCallback, outputFile);
+		if (preRollBytes > 0) {
+			mPreRollBuffer = new PreRollBuffer(preRollBytes);
+			recorder.setPreRollBuffer(mPreRollBuffer);
+		}
+		if (recorder.getConfig().useMediaMuxer()) {
+			// MediaMuxerは終了時にまとめてmoovを書き込むので強制終了した時に修復できるようにする
+			// (FragmentedMp4Muxerはフラグメント毎に再生可能なので不要)
+			try {
+				final RecoveryJournal journal = new RecoveryJournal(
+					new File(RecoveryJournal.getDirectory(this),
+						FileUtils.getDateTimeString() + RecoveryJournal.EXTENSION),
+					outputFile.getUri().toString());
+				// content uriはFastStartFinalizer#processInPlaceでその場で書き換えるので
+				// 書き換えが終わるまでサイドカーファイルを残しておく
+				journal.setDeferDelete(mFastStart
+					&& !"file".equals(outputFile.getUri().getScheme()));
+				recorder.setRecoveryJournal(journal);
+			} catch (final IOException e) {
+				// 修復用のサイドカーファイルが無くても録画はできる
+				Log.w(TAG, e);
+			}
+		}
 		if (DEBUG) Log.v(TAG, "createRecorder:create MediaScreenEncoder");
-		final IVideoEncoder videoEncoder = new MediaScreenEncoder(recorder, mEncoderListener, projection, densityDpi); // API>=21
+		final MediaScreenEncoder videoEncoder = new MediaScreenEncoder(recorder, mEncoderListener, projection, densityDpi); // API>=21
 		videoEncoder.setVideoConfig(-1, 30, 1);
 		videoEncoder.setVideoSize(width, height);
+		videoEncoder.setMaxFrameGapMs(maxFrameGapMs);
+		videoEncoder.setEncoderRanking(mEncoderRanking);
+		// 続けて録画する時にMediaCodecを生成し直さなくて済むように再利用する
+		videoEncoder.setEncoderPool(EncoderPool.getInstance());
+		mRankingWidth = width;
+		mRankingHeight = height;
+		mRankingBitrate = videoEncoder.getConfig().getBitrate(width, height);
+		if (adaptiveBitrate) {
+			// 設定上のビットレートを上限として1/4まで下げられるようにする
+			final int bitrate = videoEncoder.getConfig().getBitrate(width, height);
+			videoEncoder.setAdaptiveBitrate(
+				new AdaptiveBitrateController(Math.max(1, bitrate / 4), bitrate),
+				new AdaptiveBitrateController.FreeSpaceProvider() {
+					@Override
+					public long getFreeBytes() {
+						try {
+							return StorageUtils.getStorageInfo(
+								ScreenRecorderService.this, outputFile).freeBytes;
+						} catch (final IOException e) {
+							return -1;
+						}
+					}
+				});
+		}
 		//if (PermissionUtils.hasAudio(this)) {
 			// 音声取得のパーミッションがあるときだけ録音もする
 			mAudioSampler = new AudioSampler(2,
 				CHANNEL_COUNT, SAMPLE_RATE);
 			mAudioSampler.start();
-			new AudioSamplerEncoder(recorder, mEncoderListener, mAudioSampler);
+			final AudioSamplerEncoder audioEncoder
+				= new AudioSamplerEncoder(recorder, mEncoderListener, mAudioSampler);
+			audioEncoder.setEncoderPool(EncoderPool.getInstance());
 		//}
 		if (DEBUG) Log.v(TAG, "createRecorder:finished");
 		return recorder;
@@ -388,11 +702,19 @@ public class ScreenRecorderService extends BaseService {
 		public void onStopped(final IRecorder recorder) {
 			if (DEBUG) Log.v(TAG, "RecorderCallback#onStopped:" + recorder);
 			stopSampler();
-			mRecorder = null;
+			final PreRollBuffer preRoll;
+			synchronized (mSync) {
+				mRecorder = null;
+				preRoll = mPreRollBuffer;
+				mPreRollBuffer = null;
+			}
 			try {
 				queueEvent(new Runnable() {
 					@Override
 					public void run() {
+						if (preRoll != null) {
+							preRoll.release();
+						}
 						if (recorder != null) {
 							try {
 								if (DEBUG) Log.v(TAG, "RecorderCallback#onStopped:release recorder");
@@ -400,6 +722,23 @@ public class ScreenRecorderService extends BaseService {
 							} catch (final Exception e) {
 								Log.w(TAG, e);
 							}
+							// muxerを解放してファイルが確定してから録画スレッドとは別に処理する
+							boolean finalized = true;
+							if (mFastStart && (recorder instanceof MediaAVRecorder)) {
+								final DocumentFile output
+									= ((MediaAVRecorder)recorder).getOutputFile();
+								if (output != null) {
+									finalized = finalizeFastStart(output);
+								}
+							}
+							// 削除を保留していたサイドカーファイルは書き換えが正常に終わってから削除する
+							// (失敗した時は次回起動時に修復を試みる)
+							final RecoveryJournal journal = (recorder instanceof MediaAVRecorder)
+								? ((MediaAVRecorder)recorder).getRecoveryJournal() : null;
+							if ((journal != null) && journal.isFinished() && finalized) {
+								journal.delete();
+							}
+							rankEncoders();
 						}
 						stopSelf();
 					}
@@ -412,6 +751,14 @@ public class ScreenRecorderService extends BaseService {
 			if (DEBUG) Log.v(TAG, "mRecorderCallback#onStopped:finished");
 		}
 
+		@Override
+		public void onStartLatency(final IRecorder recorder,
+			final long prepareMs, final long startMs) {
+
+			if (DEBUG) Log.v(TAG, "RecorderCallback#onStartLatency:prepare=" + prepareMs
+				+ "ms,start=" + startMs + "ms,reused=" + EncoderPool.getInstance().getReuseCount());
+		}
+
 		@Override
 		public void onError(final Exception e) {
 			Log.w(TAG, e);
@@ -0,0 +1,248 @@
+package com.serenegiant.utils;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import java.nio.ByteBuffer;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Annex-B形式のバイト列からスタートコード(00 00 01または00 00 00 01)を探して
+ * NALユニットの位置(オフセット, 長さ, NALユニットヘッダー)の一覧を作るためのヘルパークラス
+ *
+ * ByteBufferの内容をコピーせずに絶対位置指定で読み込むのでダイレクトバッファでもそのまま使える
+ * 8バイト単位で読み込んで0x00を含まないワードを読み飛ばす(SWAR)ので
+ * スライスデータ中の大部分を1バイトずつ比較しなくて済む
+ * インデックスは再利用できるので同じインスタンスで繰り返し#scanを呼び出せば配列を再確保しない
+ * インスタンスはスレッドセーフではない
+ */
+public class AnnexBScanner {
+
+	private static final long LSB = 0x0101010101010101L;
+	private static final long MSB = 0x8080808080808080L;
+	private static final int DEFAULT_CAPACITY = 16;
+
+	/**
+	 * 0x00を含むかどうかを判定する
+	 * 下位のバイトからの桁借りで0x01の上位のバイトも0x00と判定されることがあるが
+	 * 0x00を含む時に0と判定されることは無いので読み飛ばしの判定には十分
+	 * @param v
+	 * @return
+	 */
+	private static boolean hasZeroByte(final long v) {
+		return ((v - LSB) & ~v & MSB) != 0;
+	}
+
+	/**
+	 * 00 00 01の3バイトのパターンを探す
+	 * @param buf
+	 * @param from 検索開始位置(絶対位置)
+	 * @param end 検索終了位置(絶対位置, このバイトは含まない)
+	 * @return パターンの先頭位置(絶対位置), 見つからなければ-1
+	 */
+	private static int findPattern(@NonNull final ByteBuffer buf, final int from, final int end) {
+		int i = from;
+		// ByteBuffer#getLongは絶対位置指定ならposition/limitもバイトオーダーも変更しない
+		// 0x00を含むかどうかはバイトオーダーに依存しないのでbufのバイトオーダーのままでよい
+		for (final int n = end - 8; i <= n; i += 8) {
+			if (hasZeroByte(buf.getLong(i))) {
+				// このワードの中から始まるパターンを探す
+				// 1つ前のワードの末尾から始まるパターンは1つ前のワードで判定済み
+				for (int j = i, m = Math.min(i + 8, end - 2); j < m; j++) {
+					if ((buf.get(j) == 0) && (buf.get(j + 1) == 0) && (buf.get(j + 2) == 1)) {
+						return j;
+					}
+				}
+			}
+		}
+		for (final int m = end - 2; i < m; i++) {
+			if ((buf.get(i) == 0) && (buf.get(i + 1) == 0) && (buf.get(i + 2) == 1)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Annex-Bのスタートコードを探す
+	 * 4バイトのスタートコード(00 00 00 01)の場合は先頭の0x00の位置を返す
+	 * @param buf
+	 * @param from 検索開始位置(絶対位置)
+	 * @param end 検索終了位置(絶対位置, このバイトは含まない)
+	 * @return スタートコードの先頭位置(絶対位置)、見つからなければ-1
+	 */
+	public static int findStartCode(@NonNull final ByteBuffer buf, final int from, final int end) {
+		final int pos = findPattern(buf, from, end);
+		return (pos > from) && (buf.get(pos - 1) == 0) ? pos - 1 : pos;
+	}
+
+	/**
+	 * #findStartCodeで見つけた位置のスタートコードの長さを取得する
+	 * @param buf
+	 * @param pos スタートコードの先頭位置(絶対位置)
+	 * @return 3または4
+	 */
+	public static int startCodeLength(@NonNull final ByteBuffer buf, final int pos) {
+		return buf.get(pos + 2) == 1 ? 3 : 4;
+	}
+
+	/**
+	 * 4バイトのスタートコード(00 00 00 01)を探す
+	 * 00 00 00 00 01のように0x00が4つ以上続く場合は0x01の直前の3つの0x00の先頭位置を返す
+	 * @param buf
+	 * @param from 検索開始位置(絶対位置)
+	 * @param end 検索終了位置(絶対位置, このバイトは含まない)
+	 * @return スタートコードの先頭位置(絶対位置)、見つからなければ-1
+	 */
+	public static int findStartCode4(@NonNull final ByteBuffer buf, final int from, final int end) {
+		int pos = findPattern(buf, from + 1, end);
+		while (pos >= 0) {
+			if (buf.get(pos - 1) == 0) {
+				return pos - 1;
+			}
+			pos = findPattern(buf, pos + 3, end);
+		}
+		return -1;
+	}
+
+//--------------------------------------------------------------------------------
+	private int[] mOffsets = new int[DEFAULT_CAPACITY];
+	private int[] mLengths = new int[DEFAULT_CAPACITY];
+	private int mCount;
+
+	/**
+	 * 指定した範囲のNALユニットを探してインデックスを作る
+	 * 前回の#scanの結果は破棄される
+	 * 最初のスタートコードより前のデータは無視する
+	 * @param buf
+	 * @param offset 検索開始位置(絶対位置)
+	 * @param size 検索するバイト数
+	 * @return 見つかったNALユニットの数
+	 */
+	public int scan(@NonNull final ByteBuffer buf, final int offset, final int size) {
+		mCount = 0;
+		final int end = offset + size;
+		int start = findStartCode(buf, offset, end);
+		while (start >= 0) {
+			final int nalStart = start + startCodeLength(buf, start);
+			final int next = findStartCode(buf, nalStart, end);
+			final int nalEnd = next >= 0 ? next : end;
+			if (nalEnd > nalStart) {
+				add(nalStart, nalEnd - nalStart);
+			}
+			start = next;
+		}
+		return mCount;
+	}
+
+	/**
+	 * #scanで見つけたNALユニットの数
+	 * @return
+	 */
+	public int count() {
+		return mCount;
+	}
+
+	/**
+	 * 指定したNALユニットのスタートコードを除いた先頭位置(絶対位置)を取得
+	 * @param index
+	 * @return
+	 * @throws IndexOutOfBoundsException
+	 */
+	public int getOffset(final int index) throws IndexOutOfBoundsException {
+		checkIndex(index);
+		return mOffsets[index];
+	}
+
+	/**
+	 * 指定したNALユニットのスタートコードを除いた長さを取得
+	 * 次のスタートコードの直前までを含むのでtrailing_zero_8bitsが含まれることがある
+	 * @param index
+	 * @return
+	 * @throws IndexOutOfBoundsException
+	 */
+	public int getLength(final int index) throws IndexOutOfBoundsException {
+		checkIndex(index);
+		return mLengths[index];
+	}
+
+	/**
+	 * 指定したNALユニットのnal_unit_typeをH.264/AVCとして取得
+	 * @param buf #scanへ渡したByteBuffer
+	 * @param index
+	 * @return
+	 * @throws IndexOutOfBoundsException
+	 */
+	public int getAvcType(@NonNull final ByteBuffer buf, final int index)
+		throws IndexOutOfBoundsException {
+
+		checkIndex(index);
+		return buf.get(mOffsets[index]) & 0x1f;
+	}
+
+	/**
+	 * 指定したNALユニットのnal_unit_typeをH.265/HEVCとして取得
+	 * @param buf #scanへ渡したByteBuffer
+	 * @param index
+	 * @return
+	 * @throws IndexOutOfBoundsException
+	 */
+	public int getHevcType(@NonNull final ByteBuffer buf, final int index)
+		throws IndexOutOfBoundsException {
+
+		checkIndex(index);
+		return (buf.get(mOffsets[index]) >> 1) & 0x3f;
+	}
+
+	/**
+	 * 指定したnal_unit_type(H.264/AVC)を持つ最初のNALユニットのインデックスを探す
+	 * @param buf #scanへ渡したByteBuffer
+	 * @param type
+	 * @return 見つからなければ-1
+	 */
+	public int findAvcType(@NonNull final ByteBuffer buf, final int type) {
+		for (int i = 0; i < mCount; i++) {
+			if ((buf.get(mOffsets[i]) & 0x1f) == type) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private void add(final int offset, final int length) {
+		if (mCount >= mOffsets.length) {
+			final int n = mCount * 2;
+			final int[] o = new int[n];
+			System.arraycopy(mOffsets, 0, o, 0, mCount);
+			mOffsets = o;
+			final int[] l = new int[n];
+			System.arraycopy(mLengths, 0, l, 0, mCount);
+			mLengths = l;
+		}
+		mOffsets[mCount] = offset;
+		mLengths[mCount] = length;
+		mCount++;
+	}
+
+	private void checkIndex(final int index) throws IndexOutOfBoundsException {
+		if ((index < 0) || (index >= mCount)) {
+			throw new IndexOutOfBoundsException("index=" + index + ",count=" + mCount);
+		}
+	}
+}
@@ -227,28 +227,16 @@ public class BufferHelper {
 	 */
 	public static final int findAnnexB(final byte[] data, final int offset) {
 		if (data != null) {
-			final int len5 = data.length - 5;	// 本当はlength-3までだけどpayloadが無いのは無効とみなしてlength-4までとする
-			for (int i = offset; i < len5; i++) {
-				// 最低3つは連続して0x00
-				if ((data[i] != 0x00) || (data[i+1] != 0x00) || (data[i+2] != 0x00)) {
-					continue;
-				}
-				// 4つ目が0x01ならOK
-				if (data[i+3] == 0x01) {
-					return i;
-				}
-			}
-			final int len4 = data.length - 4;	// 本当はlength-3までだけどpayloadが無いのは無効とみなしてlength-4までとする
-			for (int i = offset; i < len4; i++) {
-				// 最低2つは連続して0x00でないとだめ
-				if ((data[i] != 0x00) || (data[i+1] != 0x00)) {
-					continue;
-				}
-				// 3つ目が0x01ならOK
-				if (data[i+2] == 0x01) {
-					return i;
-				}
+			// 本当はlength-3までだけどpayloadが無いのは無効とみなしてlength-4までとする
+			final ByteBuffer buf = ByteBuffer.wrap(data);
+			final int end = data.length - 2;
+			final int first = AnnexBScanner.findStartCode(buf, offset, end);
+			if ((first < 0) || (AnnexBScanner.startCodeLength(buf, first) == 4)) {
+				return first;
 			}
+			// 3バイトのスタートマーカーより後ろに4バイトのスタートマーカーがあればそちらを優先する
+			final int result = AnnexBScanner.findStartCode4(buf, first + 3, end);
+			return result >= 0 ? result : first;
 		}
 		return -1;
 	}
@@ -371,7 +359,9 @@ public class BufferHelper {
 
 	/**
 	 * 指定したByteBufferが指定したサイズ以上になるようにする
-	 * 引数のByteBufferがnullまたは指定したサイズよりも小さい場合には新しいダイレクトByteBufferを生成して返す
+	 * 引数のByteBufferがnullまたは指定したサイズよりも小さい場合には
+	 * DirectBufferArenaから取得したダイレクトByteBufferを返す
+	 * 引数のByteBufferはDirectBufferArenaへ返却しない(呼び出し元で管理する)
 	 * @param buffer
 	 * @param newSize
 	 * @return
@@ -380,7 +370,7 @@ public class BufferHelper {
 	public static ByteBuffer resizeDirect(@Nullable final ByteBuffer buffer, final int newSize) {
 		ByteBuffer result = buffer;
 		if ((result == null) || (result.capacity() < newSize)) {
-			result = ByteBuffer.allocateDirect(newSize).order(ByteOrder.nativeOrder());
+			result = DirectBufferArena.getDefault().allocate(newSize).order(ByteOrder.nativeOrder());
 		}
 		result.clear();
 		return result;
@@ -0,0 +1,482 @@
+package com.serenegiant.utils;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.util.Log;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * 録画ファイル出力用のOutputStream実装
+ *
+ * 細かい書き込みをダイレクトバッファへ溜めて、ファイル上の書き込み位置がブロック境界に揃う単位で
+ * FileChannelへまとめて書き込む
+ * FileDescriptorを指定した時は確保済みの領域の終端に近づく度にビットレート(#setBitrateまたは
+ * 実際の書き込み速度の大きい方)から求めたサイズをOs#posix_fallocateでまとめて確保するので、
+ * ファイルシステム上でエクステントが細切れにならない
+ * 確保したまま使わなかった領域は#trim/#closeで切り詰める
+ * (切り詰める前に強制終了した時はファイル末尾に0が残る)
+ * #setSyncIntervalMsを指定すると書き込み時に前回のfsyncから指定時間以上経過していれば
+ * バッファの内容を書き出してfsyncするので、電源断等で失うデータを一定時間分までに抑えられる
+ * スレッドセーフではない
+ */
+public class CoalescingOutputStream extends OutputStream {
+	private static final boolean DEBUG = false;	// set false on production
+	private static final String TAG = CoalescingOutputStream.class.getSimpleName();
+
+	/**
+	 * まとめて書き込む単位のデフォルト値
+	 */
+	public static final int DEFAULT_BLOCK_SIZE = 256 * 1024;
+	/**
+	 * ブロックサイズと事前確保サイズはこの値の倍数にする(一般的なページ/ファイルシステムのブロックサイズ)
+	 */
+	private static final int ALIGNMENT = 4096;
+	/**
+	 * 1回の事前確保でこの時間分の領域を確保する[秒]
+	 */
+	private static final int PREALLOCATE_SECONDS = 4;
+	private static final long MIN_PREALLOCATE_BYTES = 1024 * 1024L;
+	private static final long MAX_PREALLOCATE_BYTES = 64 * 1024 * 1024L;
+
+	@NonNull
+	private final FileChannel mChannel;
+	@Nullable
+	private final FileDescriptor mFd;
+	private final int mBlockSize;
+	@Nullable
+	private ByteBuffer mBuffer;
+	/**
+	 * mBufferの先頭に対応するファイル上の位置, 最初の書き込み時にFileChannelの位置で初期化する
+	 */
+	private long mBufferPos = -1;
+	/**
+	 * 確保済みの領域の終端(ファイルサイズ)
+	 */
+	private long mAllocatedEnd;
+	private boolean mPreallocate;
+	private int mBitrate;
+	private long mLastAllocateNs;
+	private long mLastAllocatePos;
+	private long mSyncIntervalNs;
+	private long mLastSyncNs;
+	private boolean mClosed;
+	// 統計情報
+	private long mBytesWritten;
+	private long mWriteCount;
+	private long mSyncCount;
+	private long mPreallocatedBytes;
+
+	/**
+	 * コンストラクタ
+	 * @param output
+	 */
+	public CoalescingOutputStream(@NonNull final FileOutputStream output) {
+		this(output.getChannel(), getFD(output), DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * コンストラクタ
+	 * @param channel 書き込み先, #closeで閉じる
+	 * @param fd channelのFileDescriptor, nullなら事前確保しない
+	 * @param blockSize まとめて書き込む単位, ALIGNMENT(4KiB)の倍数に切り上げる
+	 */
+	public CoalescingOutputStream(@NonNull final FileChannel channel,
+		@Nullable final FileDescriptor fd,
+		@IntRange(from = 1L) final int blockSize) {
+
+		mChannel = channel;
+		mFd = fd;
+		mPreallocate = fd != null;
+		mBlockSize = Math.max(ALIGNMENT, (blockSize + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT);
+	}
+
+	/**
+	 * 事前確保するサイズの目安にするビットレートを設定する
+	 * 実際の書き込み速度の方が大きければそちらを使う
+	 * @param bitrate [ビット/秒], 0なら実際の書き込み速度のみを使う
+	 */
+	public void setBitrate(@IntRange(from = 0L) final int bitrate) {
+		mBitrate = bitrate;
+	}
+
+	/**
+	 * fsyncする間隔を設定する
+	 * @param intervalMs [ミリ秒], 0以下ならfsyncしない(#sync/#closeを除く)
+	 */
+	public void setSyncIntervalMs(final long intervalMs) {
+		mSyncIntervalNs = intervalMs > 0 ? intervalMs * 1000000L : 0;
+		mLastSyncNs = System.nanoTime();
+	}
+
+	/**
+	 * 事前確保するかどうかを設定する
+	 * FileDescriptorを指定しなかった時や事前確保に失敗した後はtrueにしても事前確保しない
+	 * @param preallocate
+	 */
+	public void setPreallocate(final boolean preallocate) {
+		mPreallocate = preallocate && (mFd != null);
+	}
+
+	@Override
+	public void write(final int b) throws IOException {
+		final ByteBuffer buffer = obtainBuffer();
+		buffer.put((byte)b);
+		if (!buffer.hasRemaining()) {
+			writeBuffer();
+		}
+	}
+
+	@Override
+	public void write(@NonNull final byte[] b, final int off, final int len) throws IOException {
+		if ((off < 0) || (len < 0) || (off + len > b.length)) {
+			throw new IndexOutOfBoundsException("off=" + off + ",len=" + len + ",length=" + b.length);
+		}
+		final ByteBuffer buffer = obtainBuffer();
+		int offset = off;
+		int remaining = len;
+		while (remaining > 0) {
+			final int n = Math.min(remaining, buffer.remaining());
+			buffer.put(b, offset, n);
+			offset += n;
+			remaining -= n;
+			if (!buffer.hasRemaining()) {
+				writeBuffer();
+			}
+		}
+		checkSync();
+	}
+
+	/**
+	 * srcのpositionからlimitまでを書き込む
+	 * srcのpositionはlimitまで進む
+	 * @param src
+	 * @throws IOException
+	 */
+	public void write(@NonNull final ByteBuffer src) throws IOException {
+		final ByteBuffer buffer = obtainBuffer();
+		final int limit = src.limit();
+		try {
+			while (src.hasRemaining()) {
+				final int n = Math.min(src.remaining(), buffer.remaining());
+				src.limit(src.position() + n);
+				buffer.put(src);
+				src.limit(limit);
+				if (!buffer.hasRemaining()) {
+					writeBuffer();
+				}
+			}
+		} finally {
+			src.limit(limit);
+		}
+		checkSync();
+	}
+
+	/**
+	 * 書き込み済みの範囲を上書きする(ヘッダーの書き換え用)
+	 * まだバッファ内にある範囲はバッファを書き換える
+	 * srcのpositionは変更しない
+	 * @param src positionからlimitまでを書き込む
+	 * @param pos 書き込むファイル上の位置
+	 * @throws IOException
+	 * @throws IllegalArgumentException 現在の書き込み位置(#position)を超える範囲を指定した
+	 */
+	public void writeAt(@NonNull final ByteBuffer src, final long pos)
+		throws IOException, IllegalArgumentException {
+
+		final int size = src.remaining();
+		if ((pos < 0) || (pos + size > position())) {
+			throw new IllegalArgumentException("out of written range,pos=" + pos + ",size=" + size);
+		}
+		final ByteBuffer data = src.duplicate();
+		final long bufferPos = mBufferPos >= 0 ? mBufferPos : pos + size;
+		if (pos < bufferPos) {
+			// 書き出し済みの範囲は直接書き込む
+			final int n = (int)Math.min(size, bufferPos - pos);
+			final int limit = data.limit();
+			data.limit(data.position() + n);
+			long p = pos;
+			while (data.hasRemaining()) {
+				p += mChannel.write(data, p);
+			}
+			data.limit(limit);
+		}
+		if ((data.hasRemaining()) && (mBuffer != null)) {
+			// バッファ内の範囲はバッファを書き換える
+			int ix = (int)(pos + (size - data.remaining()) - mBufferPos);
+			while (data.hasRemaining()) {
+				mBuffer.put(ix++, data.get());
+			}
+		}
+	}
+
+	/**
+	 * 現在の書き込み位置(バッファ内のデータを含む)
+	 * @return
+	 * @throws IOException
+	 */
+	public long position() throws IOException {
+		if (mBufferPos < 0) {
+			return mChannel.position();
+		}
+		return mBufferPos + (mBuffer != null ? mBuffer.position() : 0);
+	}
+
+	/**
+	 * バッファ内のデータを書き出す
+	 * fsyncはしない
+	 * @throws IOException
+	 */
+	@Override
+	public void flush() throws IOException {
+		if ((mBuffer != null) && (mBuffer.position() > 0)) {
+			writeBuffer();
+		}
+	}
+
+	/**
+	 * バッファ内のデータを書き出してfsyncする
+	 * @throws IOException
+	 */
+	public void sync() throws IOException {
+		flush();
+		mChannel.force(false);
+		mSyncCount++;
+		mLastSyncNs = System.nanoTime();
+	}
+
+	/**
+	 * バッファ内のデータを書き出して、現在の書き込み位置より後ろ
+	 * (事前確保した領域や上書きする前のファイルの内容)を切り詰める
+	 * @throws IOException
+	 */
+	public void trim() throws IOException {
+		flush();
+		final long pos = position();
+		if (mChannel.size() > pos) {
+			if (DEBUG) Log.v(TAG, "trim:" + mChannel.size() + "→" + pos);
+			mChannel.truncate(pos);
+		}
+		mAllocatedEnd = pos;
+	}
+
+	/**
+	 * バッファ内のデータを書き出して事前確保した領域を切り詰めてから閉じる
+	 * 何も書き込んでいなければファイルの内容は変更しない
+	 * @throws IOException
+	 */
+	@Override
+	public void close() throws IOException {
+		if (mClosed) {
+			return;
+		}
+		mClosed = true;
+		try {
+			if (mBufferPos >= 0) {
+				flush();
+				if (mPreallocatedBytes > 0) {
+					trim();
+				}
+			}
+		} finally {
+			DirectBufferArena.getDefault().release(mBuffer);
+			mBuffer = null;
+			mChannel.close();
+		}
+		if (DEBUG) Log.v(TAG, "close:" + this);
+	}
+
+	/**
+	 * FileChannelへ書き込んだバイト数
+	 * @return
+	 */
+	public long getBytesWritten() {
+		return mBytesWritten;
+	}
+
+	/**
+	 * FileChannelへ書き込んだ回数
+	 * @return
+	 */
+	public long getWriteCount() {
+		return mWriteCount;
+	}
+
+	/**
+	 * fsyncした回数
+	 * @return
+	 */
+	public long getSyncCount() {
+		return mSyncCount;
+	}
+
+	/**
+	 * 事前確保したバイト数の合計
+	 * @return
+	 */
+	public long getPreallocatedBytes() {
+		return mPreallocatedBytes;
+	}
+
+	@NonNull
+	@Override
+	public String toString() {
+		return "CoalescingOutputStream{" +
+			"blockSize=" + mBlockSize +
+			", bytesWritten=" + mBytesWritten +
+			", writeCount=" + mWriteCount +
+			", syncCount=" + mSyncCount +
+			", preallocated=" + mPreallocatedBytes +
+			'}';
+	}
+
+//--------------------------------------------------------------------------------
+	@Nullable
+	private static FileDescriptor getFD(@NonNull final FileOutputStream output) {
+		try {
+			return output.getFD();
+		} catch (final IOException e) {
+			if (DEBUG) Log.w(TAG, e);
+			return null;
+		}
+	}
+
+	/**
+	 * 書き込み用のバッファを取得する
+	 * 最初の呼び出し時にバッファを確保して書き込み開始位置を初期化する
+	 * @return
+	 * @throws IOException
+	 */
+	@NonNull
+	private ByteBuffer obtainBuffer() throws IOException {
+		if (mClosed) {
+			throw new IOException("Stream Closed");
+		}
+		if (mBuffer == null) {
+			mBufferPos = mChannel.position();
+			mAllocatedEnd = mChannel.size();
+			mLastAllocateNs = System.nanoTime();
+			mLastAllocatePos = mBufferPos;
+			if (mLastSyncNs == 0) {
+				mLastSyncNs = mLastAllocateNs;
+			}
+			mBuffer = DirectBufferArena.getDefault().allocateExact(mBlockSize);
+			resetBuffer();
+		}
+		return mBuffer;
+	}
+
+	/**
+	 * バッファを空にして、次に書き出すときの終端がブロック境界になるようにlimitをセットする
+	 */
+	private void resetBuffer() {
+		final ByteBuffer buffer = mBuffer;
+		if (buffer != null) {
+			buffer.clear();
+			buffer.limit(mBlockSize - (int)(mBufferPos % mBlockSize));
+		}
+	}
+
+	/**
+	 * バッファの内容をFileChannelへ書き出す
+	 * @throws IOException
+	 */
+	private void writeBuffer() throws IOException {
+		final ByteBuffer buffer = mBuffer;
+		if (buffer == null) {
+			return;
+		}
+		buffer.flip();
+		final int n = buffer.remaining();
+		if (n > 0) {
+			ensureAllocated(mBufferPos + n);
+			// FileChannelの位置も進めるので位置指定無しで書き込む
+			while (buffer.hasRemaining()) {
+				mChannel.write(buffer);
+			}
+			mBufferPos += n;
+			mBytesWritten += n;
+			mWriteCount++;
+		}
+		resetBuffer();
+	}
+
+	/**
+	 * 指定した位置まで書き込めるように必要であれば領域を事前確保する
+	 * 失敗した時(ファイルシステムが対応していない時等)は以降の事前確保をやめる
+	 * @param end
+	 */
+	private void ensureAllocated(final long end) {
+		if (!mPreallocate || (end + mBlockSize <= mAllocatedEnd) || (mFd == null)) {
+			return;
+		}
+		final long start = Math.max(mAllocatedEnd, mBufferPos);
+		final long len = Math.max(preallocateSize(), end + mBlockSize - start);
+		try {
+			Os.posix_fallocate(mFd, start, len);
+			mAllocatedEnd = start + len;
+			mPreallocatedBytes += len;
+			if (DEBUG) Log.v(TAG, "ensureAllocated:" + start + "+" + len);
+		} catch (final ErrnoException e) {
+			Log.w(TAG, "ensureAllocated:failed to preallocate, disabled", e);
+			mPreallocate = false;
+		}
+	}
+
+	/**
+	 * 事前確保するサイズを求める
+	 * ビットレートと前回の事前確保からの実際の書き込み速度の大きい方のPREALLOCATE_SECONDS秒分
+	 * @return
+	 */
+	private long preallocateSize() {
+		final long now = System.nanoTime();
+		long bytesPerSec = mBitrate / 8;
+		final long elapsedNs = now - mLastAllocateNs;
+		if (elapsedNs > 0) {
+			final long measured = (mBufferPos - mLastAllocatePos) * 1000000000L / elapsedNs;
+			bytesPerSec = Math.max(bytesPerSec, measured);
+		}
+		mLastAllocateNs = now;
+		mLastAllocatePos = mBufferPos;
+		final long size = Math.max(MIN_PREALLOCATE_BYTES,
+			Math.min(MAX_PREALLOCATE_BYTES, bytesPerSec * PREALLOCATE_SECONDS));
+		return (size + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+	}
+
+	/**
+	 * 前回のfsyncからmSyncIntervalNs以上経過していればバッファを書き出してfsyncする
+	 * @throws IOException
+	 */
+	private void checkSync() throws IOException {
+		if ((mSyncIntervalNs > 0) && (System.nanoTime() - mLastSyncNs >= mSyncIntervalNs)) {
+			sync();
+		}
+	}
+}
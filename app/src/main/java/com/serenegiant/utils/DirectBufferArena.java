@@ -0,0 +1,451 @@
+package com.serenegiant.utils;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import androidx.annotation.IntRange;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * ダイレクトByteBufferを再利用するためのアリーナ
+ * ByteBuffer#allocateDirectを毎回呼ぶとネイティブメモリーの確保/解放とCleaner経由のGCが頻発するので
+ * 2のべき乗のサイズクラス毎にプールしておいて使い回す
+ * ・サイズクラスは1KiB〜16MiB、それより大きい場合はプールせずにByteBuffer#allocateDirectで生成する
+ * ・小さなサイズクラスはスレッド毎のキャッシュを優先して使うので共有プールのロックを取らない
+ * ・共有プールに保持する合計バイト数は上限を超えないようにする、超える分は破棄してGCに任せる
+ * ・貸し出し中のByteBufferをサイズクラス毎に同一性で記録しておいて、
+ *   このアリーナから取得したもの以外(slice/duplicateや2重に返却したものを含む)は#releaseしても無視する
+ * #releaseしたByteBufferはそれ以降使用してはいけない
+ */
+public class DirectBufferArena {
+	/**
+	 * 最小サイズクラス(1KiB)のシフト量
+	 */
+	public static final int MIN_CLASS_SHIFT = 10;
+	/**
+	 * 最大サイズクラス(16MiB)のシフト量
+	 */
+	public static final int MAX_CLASS_SHIFT = 24;
+	/**
+	 * 共有プールに保持する合計バイト数の上限のデフォルト値
+	 */
+	public static final long DEFAULT_MAX_RETAINED_BYTES = 32L * 1024 * 1024;
+
+	private static final int NUM_CLASSES = MAX_CLASS_SHIFT - MIN_CLASS_SHIFT + 1;
+	/**
+	 * スレッド毎のキャッシュを使う最大サイズクラス(256KiB)のシフト量
+	 * スレッドが終了するとキャッシュ内のByteBufferは共有プールへ戻らないので小さいサイズクラスのみにする
+	 */
+	private static final int THREAD_CACHE_MAX_SHIFT = 18;
+	/**
+	 * スレッド毎のキャッシュにサイズクラス毎に保持する最大数
+	 */
+	private static final int THREAD_CACHE_NUM = 2;
+
+	private static DirectBufferArena sDefault;
+
+	/**
+	 * 共有のDirectBufferArenaを取得する
+	 * @return
+	 */
+	@NonNull
+	public static synchronized DirectBufferArena getDefault() {
+		if (sDefault == null) {
+			sDefault = new DirectBufferArena(DEFAULT_MAX_RETAINED_BYTES);
+		}
+		return sDefault;
+	}
+
+	private final long mMaxRetainedBytes;
+	@NonNull
+	private final ArrayDeque<ByteBuffer>[] mPools;
+	/**
+	 * サイズクラス毎の貸し出し中のByteBuffer
+	 */
+	@NonNull
+	private final OutstandingSet[] mOutstanding;
+	@NonNull
+	private final ThreadLocal<ByteBuffer[][]> mThreadCache = new ThreadLocal<ByteBuffer[][]>() {
+		@Override
+		protected ByteBuffer[][] initialValue() {
+			return new ByteBuffer[THREAD_CACHE_MAX_SHIFT - MIN_CLASS_SHIFT + 1][THREAD_CACHE_NUM];
+		}
+	};
+	@NonNull
+	private final AtomicLong mRetainedBytes = new AtomicLong();
+	@NonNull
+	private final AtomicLong mThreadCacheHits = new AtomicLong();
+	@NonNull
+	private final AtomicLong mHits = new AtomicLong();
+	@NonNull
+	private final AtomicLong mMisses = new AtomicLong();
+	@NonNull
+	private final AtomicLong mOversized = new AtomicLong();
+	@NonNull
+	private final AtomicLong mReleased = new AtomicLong();
+	@NonNull
+	private final AtomicLong mDropped = new AtomicLong();
+	@NonNull
+	private final AtomicLong mRequestedBytes = new AtomicLong();
+	@NonNull
+	private final AtomicLong mAllocatedBytes = new AtomicLong();
+
+	/**
+	 * コンストラクタ
+	 * @param maxRetainedBytes 共有プールに保持する合計バイト数の上限
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public DirectBufferArena(final long maxRetainedBytes) {
+		mMaxRetainedBytes = maxRetainedBytes;
+		mPools = new ArrayDeque[NUM_CLASSES];
+		mOutstanding = new OutstandingSet[NUM_CLASSES];
+		for (int i = 0; i < NUM_CLASSES; i++) {
+			mPools[i] = new ArrayDeque<>();
+			mOutstanding[i] = new OutstandingSet();
+		}
+	}
+
+	/**
+	 * 指定したサイズ以上の容量を持つダイレクトByteBufferを取得する
+	 * 返すByteBufferはclear済み(limit==capacity)、orderはBIG_ENDIAN
+	 * 以前の内容が残っているので必要であれば呼び出し元でクリアすること
+	 * @param size
+	 * @return
+	 */
+	@NonNull
+	public ByteBuffer allocate(@IntRange(from=0) final int size) {
+		if (size < 0) {
+			throw new IllegalArgumentException("size should be zero or positive," + size);
+		}
+		final int cls = classOf(size);
+		if (cls < 0) {
+			// 最大サイズクラスよりも大きい時はプールしない
+			mOversized.incrementAndGet();
+			mMisses.incrementAndGet();
+			return ByteBuffer.allocateDirect(size);
+		}
+		final int capacity = 1 << (cls + MIN_CLASS_SHIFT);
+		mRequestedBytes.addAndGet(size);
+		mAllocatedBytes.addAndGet(capacity);
+		ByteBuffer result = pollThreadCache(cls);
+		if (result != null) {
+			mThreadCacheHits.incrementAndGet();
+		} else {
+			final ArrayDeque<ByteBuffer> pool = mPools[cls];
+			synchronized (pool) {
+				result = pool.pollLast();
+			}
+			if (result != null) {
+				mRetainedBytes.addAndGet(-capacity);
+				mHits.incrementAndGet();
+			} else {
+				mMisses.incrementAndGet();
+				result = ByteBuffer.allocateDirect(capacity);
+			}
+		}
+		mOutstanding[cls].add(result);
+		result.clear();
+		result.order(ByteOrder.BIG_ENDIAN);
+		return result;
+	}
+
+	/**
+	 * 容量が指定したサイズと一致するダイレクトByteBufferを取得する
+	 * MediaFormatへセットするcsd等、capacityを参照される可能性があるときに使う
+	 * サイズクラスと一致する場合だけプールから取得する
+	 * 一致しない場合はプールせずにByteBuffer#allocateDirectで生成する
+	 * (#releaseへ渡しても何もしないので、GCに任せる)
+	 * @param size
+	 * @return
+	 */
+	@NonNull
+	public ByteBuffer allocateExact(@IntRange(from=0) final int size) {
+		if (size < 0) {
+			throw new IllegalArgumentException("size should be zero or positive," + size);
+		}
+		final int cls = classOf(size);
+		if ((cls >= 0) && (size == 1 << (cls + MIN_CLASS_SHIFT))) {
+			return allocate(size);
+		}
+		mMisses.incrementAndGet();
+		return ByteBuffer.allocateDirect(size);
+	}
+
+	/**
+	 * ByteBufferを返却する
+	 * ダイレクトByteBufferでないとき、読み取り専用のとき、容量がサイズクラスと一致しないとき、
+	 * このアリーナから取得して貸し出し中のByteBufferそのものでないとき
+	 * (他で生成したもの、slice/duplicate、既に返却したもの)は何もしない
+	 * @param buffer
+	 */
+	public void release(@Nullable final ByteBuffer buffer) {
+		if ((buffer == null) || !buffer.isDirect() || buffer.isReadOnly()) {
+			return;
+		}
+		final int capacity = buffer.capacity();
+		final int cls = classOf(capacity);
+		if ((cls < 0) || (capacity != 1 << (cls + MIN_CLASS_SHIFT))
+			|| !mOutstanding[cls].remove(buffer)) {
+			return;
+		}
+		mReleased.incrementAndGet();
+		if (offerThreadCache(cls, buffer)) {
+			return;
+		}
+		if (mRetainedBytes.addAndGet(capacity) > mMaxRetainedBytes) {
+			// 上限を超える時は破棄する
+			mRetainedBytes.addAndGet(-capacity);
+			mDropped.incrementAndGet();
+			return;
+		}
+		final ArrayDeque<ByteBuffer> pool = mPools[cls];
+		synchronized (pool) {
+			pool.addLast(buffer);
+		}
+	}
+
+	/**
+	 * 共有プールに保持しているByteBufferを全て破棄する
+	 * 呼び出したスレッドのキャッシュも破棄する
+	 */
+	public void trim() {
+		for (final ArrayDeque<ByteBuffer> pool: mPools) {
+			synchronized (pool) {
+				for (final ByteBuffer buffer: pool) {
+					mRetainedBytes.addAndGet(-buffer.capacity());
+				}
+				pool.clear();
+			}
+		}
+		mThreadCache.remove();
+	}
+
+	/**
+	 * 統計情報を取得する
+	 * @return
+	 */
+	@NonNull
+	public Stats getStats() {
+		return new Stats(
+			mThreadCacheHits.get(), mHits.get(), mMisses.get(), mOversized.get(),
+			mReleased.get(), mDropped.get(), mRetainedBytes.get(),
+			mRequestedBytes.get(), mAllocatedBytes.get());
+	}
+
+	/**
+	 * 指定したサイズを保持できる最小のサイズクラスを返す
+	 * @param size
+	 * @return 最大サイズクラスよりも大きければ-1
+	 */
+	private static int classOf(final int size) {
+		if (size <= (1 << MIN_CLASS_SHIFT)) {
+			return 0;
+		}
+		final int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+		return shift <= MAX_CLASS_SHIFT ? shift - MIN_CLASS_SHIFT : -1;
+	}
+
+	@Nullable
+	private ByteBuffer pollThreadCache(final int cls) {
+		if (cls + MIN_CLASS_SHIFT > THREAD_CACHE_MAX_SHIFT) {
+			return null;
+		}
+		final ByteBuffer[] cache = mThreadCache.get()[cls];
+		for (int i = THREAD_CACHE_NUM - 1; i >= 0; i--) {
+			final ByteBuffer result = cache[i];
+			if (result != null) {
+				cache[i] = null;
+				return result;
+			}
+		}
+		return null;
+	}
+
+	private boolean offerThreadCache(final int cls, @NonNull final ByteBuffer buffer) {
+		if (cls + MIN_CLASS_SHIFT > THREAD_CACHE_MAX_SHIFT) {
+			return false;
+		}
+		final ByteBuffer[] cache = mThreadCache.get()[cls];
+		for (int i = 0; i < THREAD_CACHE_NUM; i++) {
+			if (cache[i] == null) {
+				cache[i] = buffer;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 貸し出し中のByteBufferを同一性で保持するセット
+	 * ByteBuffer#equals/#hashCodeは内容を比較するのでWeakHashMap等は使えない
+	 * 返却されずに参照されなくなったByteBufferは弱参照なのでGCに任せる
+	 */
+	private static class OutstandingSet {
+		@NonNull
+		private final HashSet<Key> mKeys = new HashSet<>();
+		@NonNull
+		private final ReferenceQueue<ByteBuffer> mQueue = new ReferenceQueue<>();
+
+		public synchronized void add(@NonNull final ByteBuffer buffer) {
+			expunge();
+			mKeys.add(new Key(buffer, mQueue));
+		}
+
+		/**
+		 * @param buffer
+		 * @return 貸し出し中であればtrue
+		 */
+		public synchronized boolean remove(@NonNull final ByteBuffer buffer) {
+			expunge();
+			return mKeys.remove(new Key(buffer, null));
+		}
+
+		/**
+		 * GCされたByteBufferのエントリーを取り除く
+		 */
+		private void expunge() {
+			Reference<? extends ByteBuffer> ref;
+			while ((ref = mQueue.poll()) != null) {
+				mKeys.remove(ref);
+			}
+		}
+	}
+
+	private static class Key extends WeakReference<ByteBuffer> {
+		private final int mHash;
+
+		private Key(@NonNull final ByteBuffer buffer,
+			@Nullable final ReferenceQueue<ByteBuffer> queue) {
+
+			super(buffer, queue);
+			mHash = System.identityHashCode(buffer);
+		}
+
+		@Override
+		public int hashCode() {
+			return mHash;
+		}
+
+		@Override
+		public boolean equals(@Nullable final Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			final ByteBuffer buffer = get();
+			return (buffer != null) && (buffer == ((Key)obj).get());
+		}
+	}
+
+	/**
+	 * DirectBufferArenaの統計情報
+	 */
+	public static class Stats {
+		/**
+		 * スレッド毎のキャッシュから取得できた回数
+		 */
+		public final long threadCacheHits;
+		/**
+		 * 共有プールから取得できた回数
+		 */
+		public final long hits;
+		/**
+		 * 新規に生成した回数(oversizedと#allocateExactでサイズクラスと一致しなかった分を含む)
+		 */
+		public final long misses;
+		/**
+		 * 最大サイズクラスよりも大きくてプールせずに生成した回数
+		 */
+		public final long oversized;
+		/**
+		 * 返却された回数
+		 */
+		public final long released;
+		/**
+		 * 共有プールの上限を超えたために破棄した回数
+		 */
+		public final long dropped;
+		/**
+		 * 共有プールに保持しているバイト数
+		 */
+		public final long retainedBytes;
+		/**
+		 * これまでに要求されたバイト数の合計
+		 */
+		public final long requestedBytes;
+		/**
+		 * これまでにサイズクラスへ切り上げて割り当てたバイト数の合計
+		 */
+		public final long allocatedBytes;
+
+		private Stats(final long threadCacheHits, final long hits, final long misses,
+			final long oversized, final long released, final long dropped,
+			final long retainedBytes, final long requestedBytes, final long allocatedBytes) {
+
+			this.threadCacheHits = threadCacheHits;
+			this.hits = hits;
+			this.misses = misses;
+			this.oversized = oversized;
+			this.released = released;
+			this.dropped = dropped;
+			this.retainedBytes = retainedBytes;
+			this.requestedBytes = requestedBytes;
+			this.allocatedBytes = allocatedBytes;
+		}
+
+		/**
+		 * キャッシュヒット率
+		 * @return
+		 */
+		public float hitRatio() {
+			final long total = threadCacheHits + hits + misses;
+			return total > 0 ? (threadCacheHits + hits) / (float)total : 0.0f;
+		}
+
+		/**
+		 * サイズクラスへの切り上げによって無駄になっている割合(内部断片化率)
+		 * @return
+		 */
+		public float fragmentation() {
+			return allocatedBytes > 0 ? 1.0f - requestedBytes / (float)allocatedBytes : 0.0f;
+		}
+
+		@NonNull
+		@Override
+		public String toString() {
+			return String.format(Locale.US,
+				"Stats{threadCacheHits=%d,hits=%d,misses=%d,oversized=%d,released=%d,dropped=%d,"
+					+ "retainedBytes=%d,hitRatio=%.3f,fragmentation=%.3f}",
+				threadCacheHits, hits, misses, oversized, released, dropped,
+				retainedBytes, hitRatio(), fragmentation());
+		}
+	}
+}
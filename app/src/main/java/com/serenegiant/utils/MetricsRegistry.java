@@ -0,0 +1,435 @@
+package com.serenegiant.utils;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.os.Bundle;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import androidx.annotation.NonNull;
+
+/**
+ * 計測値を保持するためのレジストリ
+ * カウンターとヒストグラムはロックフリーなので録画中のワーカースレッドから呼び出しても良い
+ * 無効な時(デフォルト)は各記録メソッドがvolatileフィールドを1回読んで直ぐに返るだけなので
+ * 呼び出し側でSystem#nanoTime等を呼ぶ場合は#isEnabledで確認してから呼ぶこと
+ */
+public class MetricsRegistry {
+	private static MetricsRegistry sDefault;
+
+	/**
+	 * 共有のMetricsRegistryを取得する
+	 * @return
+	 */
+	@NonNull
+	public static synchronized MetricsRegistry getDefault() {
+		if (sDefault == null) {
+			sDefault = new MetricsRegistry();
+		}
+		return sDefault;
+	}
+
+	private volatile boolean mEnabled;
+	@NonNull
+	private final ConcurrentHashMap<String, Counter> mCounters = new ConcurrentHashMap<>();
+	@NonNull
+	private final ConcurrentHashMap<String, Histogram> mHistograms = new ConcurrentHashMap<>();
+
+	/**
+	 * 計測が有効かどうか
+	 * @return
+	 */
+	public boolean isEnabled() {
+		return mEnabled;
+	}
+
+	/**
+	 * 計測の有効/無効をセット
+	 * @param enabled
+	 */
+	public void setEnabled(final boolean enabled) {
+		mEnabled = enabled;
+	}
+
+	/**
+	 * 指定した名前のカウンターを取得する、存在しなければ生成する
+	 * @param name
+	 * @return
+	 */
+	@NonNull
+	public Counter counter(@NonNull final String name) {
+		Counter result = mCounters.get(name);
+		if (result == null) {
+			final Counter counter = new Counter(this, name);
+			result = mCounters.putIfAbsent(name, counter);
+			if (result == null) {
+				result = counter;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * 指定した名前のヒストグラムを取得する、存在しなければ生成する
+	 * @param name
+	 * @return
+	 */
+	@NonNull
+	public Histogram histogram(@NonNull final String name) {
+		Histogram result = mHistograms.get(name);
+		if (result == null) {
+			final Histogram histogram = new Histogram(this, name);
+			result = mHistograms.putIfAbsent(name, histogram);
+			if (result == null) {
+				result = histogram;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * 全てのカウンターとヒストグラムを0に戻す
+	 * カウンター/ヒストグラム自体は保持したままなので取得済みの参照はそのまま使える
+	 */
+	public void reset() {
+		for (final Counter counter: mCounters.values()) {
+			counter.reset();
+		}
+		for (final Histogram histogram: mHistograms.values()) {
+			histogram.reset();
+		}
+	}
+
+	/**
+	 * 現在の値のスナップショットを取得する
+	 * 各値を個別に読み込むだけなので厳密に同一時点の値ではない
+	 * @return
+	 */
+	@NonNull
+	public Snapshot snapshot() {
+		final Map<String, Long> counters = new LinkedHashMap<>();
+		for (final Counter counter: mCounters.values()) {
+			counter.put(counters);
+		}
+		final Map<String, HistogramSnapshot> histograms = new LinkedHashMap<>();
+		for (final Histogram histogram: mHistograms.values()) {
+			histograms.put(histogram.name(), histogram.snapshot());
+		}
+		return new Snapshot(counters, histograms);
+	}
+
+//--------------------------------------------------------------------------------
+	/**
+	 * 単調増加するカウンター
+	 */
+	public static class Counter {
+		@NonNull
+		private final MetricsRegistry mRegistry;
+		@NonNull
+		private final String mName;
+		@NonNull
+		private final AtomicLong mValue = new AtomicLong();
+
+		private Counter(@NonNull final MetricsRegistry registry, @NonNull final String name) {
+			mRegistry = registry;
+			mName = name;
+		}
+
+		@NonNull
+		public String name() {
+			return mName;
+		}
+
+		/**
+		 * 1加算する
+		 */
+		public void inc() {
+			if (mRegistry.mEnabled) {
+				mValue.incrementAndGet();
+			}
+		}
+
+		/**
+		 * 指定した値を加算する
+		 * @param delta
+		 */
+		public void add(final long delta) {
+			if (mRegistry.mEnabled) {
+				mValue.addAndGet(delta);
+			}
+		}
+
+		public long get() {
+			return mValue.get();
+		}
+
+		private void reset() {
+			mValue.set(0);
+		}
+
+		private void put(@NonNull final Map<String, Long> map) {
+			map.put(mName, mValue.get());
+		}
+	}
+
+	/**
+	 * HdrHistogram風の対数/線形バケットを使うヒストグラム
+	 * 0以上の値を有効数字5ビットで記録する(各2のべき乗区間を16分割するので相対誤差は最大で約6%)
+	 * 負の値は0、#MAX_VALUEより大きい値は#MAX_VALUEとして記録する
+	 */
+	public static class Histogram {
+		/**
+		 * 各2のべき乗区間を分割するビット数
+		 */
+		private static final int SUB_BITS = 5;
+		private static final int SUB_COUNT = 1 << SUB_BITS;
+		private static final int HALF_SUB_COUNT = SUB_COUNT >> 1;
+		/**
+		 * 記録できる最大値
+		 */
+		public static final long MAX_VALUE = (1L << 40) - 1;
+		private static final int NUM_BUCKETS = indexOf(MAX_VALUE) + 1;
+
+		@NonNull
+		private final MetricsRegistry mRegistry;
+		@NonNull
+		private final String mName;
+		@NonNull
+		private final AtomicLongArray mCounts = new AtomicLongArray(NUM_BUCKETS);
+		@NonNull
+		private final AtomicLong mCount = new AtomicLong();
+		@NonNull
+		private final AtomicLong mSum = new AtomicLong();
+		@NonNull
+		private final AtomicLong mMax = new AtomicLong(Long.MIN_VALUE);
+		@NonNull
+		private final AtomicLong mMin = new AtomicLong(Long.MAX_VALUE);
+
+		private Histogram(@NonNull final MetricsRegistry registry, @NonNull final String name) {
+			mRegistry = registry;
+			mName = name;
+		}
+
+		@NonNull
+		public String name() {
+			return mName;
+		}
+
+		/**
+		 * 値を記録する
+		 * @param value
+		 */
+		public void record(final long value) {
+			if (!mRegistry.mEnabled) {
+				return;
+			}
+			final long v = value < 0 ? 0 : (value > MAX_VALUE ? MAX_VALUE : value);
+			mCounts.incrementAndGet(indexOf(v));
+			mCount.incrementAndGet();
+			mSum.addAndGet(v);
+			long cur;
+			while (v > (cur = mMax.get())) {
+				if (mMax.compareAndSet(cur, v)) break;
+			}
+			while (v < (cur = mMin.get())) {
+				if (mMin.compareAndSet(cur, v)) break;
+			}
+		}
+
+		/**
+		 * System#nanoTimeで取得した開始時刻から現在までの経過時間をマイクロ秒単位で記録する
+		 * @param startNs
+		 */
+		public void recordSinceNs(final long startNs) {
+			if (mRegistry.mEnabled) {
+				record((System.nanoTime() - startNs) / 1000L);
+			}
+		}
+
+		private void reset() {
+			for (int i = 0; i < NUM_BUCKETS; i++) {
+				mCounts.set(i, 0);
+			}
+			mCount.set(0);
+			mSum.set(0);
+			mMax.set(Long.MIN_VALUE);
+			mMin.set(Long.MAX_VALUE);
+		}
+
+		@NonNull
+		private HistogramSnapshot snapshot() {
+			final long[] counts = new long[NUM_BUCKETS];
+			long total = 0;
+			for (int i = 0; i < NUM_BUCKETS; i++) {
+				counts[i] = mCounts.get(i);
+				total += counts[i];
+			}
+			if (total == 0) {
+				return new HistogramSnapshot(0, 0, 0, 0, 0, 0, 0, 0);
+			}
+			return new HistogramSnapshot(total,
+				mMin.get(), mMax.get(), mSum.get() / (double)total,
+				valueAtPercentile(counts, total, 50.0),
+				valueAtPercentile(counts, total, 90.0),
+				valueAtPercentile(counts, total, 99.0),
+				valueAtPercentile(counts, total, 99.9));
+		}
+
+		private static long valueAtPercentile(
+			@NonNull final long[] counts, final long total, final double percentile) {
+
+			final long target = Math.max(1, (long)Math.ceil(total * percentile / 100.0));
+			long acc = 0;
+			for (int i = 0; i < counts.length; i++) {
+				acc += counts[i];
+				if (acc >= target) {
+					return highestValueOf(i);
+				}
+			}
+			return MAX_VALUE;
+		}
+
+		/**
+		 * 値からバケットのインデックスを計算する
+		 * SUB_COUNT未満は1刻み、それ以上は2のべき乗区間毎にHALF_SUB_COUNT個へ分割する
+		 * @param value
+		 * @return
+		 */
+		private static int indexOf(final long value) {
+			if (value < SUB_COUNT) {
+				return (int)value;
+			}
+			final int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+			final int mantissa = (int)(value >>> shift);	// HALF_SUB_COUNT〜SUB_COUNT-1
+			return SUB_COUNT + (shift - 1) * HALF_SUB_COUNT + (mantissa - HALF_SUB_COUNT);
+		}
+
+		/**
+		 * 指定したバケットに記録される最大値を返す
+		 * @param index
+		 * @return
+		 */
+		private static long highestValueOf(final int index) {
+			if (index < SUB_COUNT) {
+				return index;
+			}
+			final int k = index - SUB_COUNT;
+			final int shift = k / HALF_SUB_COUNT + 1;
+			final long mantissa = k % HALF_SUB_COUNT + HALF_SUB_COUNT;
+			return ((mantissa + 1) << shift) - 1;
+		}
+	}
+
+	/**
+	 * ヒストグラムのスナップショット
+	 */
+	public static class HistogramSnapshot {
+		public final long count;
+		public final long min;
+		public final long max;
+		public final double mean;
+		public final long p50;
+		public final long p90;
+		public final long p99;
+		public final long p999;
+
+		private HistogramSnapshot(final long count,
+			final long min, final long max, final double mean,
+			final long p50, final long p90, final long p99, final long p999) {
+
+			this.count = count;
+			this.min = min;
+			this.max = max;
+			this.mean = mean;
+			this.p50 = p50;
+			this.p90 = p90;
+			this.p99 = p99;
+			this.p999 = p999;
+		}
+
+		@NonNull
+		public Bundle toBundle() {
+			final Bundle result = new Bundle();
+			result.putLong("count", count);
+			result.putLong("min", min);
+			result.putLong("max", max);
+			result.putDouble("mean", mean);
+			result.putLong("p50", p50);
+			result.putLong("p90", p90);
+			result.putLong("p99", p99);
+			result.putLong("p999", p999);
+			return result;
+		}
+
+		@NonNull
+		@Override
+		public String toString() {
+			return String.format(Locale.US,
+				"{count=%d,min=%d,max=%d,mean=%.1f,p50=%d,p90=%d,p99=%d,p999=%d}",
+				count, min, max, mean, p50, p90, p99, p999);
+		}
+	}
+
+	/**
+	 * MetricsRegistryのスナップショット
+	 */
+	public static class Snapshot {
+		@NonNull
+		public final Map<String, Long> counters;
+		@NonNull
+		public final Map<String, HistogramSnapshot> histograms;
+
+		private Snapshot(
+			@NonNull final Map<String, Long> counters,
+			@NonNull final Map<String, HistogramSnapshot> histograms) {
+
+			this.counters = Collections.unmodifiableMap(counters);
+			this.histograms = Collections.unmodifiableMap(histograms);
+		}
+
+		/**
+		 * Intentのextra等へセットできるようにBundleへ変換する
+		 * カウンターはlong値、ヒストグラムはHistogramSnapshot#toBundleのBundleとしてそれぞれの名前でセットする
+		 * @return
+		 */
+		@NonNull
+		public Bundle toBundle() {
+			final Bundle result = new Bundle();
+			for (final Map.Entry<String, Long> entry: counters.entrySet()) {
+				result.putLong(entry.getKey(), entry.getValue());
+			}
+			for (final Map.Entry<String, HistogramSnapshot> entry: histograms.entrySet()) {
+				result.putBundle(entry.getKey(), entry.getValue().toBundle());
+			}
+			return result;
+		}
+
+		@NonNull
+		@Override
+		public String toString() {
+			return "Snapshot{counters=" + counters + ",histograms=" + histograms + "}";
+		}
+	}
+}
@@ -18,29 +18,73 @@ package com.serenegiant.utils;
  *  limitations under the License.
  */
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
 import androidx.annotation.NonNull;
 
 /**
- * PausableThreadPoolExecutorをラップしたスレッドプール実装
+ * スレッドプール実装
+ * 用途別に次の3種類の実行環境を持つ
+ * ・CPUプール: #queueEvent用, CPUコア数に合わせたスレッド数で実行する
+ * ・I/Oプール: #queueIoEvent用, スレッド数とキューの長さが有限で、一杯の時は
+ *   RejectedExecutionExceptionを投げる(呼び出し元で待機/再試行/破棄を選ぶ)
+ * ・ワークスティーリング: #setWorkStealing(true)の時は#queueEventをForkJoinPoolで実行する
+ * #pause/#resumeは全ての実行環境に共通で、ポーズ中は未実行のタスクの実行開始を待機する
+ * #queueEventは複数のスレッドで実行するので、実行順を保つ必要がある時は#newSerialExecutorを使う
+ * MetricsRegistry#getDefaultが有効な時はキュー内のタスク数と、
+ * 実行開始までの待ち時間/実行時間をマイクロ秒単位で記録する
  */
 public class ThreadPool {
+	private static final String TAG = ThreadPool.class.getSimpleName();
 
-	// for thread pool
-	private static final int CORE_POOL_SIZE = 1;		// initial/minimum threads
-	private static final int MAX_POOL_SIZE = 32;		// maximum threads
+	private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+	// for cpu pool
+	private static final int CPU_POOL_SIZE = Math.max(2, CPU_COUNT);	// threads for cpu bound tasks
+	// for i/o pool
+	private static final int IO_POOL_SIZE = Math.max(4, CPU_COUNT * 2);	// threads for blocking tasks
+	private static final int IO_QUEUE_SIZE = 64;		// maximum number of pending i/o tasks
 	private static final int KEEP_ALIVE_TIME_SECS = 10;	// time periods while keep the idle thread
 
+	private static final MetricsRegistry REGISTRY = MetricsRegistry.getDefault();
+	@NonNull
+	private static final Stats CPU_STATS = new Stats("threadpool.cpu");
+	@NonNull
+	private static final Stats IO_STATS = new Stats("threadpool.io");
+	/**
+	 * I/Oプールが一杯で受け付けられなかったタスク数
+	 */
+	@NonNull
+	private static final MetricsRegistry.Counter IO_REJECTED
+		= REGISTRY.counter("threadpool.io.rejected");
+	@NonNull
+	private static final AtomicLong sIoRejectedCount = new AtomicLong();
+
+	/**
+	 * 全ての実行環境で共通のポーズ状態
+	 */
+	@NonNull
+	private static final PauseGate PAUSE_GATE = new PauseGate();
+
 	private static PausableThreadPoolExecutor EXECUTOR;
+	private static PausableThreadPoolExecutor IO_EXECUTOR;
+	private static ForkJoinPool FORK_JOIN_POOL;
+	private static boolean sWorkStealing;
 
 	static {
 		getInstance();
@@ -51,19 +95,57 @@ public class ThreadPool {
 	}
 
 	/**
-	 * スレッドプールが存在しなければ新たに生成する
+	 * CPUプールが存在しなければ新たに生成する
 	 * @return
 	 */
 	@NonNull
 	private static synchronized PausableThreadPoolExecutor getInstance() {
 		if (EXECUTOR == null) {
+			// キューが無制限の場合は最大スレッド数まで増えないのでコアスレッド数=最大スレッド数にする
 			EXECUTOR = new PausableThreadPoolExecutor(
-				CORE_POOL_SIZE, MAX_POOL_SIZE, KEEP_ALIVE_TIME_SECS,
-				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+				CPU_POOL_SIZE, CPU_POOL_SIZE, KEEP_ALIVE_TIME_SECS,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new PoolThreadFactory("cpu"), new ThreadPoolExecutor.AbortPolicy());
 		}
 		return EXECUTOR;
 	}
 
+	/**
+	 * I/Oプールが存在しなければ新たに生成する
+	 * @return
+	 */
+	@NonNull
+	private static synchronized PausableThreadPoolExecutor getIoInstance() {
+		if (IO_EXECUTOR == null) {
+			IO_EXECUTOR = new PausableThreadPoolExecutor(
+				IO_POOL_SIZE, IO_POOL_SIZE, KEEP_ALIVE_TIME_SECS,
+				TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(IO_QUEUE_SIZE),
+				new PoolThreadFactory("io"), new RejectedExecutionHandler() {
+					@Override
+					public void rejectedExecution(final Runnable r, final ThreadPoolExecutor executor) {
+						sIoRejectedCount.incrementAndGet();
+						IO_REJECTED.inc();
+						throw new RejectedExecutionException("i/o pool is full");
+					}
+				});
+		}
+		return IO_EXECUTOR;
+	}
+
+	/**
+	 * ワークスティーリング用のForkJoinPoolが存在しなければ新たに生成する
+	 * @return
+	 */
+	@NonNull
+	private static synchronized ForkJoinPool getForkJoinInstance() {
+		if (FORK_JOIN_POOL == null) {
+			// #queueEventの実行順をなるべく保つためにasyncMode(FIFO)にする
+			FORK_JOIN_POOL = new ForkJoinPool(CPU_POOL_SIZE,
+				ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+		}
+		return FORK_JOIN_POOL;
+	}
+
 	/**
 	 * シャットダウンしたかどうか
 	 * @return
@@ -77,11 +159,19 @@ public class ThreadPool {
 	 * 新規のタスクをキューに入れることができなくなる
 	 */
 	public static synchronized void shutdown() {
+		PAUSE_GATE.resume();
 		if (EXECUTOR != null) {
-			EXECUTOR.resume();
 			EXECUTOR.shutdown();
 			EXECUTOR = null;
 		}
+		if (IO_EXECUTOR != null) {
+			IO_EXECUTOR.shutdown();
+			IO_EXECUTOR = null;
+		}
+		if (FORK_JOIN_POOL != null) {
+			FORK_JOIN_POOL.shutdown();
+			FORK_JOIN_POOL = null;
+		}
 	}
 
 	/**
@@ -93,31 +183,37 @@ public class ThreadPool {
 	public static synchronized List<Runnable> shutdownNow() {
 		final List<Runnable> result = new ArrayList<>();
 		if (EXECUTOR != null) {
-			final List<Runnable> list = EXECUTOR.shutdownNow();
-			if (list != null) {
-				result.addAll(list);
-			}
+			addUnwrapped(result, EXECUTOR.shutdownNow());
 			EXECUTOR = null;
 		}
+		if (IO_EXECUTOR != null) {
+			addUnwrapped(result, IO_EXECUTOR.shutdownNow());
+			IO_EXECUTOR = null;
+		}
+		if (FORK_JOIN_POOL != null) {
+			FORK_JOIN_POOL.shutdownNow();
+			FORK_JOIN_POOL = null;
+		}
 		return result;
 	}
 
 	/**
 	 * スレッドプールで待機しているタスクの実行を再開する
 	 */
-	public void resume() {
-		getInstance().resume();
+	public static void resume() {
+		PAUSE_GATE.resume();
 	}
 
 	/**
 	 * スレッドプールで待機しているタスクの実行を一時中断する
+	 * 実行中のタスクはそのまま実行される
 	 */
-	public void pause() {
-		getInstance().pause();
+	public static void pause() {
+		PAUSE_GATE.pause();
 	}
 
 	/**
-	 * コアスレッド数を設定する
+	 * CPUプールのコアスレッド数を設定する
 	 * @param corePoolSize
 	 */
 	public static void setCorePoolSize(final int corePoolSize) {
@@ -125,7 +221,7 @@ public class ThreadPool {
 	}
 
 	/**
-	 * 最大スレッド数を設定する
+	 * CPUプールの最大スレッド数を設定する
 	 * @param maximumPoolSize
 	 */
 	public static void setMaximumPoolSize(final int maximumPoolSize) {
@@ -133,12 +229,13 @@ public class ThreadPool {
 	}
 
 	/**
-	 * コアスレッド以外のアイドルスレッドを停止させるまでの時間を設定する
+	 * コア以外のアイドルスレッドを停止させるまでの時間を設定する
 	 * @param time
 	 * @param unit
 	 */
 	public static void setKeepAliveTime(final long time, final TimeUnit unit) {
 		getInstance().setKeepAliveTime(time, unit);
+		getIoInstance().setKeepAliveTime(time, unit);
 	}
 
 	/**
@@ -151,60 +248,306 @@ public class ThreadPool {
 	}
 
 	/**
-	 * スレッドプールのキューにタスクを追加する
+	 * #queueEventをForkJoinPoolのワークスティーリングで実行するかどうかを設定する
+	 * 変更前にキューに入れたタスクは変更前の実行環境で実行される
+	 * @param workStealing
+	 */
+	public static synchronized void setWorkStealing(final boolean workStealing) {
+		sWorkStealing = workStealing;
+	}
+
+	public static synchronized boolean isWorkStealing() {
+		return sWorkStealing;
+	}
+
+	/**
+	 * CPUプールのキューにタスクを追加する
 	 * @param command
 	 * @throws RejectedExecutionException
 	 */
 	public static void queueEvent(@NonNull final Runnable command)
 		throws RejectedExecutionException {
 
-		getInstance().execute(command);
+		if (isWorkStealing()) {
+			getForkJoinInstance().execute(new PoolTask(command, CPU_STATS, true));
+			CPU_STATS.recordQueueDepth(getQueueDepth());
+		} else {
+			final PausableThreadPoolExecutor executor = getInstance();
+			executor.execute(wrap(command, CPU_STATS));
+			CPU_STATS.recordQueueDepth(executor.getQueue().size());
+		}
+	}
+
+	/**
+	 * ファイルアクセス等のブロッキングする可能性があるタスクをI/Oプールのキューに追加する
+	 * @param command
+	 * @throws RejectedExecutionException I/Oプールのスレッドとキューが一杯の時
+	 */
+	public static void queueIoEvent(@NonNull final Runnable command)
+		throws RejectedExecutionException {
+
+		final PausableThreadPoolExecutor executor = getIoInstance();
+		executor.execute(wrap(command, IO_STATS));
+		IO_STATS.recordQueueDepth(executor.getQueue().size());
+	}
+
+	/**
+	 * 追加した順に1つずつCPUプールで実行するExecutorを生成する
+	 * 同じExecutorへ追加したタスクは前のタスクが終了してから実行するので、
+	 * 同時に実行されたり順番が入れ替わったりしない
+	 * @return
+	 */
+	@NonNull
+	public static Executor newSerialExecutor() {
+		return new SerialExecutor();
 	}
 
 	/**
 	 * 未実行のタスクをスレッドプールのキューから削除する
+	 * ワークスティーリングで実行するタスクは削除できない
 	 * @param command
 	 * @return
 	 */
 	public static boolean removeEvent(@NonNull final Runnable command) {
-		return getInstance().remove(command);
+		final ThreadPoolExecutor ioExecutor;
+		synchronized (ThreadPool.class) {
+			ioExecutor = IO_EXECUTOR;
+		}
+		return remove(getInstance(), command)
+			|| ((ioExecutor != null) && remove(ioExecutor, command));
 	}
 
 	/**
-	 * キューに入れたタスクの実行待ち/待ち解除を可能にするためのThreadPoolExecutor子クラス
+	 * CPUプール(ワークスティーリング時はForkJoinPool)の未実行のタスク数を取得
+	 * @return
 	 */
-	private static class PausableThreadPoolExecutor extends ThreadPoolExecutor {
-		private boolean isPaused;
-		private final ReentrantLock pauseLock = new ReentrantLock();
-		private final Condition unPaused = pauseLock.newCondition();
+	public static int getQueueDepth() {
+		if (isWorkStealing()) {
+			final ForkJoinPool pool = getForkJoinInstance();
+			return (int)Math.min(Integer.MAX_VALUE,
+				pool.getQueuedSubmissionCount() + pool.getQueuedTaskCount());
+		} else {
+			return getInstance().getQueue().size();
+		}
+	}
 
-		public PausableThreadPoolExecutor(
-			final int corePoolSize, final int maximumPoolSize,
-			final long keepAliveTime, final TimeUnit unit,
-			final BlockingQueue<Runnable> workQueue) {
+	/**
+	 * I/Oプールの未実行のタスク数を取得
+	 * @return
+	 */
+	public static int getIoQueueDepth() {
+		return getIoInstance().getQueue().size();
+	}
 
-			super(corePoolSize, maximumPoolSize, keepAliveTime, unit, workQueue);
-			isPaused = false;
-			allowCoreThreadTimeOut(true);
+	/**
+	 * I/Oプールが一杯で受け付けられなかったタスク数を取得
+	 * MetricsRegistryの有効/無効に関係なく数える
+	 * @return
+	 */
+	public static long getIoRejectedCount() {
+		return sIoRejectedCount.get();
+	}
+
+	/**
+	 * 計測が有効な時は待ち時間/実行時間を記録するためにタスクをラップする
+	 * @param command
+	 * @param stats
+	 * @return
+	 */
+	@NonNull
+	private static Runnable wrap(@NonNull final Runnable command, @NonNull final Stats stats) {
+		return REGISTRY.isEnabled() ? new PoolTask(command, stats, false) : command;
+	}
 
+	/**
+	 * キューからタスクを削除する
+	 * キュー内ではPoolTaskでラップされているかもしれないのでラップを外して比較する
+	 * @param executor
+	 * @param command
+	 * @return
+	 */
+	private static boolean remove(
+		@NonNull final ThreadPoolExecutor executor, @NonNull final Runnable command) {
+
+		if (executor.remove(command)) {
+			return true;
+		}
+		for (final Runnable r: executor.getQueue()) {
+			if ((r instanceof PoolTask) && (((PoolTask) r).mCommand == command)) {
+				return executor.remove(r);
+			}
 		}
+		return false;
+	}
 
-		protected void beforeExecute(final Thread t, final Runnable r) {
-			super.beforeExecute(t, r);
+	private static void addUnwrapped(
+		@NonNull final List<Runnable> result, final List<Runnable> tasks) {
+
+		if (tasks != null) {
+			for (final Runnable r: tasks) {
+				result.add(r instanceof PoolTask ? ((PoolTask) r).mCommand : r);
+			}
+		}
+	}
+
+	/**
+	 * 追加されたタスクを順に1つずつ#queueEventで実行するExecutor
+	 */
+	private static class SerialExecutor implements Executor {
+		@NonNull
+		private final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+		/**
+		 * CPUプールへ追加済みで終了していないタスク
+		 */
+		private Runnable mActive;
+
+		@Override
+		public synchronized void execute(@NonNull final Runnable command)
+			throws RejectedExecutionException {
+
+			mTasks.offer(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						command.run();
+					} finally {
+						scheduleNext();
+					}
+				}
+			});
+			if (mActive == null) {
+				scheduleNext();
+			}
+		}
+
+		private synchronized void scheduleNext() throws RejectedExecutionException {
+			if ((mActive = mTasks.poll()) != null) {
+				try {
+					queueEvent(mActive);
+				} catch (final RejectedExecutionException e) {
+					// シャットダウン後は残りのタスクも実行できないので破棄する
+					mActive = null;
+					mTasks.clear();
+					throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * プール毎の計測値
+	 */
+	private static class Stats {
+		@NonNull
+		private final MetricsRegistry.Histogram mQueueDepth;
+		@NonNull
+		private final MetricsRegistry.Histogram mWait;
+		@NonNull
+		private final MetricsRegistry.Histogram mRun;
+
+		private Stats(@NonNull final String prefix) {
+			mQueueDepth = REGISTRY.histogram(prefix + ".queueDepth");
+			mWait = REGISTRY.histogram(prefix + ".wait");
+			mRun = REGISTRY.histogram(prefix + ".run");
+		}
+
+		private void recordQueueDepth(final int depth) {
+			mQueueDepth.record(depth);
+		}
+	}
+
+	/**
+	 * キューに入れてから実行開始までの待ち時間と実行時間を記録するためのラッパー
+	 * ForkJoinPoolで実行する時はここでポーズ状態の解除を待つ
+	 */
+	private static class PoolTask implements Runnable {
+		@NonNull
+		private final Runnable mCommand;
+		@NonNull
+		private final Stats mStats;
+		private final boolean mAwaitGate;
+		private final long mQueuedNs;
+
+		private PoolTask(@NonNull final Runnable command,
+			@NonNull final Stats stats, final boolean awaitGate) {
+
+			mCommand = command;
+			mStats = stats;
+			mAwaitGate = awaitGate;
+			mQueuedNs = REGISTRY.isEnabled() ? System.nanoTime() : 0L;
+		}
+
+		@Override
+		public void run() {
+			if (mAwaitGate && !PAUSE_GATE.await()) {
+				return;
+			}
+			if (mQueuedNs == 0) {
+				mCommand.run();
+				return;
+			}
+			final long startNs = System.nanoTime();
+			mStats.mWait.record((startNs - mQueuedNs) / 1000L);
+			try {
+				mCommand.run();
+			} finally {
+				mStats.mRun.recordSinceNs(startNs);
+			}
+		}
+	}
+
+	/**
+	 * 用途がわかるようにスレッド名を付けるためのThreadFactory
+	 */
+	private static class PoolThreadFactory implements ThreadFactory {
+		@NonNull
+		private final String mName;
+		@NonNull
+		private final AtomicInteger mCount = new AtomicInteger();
+
+		private PoolThreadFactory(@NonNull final String name) {
+			mName = name;
+		}
+
+		@Override
+		public Thread newThread(@NonNull final Runnable r) {
+			final Thread t = new Thread(r, TAG + "-" + mName + "-" + mCount.incrementAndGet());
+			if (t.isDaemon()) {
+				t.setDaemon(false);
+			}
+			return t;
+		}
+	}
+
+	/**
+	 * ポーズ状態を保持して、ポーズ中は解除されるまで待機させるためのヘルパークラス
+	 */
+	private static class PauseGate {
+		private boolean isPaused;
+		private final ReentrantLock pauseLock = new ReentrantLock();
+		private final Condition unPaused = pauseLock.newCondition();
+
+		/**
+		 * ポーズ中なら解除されるまで待機する
+		 * @return false: 待機中に割り込まれた
+		 */
+		private boolean await() {
 			pauseLock.lock();
 			try {
 				while (isPaused) {
 					// ポース中は実行待機する
 					unPaused.await();
 				}
+				return true;
 			} catch (final InterruptedException ie) {
-				t.interrupt();
+				Thread.currentThread().interrupt();
+				return false;
 			} finally {
 				pauseLock.unlock();
 			}
 		}
 
-		public void pause() {
+		private void pause() {
 			pauseLock.lock();
 			try {
 				isPaused = true;
@@ -213,7 +556,7 @@ public class ThreadPool {
 			}
 		}
 
-		public void resume() {
+		private void resume() {
 			pauseLock.lock();
 			try {
 				isPaused = false;
@@ -223,4 +566,29 @@ public class ThreadPool {
 			}
 		}
 	}
+
+	/**
+	 * キューに入れたタスクの実行待ち/待ち解除を可能にするためのThreadPoolExecutor子クラス
+	 */
+	private static class PausableThreadPoolExecutor extends ThreadPoolExecutor {
+
+		public PausableThreadPoolExecutor(
+			final int corePoolSize, final int maximumPoolSize,
+			final long keepAliveTime, final TimeUnit unit,
+			final BlockingQueue<Runnable> workQueue,
+			@NonNull final ThreadFactory threadFactory,
+			@NonNull final RejectedExecutionHandler handler) {
+
+			super(corePoolSize, maximumPoolSize, keepAliveTime, unit,
+				workQueue, threadFactory, handler);
+			allowCoreThreadTimeOut(true);
+		}
+
+		protected void beforeExecute(final Thread t, final Runnable r) {
+			super.beforeExecute(t, r);
+			if (!PAUSE_GATE.await()) {
+				t.interrupt();
+			}
+		}
+	}
 }
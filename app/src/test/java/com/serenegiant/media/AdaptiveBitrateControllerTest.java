@@ -0,0 +1,263 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 書き込み状況と空き容量の推移を合成してAdaptiveBitrateControllerの制御則を確認する
+ * 時刻は全てテスト側で進める
+ */
+public class AdaptiveBitrateControllerTest {
+	private static final int MIN_BITRATE = 1000000;
+	private static final int MAX_BITRATE = 10000000;
+	private static final long INTERVAL_US = 1000000L;
+	/**
+	 * 制御間隔あたりの書き込み回数
+	 */
+	private static final int SAMPLES_PER_INTERVAL = 30;
+	/**
+	 * 1回の書き込みにかかる時間の通常値, 使用率は3%程度になる
+	 */
+	private static final long HEALTHY_LATENCY_US = 1000L;
+	/**
+	 * 加算的に上げる時の増分, 最大ビットレートの5%
+	 */
+	private static final int INCREASE_STEP = MAX_BITRATE / 20;
+
+	/**
+	 * 指定したバイト数ずつ空き容量が減っていく疑似的な出力先
+	 */
+	private static class FakeFreeSpace implements AdaptiveBitrateController.FreeSpaceProvider {
+		private long mFreeBytes;
+
+		private FakeFreeSpace(final long freeBytes) {
+			mFreeBytes = freeBytes;
+		}
+
+		private void consume(final long bytes) {
+			mFreeBytes -= bytes;
+		}
+
+		@Override
+		public long getFreeBytes() {
+			return mFreeBytes;
+		}
+	}
+
+	private AdaptiveBitrateController mController;
+	private long mNowUs;
+
+	@Before
+	public void setUp() {
+		mController = new AdaptiveBitrateController(MIN_BITRATE, MAX_BITRATE);
+		mController.setIntervalUs(INTERVAL_US);
+		mNowUs = 0;
+		// 最初の呼び出しでは集計を開始するだけ
+		assertEquals(-1, mController.update(mNowUs));
+	}
+
+	/**
+	 * 制御間隔1回分、エンコーダーが目標ビットレートを使い切る量のデータを書き込んでから更新する
+	 * @param latencyUs 1回の書き込みにかかった時間[マイクロ秒]
+	 * @return AdaptiveBitrateController#updateの戻り値
+	 */
+	private int interval(final long latencyUs) {
+		final int bytes = mController.getBitrate() / 8 / SAMPLES_PER_INTERVAL;
+		for (int i = 0; i < SAMPLES_PER_INTERVAL; i++) {
+			mController.onSampleWritten(bytes, latencyUs);
+		}
+		mNowUs += INTERVAL_US;
+		return mController.update(mNowUs);
+	}
+
+	/**
+	 * MediaScreenEncoderと同様にFreeSpaceProviderから取得した空き容量を渡す
+	 * 取得できなかった時(負の値)は渡さない
+	 */
+	private void checkFreeSpace(final AdaptiveBitrateController.FreeSpaceProvider provider) {
+		final long free = provider.getFreeBytes();
+		if (free >= 0) {
+			mController.onFreeSpace(mNowUs, free);
+		}
+	}
+
+	/**
+	 * 最小/最大ビットレートの範囲外は生成時に例外, 初期ビットレートは範囲内に制限する
+	 */
+	@Test
+	public void clamp() {
+		try {
+			new AdaptiveBitrateController(MAX_BITRATE, MIN_BITRATE);
+			throw new AssertionError("should throw IllegalArgumentException");
+		} catch (final IllegalArgumentException e) {
+			// expected
+		}
+		assertEquals(MAX_BITRATE, mController.getBitrate());
+		assertEquals(MIN_BITRATE, mController.reset(0));
+		assertEquals(MAX_BITRATE, mController.reset(Integer.MAX_VALUE));
+		assertEquals(5000000, mController.reset(5000000));
+	}
+
+	/**
+	 * 書き込みに余裕があってエンコーダーが目標ビットレートを使い切っていれば
+	 * 制御間隔毎に最大ビットレートの5%ずつ上げて、最大ビットレートで止まる
+	 */
+	@Test
+	public void additiveIncrease() {
+		mController.reset(5000000);
+		mController.update(mNowUs);
+		for (int i = 1; i <= 10; i++) {
+			assertEquals(5000000 + INCREASE_STEP * i, interval(HEALTHY_LATENCY_US));
+		}
+		assertEquals(MAX_BITRATE, mController.getBitrate());
+		// 最大ビットレートに達した後は変更しない
+		for (int i = 0; i < 5; i++) {
+			assertEquals(-1, interval(HEALTHY_LATENCY_US));
+		}
+		assertEquals(MAX_BITRATE, mController.getBitrate());
+	}
+
+	/**
+	 * エンコーダーが目標ビットレートを使い切っていなければ書き込みに余裕があっても上げない
+	 */
+	@Test
+	public void noIncreaseWhenUnderused() {
+		mController.reset(5000000);
+		mController.update(mNowUs);
+		for (int i = 0; i < 5; i++) {
+			mController.onSampleWritten(1000, HEALTHY_LATENCY_US);
+			mNowUs += INTERVAL_US;
+			assertEquals(-1, mController.update(mNowUs));
+		}
+		assertEquals(5000000, mController.getBitrate());
+	}
+
+	/**
+	 * 使用率が高い時は0.7倍に下げて、下げた後の5制御間隔は上げない
+	 */
+	@Test
+	public void multiplicativeDecrease() {
+		// 20ミリ秒×30回で使用率60%
+		assertEquals(7000000, interval(20000L));
+		// 保留期間中は余裕があっても上げない
+		for (int i = 0; i < 4; i++) {
+			assertEquals(-1, interval(HEALTHY_LATENCY_US));
+		}
+		assertEquals(7000000, mController.getBitrate());
+		// 保留期間が過ぎたら加算的に上げる
+		assertEquals(7000000 + INCREASE_STEP, interval(HEALTHY_LATENCY_US));
+	}
+
+	/**
+	 * 使用率が低くても1回の書き込みが長すぎる時は下げる
+	 * 保留期間中でも過負荷なら続けて下げる
+	 */
+	@Test
+	public void decreaseOnLatencySpike() {
+		mController.onSampleWritten(1000, 150000L);
+		assertEquals(7000000, interval(HEALTHY_LATENCY_US));
+		assertEquals(4900000, interval(20000L));
+	}
+
+	/**
+	 * 過負荷が続いても最小ビットレートより下げない
+	 */
+	@Test
+	public void clampToMin() {
+		int applied = -1;
+		for (int i = 0; i < 20; i++) {
+			final int bitrate = interval(50000L);
+			if (bitrate > 0) {
+				assertTrue("bitrate=" + bitrate, bitrate >= MIN_BITRATE);
+				applied = bitrate;
+			}
+		}
+		assertEquals(MIN_BITRATE, applied);
+		assertEquals(MIN_BITRATE, mController.getBitrate());
+		// 最小ビットレートに達した後は変更しない
+		assertEquals(-1, interval(50000L));
+	}
+
+	/**
+	 * 空き容量が最小残り時間より早く尽きそうな時は残り時間の不足分に比例して下げる
+	 */
+	@Test
+	public void runwayCut() {
+		mController.reset(8000000);
+		mController.update(mNowUs);
+		// 10分を下回る300秒分(1MB/秒で300MB)しか残っていない
+		final FakeFreeSpace storage = new FakeFreeSpace(300000000L);
+		checkFreeSpace(storage);
+		storage.consume(1000000L);
+		mController.onSampleWritten(1000, HEALTHY_LATENCY_US);
+		mNowUs += INTERVAL_US;
+		checkFreeSpace(storage);
+		final int cut = mController.update(mNowUs);
+		// 残り299秒 / 600秒
+		final int expected = (int)(8000000L * 299 / 600);
+		assertTrue("cut=" + cut, Math.abs(cut - expected) <= expected / 100);
+		// 保留期間中は空き容量では続けて下げない
+		for (int i = 0; i < 4; i++) {
+			storage.consume(1000000L);
+			mController.onSampleWritten(1000, HEALTHY_LATENCY_US);
+			mNowUs += INTERVAL_US;
+			checkFreeSpace(storage);
+			assertEquals(-1, mController.update(mNowUs));
+		}
+		assertEquals(cut, mController.getBitrate());
+	}
+
+	/**
+	 * 空き容量に余裕がある時、空き容量を取得できない時、
+	 * 最小残り時間に0を指定した時は空き容量では下げない
+	 */
+	@Test
+	public void noRunwayCut() {
+		final FakeFreeSpace plenty = new FakeFreeSpace(100000000000L);
+		for (int i = 0; i < 3; i++) {
+			checkFreeSpace(plenty);
+			plenty.consume(1000000L);
+			assertEquals(-1, interval(HEALTHY_LATENCY_US));
+		}
+
+		mController.reset(MAX_BITRATE);
+		mController.update(mNowUs);
+		final FakeFreeSpace unknown = new FakeFreeSpace(-1);
+		for (int i = 0; i < 3; i++) {
+			checkFreeSpace(unknown);
+			assertEquals(-1, interval(HEALTHY_LATENCY_US));
+		}
+
+		mController.reset(MAX_BITRATE);
+		mController.update(mNowUs);
+		mController.setMinRunwayUs(0);
+		final FakeFreeSpace low = new FakeFreeSpace(10000000L);
+		for (int i = 0; i < 3; i++) {
+			checkFreeSpace(low);
+			low.consume(1000000L);
+			assertEquals(-1, interval(HEALTHY_LATENCY_US));
+		}
+		assertEquals(MAX_BITRATE, mController.getBitrate());
+	}
+}
@@ -0,0 +1,315 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 偽のエンコーダーを使ってEncoderRankingの順位付けと選択を確認する
+ */
+public class EncoderRankingTest {
+	private static final String MIME = "video/avc";
+	private static final int WIDTH = 1280;
+	private static final int HEIGHT = 720;
+	private static final int FRAME_RATE = 30;
+	private static final int BITRATE = 4000000;
+
+	@Rule
+	public TemporaryFolder mFolder = new TemporaryFolder();
+
+	/**
+	 * 指定したフレームレートでエンコードしたことにする偽のエンコーダー
+	 * 入力したフレームは1/fps秒毎に1つずつ出力する
+	 * stallAfterに正の値を指定するとその数だけ出力した後は何も出力しなくなる
+	 */
+	private static class FakeCodec implements EncoderRanking.BenchmarkCodec {
+		private static final int MAX_QUEUED = 4;
+		private final long mIntervalNs;
+		private final int mStallAfter;
+		private final ArrayDeque<Integer> mQueue = new ArrayDeque<>();
+		private long mNextOutputNs;
+		private int mOutput;
+		private boolean mStarted;
+		private boolean mReleased;
+
+		private FakeCodec(final int fps, final int stallAfter) {
+			mIntervalNs = 1000000000L / fps;
+			mStallAfter = stallAfter;
+		}
+
+		@Override
+		public void start(final int width, final int height,
+			final int frameRate, final int bitrate) throws IOException {
+
+			mStarted = true;
+			mNextOutputNs = System.nanoTime() + mIntervalNs;
+		}
+
+		@Override
+		public boolean queueFrame(final int ix, final long ptsUs, final long timeoutUs) {
+			if (mQueue.size() >= MAX_QUEUED) {
+				return false;
+			}
+			mQueue.addLast(ix);
+			return true;
+		}
+
+		@Override
+		public int dequeueFrame(final long timeoutUs) {
+			if (mQueue.isEmpty() || ((mStallAfter > 0) && (mOutput >= mStallAfter))) {
+				sleepUs(timeoutUs);
+				return -1;
+			}
+			final long waitNs = mNextOutputNs - System.nanoTime();
+			if (waitNs > 0) {
+				if (waitNs > timeoutUs * 1000L) {
+					sleepUs(timeoutUs);
+					return -1;
+				}
+				sleepUs(waitNs / 1000L);
+			}
+			mNextOutputNs += mIntervalNs;
+			mOutput++;
+			return mQueue.pollFirst();
+		}
+
+		@Override
+		public void release() {
+			mReleased = true;
+		}
+
+		private static void sleepUs(final long us) {
+			if (us > 0) {
+				try {
+					Thread.sleep(us / 1000L, (int)(us % 1000L) * 1000);
+				} catch (final InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+
+	/**
+	 * 名前毎に偽のエンコーダーを生成するCodecProvider
+	 * 登録したエンコーダーの代わりにnullを登録するとcreateでIOExceptionを投げる
+	 */
+	private static class FakeProvider implements EncoderRanking.CodecProvider {
+		private final Map<String, FakeCodec> mCodecs = new LinkedHashMap<>();
+		private final Set<String> mFailOnStart = new HashSet<>();
+
+		private FakeProvider add(final String name, final FakeCodec codec) {
+			mCodecs.put(name, codec);
+			return this;
+		}
+
+		private FakeProvider failOnStart(final String name) {
+			mFailOnStart.add(name);
+			return add(name, new FakeCodec(1000, 0));
+		}
+
+		@Override
+		public List<String> getCandidates(final String mimeType,
+			final int width, final int height, final int frameRate) {
+
+			return new ArrayList<>(mCodecs.keySet());
+		}
+
+		@Override
+		public EncoderRanking.BenchmarkCodec create(final String name, final String mimeType)
+			throws IOException {
+
+			final FakeCodec codec = mCodecs.get(name);
+			if (codec == null) {
+				throw new IOException("failed to create " + name);
+			}
+			if (mFailOnStart.contains(name)) {
+				return new EncoderRanking.BenchmarkCodec() {
+					@Override
+					public void start(final int width, final int height,
+						final int frameRate, final int bitrate) throws IOException {
+						throw new IOException("failed to start " + name);
+					}
+
+					@Override
+					public boolean queueFrame(final int ix, final long ptsUs, final long timeoutUs) {
+						throw new AssertionError("not started");
+					}
+
+					@Override
+					public int dequeueFrame(final long timeoutUs) {
+						throw new AssertionError("not started");
+					}
+
+					@Override
+					public void release() {
+						codec.release();
+					}
+				};
+			}
+			return codec;
+		}
+	}
+
+	private static List<String> names(final List<EncoderRanking.Score> scores) {
+		final List<String> result = new ArrayList<>();
+		for (final EncoderRanking.Score score: scores) {
+			result.add(score.getName());
+		}
+		return result;
+	}
+
+	/**
+	 * 速い順に並べて最も速いものを選択する
+	 * 計測後は全てのエンコーダーを破棄する
+	 */
+	@Test
+	public void rankByThroughput() {
+		final FakeCodec slow = new FakeCodec(400, 0);
+		final FakeCodec fast = new FakeCodec(2000, 0);
+		final FakeCodec middle = new FakeCodec(1000, 0);
+		final FakeProvider provider = new FakeProvider()
+			.add("slow", slow).add("fast", fast).add("middle", middle);
+		final EncoderRanking ranking = new EncoderRanking(provider, null, "test");
+		final List<EncoderRanking.Score> scores = ranking.rank(MIME, WIDTH, HEIGHT, FRAME_RATE, BITRATE);
+		assertEquals(Arrays.asList("fast", "middle", "slow"), names(scores));
+		for (final EncoderRanking.Score score: scores) {
+			assertTrue(score.toString(), score.meets(FRAME_RATE));
+			assertTrue(score.toString(), score.getLatencyP50Us() <= score.getLatencyP99Us());
+		}
+		assertTrue(slow.mReleased && fast.mReleased && middle.mReleased);
+		assertEquals("fast", ranking.select(MIME, WIDTH, HEIGHT, FRAME_RATE).getName());
+		// 計測していない条件は選択できない
+		assertNull(ranking.select(MIME, WIDTH, HEIGHT, 60));
+		assertFalse(ranking.rankIfNeeded(MIME, WIDTH, HEIGHT, FRAME_RATE, BITRATE));
+	}
+
+	/**
+	 * フレームレートが同じならp90のレイテンシが小さい方を先にする
+	 */
+	@Test
+	public void tieBreakByLatency() {
+		final EncoderRanking.Score a = new EncoderRanking.Score("a", 60, 1000, 9000, 9500);
+		final EncoderRanking.Score b = new EncoderRanking.Score("b", 60, 2000, 5000, 9900);
+		final EncoderRanking.Score c = new EncoderRanking.Score("c", 90, 9000, 20000, 30000);
+		final List<EncoderRanking.Score> scores = new ArrayList<>(Arrays.asList(a, b, c));
+		Collections.sort(scores, EncoderRanking.COMPARATOR);
+		assertEquals(Arrays.asList("c", "b", "a"), names(scores));
+		// 指定したフレームレートを満たすものが無ければ最も速いものを選ぶ
+		assertEquals("c", EncoderRanking.select(scores, 120).getName());
+		assertEquals("c", EncoderRanking.select(scores, 30).getName());
+	}
+
+	/**
+	 * 生成・開始できなかったものとタイムアウトしたものはフレームレート0で最後に並べて選択しない
+	 */
+	@Test
+	public void failedAndTimedOutCandidates() {
+		final FakeCodec stalled = new FakeCodec(2000, 5);
+		final FakeCodec ok = new FakeCodec(500, 0);
+		final FakeProvider provider = new FakeProvider()
+			.add("missing", null)
+			.failOnStart("broken")
+			.add("stalled", stalled)
+			.add("ok", ok);
+		final EncoderRanking ranking = new EncoderRanking(provider, null, "test");
+		ranking.setMaxDurationMs(300);
+		final List<EncoderRanking.Score> scores = ranking.rank(MIME, WIDTH, HEIGHT, FRAME_RATE, BITRATE);
+		assertEquals(4, scores.size());
+		assertEquals("ok", scores.get(0).getName());
+		for (final EncoderRanking.Score score: scores.subList(1, 4)) {
+			assertEquals(score.toString(), 0f, score.getFramesPerSecond(), 0f);
+			assertEquals(Long.MAX_VALUE, score.getLatencyP90Us());
+			assertFalse(score.meets(1));
+		}
+		// #startに失敗した時もreleaseを呼ぶ
+		assertTrue(provider.mCodecs.get("broken").mReleased);
+		assertTrue(stalled.mReleased);
+		assertEquals("ok", ranking.select(MIME, WIDTH, HEIGHT, FRAME_RATE).getName());
+	}
+
+	/**
+	 * 全て失敗した時は何も選択しない
+	 */
+	@Test
+	public void allFailed() {
+		final FakeProvider provider = new FakeProvider().add("missing", null);
+		final EncoderRanking ranking = new EncoderRanking(provider, null, "test");
+		assertEquals(1, ranking.rank(MIME, WIDTH, HEIGHT, FRAME_RATE, BITRATE).size());
+		assertNull(ranking.select(MIME, WIDTH, HEIGHT, FRAME_RATE));
+	}
+
+	/**
+	 * 候補が無い時は空の結果を保存して、何も選択しない
+	 */
+	@Test
+	public void emptyProvider() {
+		final EncoderRanking ranking = new EncoderRanking(new FakeProvider(), null, "test");
+		assertTrue(ranking.rankIfNeeded(MIME, WIDTH, HEIGHT, FRAME_RATE, BITRATE));
+		final List<EncoderRanking.Score> scores = ranking.getScores(MIME, WIDTH, HEIGHT, FRAME_RATE);
+		assertNotNull(scores);
+		assertTrue(scores.isEmpty());
+		assertNull(ranking.select(MIME, WIDTH, HEIGHT, FRAME_RATE));
+		// 計測済みなので再計測しない
+		assertFalse(ranking.rankIfNeeded(MIME, WIDTH, HEIGHT, FRAME_RATE, BITRATE));
+	}
+
+	/**
+	 * 計測結果は保存して次回読み込む, fingerprintが変わった時は破棄する
+	 */
+	@Test
+	public void persist() throws IOException {
+		final File file = new File(mFolder.getRoot(), "ranking.bin");
+		final FakeProvider provider = new FakeProvider()
+			.add("slow", new FakeCodec(400, 0)).add("fast", new FakeCodec(2000, 0));
+		new EncoderRanking(provider, file, "build1").rank(MIME, WIDTH, HEIGHT, FRAME_RATE, BITRATE);
+		assertTrue(file.exists());
+
+		final EncoderRanking reloaded = new EncoderRanking(new FakeProvider(), file, "build1");
+		assertEquals(Arrays.asList("fast", "slow"),
+			names(reloaded.getScores(MIME, WIDTH, HEIGHT, FRAME_RATE)));
+		assertEquals("fast", reloaded.select(MIME, WIDTH, HEIGHT, FRAME_RATE).getName());
+
+		final EncoderRanking updated = new EncoderRanking(new FakeProvider(), file, "build2");
+		assertNull(updated.getScores(MIME, WIDTH, HEIGHT, FRAME_RATE));
+
+		reloaded.invalidate();
+		assertFalse(file.exists());
+		assertNull(reloaded.select(MIME, WIDTH, HEIGHT, FRAME_RATE));
+	}
+}
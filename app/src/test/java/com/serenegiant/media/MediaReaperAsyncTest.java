@@ -0,0 +1,266 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Handler;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 非同期モードのMediaReaperへ偽のエンコーダー(AsyncOutput)から
+ * 合成したBufferInfo/ByteBufferを送って、リスナーの呼び出し順・EOS・エラー時の処理を確認する
+ */
+public class MediaReaperAsyncTest {
+
+	/**
+	 * コールバックを受け取ったスレッドでそのまま呼び出す偽のエンコーダー
+	 */
+	private static class FakeOutput implements MediaReaper.AsyncOutput {
+		private MediaReaper.OutputCallback mCallback;
+		private final Map<Integer, ByteBuffer> mBuffers = new HashMap<>();
+		private final List<Integer> mReleased = new ArrayList<>();
+		private int mNextIndex;
+
+		@Override
+		public void setOutputCallback(
+			final MediaReaper.OutputCallback callback, final Handler handler) {
+
+			mCallback = callback;
+		}
+
+		@Override
+		public ByteBuffer getOutputBuffer(final int index) {
+			return mBuffers.get(index);
+		}
+
+		@Override
+		public void releaseOutputBuffer(final int index) {
+			assertTrue("released twice," + index, mBuffers.containsKey(index));
+			mBuffers.remove(index);
+			mReleased.add(index);
+		}
+
+		/**
+		 * エンコード済みデータを出力したことにする
+		 * @param data nullならgetOutputBufferがnullを返す
+		 * @return 出力バッファのインデックス
+		 */
+		private int output(final byte[] data, final long ptsUs, final int flags) {
+			final int index = mNextIndex++;
+			mBuffers.put(index, data != null ? ByteBuffer.wrap(data) : null);
+			final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+			// BufferInfo#setはJVM上では何もしないのでフィールドへ直接セットする
+			info.offset = 0;
+			info.size = data != null ? data.length : 0;
+			info.presentationTimeUs = ptsUs;
+			info.flags = flags;
+			mCallback.onOutputBufferAvailable(index, info);
+			return index;
+		}
+	}
+
+	/**
+	 * 呼び出されたコールバックを順に記録するリスナー
+	 */
+	private static class RecordingListener implements MediaReaper.ReaperListener {
+		private final List<String> mEvents = new ArrayList<>();
+		private final List<Long> mPts = new ArrayList<>();
+		private final List<Throwable> mErrors = new ArrayList<>();
+		private MediaFormat mFormat;
+		private RuntimeException mThrowOnWrite;
+
+		@Override
+		public void writeSampleData(final MediaReaper reaper,
+			final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
+
+			if (mThrowOnWrite != null) {
+				throw mThrowOnWrite;
+			}
+			mEvents.add("write:" + byteBuf.get(bufferInfo.offset));
+			mPts.add(bufferInfo.presentationTimeUs);
+		}
+
+		@Override
+		public void onOutputFormatChanged(final MediaReaper reaper, final MediaFormat format) {
+			mEvents.add("format");
+			mFormat = format;
+		}
+
+		@Override
+		public void onStop(final MediaReaper reaper) {
+			mEvents.add("stop");
+		}
+
+		@Override
+		public void onError(final MediaReaper reaper, final Throwable t) {
+			mEvents.add("error");
+			mErrors.add(t);
+		}
+	}
+
+	/**
+	 * csdを解析せずに受け取ったバイト数だけを確認するMediaReaper
+	 */
+	private static class TestReaper extends MediaReaper {
+		private final MediaFormat mOutputFormat = new MediaFormat();
+		private int mCsdSize = -1;
+
+		private TestReaper(final AsyncOutput output, final ReaperListener listener) {
+			super(REAPER_VIDEO, output, listener, false);
+		}
+
+		@Override
+		protected MediaFormat createOutputFormat(
+			final ByteBuffer csd, final int offset, final int size,
+			final int ix0, final int ix1, final int ix2) {
+
+			mCsdSize = size;
+			return mOutputFormat;
+		}
+	}
+
+	private static final byte[] CSD = {0, 0, 0, 1, 0x67, 1, 2, 0, 0, 0, 1, 0x68, 3};
+
+	private FakeOutput mOutput;
+	private RecordingListener mListener;
+	private TestReaper mReaper;
+
+	@Before
+	public void setUp() {
+		mOutput = new FakeOutput();
+		mListener = new RecordingListener();
+		mReaper = new TestReaper(mOutput, mListener);
+		assertNotNull(mOutput.mCallback);
+		assertTrue(mReaper.isAsync());
+	}
+
+	/**
+	 * csd→フォーマット変更→エンコード済みデータを受け取った順に書き込み→EOSでonStop
+	 * 全ての出力バッファを返却する
+	 */
+	@Test
+	public void orderAndEos() {
+		mOutput.output(CSD, 0, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+		mOutput.output(new byte[] {1}, 1000, MediaCodec.BUFFER_FLAG_KEY_FRAME);
+		mOutput.output(new byte[] {2}, 2000, 0);
+		mOutput.output(new byte[] {3}, 3000, 0);
+		mOutput.output(new byte[0], 3000, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+		assertEquals(Arrays.asList("format", "write:1", "write:2", "write:3", "stop"),
+			mListener.mEvents);
+		assertEquals(CSD.length, mReaper.mCsdSize);
+		assertSame(mReaper.mOutputFormat, mListener.mFormat);
+		assertEquals(Arrays.asList(1000L, 2000L, 3000L), mListener.mPts);
+		assertEquals(Arrays.asList(0, 1, 2, 3, 4), mOutput.mReleased);
+		// EOS後に来たものは書き込まずに返却だけする
+		mOutput.output(new byte[] {4}, 4000, 0);
+		assertEquals(5, mListener.mEvents.size());
+		assertEquals(6, mOutput.mReleased.size());
+	}
+
+	/**
+	 * EOSフラグの付いたバッファにデータがあれば書き込んでからonStopを呼ぶ
+	 */
+	@Test
+	public void eosWithData() {
+		mOutput.mCallback.onOutputFormatChanged(new MediaFormat());
+		mOutput.output(new byte[] {7}, 1000, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+		assertEquals(Arrays.asList("format", "write:7", "stop"), mListener.mEvents);
+		assertEquals(1, mOutput.mReleased.size());
+	}
+
+	/**
+	 * 時刻が単調増加でない時は単調増加になる最小の値にする
+	 */
+	@Test
+	public void nonMonotonicPts() {
+		mOutput.mCallback.onOutputFormatChanged(new MediaFormat());
+		mOutput.output(new byte[] {1}, 2000, 0);
+		mOutput.output(new byte[] {2}, 1000, 0);
+		mOutput.output(new byte[] {3}, 2001, 0);
+		assertEquals(Arrays.asList(2000L, 2001L, 2002L), mListener.mPts);
+	}
+
+	/**
+	 * フォーマット確定前のエンコード済みデータ、2回目のフォーマット変更、
+	 * 出力バッファを取得できない時はonErrorを呼んで、出力バッファは返却する
+	 */
+	@Test
+	public void errors() {
+		mOutput.output(new byte[] {1}, 1000, 0);
+		assertEquals(Arrays.asList("error"), mListener.mEvents);
+		assertEquals(Arrays.asList(0), mOutput.mReleased);
+
+		mOutput.mCallback.onOutputFormatChanged(new MediaFormat());
+		mOutput.mCallback.onOutputFormatChanged(new MediaFormat());
+		assertEquals(Arrays.asList("error", "format", "error"), mListener.mEvents);
+
+		mOutput.output(null, 2000, 0);
+		assertEquals("error", mListener.mEvents.get(3));
+		assertEquals(Arrays.asList(0, 1), mOutput.mReleased);
+
+		// MediaCodec.CodecExceptionは生成できないので代わりのExceptionを渡す
+		final IllegalStateException e = new IllegalStateException("fake codec error");
+		mOutput.mCallback.onError(e);
+		assertSame(e, mListener.mErrors.get(mListener.mErrors.size() - 1));
+	}
+
+	/**
+	 * 書き込みでエラーになっても出力バッファは返却して次のデータを処理する
+	 */
+	@Test
+	public void writeFailure() {
+		mOutput.mCallback.onOutputFormatChanged(new MediaFormat());
+		final RuntimeException e = new RuntimeException("disk full");
+		mListener.mThrowOnWrite = e;
+		mOutput.output(new byte[] {1}, 1000, 0);
+		mListener.mThrowOnWrite = null;
+		mOutput.output(new byte[] {2}, 2000, 0);
+		assertEquals(Arrays.asList("format", "error", "write:2"), mListener.mEvents);
+		assertSame(e, mListener.mErrors.get(0));
+		assertEquals(Arrays.asList(0, 1), mOutput.mReleased);
+	}
+
+	/**
+	 * #release後に来たものは書き込まずに返却だけする
+	 */
+	@Test
+	public void afterRelease() {
+		mOutput.mCallback.onOutputFormatChanged(new MediaFormat());
+		mReaper.release();
+		mOutput.output(new byte[] {1}, 1000, 0);
+		mOutput.mCallback.onOutputFormatChanged(new MediaFormat());
+		assertEquals(Arrays.asList("format"), mListener.mEvents);
+		assertEquals(Arrays.asList(0), mOutput.mReleased);
+	}
+}
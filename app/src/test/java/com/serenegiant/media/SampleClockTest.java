@@ -0,0 +1,246 @@
+package com.serenegiant.media;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * SampleClockへ一定サンプル数毎の合成した音声ストリームを与えて
+ * 補正量の上限・再アンカー・ずれの統計情報を確認する
+ * システム時刻は揺らぎ・ドリフトを指定できる疑似的なTimeSourceで与える
+ */
+public class SampleClockTest {
+	private static final int SAMPLE_RATE = 48000;
+	/**
+	 * 1回の読み込みで得るサンプル数, 約21.3ミリ秒
+	 */
+	private static final int SAMPLES_PER_READ = 1024;
+	private static final int MAX_SLEW_PPM = 1000;
+	private static final long START_US = 1000000000L;
+
+	/**
+	 * 音声デバイスのクロックとシステム時刻のずれ(ドリフト)と
+	 * 読み込みから戻るタイミングの揺らぎを与える疑似的なシステム時刻
+	 */
+	private static class SyntheticStream implements SampleClock.TimeSource {
+		/**
+		 * システム時刻での1サンプルあたりの時間[マイクロ秒]
+		 */
+		private final double mUsPerSample;
+		private final long mMaxJitterUs;
+		private final Random mRandom = new Random(0);
+		private long mSamples;
+		private long mGapUs;
+		private long mNowUs;
+
+		private SyntheticStream(final int driftPpm, final long maxJitterUs) {
+			mUsPerSample = 1000000.0 / SAMPLE_RATE * (1.0 + driftPpm / 1000000.0);
+			mMaxJitterUs = maxJitterUs;
+		}
+
+		/**
+		 * 1回分の読み込みを行ったことにしてシステム時刻を進める
+		 * 読み込みから戻るのは最後のサンプルを取得した後なので揺らぎは遅れる方向にだけ与える
+		 * @param samples
+		 */
+		private void read(final int samples) {
+			mSamples += samples;
+			final long jitterUs = mMaxJitterUs > 0
+				? (long)(mRandom.nextDouble() * mMaxJitterUs) : 0;
+			mNowUs = trueUs(mSamples) + jitterUs;
+		}
+
+		/**
+		 * バッファのオーバーランなどでサンプルを取りこぼしたことにする
+		 * @param gapUs
+		 */
+		private void drop(final long gapUs) {
+			mGapUs += gapUs;
+		}
+
+		/**
+		 * 指定したサンプル位置の実際のシステム時刻
+		 * @param samples
+		 * @return
+		 */
+		private long trueUs(final long samples) {
+			return START_US + mGapUs + Math.round(samples * mUsPerSample);
+		}
+
+		@Override
+		public long nowUs() {
+			return mNowUs;
+		}
+	}
+
+	/**
+	 * 指定した時間分の読み込みを行って各バッファのpresentationTimeUsを確認する
+	 * ・単調増加すること
+	 * ・再同期しない限り、読み込み間のpresentationTimeUsの増分は公称値から補正量の上限を超えて変化しないこと
+	 *   (過去へ再同期した時はシステム時刻が追い付くまで前回値+1を返すのでその間は除く)
+	 * ・補正量が上限を超えないこと
+	 * ・実際の時刻とのずれがmaxErrorUs以内に収まること
+	 * @return 最後の読み込みでの実際の時刻とのずれ[マイクロ秒]
+	 */
+	private static long feed(@SuppressWarnings("SameParameterValue")
+		final SampleClock clock, final SyntheticStream stream,
+		final long durationUs, final long maxErrorUs) {
+
+		final long nominalUs = SAMPLES_PER_READ * 1000000L / SAMPLE_RATE;
+		// 整数演算の丸め分として2マイクロ秒の余裕を持たせる
+		final long slewUs = nominalUs * MAX_SLEW_PPM / 1000000L + 2;
+		final int n = (int)(durationUs * SAMPLE_RATE / 1000000L / SAMPLES_PER_READ);
+		long prevPtsUs = -1;
+		long errorUs = 0;
+		boolean holding = false;
+		for (int i = 0; i < n; i++) {
+			final long firstSample = stream.mSamples;
+			final int resyncCount = clock.getResyncCount();
+			stream.read(SAMPLES_PER_READ);
+			final long ptsUs = clock.next(SAMPLES_PER_READ);
+			assertTrue("not monotonic at " + i, ptsUs > prevPtsUs);
+			final long deltaUs = ptsUs - prevPtsUs;
+			if (clock.getResyncCount() != resyncCount) {
+				// 過去へ合わせ直した時はシステム時刻が追い付くまで前回値+1を返す
+				holding = deltaUs == 1;
+			} else if (holding) {
+				// 追い付いた時は公称値より小さい増分になる
+				holding = deltaUs == 1;
+				assertTrue("jumped at " + i + ",delta=" + deltaUs, deltaUs <= nominalUs + slewUs);
+			} else if (prevPtsUs >= 0) {
+				assertTrue("slew exceeded at " + i + ",delta=" + deltaUs,
+					Math.abs(deltaUs - nominalUs) <= slewUs);
+			}
+			assertTrue("correction exceeded," + clock,
+				Math.abs(clock.getCorrectionPpm()) <= MAX_SLEW_PPM);
+			errorUs = stream.trueUs(firstSample) - ptsUs;
+			assertTrue("error " + errorUs + " at " + i + "," + clock,
+				Math.abs(errorUs) <= maxErrorUs);
+			prevPtsUs = ptsUs;
+		}
+		return errorUs;
+	}
+
+	private static SampleClock createClock(final SyntheticStream stream) {
+		final SampleClock clock = new SampleClock(SAMPLE_RATE, stream);
+		clock.setMaxSlewPpm(MAX_SLEW_PPM);
+		return clock;
+	}
+
+	/**
+	 * ドリフトが無ければ読み込みの揺らぎはpresentationTimeUsに乗らない
+	 */
+	@Test
+	public void jitterOnly() {
+		final SyntheticStream stream = new SyntheticStream(0, 5000);
+		final SampleClock clock = createClock(stream);
+		// 揺らぎの分(最大5ミリ秒)だけ遅れて始まる可能性がある
+		feed(clock, stream, 60000000L, 5000);
+		assertEquals(0, clock.getResyncCount());
+		// 1秒毎に再アンカーする
+		assertTrue(clock.getReanchorCount() >= 58);
+		// 揺らぎの平均(2.5ミリ秒)程度のずれしか測定しない
+		assertTrue(clock.toString(), clock.getMaxDriftUs() <= 5000);
+		assertEquals(60000000L / 1000000L * SAMPLE_RATE / SAMPLES_PER_READ * SAMPLES_PER_READ,
+			clock.getSampleCount());
+	}
+
+	/**
+	 * 上限内のドリフトは再同期せずに補正量で追従する
+	 * 測定したずれ / 10秒を補正量にするので、
+	 * 定常状態では500ppmのドリフトに対して5ミリ秒のずれで釣り合う
+	 */
+	@Test
+	public void driftWithinSlew() {
+		final SyntheticStream stream = new SyntheticStream(500, 2000);
+		final SampleClock clock = createClock(stream);
+		// 補正しなければ10分で300ミリ秒ずれて再同期してしまう
+		final long errorUs = feed(clock, stream, 600000000L, 10000);
+		assertEquals(0, clock.getResyncCount());
+		assertTrue(clock.toString(),
+			(clock.getCorrectionPpm() >= 450) && (clock.getCorrectionPpm() <= 550));
+		assertTrue(clock.toString(), Math.abs(clock.getDriftUs() - 5000) <= 1500);
+		assertTrue(clock.toString(), clock.getMaxDriftUs() >= clock.getDriftUs());
+		assertTrue("error=" + errorUs, Math.abs(errorUs - 5000) <= 2000);
+	}
+
+	/**
+	 * 上限を超えるドリフトは補正量が上限で頭打ちになり、ずれが閾値を超えると再同期する
+	 */
+	@Test
+	public void driftBeyondSlew() {
+		final SyntheticStream stream = new SyntheticStream(-3000, 0);
+		final SampleClock clock = createClock(stream);
+		// 補正量が上限に達するまでは再同期しない
+		feed(clock, stream, 60000000L, 200000);
+		assertEquals(0, clock.getResyncCount());
+		assertEquals(-MAX_SLEW_PPM, clock.getCorrectionPpm());
+		// 2000ppmの差が残るので100秒程度で閾値の200ミリ秒を超える
+		feed(clock, stream, 240000000L, 200000 + 25000);
+		assertTrue(clock.toString(), clock.getResyncCount() >= 1);
+		assertTrue(clock.toString(), clock.getMaxDriftUs() >= 150000);
+	}
+
+	/**
+	 * 取りこぼしでずれが閾値を超えた時は直ちにシステム時刻へ合わせ直す
+	 */
+	@Test
+	public void resyncOnGap() {
+		final SyntheticStream stream = new SyntheticStream(0, 0);
+		final SampleClock clock = createClock(stream);
+		feed(clock, stream, 10000000L, 1000);
+		stream.drop(500000L);
+		feed(clock, stream, 10000000L, 1000);
+		assertEquals(1, clock.getResyncCount());
+		// 閾値未満の取りこぼしは再同期せずに補正量で追従する
+		stream.drop(50000L);
+		feed(clock, stream, 120000000L, 51000);
+		assertEquals(1, clock.getResyncCount());
+	}
+
+	/**
+	 * #resetすると統計情報をクリアして次の読み込みでシステム時刻へ合わせ直す
+	 * 返すpresentationTimeUsは単調増加のまま
+	 */
+	@Test
+	public void reset() {
+		final SyntheticStream stream = new SyntheticStream(500, 0);
+		final SampleClock clock = createClock(stream);
+		feed(clock, stream, 30000000L, 10000);
+		stream.read(SAMPLES_PER_READ);
+		final long lastPtsUs = clock.next(SAMPLES_PER_READ);
+		clock.reset();
+		assertEquals(0, clock.getSampleCount());
+		assertEquals(0, clock.getReanchorCount());
+		assertEquals(0, clock.getMaxDriftUs());
+		assertEquals(0, clock.getCorrectionPpm());
+		// 時刻を戻しても前回の値より後になる
+		stream.mNowUs = START_US;
+		assertEquals(lastPtsUs + 1, clock.next(SAMPLES_PER_READ));
+		// 先へ進めた時刻にはそのまま合わせる
+		stream.mNowUs = START_US + 60000000L;
+		final long ptsUs = clock.next(SAMPLES_PER_READ);
+		assertTrue(ptsUs > lastPtsUs);
+	}
+}
@@ -0,0 +1,69 @@
+package com.serenegiant.jmh;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.utils.BufferHelper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+
+/**
+ * AnnexBのスタートマーカー検索を計測する
+ * MediaCodecUtils#findStartMarkerはBufferHelper#byteCompへ
+ * MediaCodecUtils.START_MARKER(==BufferHelper.ANNEXB_START_MARK)を渡しているだけなので
+ * Androidフレームワークに依存するMediaCodecUtilsの代わりにbyteCompを直接呼び出す
+ */
+@State(Scope.Thread)
+public class AnnexBBenchmark {
+	@Param({"1024", "65536", "1048576"})
+	public int size;
+
+	private byte[] mData;
+
+	@Setup
+	public void setup() {
+		mData = new byte[size];
+		new Random(0).nextBytes(mData);
+		// 乱数で偶然出来たマーカーを潰して末尾付近にだけ4バイトのスタートマーカーを置く
+		for (int i = 0; i < size; i++) {
+			if (mData[i] == 0) {
+				mData[i] = 1;
+			}
+		}
+		final int pos = size - 16;
+		mData[pos] = mData[pos + 1] = mData[pos + 2] = 0;
+		mData[pos + 3] = 1;
+	}
+
+	@Benchmark
+	public int findAnnexB() {
+		return BufferHelper.findAnnexB(mData, 0);
+	}
+
+	@Benchmark
+	public int findStartMarker() {
+		return BufferHelper.byteComp(mData, 0,
+			BufferHelper.ANNEXB_START_MARK, BufferHelper.ANNEXB_START_MARK.length);
+	}
+}
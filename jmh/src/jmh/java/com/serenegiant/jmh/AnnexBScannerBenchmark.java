@@ -0,0 +1,189 @@
+package com.serenegiant.jmh;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.utils.AnnexBScanner;
+import com.serenegiant.utils.BufferHelper;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * 数MBのキーフレームを想定したAnnex-Bのスタートコード検索/NALユニット分割を計測する
+ * 先頭にSPS/PPS/SEI相当の小さなNALユニット、その後ろに大きなスライスを複数置く
+ * legacyFindAnnexB/legacySplitはAnnexBScannerへ置き換える前の実装(1バイトずつの比較と
+ * byte[]へのコピー)を比較用にそのまま残したもの
+ */
+@State(Scope.Thread)
+public class AnnexBScannerBenchmark {
+	private static final int NUM_SLICES = 4;
+
+	@Param({"1048576", "4194304", "8388608"})
+	public int size;
+
+	private byte[] mData;
+	private ByteBuffer mHeap;
+	private ByteBuffer mDirect;
+	private final AnnexBScanner mScanner = new AnnexBScanner();
+
+	@Setup
+	public void setup() {
+		mData = new byte[size];
+		new Random(0).nextBytes(mData);
+		// 実際のスライスデータと同様にエミュレーション防止バイトでスタートコードが現れないようにする
+		for (int i = 0; i < size; i++) {
+			if (mData[i] == 0) {
+				mData[i] = 1;
+			}
+		}
+		putStartCode(0, 0x67);		// SPS
+		putStartCode(32, 0x68);		// PPS
+		putStartCode(48, 0x06);		// SEI
+		final int sliceSize = (size - 128) / NUM_SLICES;
+		for (int i = 0; i < NUM_SLICES; i++) {
+			putStartCode(128 + sliceSize * i, 0x65);	// IDRスライス
+		}
+		mHeap = ByteBuffer.wrap(mData);
+		mDirect = ByteBuffer.allocateDirect(size);
+		mDirect.put(mData);
+		mDirect.flip();
+	}
+
+	private void putStartCode(final int pos, final int header) {
+		mData[pos] = mData[pos + 1] = mData[pos + 2] = 0;
+		mData[pos + 3] = 1;
+		mData[pos + 4] = (byte)header;
+	}
+
+	/**
+	 * 最後のスライスの先頭までスタートコードを探す(従来の実装)
+	 * @return
+	 */
+	@Benchmark
+	public int legacyFindAnnexB() {
+		int pos = legacyFindAnnexB(mData, 0);
+		int result = pos;
+		while (pos >= 0) {
+			result = pos;
+			pos = legacyFindAnnexB(mData, pos + 4);
+		}
+		return result;
+	}
+
+	/**
+	 * 最後のスライスの先頭までスタートコードを探す
+	 * @return
+	 */
+	@Benchmark
+	public int findAnnexB() {
+		int pos = BufferHelper.findAnnexB(mData, 0);
+		int result = pos;
+		while (pos >= 0) {
+			result = pos;
+			pos = BufferHelper.findAnnexB(mData, pos + 4);
+		}
+		return result;
+	}
+
+	/**
+	 * 最後のスライスの先頭までスタートコードを探す(MediaCodecUtils#findStartMarkerの従来の実装)
+	 * @return
+	 */
+	@Benchmark
+	public int byteComp() {
+		int pos = BufferHelper.byteComp(mData, 0,
+			BufferHelper.ANNEXB_START_MARK, BufferHelper.ANNEXB_START_MARK.length);
+		int result = pos;
+		while (pos >= 0) {
+			result = pos;
+			pos = BufferHelper.byteComp(mData, pos + 4,
+				BufferHelper.ANNEXB_START_MARK, BufferHelper.ANNEXB_START_MARK.length);
+		}
+		return result;
+	}
+
+	/**
+	 * NALユニット毎にbyte[]へコピーして分割する(従来の実装)
+	 * @return
+	 */
+	@Benchmark
+	public int legacySplit() {
+		int result = 0;
+		int start = legacyFindStartCode(mDirect, 0, size);
+		while (start >= 0) {
+			final int nalStart = start + (mDirect.get(start + 2) == 1 ? 3 : 4);
+			final int next = legacyFindStartCode(mDirect, nalStart, size);
+			final int nalEnd = next >= 0 ? next : size;
+			final byte[] nal = new byte[nalEnd - nalStart];
+			final ByteBuffer src = mDirect.duplicate();
+			src.position(nalStart);
+			src.get(nal);
+			result += nal[0];
+			start = next;
+		}
+		return result;
+	}
+
+	@Benchmark
+	public int scanHeap() {
+		return mScanner.scan(mHeap, 0, size);
+	}
+
+	@Benchmark
+	public int scanDirect() {
+		return mScanner.scan(mDirect, 0, size);
+	}
+
+	private static int legacyFindAnnexB(final byte[] data, final int offset) {
+		final int len5 = data.length - 5;
+		for (int i = offset; i < len5; i++) {
+			if ((data[i] != 0x00) || (data[i+1] != 0x00) || (data[i+2] != 0x00)) {
+				continue;
+			}
+			if (data[i+3] == 0x01) {
+				return i;
+			}
+		}
+		final int len4 = data.length - 4;
+		for (int i = offset; i < len4; i++) {
+			if ((data[i] != 0x00) || (data[i+1] != 0x00)) {
+				continue;
+			}
+			if (data[i+2] == 0x01) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static int legacyFindStartCode(final ByteBuffer buf, final int from, final int end) {
+		for (int i = from; i + 2 < end; i++) {
+			if ((buf.get(i) == 0) && (buf.get(i + 1) == 0) && (buf.get(i + 2) == 1)) {
+				return (i > from) && (buf.get(i - 1) == 0) ? i - 1 : i;
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,124 @@
+package com.serenegiant.jmh;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.utils.CoalescingOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ローカルファイルシステム上で録画ファイルの書き込みスループットを計測する
+ * FragmentedMp4Muxerと同様にmoof相当の小さな書き込みと数KB〜数十KBのサンプルデータの書き込みを混ぜて
+ * 1回の呼び出しでtotalバイトを書き込んでfsyncする
+ * directは従来のFileChannelへの直接書き込み、coalescedはCoalescingOutputStream経由
+ * (通常のJVMではposix_fallocateを使えないので事前確保の効果は含まない)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class CoalescingOutputStreamBenchmark {
+	@Param({"33554432", "134217728"})
+	public int total;
+
+	private byte[] mData;
+	private int[] mSizes;
+	private File mFile;
+
+	@Setup
+	public void setup() throws IOException {
+		final Random random = new Random(0);
+		mData = new byte[total];
+		random.nextBytes(mData);
+		int n = 0;
+		int[] sizes = new int[1024];
+		for (int remaining = total; remaining > 0; ) {
+			// 1/4はmoof/ボックスヘッダー相当の小さな書き込み
+			final int size = Math.min(remaining, random.nextInt(4) == 0
+				? 100 + random.nextInt(400) : 2000 + random.nextInt(60000));
+			if (n >= sizes.length) {
+				final int[] s = new int[sizes.length * 2];
+				System.arraycopy(sizes, 0, s, 0, n);
+				sizes = s;
+			}
+			sizes[n++] = size;
+			remaining -= size;
+		}
+		mSizes = new int[n];
+		System.arraycopy(sizes, 0, mSizes, 0, n);
+		mFile = File.createTempFile("bench", ".mp4");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		mFile.delete();
+	}
+
+	@Benchmark
+	public long direct() throws IOException {
+		try (final FileOutputStream out = new FileOutputStream(mFile)) {
+			final FileChannel channel = out.getChannel();
+			int offset = 0;
+			for (final int size: mSizes) {
+				final ByteBuffer buffer = ByteBuffer.wrap(mData, offset, size);
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+				offset += size;
+			}
+			channel.force(false);
+			return channel.position();
+		}
+	}
+
+	@Benchmark
+	public long coalesced() throws IOException {
+		try (final FileOutputStream out = new FileOutputStream(mFile)) {
+			final CoalescingOutputStream sink = new CoalescingOutputStream(out);
+			try {
+				int offset = 0;
+				for (final int size: mSizes) {
+					sink.write(ByteBuffer.wrap(mData, offset, size));
+					offset += size;
+				}
+				sink.trim();
+				sink.sync();
+				return sink.position();
+			} finally {
+				sink.close();
+			}
+		}
+	}
+}
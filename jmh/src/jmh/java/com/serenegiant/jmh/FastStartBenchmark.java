@@ -0,0 +1,145 @@
+package com.serenegiant.jmh;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.media.FastStartFinalizer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MediaMuxerの出力と同じ配置(ftyp, free, mdat, moov)のファイルを使って
+ * FastStartFinalizerでmoovを先頭へ移動する時間を計測する
+ * rawCopyはtransferToで同じサイズのファイルをコピーするだけの比較用の基準値
+ * relocateは別ファイルへ書き出す場合、inPlaceはcontent uri用のその場での書き換え
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class FastStartBenchmark {
+	/**
+	 * 1チャンク当たりのバイト数, MediaMuxerで1秒程度の映像に相当する
+	 */
+	private static final int CHUNK_SIZE = 512 * 1024;
+
+	@Param({"134217728", "536870912"})
+	public int total;
+
+	private File mSource;
+	private File mWork;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		final Random random = new Random(0);
+		mSource = File.createTempFile("bench", ".mp4");
+		mWork = File.createTempFile("bench", ".mp4");
+		try (final FileOutputStream out = new FileOutputStream(mSource)) {
+			final FileChannel channel = out.getChannel();
+			final ByteBuffer header = ByteBuffer.allocate(88);
+			header.putInt(16).put("ftypisom".getBytes()).putInt(0);
+			header.putInt(64).put("free".getBytes()).position(80);
+			header.putInt(total + 8).put("mdat".getBytes());
+			header.flip();
+			channel.write(header);
+			final byte[] data = new byte[CHUNK_SIZE];
+			final int chunks = total / CHUNK_SIZE;
+			for (int i = 0; i < chunks; i++) {
+				random.nextBytes(data);
+				channel.write(ByteBuffer.wrap(data));
+			}
+			// 最小限のmoov(trak/mdia/minf/stbl/stco)
+			final ByteBuffer moov = ByteBuffer.allocate(56 + chunks * 4);
+			moov.putInt(moov.capacity()).put("moov".getBytes());
+			moov.putInt(moov.capacity() - 8).put("trak".getBytes());
+			moov.putInt(moov.capacity() - 16).put("mdia".getBytes());
+			moov.putInt(moov.capacity() - 24).put("minf".getBytes());
+			moov.putInt(moov.capacity() - 32).put("stbl".getBytes());
+			moov.putInt(16 + chunks * 4).put("stco".getBytes()).putInt(0).putInt(chunks);
+			for (int i = 0; i < chunks; i++) {
+				moov.putInt(88 + i * CHUNK_SIZE);
+			}
+			moov.flip();
+			channel.write(moov);
+		}
+	}
+
+	@Setup(Level.Invocation)
+	public void prepare() throws IOException {
+		copy(mSource, mWork);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		mSource.delete();
+		mWork.delete();
+	}
+
+	@Benchmark
+	public long rawCopy() throws IOException {
+		return copy(mSource, mWork);
+	}
+
+	@Benchmark
+	public int relocate() throws IOException {
+		try (final FileInputStream in = new FileInputStream(mSource);
+			final FileOutputStream out = new FileOutputStream(mWork)) {
+
+			return FastStartFinalizer.process(in.getChannel(), out.getChannel(), null);
+		}
+	}
+
+	@Benchmark
+	public int inPlace() throws IOException {
+		try (final RandomAccessFile raf = new RandomAccessFile(mWork, "rw")) {
+			return FastStartFinalizer.processInPlace(raf.getChannel(), raf.getChannel(), null);
+		}
+	}
+
+	private static long copy(final File src, final File dst) throws IOException {
+		try (final FileInputStream in = new FileInputStream(src);
+			final FileOutputStream out = new FileOutputStream(dst)) {
+
+			final FileChannel input = in.getChannel();
+			final long size = input.size();
+			for (long pos = 0; pos < size; ) {
+				pos += input.transferTo(pos, size - pos, out.getChannel());
+			}
+			out.getChannel().force(false);
+			return size;
+		}
+	}
+}
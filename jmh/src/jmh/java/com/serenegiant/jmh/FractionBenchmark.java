@@ -0,0 +1,67 @@
+package com.serenegiant.jmh;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.math.Fraction;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Fractionの四則演算を計測する
+ * #add等は自分自身を書き換え、#addFraction等は新しいFractionを生成する
+ */
+@State(Scope.Thread)
+public class FractionBenchmark {
+	private Fraction mA;
+	private Fraction mB;
+
+	@Setup
+	public void setup() {
+		mA = new Fraction(30000, 1001);
+		mB = new Fraction(1, 3);
+	}
+
+	@Benchmark
+	public Fraction addInPlace() {
+		return mA.dup().add(mB);
+	}
+
+	@Benchmark
+	public Fraction addFraction() {
+		return mA.addFraction(mB);
+	}
+
+	@Benchmark
+	public Fraction multiplyFraction() {
+		return mA.multiplyFraction(mB);
+	}
+
+	@Benchmark
+	public Fraction divFraction() {
+		return mA.divFraction(mB);
+	}
+
+	@Benchmark
+	public double asDouble() {
+		return mA.asDouble();
+	}
+}
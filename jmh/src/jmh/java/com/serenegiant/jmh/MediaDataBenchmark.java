@@ -0,0 +1,60 @@
+package com.serenegiant.jmh;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.media.MediaData;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * MediaData#setでのByteBufferからのコピーを計測する
+ */
+@State(Scope.Thread)
+public class MediaDataBenchmark {
+	@Param({"1024", "65536", "1048576"})
+	public int size;
+	@Param({"true", "false"})
+	public boolean direct;
+
+	private ByteBuffer mSrc;
+	private MediaData mData;
+	private long mPts;
+
+	@Setup
+	public void setup() {
+		final byte[] bytes = new byte[size];
+		new Random(0).nextBytes(bytes);
+		mSrc = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+		mSrc.put(bytes).flip();
+		mData = new MediaData(size);
+	}
+
+	@Benchmark
+	public MediaData set() {
+		mData.set(mSrc, size, mPts++);
+		return mData;
+	}
+}
@@ -0,0 +1,83 @@
+package com.serenegiant.jmh;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.media.IMediaQueue;
+import com.serenegiant.media.MemMediaQueue;
+import com.serenegiant.media.RecycleMediaData;
+import com.serenegiant.media.SpscMediaQueue;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * 音声データキューとして使うIMediaQueue実装の
+ * 書き込みスレッド→読み込みスレッドへの受け渡しを計測する
+ * IAudioSamplerと同じく200個のRecycleMediaDataをプールする
+ */
+@State(Scope.Group)
+public class MediaQueueBenchmark {
+	private static final int POOL_SIZE = 200;
+	private static final int BUFFER_SIZE = 2048;
+
+	@Param({"mem", "spsc"})
+	public String type;
+
+	private IMediaQueue<RecycleMediaData> mQueue;
+
+	@Setup(Level.Iteration)
+	public void setup() {
+		if ("spsc".equals(type)) {
+			mQueue = new SpscMediaQueue(POOL_SIZE);
+		} else {
+			mQueue = new MemMediaQueue(POOL_SIZE, POOL_SIZE, POOL_SIZE);
+		}
+		mQueue.init(BUFFER_SIZE);
+	}
+
+	@Benchmark
+	@Group("handoff")
+	@GroupThreads(1)
+	public boolean produce() {
+		final RecycleMediaData data = mQueue.obtain(BUFFER_SIZE);
+		if (data != null) {
+			data.presentationTimeUs(System.nanoTime() / 1000L).size(BUFFER_SIZE);
+			return mQueue.queueFrame(data);
+		}
+		return false;
+	}
+
+	@Benchmark
+	@Group("handoff")
+	@GroupThreads(1)
+	public void consume(final Blackhole bh) {
+		final RecycleMediaData data = mQueue.poll();
+		if (data != null) {
+			bh.consume(data.presentationTimeUs());
+			data.recycle();
+		}
+	}
+}
@@ -0,0 +1,157 @@
+package com.serenegiant.jmh;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.media.MediaData;
+import com.serenegiant.media.Mp4Demuxer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import static com.serenegiant.media.Mp4Boxes.*;
+
+/**
+ * Mp4Demuxerでサンプルテーブルを展開する時間と全サンプルを順に読み込む時間を計測する
+ * 30fpsの映像トラック1本(1サンプル1チャンク, 30フレーム毎にキーフレーム)のMP4を生成して使う
+ * mdatの中身は書き込まないので、ファイルシステムが対応していればスパースファイルになる
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class Mp4DemuxerBenchmark {
+	private static final int SAMPLE_SIZE = 16 * 1024;
+
+	/**
+	 * サンプル数, 108000は30fpsで1時間分
+	 */
+	@Param({"18000", "108000"})
+	public int samples;
+
+	private File mFile;
+	private final MediaData mData = new MediaData();
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		mFile = File.createTempFile("bench", ".mp4");
+		try (final RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+			final FileChannel channel = raf.getChannel();
+			final long mdatSize = 16 + (long)samples * SAMPLE_SIZE;
+			final ByteBuffer header = ByteBuffer.allocate(32);
+			header.putInt(16).put("ftypisom".getBytes()).putInt(0);
+			header.putInt(1).put("mdat".getBytes()).putLong(mdatSize);
+			header.flip();
+			channel.write(header, 0);
+			final long moovPos = 16 + mdatSize;
+			final ByteBuffer b = ByteBuffer.allocate(1024 + samples * 16);
+			final int moov = beginBox(b, "moov");
+			final int trak = beginBox(b, "trak");
+			int box = beginFullBox(b, "tkhd", 0, 3);
+			b.putInt(0).putInt(0).putInt(1).put(new byte[68]);
+			endBox(b, box);
+			final int mdia = beginBox(b, "mdia");
+			box = beginFullBox(b, "mdhd", 0, 0);
+			b.putInt(0).putInt(0).putInt(90000).putInt(0).putInt(0);
+			endBox(b, box);
+			box = beginFullBox(b, "hdlr", 0, 0);
+			b.putInt(0);
+			putFourCC(b, "vide");
+			b.putInt(0).putInt(0).putInt(0);
+			putCString(b, "VideoHandle");
+			endBox(b, box);
+			final int minf = beginBox(b, "minf");
+			final int stbl = beginBox(b, "stbl");
+			box = beginFullBox(b, "stsd", 0, 0);
+			b.putInt(1);
+			writeAvc1(b, 1920, 1080,
+				Collections.singletonList(new byte[] {0x67, 0x42, (byte)0xc0, 0x28}),
+				Collections.singletonList(new byte[] {0x68, (byte)0xce}));
+			endBox(b, box);
+			box = beginFullBox(b, "stts", 0, 0);
+			b.putInt(1).putInt(samples).putInt(3000);
+			endBox(b, box);
+			box = beginFullBox(b, "stss", 0, 0);
+			b.putInt((samples + 29) / 30);
+			for (int i = 0; i < samples; i += 30) {
+				b.putInt(i + 1);
+			}
+			endBox(b, box);
+			box = beginFullBox(b, "stsz", 0, 0);
+			b.putInt(0).putInt(samples);
+			for (int i = 0; i < samples; i++) {
+				b.putInt(SAMPLE_SIZE);
+			}
+			endBox(b, box);
+			box = beginFullBox(b, "stsc", 0, 0);
+			b.putInt(1).putInt(1).putInt(1).putInt(1);
+			endBox(b, box);
+			box = beginFullBox(b, "co64", 0, 0);
+			b.putInt(samples);
+			for (int i = 0; i < samples; i++) {
+				b.putLong(32 + (long)i * SAMPLE_SIZE);
+			}
+			endBox(b, box);
+			endBox(b, stbl);
+			endBox(b, minf);
+			endBox(b, mdia);
+			endBox(b, trak);
+			endBox(b, moov);
+			b.flip();
+			channel.write(b, moovPos);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		mFile.delete();
+	}
+
+	@Benchmark
+	public int open() throws IOException {
+		try (final Mp4Demuxer demuxer = new Mp4Demuxer(mFile)) {
+			return demuxer.getTracks().get(0).getSampleCount();
+		}
+	}
+
+	@Benchmark
+	public long readAll() throws IOException {
+		long result = 0;
+		try (final Mp4Demuxer demuxer = new Mp4Demuxer(mFile)) {
+			while (demuxer.readNextSample(mData)) {
+				result += mData.size();
+			}
+		}
+		return result;
+	}
+}
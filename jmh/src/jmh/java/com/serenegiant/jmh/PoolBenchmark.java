@@ -0,0 +1,56 @@
+package com.serenegiant.jmh;
+/*
+ * libcommon
+ * utility/helper classes for myself
+ *
+ * Copyright (c) 2014-2023 saki t_saki@serenegiant.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+*/
+
+import com.serenegiant.utils.Pool;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+/**
+ * Pool#obtain/#recycleの往復を計測する
+ */
+@State(Scope.Thread)
+public class PoolBenchmark {
+	private static final int POOL_SIZE = 200;
+
+	private Pool<byte[]> mPool;
+
+	@Setup
+	public void setup() {
+		mPool = new Pool<byte[]>(POOL_SIZE, POOL_SIZE) {
+			@NonNull
+			@Override
+			protected byte[] createObject(@Nullable final Object... args) {
+				return new byte[1024];
+			}
+		};
+	}
+
+	@Benchmark
+	public boolean obtainAndRecycle() {
+		final byte[] obj = mPool.obtain();
+		return (obj != null) && mPool.recycle(obj);
+	}
+}
@@ -0,0 +1,29 @@
+package android.media;
+
+/**
+ * JMH実行用のandroid.media.MediaCodecスタブ
+ * MediaDataが使うBufferInfoと定数のみ
+ */
+public final class MediaCodec {
+	public static final int BUFFER_FLAG_SYNC_FRAME = 1;
+	public static final int BUFFER_FLAG_KEY_FRAME = 1;
+	public static final int BUFFER_FLAG_CODEC_CONFIG = 2;
+	public static final int BUFFER_FLAG_END_OF_STREAM = 4;
+
+	private MediaCodec() {
+	}
+
+	public static final class BufferInfo {
+		public int offset;
+		public int size;
+		public long presentationTimeUs;
+		public int flags;
+
+		public void set(int newOffset, int newSize, long newTimeUs, int newFlags) {
+			offset = newOffset;
+			size = newSize;
+			presentationTimeUs = newTimeUs;
+			flags = newFlags;
+		}
+	}
+}
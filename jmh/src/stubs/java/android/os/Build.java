@@ -0,0 +1,19 @@
+package android.os;
+
+/**
+ * JMH実行用のandroid.os.Buildスタブ
+ */
+public class Build {
+	public static class VERSION {
+		public static final int SDK_INT = VERSION_CODES.R;
+	}
+
+	public static class VERSION_CODES {
+		public static final int KITKAT = 19;
+		public static final int LOLLIPOP = 21;
+		public static final int M = 23;
+		public static final int O = 26;
+		public static final int Q = 29;
+		public static final int R = 30;
+	}
+}
@@ -0,0 +1,43 @@
+package android.os;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * JMH実行用のandroid.os.Bundleスタブ
+ * MetricsRegistryのスナップショットが使うputXXX/getXXXのみ
+ */
+public final class Bundle {
+	private final Map<String, Object> mMap = new HashMap<>();
+
+	public void putLong(String key, long value) {
+		mMap.put(key, value);
+	}
+
+	public void putDouble(String key, double value) {
+		mMap.put(key, value);
+	}
+
+	public void putBundle(String key, Bundle value) {
+		mMap.put(key, value);
+	}
+
+	public long getLong(String key) {
+		final Object value = mMap.get(key);
+		return value instanceof Long ? (Long)value : 0L;
+	}
+
+	public double getDouble(String key) {
+		final Object value = mMap.get(key);
+		return value instanceof Double ? (Double)value : 0.0;
+	}
+
+	public Bundle getBundle(String key) {
+		final Object value = mMap.get(key);
+		return value instanceof Bundle ? (Bundle)value : null;
+	}
+
+	public boolean containsKey(String key) {
+		return mMap.containsKey(key);
+	}
+}
@@ -0,0 +1,18 @@
+package android.os;
+
+/**
+ * JMH実行用のandroid.os.Parcelスタブ
+ * ベンチマークからは使わないので読み書きは未実装
+ */
+public final class Parcel {
+	private Parcel() {
+	}
+
+	public int readInt() {
+		throw new UnsupportedOperationException();
+	}
+
+	public void writeInt(int val) {
+		throw new UnsupportedOperationException();
+	}
+}
@@ -0,0 +1,14 @@
+package android.os;
+
+/**
+ * JMH実行用のandroid.os.Parcelableスタブ
+ */
+public interface Parcelable {
+	public int describeContents();
+	public void writeToParcel(Parcel dest, int flags);
+
+	public interface Creator<T> {
+		public T createFromParcel(Parcel source);
+		public T[] newArray(int size);
+	}
+}
@@ -0,0 +1,13 @@
+package android.system;
+
+/**
+ * JMH実行用のandroid.system.ErrnoExceptionスタブ
+ */
+public final class ErrnoException extends Exception {
+	public final int errno;
+
+	public ErrnoException(String functionName, int errno) {
+		super(functionName + " failed: errno=" + errno);
+		this.errno = errno;
+	}
+}
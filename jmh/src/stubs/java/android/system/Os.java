@@ -0,0 +1,21 @@
+package android.system;
+
+import java.io.FileDescriptor;
+
+/**
+ * JMH実行用のandroid.system.Osスタブ
+ * 通常のJVMからはposix_fallocateを呼び出せないので常にEOPNOTSUPPで失敗する
+ * (CoalescingOutputStreamは事前確保無しで書き込みをまとめるだけになる)
+ */
+public final class Os {
+	private static final int EOPNOTSUPP = 95;
+
+	private Os() {
+	}
+
+	public static void posix_fallocate(FileDescriptor fd, long offset, long len)
+		throws ErrnoException {
+
+		throw new ErrnoException("posix_fallocate", EOPNOTSUPP);
+	}
+}
@@ -0,0 +1,13 @@
+package android.text;
+
+/**
+ * JMH実行用のandroid.text.TextUtilsスタブ
+ */
+public class TextUtils {
+	private TextUtils() {
+	}
+
+	public static boolean isEmpty(CharSequence str) {
+		return (str == null) || (str.length() == 0);
+	}
+}
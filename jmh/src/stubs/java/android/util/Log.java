@@ -0,0 +1,22 @@
+package android.util;
+
+/**
+ * JMH実行用のandroid.util.Logスタブ
+ * 何も出力しない
+ */
+public final class Log {
+	private Log() {
+	}
+
+	public static int v(String tag, String msg) { return 0; }
+	public static int v(String tag, String msg, Throwable tr) { return 0; }
+	public static int d(String tag, String msg) { return 0; }
+	public static int d(String tag, String msg, Throwable tr) { return 0; }
+	public static int i(String tag, String msg) { return 0; }
+	public static int i(String tag, String msg, Throwable tr) { return 0; }
+	public static int w(String tag, String msg) { return 0; }
+	public static int w(String tag, Throwable tr) { return 0; }
+	public static int w(String tag, String msg, Throwable tr) { return 0; }
+	public static int e(String tag, String msg) { return 0; }
+	public static int e(String tag, String msg, Throwable tr) { return 0; }
+}